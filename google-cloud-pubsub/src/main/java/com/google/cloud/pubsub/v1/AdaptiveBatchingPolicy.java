@@ -0,0 +1,275 @@
+/*
+ * Copyright 2026 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub.v1;
+
+import com.google.api.core.ApiClock;
+import com.google.api.core.BetaApi;
+import com.google.api.core.CurrentMillisClock;
+import com.google.common.base.Preconditions;
+import java.time.Duration;
+import java.util.Arrays;
+
+/**
+ * A {@link BatchingPolicy} that sizes batches from the observed publish latency, the number of
+ * publish requests in flight and the rate at which messages arrive.
+ *
+ * <p>The thresholds are re-evaluated after every few completed publish requests:
+ *
+ * <ul>
+ *   <li>If a request failed or the 99th percentile of the publish latency plus the delay threshold
+ *       exceeds the target latency, the element count and byte thresholds are halved.
+ *   <li>If there is ample latency headroom and batches are either filling up or being sent
+ *       concurrently, the element count and byte thresholds grow by a quarter, so that the same
+ *       throughput is achieved with fewer, larger requests.
+ *   <li>The delay threshold is set to the time needed to fill a batch at the observed arrival rate,
+ *       but never more than the latency budget left by the publish requests themselves.
+ * </ul>
+ *
+ * <p>All thresholds stay within the bounds given to the {@link Builder}.
+ */
+@BetaApi
+public final class AdaptiveBatchingPolicy implements BatchingPolicy {
+  // The number of completed requests between two evaluations of the thresholds.
+  static final int ADJUSTMENT_INTERVAL = 16;
+  // The number of most recent latencies from which the percentile is computed.
+  private static final int LATENCY_WINDOW = 128;
+  private static final double GROWTH_FACTOR = 1.25;
+  private static final double SHRINK_FACTOR = 0.5;
+  // Thresholds only grow while the observed latency is below this fraction of the target.
+  private static final double GROWTH_HEADROOM = 0.7;
+  // Batches filled to at least this fraction of a threshold are considered full.
+  private static final double FULL_BATCH_RATIO = 0.5;
+  // Weight of the most recent observation in the arrival rate moving average.
+  private static final double ARRIVAL_RATE_WEIGHT = 0.2;
+
+  private final long minElementCount;
+  private final long maxElementCount;
+  private final long minRequestBytes;
+  private final long maxRequestBytes;
+  private final long minDelayNanos;
+  private final long maxDelayNanos;
+  private final long targetLatencyNanos;
+  private final ApiClock clock;
+
+  private volatile long elementCountThreshold;
+  private volatile long requestByteThreshold;
+  private volatile long delayThresholdNanos;
+
+  // The statistics below are guarded by this.
+  private final long[] latencies = new long[LATENCY_WINDOW];
+  private int latencyCount = 0;
+  private int completedSinceAdjustment = 0;
+  private boolean failedSinceAdjustment = false;
+  private long batchesSinceAdjustment = 0;
+  private long messagesSinceAdjustment = 0;
+  private long bytesSinceAdjustment = 0;
+  private int maxInflightSinceAdjustment = 0;
+  private long lastStartNanos = -1;
+  private double messagesPerNano = 0;
+
+  private AdaptiveBatchingPolicy(Builder builder) {
+    minElementCount = builder.minElementCount;
+    maxElementCount = builder.maxElementCount;
+    minRequestBytes = builder.minRequestBytes;
+    maxRequestBytes = builder.maxRequestBytes;
+    minDelayNanos = builder.minDelay.toNanos();
+    maxDelayNanos = builder.maxDelay.toNanos();
+    targetLatencyNanos = builder.targetLatency.toNanos();
+    clock = builder.clock;
+
+    elementCountThreshold =
+        clamp(Publisher.Builder.DEFAULT_ELEMENT_COUNT_THRESHOLD, minElementCount, maxElementCount);
+    requestByteThreshold =
+        clamp(Publisher.Builder.DEFAULT_REQUEST_BYTES_THRESHOLD, minRequestBytes, maxRequestBytes);
+    delayThresholdNanos =
+        clamp(Publisher.Builder.DEFAULT_DELAY_THRESHOLD.toNanos(), minDelayNanos, maxDelayNanos);
+  }
+
+  @Override
+  public long getElementCountThreshold() {
+    return elementCountThreshold;
+  }
+
+  @Override
+  public long getRequestByteThreshold() {
+    return requestByteThreshold;
+  }
+
+  @Override
+  public Duration getDelayThreshold() {
+    return Duration.ofNanos(delayThresholdNanos);
+  }
+
+  @Override
+  public synchronized void onPublishStarted(
+      int messageCount, long batchBytes, int inflightRequests) {
+    long now = clock.nanoTime();
+    if (lastStartNanos >= 0 && now > lastStartNanos) {
+      double rate = messageCount / (double) (now - lastStartNanos);
+      messagesPerNano =
+          messagesPerNano == 0
+              ? rate
+              : ARRIVAL_RATE_WEIGHT * rate + (1 - ARRIVAL_RATE_WEIGHT) * messagesPerNano;
+    }
+    lastStartNanos = now;
+    batchesSinceAdjustment++;
+    messagesSinceAdjustment += messageCount;
+    bytesSinceAdjustment += batchBytes;
+    maxInflightSinceAdjustment = Math.max(maxInflightSinceAdjustment, inflightRequests);
+  }
+
+  @Override
+  public synchronized void onPublishCompleted(
+      int messageCount, long batchBytes, Duration latency, boolean success) {
+    latencies[latencyCount % LATENCY_WINDOW] = latency.toNanos();
+    latencyCount++;
+    failedSinceAdjustment |= !success;
+    if (++completedSinceAdjustment >= ADJUSTMENT_INTERVAL) {
+      adjustThresholds();
+    }
+  }
+
+  private void adjustThresholds() {
+    long p99LatencyNanos = latencyPercentile(0.99);
+    long delayNanos = delayThresholdNanos;
+    double elementFill =
+        batchesSinceAdjustment == 0
+            ? 0
+            : messagesSinceAdjustment / (double) (batchesSinceAdjustment * elementCountThreshold);
+    double bytesFill =
+        batchesSinceAdjustment == 0
+            ? 0
+            : bytesSinceAdjustment / (double) (batchesSinceAdjustment * requestByteThreshold);
+    boolean batchesAreFull = Math.max(elementFill, bytesFill) >= FULL_BATCH_RATIO;
+
+    if (failedSinceAdjustment || p99LatencyNanos + delayNanos > targetLatencyNanos) {
+      scaleThresholds(SHRINK_FACTOR);
+    } else if (p99LatencyNanos + delayNanos < GROWTH_HEADROOM * targetLatencyNanos
+        && (batchesAreFull || maxInflightSinceAdjustment > 1)) {
+      scaleThresholds(GROWTH_FACTOR);
+    }
+
+    // Linger long enough to fill a batch at the current arrival rate, within the latency budget
+    // left by the publish requests themselves.
+    long fillNanos =
+        messagesPerNano > 0 ? Math.round(elementCountThreshold / messagesPerNano) : maxDelayNanos;
+    long budgetNanos = Math.max(minDelayNanos, targetLatencyNanos - p99LatencyNanos);
+    delayThresholdNanos = clamp(Math.min(fillNanos, budgetNanos), minDelayNanos, maxDelayNanos);
+
+    completedSinceAdjustment = 0;
+    failedSinceAdjustment = false;
+    batchesSinceAdjustment = 0;
+    messagesSinceAdjustment = 0;
+    bytesSinceAdjustment = 0;
+    maxInflightSinceAdjustment = 0;
+  }
+
+  private void scaleThresholds(double factor) {
+    elementCountThreshold =
+        clamp(
+            Math.max(1, (long) Math.ceil(elementCountThreshold * factor)),
+            minElementCount,
+            maxElementCount);
+    requestByteThreshold =
+        clamp(
+            Math.max(1, (long) Math.ceil(requestByteThreshold * factor)),
+            minRequestBytes,
+            maxRequestBytes);
+  }
+
+  private long latencyPercentile(double percentile) {
+    int count = Math.min(latencyCount, LATENCY_WINDOW);
+    if (count == 0) {
+      return 0;
+    }
+    long[] sorted = Arrays.copyOf(latencies, count);
+    Arrays.sort(sorted);
+    int index = (int) Math.ceil(percentile * count) - 1;
+    return sorted[Math.max(0, Math.min(index, count - 1))];
+  }
+
+  private static long clamp(long value, long min, long max) {
+    return Math.max(min, Math.min(max, value));
+  }
+
+  /** Constructs a new {@link Builder}. */
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  /** A builder of {@link AdaptiveBatchingPolicy}s. */
+  public static final class Builder {
+    private long minElementCount = 1L;
+    private long maxElementCount = Publisher.getApiMaxRequestElementCount();
+    private long minRequestBytes = Publisher.Builder.DEFAULT_REQUEST_BYTES_THRESHOLD;
+    private long maxRequestBytes = Publisher.getApiMaxRequestBytes();
+    private Duration minDelay = Duration.ofMillis(1);
+    private Duration maxDelay = Duration.ofMillis(100);
+    private Duration targetLatency = Duration.ofMillis(500);
+    private ApiClock clock = CurrentMillisClock.getDefaultClock();
+
+    private Builder() {}
+
+    /** Sets the bounds of the element count threshold. Defaults to [1, 1000]. */
+    public Builder setElementCountBounds(long min, long max) {
+      Preconditions.checkArgument(min > 0 && min <= max);
+      Preconditions.checkArgument(max <= Publisher.getApiMaxRequestElementCount());
+      this.minElementCount = min;
+      this.maxElementCount = max;
+      return this;
+    }
+
+    /** Sets the bounds of the request byte threshold. Defaults to [1 kB, 10 MB]. */
+    public Builder setRequestByteBounds(long min, long max) {
+      Preconditions.checkArgument(min > 0 && min <= max);
+      Preconditions.checkArgument(max <= Publisher.getApiMaxRequestBytes());
+      this.minRequestBytes = min;
+      this.maxRequestBytes = max;
+      return this;
+    }
+
+    /** Sets the bounds of the delay threshold. Defaults to [1 ms, 100 ms]. */
+    public Builder setDelayBounds(Duration min, Duration max) {
+      Preconditions.checkNotNull(min);
+      Preconditions.checkNotNull(max);
+      Preconditions.checkArgument(min.toMillis() > 0 && min.compareTo(max) <= 0);
+      this.minDelay = min;
+      this.maxDelay = max;
+      return this;
+    }
+
+    /**
+     * Sets the 99th percentile publish latency, including the time spent waiting in a batch, that
+     * the policy tries not to exceed. Defaults to 500 ms.
+     */
+    public Builder setTargetLatency(Duration targetLatency) {
+      Preconditions.checkNotNull(targetLatency);
+      Preconditions.checkArgument(!targetLatency.isNegative() && !targetLatency.isZero());
+      this.targetLatency = targetLatency;
+      return this;
+    }
+
+    Builder setClock(ApiClock clock) {
+      this.clock = Preconditions.checkNotNull(clock);
+      return this;
+    }
+
+    public AdaptiveBatchingPolicy build() {
+      return new AdaptiveBatchingPolicy(this);
+    }
+  }
+}
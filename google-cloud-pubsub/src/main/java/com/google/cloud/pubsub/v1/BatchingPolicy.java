@@ -0,0 +1,64 @@
+/*
+ * Copyright 2026 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub.v1;
+
+import com.google.api.core.BetaApi;
+import java.time.Duration;
+
+/**
+ * Decides when a {@link Publisher} sends a batch of messages, and observes the publish requests it
+ * sends so that the thresholds can be adapted over time.
+ *
+ * <p>The thresholds are read every time a message is added to a batch, so they should be cheap to
+ * compute. A threshold change applies to the next message added to a batch. Implementations must be
+ * thread-safe: the callbacks are invoked from the threads sending and completing publish requests.
+ *
+ * @see Publisher.Builder#setBatchingPolicy(BatchingPolicy)
+ * @see AdaptiveBatchingPolicy
+ */
+@BetaApi
+public interface BatchingPolicy {
+
+  /** The number of messages at which a batch is sent. */
+  long getElementCountThreshold();
+
+  /** The size in bytes at which a batch is sent. */
+  long getRequestByteThreshold();
+
+  /** How long the first message of a batch may wait before the batch is sent. */
+  Duration getDelayThreshold();
+
+  /**
+   * Called when a publish request for a batch is sent.
+   *
+   * @param messageCount the number of messages in the batch
+   * @param batchBytes the size of the batch in bytes
+   * @param inflightRequests the number of publish requests in flight, including this one
+   */
+  default void onPublishStarted(int messageCount, long batchBytes, int inflightRequests) {}
+
+  /**
+   * Called when a publish request completes, after any retries.
+   *
+   * @param messageCount the number of messages in the batch
+   * @param batchBytes the size of the batch in bytes
+   * @param latency the time from sending the request to its completion
+   * @param success whether the messages were published
+   */
+  default void onPublishCompleted(
+      int messageCount, long batchBytes, Duration latency, boolean success) {}
+}
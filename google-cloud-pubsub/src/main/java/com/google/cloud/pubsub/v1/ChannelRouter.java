@@ -0,0 +1,97 @@
+/*
+ * Copyright 2026 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub.v1;
+
+import com.google.api.gax.grpc.InstantiatingGrpcChannelProvider;
+import com.google.api.gax.rpc.TransportChannelProvider;
+import com.google.common.base.Preconditions;
+import com.google.common.hash.Hashing;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Chooses the channel of the pool each publish request is sent on, as the channel affinity of its
+ * call context.
+ *
+ * <p>Batches with an ordering key always go to the same channel, chosen by consistent hashing of
+ * the key, so that a key keeps one connection and only few keys move when the pool is resized.
+ * Batches without an ordering key go to the channel with the fewest requests in flight.
+ */
+final class ChannelRouter {
+  private final AtomicIntegerArray inflightRequests;
+  // Where the search for the least loaded channel starts, so that ties are spread.
+  private final AtomicInteger nextChannel = new AtomicInteger();
+
+  ChannelRouter(int channelCount) {
+    Preconditions.checkArgument(channelCount > 0);
+    inflightRequests = new AtomicIntegerArray(channelCount);
+  }
+
+  /**
+   * The number of channels in the pool of {@code channelProvider}, or 1 if it is not a pool. Pools
+   * that resize themselves are counted at their initial size.
+   */
+  static int getChannelCount(TransportChannelProvider channelProvider) {
+    if (channelProvider instanceof InstantiatingGrpcChannelProvider) {
+      return Math.max(
+          1,
+          ((InstantiatingGrpcChannelProvider) channelProvider)
+              .getChannelPoolSettings()
+              .getInitialChannelCount());
+    }
+    return 1;
+  }
+
+  int getChannelCount() {
+    return inflightRequests.length();
+  }
+
+  /**
+   * Chooses the channel of a request for {@code orderingKey}, and counts the request as in flight
+   * on it until {@link #release(int)} is called.
+   */
+  int acquire(String orderingKey) {
+    int channelCount = inflightRequests.length();
+    int channel;
+    if (orderingKey != null && !orderingKey.isEmpty()) {
+      channel = Hashing.consistentHash(orderingKey.hashCode(), channelCount);
+    } else {
+      int start = (nextChannel.getAndIncrement() & Integer.MAX_VALUE) % channelCount;
+      channel = start;
+      int leastInflight = inflightRequests.get(start);
+      for (int i = 1; i < channelCount && leastInflight > 0; i++) {
+        int candidate = (start + i) % channelCount;
+        int inflight = inflightRequests.get(candidate);
+        if (inflight < leastInflight) {
+          channel = candidate;
+          leastInflight = inflight;
+        }
+      }
+    }
+    inflightRequests.incrementAndGet(channel);
+    return channel;
+  }
+
+  /** Marks a request on {@code channel} as completed. */
+  void release(int channel) {
+    inflightRequests.decrementAndGet(channel);
+  }
+
+  int getInflightRequests(int channel) {
+    return inflightRequests.get(channel);
+  }
+}
@@ -52,6 +52,7 @@ import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
 
 /**
  * Dispatches messages to a message receiver while handling the messages acking and lease
@@ -694,11 +695,12 @@ class MessageDispatcher {
                     ackHandler.getMessageFutureIfExists();
                 final AckReplyConsumerWithResponse ackReplyConsumerWithResponse =
                     new AckReplyConsumerWithResponseImpl(ackReplySettableApiFuture, messageFuture);
-                receiverWithAckResponse.receiveMessage(message, ackReplyConsumerWithResponse);
+                receiverWithAckResponse.receiveMessage(
+                    decodePayload(message), ackReplyConsumerWithResponse);
               } else {
                 final AckReplyConsumer ackReplyConsumer =
                     new AckReplyConsumerImpl(ackReplySettableApiFuture);
-                receiver.receiveMessage(message, ackReplyConsumer);
+                receiver.receiveMessage(decodePayload(message), ackReplyConsumer);
               }
             } catch (Exception e) {
               ackReplySettableApiFuture.setException(e);
@@ -714,6 +716,20 @@ class MessageDispatcher {
     }
   }
 
+  /**
+   * Decompresses the data of a message compressed by the publisher. A message that fails to
+   * decompress, or whose data decompresses to more than {@link PayloadCodec#MAX_DECODED_BYTES}, is
+   * delivered as received, so that the receiver can decide what to do with it.
+   */
+  private static PubsubMessage decodePayload(PubsubMessage message) {
+    try {
+      return PayloadCodec.decodeMessage(message);
+    } catch (DataFormatException e) {
+      logger.log(Level.WARNING, "Failed to decompress the data of a message.", e);
+      return message;
+    }
+  }
+
   /** Compute the ideal deadline, set subsequent modacks to this deadline, and return it. */
   @InternalApi
   int computeDeadlineSeconds() {
@@ -0,0 +1,453 @@
+/*
+ * Copyright 2026 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub.v1;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.api.core.SettableApiFuture;
+import com.google.api.gax.batching.FlowController;
+import com.google.common.base.Preconditions;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Limits the number of messages and bytes outstanding in a {@link Publisher}.
+ *
+ * <p>Outstanding counts are kept in atomic counters, so acquiring and releasing capacity does not
+ * take a lock while there is no contention. When a limit is reached and the behavior is {@link
+ * FlowController.LimitExceededBehavior#Block}, callers are parked in a FIFO queue and are granted
+ * capacity strictly in arrival order, so large messages cannot be starved by smaller ones. Callers
+ * that must not block can use {@link #acquireAsync(long)} and wait in the same queue.
+ *
+ * <p>Part of the limits may be reserved for priority messages: other messages are only admitted
+ * while the outstanding counts stay below the limits minus the reserve, so that priority messages
+ * find room even when the publisher is saturated by the others. Priority callers that have to wait
+ * are queued separately, and are granted capacity before the others.
+ *
+ * <p>The controller becomes saturated when a message cannot be admitted right away, and becomes
+ * unsaturated again once nobody is waiting and both outstanding counts have dropped to half of
+ * their limits. Transitions are reported to a {@link SaturationListener}.
+ */
+final class MessageFlowController {
+  private static final Logger logger = Logger.getLogger(MessageFlowController.class.getName());
+
+  private final long messageLimit;
+  private final long byteLimit;
+  // The limits for messages without priority, below the reserve for priority messages.
+  private final long unreservedMessageLimit;
+  private final long unreservedByteLimit;
+  // The bytes that may be outstanding, with and without priority. With ThrowException, a message
+  // that would bring the outstanding bytes up to the limit is rejected, as it was by the flow
+  // controller the publisher used before, so these are one below the limits.
+  private final long byteCapacity;
+  private final long unreservedByteCapacity;
+  private final FlowController.LimitExceededBehavior limitBehavior;
+
+  private final AtomicLong outstandingMessages = new AtomicLong();
+  private final AtomicLong outstandingBytes = new AtomicLong();
+
+  // Callers that had to wait for capacity, and the total time they waited.
+  private final LongAdder blockedAcquires = new LongAdder();
+  private final LongAdder blockedNanos = new LongAdder();
+
+  // Callers waiting for capacity, in arrival order. Only the thread draining the queue removes
+  // elements from it.
+  private final Queue<PendingAcquire> pendingAcquires = new ConcurrentLinkedQueue<>();
+  private final Queue<PendingAcquire> pendingPriorityAcquires = new ConcurrentLinkedQueue<>();
+  // Number of drain requests not yet observed by the draining thread; see drainPendingAcquires.
+  private final AtomicInteger drainRequests = new AtomicInteger();
+  // Set once the controller is closed, after which waiters fail with it instead of being granted.
+  private volatile Throwable closedCause = null;
+
+  // Guards saturation transitions, which are rare, so that they are reported in order.
+  private final Object saturationLock = new Object();
+  private volatile boolean saturated = false;
+  private volatile SaturationListener saturationListener = null;
+
+  /** Receives the saturation transitions of a {@link MessageFlowController}. */
+  interface SaturationListener {
+    /**
+     * Called with {@code true} when the controller becomes saturated and with {@code false} when it
+     * stops being saturated. Called while holding an internal lock, so it must not block.
+     */
+    void onSaturationChanged(boolean saturated);
+  }
+
+  MessageFlowController(
+      long messageLimit, long byteLimit, FlowController.LimitExceededBehavior limitBehavior) {
+    this(messageLimit, byteLimit, limitBehavior, 0, 0);
+  }
+
+  /**
+   * @param reservedMessages the number of messages only priority messages may use
+   * @param reservedBytes the number of bytes only priority messages may use
+   */
+  MessageFlowController(
+      long messageLimit,
+      long byteLimit,
+      FlowController.LimitExceededBehavior limitBehavior,
+      long reservedMessages,
+      long reservedBytes) {
+    Preconditions.checkArgument(reservedMessages >= 0 && reservedMessages < messageLimit);
+    Preconditions.checkArgument(reservedBytes >= 0 && reservedBytes < byteLimit);
+    this.messageLimit = messageLimit;
+    this.byteLimit = byteLimit;
+    this.unreservedMessageLimit = messageLimit - reservedMessages;
+    this.unreservedByteLimit = byteLimit - reservedBytes;
+    long byteLimitMargin =
+        limitBehavior == FlowController.LimitExceededBehavior.ThrowException ? 1 : 0;
+    this.byteCapacity = byteLimit - byteLimitMargin;
+    this.unreservedByteCapacity = unreservedByteLimit - byteLimitMargin;
+    this.limitBehavior = limitBehavior;
+  }
+
+  /**
+   * Acquires capacity for one message of {@code messageSize} bytes, blocking if the limits are
+   * reached and the behavior is {@link FlowController.LimitExceededBehavior#Block}.
+   */
+  void acquire(long messageSize) throws FlowController.FlowControlException {
+    acquire(1, messageSize);
+  }
+
+  /**
+   * Acquires capacity for {@code messages} messages totalling {@code bytes} bytes at once, blocking
+   * if the limits are reached and the behavior is {@link
+   * FlowController.LimitExceededBehavior#Block}. The whole group waits in the queue as a single
+   * caller, and is admitted or rejected as a whole.
+   */
+  void acquire(long messages, long bytes) throws FlowController.FlowControlException {
+    acquire(messages, bytes, false);
+  }
+
+  /**
+   * Acquires capacity as {@link #acquire(long, long)}, where {@code priority} callers may use the
+   * reserved capacity and are granted capacity before the others.
+   */
+  void acquire(long messages, long bytes, boolean priority)
+      throws FlowController.FlowControlException {
+    if (tryAcquireImmediately(messages, bytes, priority)) {
+      return;
+    }
+
+    ParkedAcquire pendingAcquire =
+        new ParkedAcquire(Thread.currentThread(), messages, bytes, priority);
+    getQueue(priority).add(pendingAcquire);
+    // Capacity may have been released before this caller was queued.
+    drainPendingAcquires();
+
+    boolean interrupted = false;
+    while (!pendingAcquire.granted && pendingAcquire.failure == null) {
+      LockSupport.park(this);
+      if (Thread.interrupted()) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      logger.log(Level.WARNING, "Interrupted while waiting to acquire flow control tokens");
+      Thread.currentThread().interrupt();
+    }
+    if (pendingAcquire.failure != null) {
+      throw new IllegalStateException(
+          "The flow controller was closed while waiting for capacity.", pendingAcquire.failure);
+    }
+  }
+
+  /**
+   * Acquires capacity for one message of {@code messageSize} bytes without blocking. The returned
+   * future completes once the capacity is granted, in the same order as blocking callers, or fails
+   * with a {@link FlowController.FlowControlException} if the message cannot be admitted, or with
+   * the cause passed to {@link #close(Throwable)} if the controller is closed while it waits.
+   *
+   * <p>The future may be completed on the thread releasing capacity, so listeners should be cheap
+   * or hand off their work.
+   */
+  ApiFuture<Void> acquireAsync(long messageSize) {
+    return acquireAsync(messageSize, false);
+  }
+
+  /**
+   * Acquires capacity as {@link #acquireAsync(long)}, where {@code priority} callers may use the
+   * reserved capacity and are granted capacity before the others.
+   */
+  ApiFuture<Void> acquireAsync(long messageSize, boolean priority) {
+    try {
+      if (tryAcquireImmediately(1, messageSize, priority)) {
+        return ApiFutures.immediateFuture(null);
+      }
+    } catch (FlowController.FlowControlException e) {
+      return ApiFutures.immediateFailedFuture(e);
+    }
+
+    AsyncAcquire pendingAcquire = new AsyncAcquire(1, messageSize, priority);
+    getQueue(priority).add(pendingAcquire);
+    drainPendingAcquires();
+    return pendingAcquire.future;
+  }
+
+  /**
+   * Releases capacity for {@code messages} messages totalling {@code bytes} bytes, typically all
+   * the messages of a batch at once.
+   */
+  void release(long messages, long bytes) {
+    outstandingMessages.addAndGet(-messages);
+    outstandingBytes.addAndGet(-bytes);
+    if (!pendingAcquires.isEmpty() || !pendingPriorityAcquires.isEmpty()) {
+      drainPendingAcquires();
+    }
+    if (saturated) {
+      maybeClearSaturation();
+    }
+  }
+
+  /**
+   * Fails the callers waiting for capacity with {@code cause}, as well as the callers that have to
+   * wait from now on, so that none of them waits for capacity that is never released. Futures of
+   * {@link #acquireAsync(long)} fail with {@code cause}, and blocked callers throw an {@link
+   * IllegalStateException} caused by it.
+   */
+  void close(Throwable cause) {
+    closedCause = Preconditions.checkNotNull(cause);
+    drainPendingAcquires();
+  }
+
+  void setSaturationListener(SaturationListener saturationListener) {
+    this.saturationListener = saturationListener;
+  }
+
+  boolean isSaturated() {
+    return saturated;
+  }
+
+  long getOutstandingElementCount() {
+    return outstandingMessages.get();
+  }
+
+  long getOutstandingRequestBytes() {
+    return outstandingBytes.get();
+  }
+
+  long getBlockedCount() {
+    return blockedAcquires.sum();
+  }
+
+  long getBlockedNanos() {
+    return blockedNanos.sum();
+  }
+
+  /**
+   * Returns true if the capacity was acquired without waiting, false if the caller has to wait for
+   * it, and throws if the message cannot be admitted under the configured behavior.
+   */
+  private boolean tryAcquireImmediately(long messages, long bytes, boolean priority)
+      throws FlowController.FlowControlException {
+    long currentMessageLimit = priority ? messageLimit : unreservedMessageLimit;
+    long currentByteLimit = priority ? byteLimit : unreservedByteLimit;
+    if (messages > currentMessageLimit) {
+      logger.log(
+          Level.WARNING,
+          "Attempted to publish more messages at once than the element count flow control limit.");
+      throw new FlowController.MaxOutstandingElementCountReachedException(currentMessageLimit);
+    }
+    if (bytes > currentByteLimit) {
+      logger.log(
+          Level.WARNING,
+          "Attempted to publish message with byte size > request byte flow control limit.");
+      throw new FlowController.MaxOutstandingRequestBytesReachedException(currentByteLimit);
+    }
+    // Only take the fast path if nobody is waiting ahead, so that waiters are served in order.
+    if (pendingPriorityAcquires.isEmpty()
+        && (priority || pendingAcquires.isEmpty())
+        && tryAcquire(messages, bytes, priority)) {
+      return true;
+    }
+    setSaturated();
+    if (limitBehavior == FlowController.LimitExceededBehavior.ThrowException) {
+      if (outstandingMessages.get() + messages > currentMessageLimit) {
+        throw new FlowController.MaxOutstandingElementCountReachedException(currentMessageLimit);
+      }
+      throw new FlowController.MaxOutstandingRequestBytesReachedException(currentByteLimit);
+    }
+    return false;
+  }
+
+  private Queue<PendingAcquire> getQueue(boolean priority) {
+    return priority ? pendingPriorityAcquires : pendingAcquires;
+  }
+
+  private void setSaturated() {
+    if (saturated) {
+      return;
+    }
+    synchronized (saturationLock) {
+      if (!saturated) {
+        saturated = true;
+        notifySaturationChanged(true);
+      }
+    }
+  }
+
+  private void maybeClearSaturation() {
+    synchronized (saturationLock) {
+      if (saturated
+          && pendingAcquires.isEmpty()
+          && pendingPriorityAcquires.isEmpty()
+          && outstandingMessages.get() <= messageLimit / 2
+          && outstandingBytes.get() <= byteLimit / 2) {
+        saturated = false;
+        notifySaturationChanged(false);
+      }
+    }
+  }
+
+  private void notifySaturationChanged(boolean saturated) {
+    SaturationListener listener = saturationListener;
+    if (listener != null) {
+      listener.onSaturationChanged(saturated);
+    }
+  }
+
+  private boolean tryAcquire(long messages, long bytes, boolean priority) {
+    if (!tryAdd(outstandingMessages, messages, priority ? messageLimit : unreservedMessageLimit)) {
+      return false;
+    }
+    if (!tryAdd(outstandingBytes, bytes, priority ? byteCapacity : unreservedByteCapacity)) {
+      outstandingMessages.addAndGet(-messages);
+      return false;
+    }
+    return true;
+  }
+
+  private static boolean tryAdd(AtomicLong counter, long delta, long limit) {
+    while (true) {
+      long current = counter.get();
+      if (current + delta > limit) {
+        return false;
+      }
+      if (counter.compareAndSet(current, current + delta)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Grants capacity to the waiters at the head of the queues for as long as it is available, to
+   * priority waiters first. Only one thread drains at a time; a request made while another thread
+   * is draining makes that thread loop once more instead of being lost.
+   */
+  private void drainPendingAcquires() {
+    if (drainRequests.getAndIncrement() != 0) {
+      return;
+    }
+    int missed = 1;
+    do {
+      Throwable cause = closedCause;
+      if (cause != null) {
+        failPendingAcquires(pendingPriorityAcquires, cause);
+        failPendingAcquires(pendingAcquires, cause);
+      } else if (grantPendingAcquires(pendingPriorityAcquires)) {
+        // Other waiters are only served once no priority waiter is left.
+        grantPendingAcquires(pendingAcquires);
+      }
+      missed = drainRequests.addAndGet(-missed);
+    } while (missed != 0);
+  }
+
+  /** Grants capacity to the head of {@code queue}, returning true if it emptied the queue. */
+  private boolean grantPendingAcquires(Queue<PendingAcquire> queue) {
+    PendingAcquire head;
+    while ((head = queue.peek()) != null && tryAcquire(head.messages, head.bytes, head.priority)) {
+      // Grant before removing the waiter, so that a new caller cannot take the fast path before
+      // the granted waiter's continuation has run.
+      head.grant();
+      queue.poll();
+      blockedAcquires.increment();
+      blockedNanos.add(System.nanoTime() - head.queuedNanos);
+    }
+    return head == null;
+  }
+
+  private static void failPendingAcquires(Queue<PendingAcquire> queue, Throwable cause) {
+    PendingAcquire head;
+    while ((head = queue.poll()) != null) {
+      head.fail(cause);
+    }
+  }
+
+  private abstract static class PendingAcquire {
+    final long messages;
+    final long bytes;
+    final boolean priority;
+    final long queuedNanos = System.nanoTime();
+
+    PendingAcquire(long messages, long bytes, boolean priority) {
+      this.messages = messages;
+      this.bytes = bytes;
+      this.priority = priority;
+    }
+
+    abstract void grant();
+
+    abstract void fail(Throwable cause);
+  }
+
+  private static final class ParkedAcquire extends PendingAcquire {
+    private final Thread thread;
+    private volatile boolean granted;
+    private volatile Throwable failure;
+
+    ParkedAcquire(Thread thread, long messages, long bytes, boolean priority) {
+      super(messages, bytes, priority);
+      this.thread = thread;
+    }
+
+    @Override
+    void grant() {
+      granted = true;
+      LockSupport.unpark(thread);
+    }
+
+    @Override
+    void fail(Throwable cause) {
+      failure = cause;
+      LockSupport.unpark(thread);
+    }
+  }
+
+  private static final class AsyncAcquire extends PendingAcquire {
+    private final SettableApiFuture<Void> future = SettableApiFuture.create();
+
+    AsyncAcquire(long messages, long bytes, boolean priority) {
+      super(messages, bytes, priority);
+    }
+
+    @Override
+    void grant() {
+      future.set(null);
+    }
+
+    @Override
+    void fail(Throwable cause) {
+      future.setException(cause);
+    }
+  }
+}
@@ -0,0 +1,557 @@
+/*
+ * Copyright 2026 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub.v1;
+
+import com.google.api.core.ApiClock;
+import com.google.api.core.ApiFunction;
+import com.google.api.core.ApiFuture;
+import com.google.api.core.BetaApi;
+import com.google.api.core.CurrentMillisClock;
+import com.google.api.gax.batching.BatchingSettings;
+import com.google.api.gax.core.CredentialsProvider;
+import com.google.api.gax.core.ExecutorProvider;
+import com.google.api.gax.core.FixedExecutorProvider;
+import com.google.api.gax.retrying.RetrySettings;
+import com.google.api.gax.rpc.HeaderProvider;
+import com.google.api.gax.rpc.TransportChannelProvider;
+import com.google.cloud.pubsub.v1.stub.GrpcPublisherStub;
+import com.google.cloud.pubsub.v1.stub.PublisherStub;
+import com.google.common.base.Preconditions;
+import com.google.pubsub.v1.PubsubMessage;
+import com.google.pubsub.v1.TopicName;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Publishes messages to any number of topics, chosen on each call, through a single stub, channel
+ * pool and executor.
+ *
+ * <p>A {@link Publisher} is created for a topic the first time a message is published to it, and is
+ * shut down once the topic has been idle for the {@link Builder#setTopicIdleTimeout(Duration) topic
+ * idle timeout}. Messages of a topic are batched, ordered and flow controlled exactly as by a
+ * {@link Publisher} built with the same settings; in particular the flow control limits of the
+ * batching settings apply to each topic separately. All topics share the threads of the executor,
+ * which also runs the batching alarms, and the connections of the channel provider.
+ *
+ * <p>Example of publishing to several topics:
+ *
+ * <pre>{@code
+ * MultiTopicPublisher publisher = MultiTopicPublisher.newBuilder().build();
+ * try {
+ *   publisher.publish(TopicName.of("my_project", "my_topic"), message);
+ *   publisher.publish(TopicName.of("my_project", "my_other_topic"), otherMessage);
+ * } finally {
+ *   publisher.shutdown();
+ *   publisher.awaitTermination(1, TimeUnit.MINUTES);
+ * }
+ * }</pre>
+ */
+@BetaApi
+public class MultiTopicPublisher {
+  private static final Logger logger = Logger.getLogger(MultiTopicPublisher.class.getName());
+
+  // Value of TopicPublisher.activeCalls once the publisher was evicted.
+  private static final int EVICTED = -1;
+
+  private final Publisher.Builder publisherTemplate;
+  private final ExecutorProvider executorProvider;
+  private final ScheduledExecutorService executor;
+  private final PublisherStub publisherStub;
+  private final long topicIdleTimeoutNanos;
+  private final ApiClock clock;
+
+  private final Map<String, TopicPublisher> publishers = new ConcurrentHashMap<>();
+  private final ScheduledFuture<?> evictionFuture;
+  private final AtomicBoolean shutdown = new AtomicBoolean(false);
+
+  /** The publisher of a topic, and the number of calls using it. */
+  private static final class TopicPublisher {
+    final Publisher publisher;
+    // Number of calls using the publisher, or EVICTED. Only goes from 0 to EVICTED, so that a
+    // publisher is never shut down while it is being used.
+    final AtomicInteger activeCalls = new AtomicInteger(0);
+    volatile long lastUsedNanos;
+
+    TopicPublisher(Publisher publisher, long nowNanos) {
+      this.publisher = publisher;
+      this.lastUsedNanos = nowNanos;
+    }
+
+    boolean tryAcquire() {
+      while (true) {
+        int calls = activeCalls.get();
+        if (calls == EVICTED) {
+          return false;
+        }
+        if (activeCalls.compareAndSet(calls, calls + 1)) {
+          return true;
+        }
+      }
+    }
+
+    void release(long nowNanos) {
+      lastUsedNanos = nowNanos;
+      activeCalls.decrementAndGet();
+    }
+  }
+
+  private MultiTopicPublisher(Builder builder) throws IOException {
+    publisherTemplate = builder.publisherTemplate;
+    executorProvider = publisherTemplate.resolveExecutorProvider();
+    executor = executorProvider.getExecutor();
+    publisherStub =
+        GrpcPublisherStub.create(Publisher.newPublisherStubSettings(publisherTemplate, executor));
+    // Topic publishers run on the shared executor and publish through the shared stub, neither of
+    // which they own.
+    publisherTemplate.setExecutorProvider(FixedExecutorProvider.create(executor));
+    publisherTemplate.setPublisherStub(publisherStub);
+    topicIdleTimeoutNanos = builder.topicIdleTimeout.toNanos();
+    clock = builder.clock;
+
+    long evictionPeriodMillis = Math.max(1, builder.topicIdleTimeout.toMillis());
+    evictionFuture =
+        executor.scheduleWithFixedDelay(
+            new Runnable() {
+              @Override
+              public void run() {
+                evictIdlePublishers();
+              }
+            },
+            evictionPeriodMillis,
+            evictionPeriodMillis,
+            TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Schedules the publishing of a message to a topic. Behaves like {@link
+   * Publisher#publish(PubsubMessage)} on a publisher of that topic.
+   *
+   * @param topic the topic to publish to
+   * @param message the message to publish
+   * @return the message ID wrapped in a future
+   */
+  public ApiFuture<String> publish(TopicName topic, PubsubMessage message) {
+    return publish(topic.toString(), message);
+  }
+
+  /**
+   * Schedules the publishing of a message to a topic. Behaves like {@link
+   * Publisher#publish(PubsubMessage)} on a publisher of that topic.
+   *
+   * @param topic the topic to publish to, in the format "projects/{project}/topics/{topic}"
+   * @param message the message to publish
+   * @return the message ID wrapped in a future
+   */
+  public ApiFuture<String> publish(String topic, PubsubMessage message) {
+    TopicPublisher topicPublisher = acquirePublisher(topic);
+    try {
+      return topicPublisher.publisher.publish(message);
+    } finally {
+      topicPublisher.release(clock.nanoTime());
+    }
+  }
+
+  /**
+   * Resumes publishing of messages with the given ordering key to a topic, after a failure. See
+   * {@link Publisher#resumePublish(String)}.
+   */
+  public void resumePublish(String topic, String key) {
+    TopicPublisher topicPublisher = publishers.get(topic);
+    if (topicPublisher != null && topicPublisher.tryAcquire()) {
+      try {
+        topicPublisher.publisher.resumePublish(key);
+      } finally {
+        topicPublisher.release(clock.nanoTime());
+      }
+    }
+  }
+
+  /** Publishes the outstanding messages of all topics immediately. */
+  public void publishAllOutstanding() {
+    for (TopicPublisher topicPublisher : publishers.values()) {
+      if (topicPublisher.tryAcquire()) {
+        try {
+          topicPublisher.publisher.publishAllOutstanding();
+        } finally {
+          topicPublisher.release(clock.nanoTime());
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the statistics of each topic that currently has a publisher, by topic name. See {@link
+   * Publisher#getStats()}.
+   */
+  public Map<String, PublisherStats> getStats() {
+    Map<String, PublisherStats> stats = new HashMap<>();
+    for (Map.Entry<String, TopicPublisher> entry : publishers.entrySet()) {
+      stats.put(entry.getKey(), entry.getValue().publisher.getStats());
+    }
+    return stats;
+  }
+
+  /** Returns the number of topics that currently have a publisher. */
+  int getActiveTopicCount() {
+    return publishers.size();
+  }
+
+  /**
+   * Schedules immediate publishing of any outstanding messages of all topics and waits until all
+   * are processed, then releases the shared resources.
+   */
+  public void shutdown() {
+    Preconditions.checkState(
+        !shutdown.getAndSet(true), "Cannot shut down a publisher already shut-down.");
+    evictionFuture.cancel(false);
+    // Creations and evictions check the flag under the template lock, so no publisher is added to
+    // or shut down from the map once it is taken here.
+    List<TopicPublisher> topicPublishers;
+    synchronized (publisherTemplate) {
+      topicPublishers = new ArrayList<>(publishers.values());
+      publishers.clear();
+    }
+    try {
+      // Send the outstanding batches of all topics before waiting for any of them.
+      for (TopicPublisher topicPublisher : topicPublishers) {
+        topicPublisher.publisher.publishAllOutstanding();
+      }
+      for (TopicPublisher topicPublisher : topicPublishers) {
+        topicPublisher.publisher.shutdown();
+      }
+    } finally {
+      publisherStub.shutdown();
+      if (executorProvider.shouldAutoClose()) {
+        executor.shutdown();
+      }
+    }
+  }
+
+  /**
+   * Waits for the shared resources to be released after a {@link #shutdown()} request, or the
+   * timeout occurs, or the current thread is interrupted.
+   */
+  public boolean awaitTermination(long duration, TimeUnit unit) throws InterruptedException {
+    long deadlineNanos = System.nanoTime() + unit.toNanos(duration);
+    if (!publisherStub.awaitTermination(duration, unit)) {
+      return false;
+    }
+    if (executorProvider.shouldAutoClose()) {
+      return executor.awaitTermination(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+    return true;
+  }
+
+  private TopicPublisher acquirePublisher(final String topic) {
+    while (true) {
+      Preconditions.checkState(!shutdown.get(), "Cannot publish on a shut-down publisher.");
+      TopicPublisher topicPublisher = publishers.get(topic);
+      if (topicPublisher == null) {
+        topicPublisher = createPublisher(topic);
+      }
+      if (topicPublisher.tryAcquire()) {
+        return topicPublisher;
+      }
+      // The publisher is being evicted; it is removed from the map right after.
+      Thread.yield();
+    }
+  }
+
+  private TopicPublisher createPublisher(String topic) {
+    // Creations are rare, and the template is not thread-safe.
+    synchronized (publisherTemplate) {
+      // A publisher created after shutdown() took the map would never be flushed or shut down.
+      Preconditions.checkState(!shutdown.get(), "Cannot publish on a shut-down publisher.");
+      TopicPublisher topicPublisher = publishers.get(topic);
+      if (topicPublisher != null) {
+        return topicPublisher;
+      }
+      publisherTemplate.topicName = topic;
+      try {
+        topicPublisher = new TopicPublisher(publisherTemplate.build(), clock.nanoTime());
+      } catch (IOException e) {
+        // The publisher does not create any transport of its own.
+        throw new IllegalStateException(e);
+      }
+      publishers.put(topic, topicPublisher);
+      return topicPublisher;
+    }
+  }
+
+  /**
+   * Shuts down the publishers of the topics that were not used for the idle timeout. A publisher
+   * with outstanding messages or paused ordering keys is kept, so that shutting it down does not
+   * block and resuming a key is not forgotten. Nothing is evicted once {@link #shutdown()} has
+   * started, since it shuts down every remaining publisher itself.
+   */
+  void evictIdlePublishers() {
+    long nowNanos = clock.nanoTime();
+    // Evicting an idle publisher does not block, so it is done under the template lock to keep
+    // shutdown() from shutting down the same publisher.
+    synchronized (publisherTemplate) {
+      if (shutdown.get()) {
+        return;
+      }
+      for (Map.Entry<String, TopicPublisher> entry : publishers.entrySet()) {
+        TopicPublisher topicPublisher = entry.getValue();
+        if (nowNanos - topicPublisher.lastUsedNanos < topicIdleTimeoutNanos
+            || !topicPublisher.publisher.isIdle()
+            || !topicPublisher.activeCalls.compareAndSet(0, EVICTED)) {
+          continue;
+        }
+        // A call may have published between the idle check and the eviction.
+        if (!topicPublisher.publisher.isIdle()) {
+          topicPublisher.activeCalls.set(0);
+          continue;
+        }
+        publishers.remove(entry.getKey(), topicPublisher);
+        try {
+          topicPublisher.publisher.shutdown();
+        } catch (RuntimeException e) {
+          logger.log(Level.WARNING, "Failed to shut down idle publisher of " + entry.getKey(), e);
+        }
+      }
+    }
+  }
+
+  /** Constructs a new {@link Builder}. */
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  /** A builder of {@link MultiTopicPublisher}s. */
+  public static final class Builder {
+    static final Duration DEFAULT_TOPIC_IDLE_TIMEOUT = Duration.ofMinutes(10);
+
+    // Holds the settings of the topic publishers; its topic is set when one is created.
+    private final Publisher.Builder publisherTemplate = Publisher.newBuilder("");
+    private Duration topicIdleTimeout = DEFAULT_TOPIC_IDLE_TIMEOUT;
+    private ApiClock clock = CurrentMillisClock.getDefaultClock();
+
+    private Builder() {}
+
+    /** See {@link Publisher.Builder#setChannelProvider(TransportChannelProvider)}. */
+    public Builder setChannelProvider(TransportChannelProvider channelProvider) {
+      publisherTemplate.setChannelProvider(channelProvider);
+      return this;
+    }
+
+    /** See {@link Publisher.Builder#setHeaderProvider(HeaderProvider)}. */
+    public Builder setHeaderProvider(HeaderProvider headerProvider) {
+      publisherTemplate.setHeaderProvider(headerProvider);
+      return this;
+    }
+
+    /** See {@link Publisher.Builder#setCredentialsProvider(CredentialsProvider)}. */
+    public Builder setCredentialsProvider(CredentialsProvider credentialsProvider) {
+      publisherTemplate.setCredentialsProvider(credentialsProvider);
+      return this;
+    }
+
+    /**
+     * Gives the ability to set a custom executor, shared by all topics. See {@link
+     * Publisher.Builder#setExecutorProvider(ExecutorProvider)}.
+     */
+    public Builder setExecutorProvider(ExecutorProvider executorProvider) {
+      publisherTemplate.setExecutorProvider(executorProvider);
+      return this;
+    }
+
+    /**
+     * Runs the tasks of all topics on virtual threads. See {@link
+     * Publisher.Builder#setEnableVirtualThreads(boolean)}.
+     */
+    public Builder setEnableVirtualThreads(boolean enableVirtualThreads) {
+      publisherTemplate.setEnableVirtualThreads(enableVirtualThreads);
+      return this;
+    }
+
+    /** See {@link Publisher.Builder#setEndpoint(String)}. */
+    public Builder setEndpoint(String endpoint) {
+      publisherTemplate.setEndpoint(endpoint);
+      return this;
+    }
+
+    /** See {@link Publisher.Builder#setUniverseDomain(String)}. */
+    public Builder setUniverseDomain(String universeDomain) {
+      publisherTemplate.setUniverseDomain(universeDomain);
+      return this;
+    }
+
+    /**
+     * Sets the batching settings of each topic. Flow control limits apply to each topic separately.
+     * See {@link Publisher.Builder#setBatchingSettings(BatchingSettings)}.
+     */
+    public Builder setBatchingSettings(BatchingSettings batchingSettings) {
+      publisherTemplate.setBatchingSettings(batchingSettings);
+      return this;
+    }
+
+    /** See {@link Publisher.Builder#setRetrySettings(RetrySettings)}. */
+    public Builder setRetrySettings(RetrySettings retrySettings) {
+      publisherTemplate.setRetrySettings(retrySettings);
+      return this;
+    }
+
+    /** See {@link Publisher.Builder#setEnableMessageOrdering(boolean)}. */
+    public Builder setEnableMessageOrdering(boolean enableMessageOrdering) {
+      publisherTemplate.setEnableMessageOrdering(enableMessageOrdering);
+      return this;
+    }
+
+    /** See {@link Publisher.Builder#setPausedOrderingKeyExpiration(Duration)}. */
+    public Builder setPausedOrderingKeyExpiration(Duration expiration) {
+      publisherTemplate.setPausedOrderingKeyExpiration(expiration);
+      return this;
+    }
+
+    /** See {@link Publisher.Builder#setEnableCrossKeyBatching(boolean)}. */
+    public Builder setEnableCrossKeyBatching(boolean enableCrossKeyBatching) {
+      publisherTemplate.setEnableCrossKeyBatching(enableCrossKeyBatching);
+      return this;
+    }
+
+    /** See {@link Publisher.Builder#setEnableCompression(boolean)}. */
+    public Builder setEnableCompression(boolean enableCompression) {
+      publisherTemplate.setEnableCompression(enableCompression);
+      return this;
+    }
+
+    /** See {@link Publisher.Builder#setCompressionBytesThreshold(long)}. */
+    public Builder setCompressionBytesThreshold(long compressionBytesThreshold) {
+      publisherTemplate.setCompressionBytesThreshold(compressionBytesThreshold);
+      return this;
+    }
+
+    /**
+     * See {@link Publisher.Builder#setEnablePayloadCompression(boolean)}. The codec is selected for
+     * each topic separately.
+     */
+    public Builder setEnablePayloadCompression(boolean enablePayloadCompression) {
+      publisherTemplate.setEnablePayloadCompression(enablePayloadCompression);
+      return this;
+    }
+
+    /** See {@link Publisher.Builder#setPayloadCompressionBytesThreshold(long)}. */
+    public Builder setPayloadCompressionBytesThreshold(long payloadCompressionBytesThreshold) {
+      publisherTemplate.setPayloadCompressionBytesThreshold(payloadCompressionBytesThreshold);
+      return this;
+    }
+
+    /** See {@link Publisher.Builder#setDeduplicationWindow(Duration, int)}. */
+    public Builder setDeduplicationWindow(Duration window, int maxEntries) {
+      publisherTemplate.setDeduplicationWindow(window, maxEntries);
+      return this;
+    }
+
+    /** See {@link Publisher.Builder#setDeduplicationKeyFunction(ApiFunction)}. */
+    public Builder setDeduplicationKeyFunction(
+        ApiFunction<PubsubMessage, String> deduplicationKeyFunction) {
+      publisherTemplate.setDeduplicationKeyFunction(deduplicationKeyFunction);
+      return this;
+    }
+
+    /**
+     * See {@link Publisher.Builder#setMaxOutstandingPublishRequests(int)}. The limit applies to
+     * each topic separately.
+     */
+    public Builder setMaxOutstandingPublishRequests(int maxOutstandingPublishRequests) {
+      publisherTemplate.setMaxOutstandingPublishRequests(maxOutstandingPublishRequests);
+      return this;
+    }
+
+    /** See {@link Publisher.Builder#setEnableAdaptivePublishRequestLimit(boolean)}. */
+    public Builder setEnableAdaptivePublishRequestLimit(boolean enableAdaptivePublishRequestLimit) {
+      publisherTemplate.setEnableAdaptivePublishRequestLimit(enableAdaptivePublishRequestLimit);
+      return this;
+    }
+
+    /** See {@link Publisher.Builder#setEnableChannelAffinity(boolean)}. */
+    public Builder setEnableChannelAffinity(boolean enableChannelAffinity) {
+      publisherTemplate.setEnableChannelAffinity(enableChannelAffinity);
+      return this;
+    }
+
+    /** See {@link Publisher.Builder#setHighPriorityMessageFilter(ApiFunction)}. */
+    public Builder setHighPriorityMessageFilter(
+        ApiFunction<PubsubMessage, Boolean> highPriorityMessageFilter) {
+      publisherTemplate.setHighPriorityMessageFilter(highPriorityMessageFilter);
+      return this;
+    }
+
+    /** See {@link Publisher.Builder#setHighPriorityFlowControlReserve(long, long)}. */
+    public Builder setHighPriorityFlowControlReserve(long elementCount, long bytes) {
+      publisherTemplate.setHighPriorityFlowControlReserve(elementCount, bytes);
+      return this;
+    }
+
+    /** See {@link Publisher.Builder#setLatencyBudgetFunction(ApiFunction)}. */
+    public Builder setLatencyBudgetFunction(
+        ApiFunction<PubsubMessage, Duration> latencyBudgetFunction) {
+      publisherTemplate.setLatencyBudgetFunction(latencyBudgetFunction);
+      return this;
+    }
+
+    /**
+     * See {@link Publisher.Builder#setMaxPublishRate(double, long)}. The rate applies to the
+     * publisher of each topic.
+     */
+    public Builder setMaxPublishRate(double messagesPerSecond, long bytesPerSecond) {
+      publisherTemplate.setMaxPublishRate(messagesPerSecond, bytesPerSecond);
+      return this;
+    }
+
+    /** See {@link Publisher.Builder#setMaxOrderingKeyPublishRate(double, long)}. */
+    public Builder setMaxOrderingKeyPublishRate(double messagesPerSecond, long bytesPerSecond) {
+      publisherTemplate.setMaxOrderingKeyPublishRate(messagesPerSecond, bytesPerSecond);
+      return this;
+    }
+
+    /**
+     * Sets how long a topic may go without messages published to it before its publisher is shut
+     * down. A later message creates a new publisher. Defaults to 10 minutes.
+     */
+    public Builder setTopicIdleTimeout(Duration topicIdleTimeout) {
+      Preconditions.checkNotNull(topicIdleTimeout);
+      Preconditions.checkArgument(!topicIdleTimeout.isNegative() && !topicIdleTimeout.isZero());
+      this.topicIdleTimeout = topicIdleTimeout;
+      return this;
+    }
+
+    Builder setClock(ApiClock clock) {
+      this.clock = Preconditions.checkNotNull(clock);
+      publisherTemplate.setClock(clock);
+      return this;
+    }
+
+    public MultiTopicPublisher build() throws IOException {
+      return new MultiTopicPublisher(this);
+    }
+  }
+}
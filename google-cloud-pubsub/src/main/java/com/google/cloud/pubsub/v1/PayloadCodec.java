@@ -0,0 +1,246 @@
+/*
+ * Copyright 2026 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub.v1;
+
+import com.google.protobuf.ByteString;
+import com.google.pubsub.v1.PubsubMessage;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The codecs that a {@link Publisher} can compress message data with. A compressed message is
+ * tagged with the name of its codec in the {@link #ATTRIBUTE_KEY} attribute, which the {@link
+ * Subscriber} uses to decompress the data before it is delivered.
+ *
+ * <p>Both codecs produce zlib streams, whose checksum detects corrupted data, at different levels.
+ * They take about as much CPU as the gzip compression of publish requests, which is also DEFLATE:
+ * what they save is the bytes stored and delivered, since the data stays compressed in Pub/Sub.
+ * Messages tagged with a codec the subscriber does not know are delivered as received, so that
+ * cheaper codecs can be added without breaking older subscribers.
+ */
+enum PayloadCodec {
+  /** DEFLATE at its fastest level. */
+  DEFLATE_FAST("deflate-fast", Deflater.BEST_SPEED),
+  /** DEFLATE at its default level, which spends more CPU for smaller payloads. */
+  DEFLATE("deflate", Deflater.DEFAULT_COMPRESSION);
+
+  static final String ATTRIBUTE_KEY = "googclient_payloadcodec";
+
+  /**
+   * The most bytes that data is decoded to, the largest message the service accepts, so that a
+   * small payload cannot expand to exhaust the memory of the subscriber.
+   */
+  static final int MAX_DECODED_BYTES = 10 * 1024 * 1024;
+
+  private static final int BUFFER_BYTES = 8192;
+  // The most zlib streams kept for reuse per pool, enough for every core to encode or decode at
+  // the same time.
+  private static final int MAX_IDLE_STREAMS = Runtime.getRuntime().availableProcessors();
+
+  private static final Pool<Decompressor> DECOMPRESSORS =
+      new Pool<Decompressor>() {
+        @Override
+        Decompressor create() {
+          return new Decompressor();
+        }
+
+        @Override
+        void recycle(Decompressor decompressor) {
+          decompressor.inflater.reset();
+        }
+
+        @Override
+        void dispose(Decompressor decompressor) {
+          decompressor.inflater.end();
+        }
+      };
+
+  private final String codecName;
+  private final int level;
+  private final Pool<Compressor> compressors;
+
+  PayloadCodec(String codecName, final int level) {
+    this.codecName = codecName;
+    this.level = level;
+    this.compressors =
+        new Pool<Compressor>() {
+          @Override
+          Compressor create() {
+            return new Compressor(level);
+          }
+
+          @Override
+          void recycle(Compressor compressor) {
+            compressor.deflater.reset();
+          }
+
+          @Override
+          void dispose(Compressor compressor) {
+            compressor.deflater.end();
+          }
+        };
+  }
+
+  String getCodecName() {
+    return codecName;
+  }
+
+  ByteString encode(ByteString data) {
+    Compressor compressor = compressors.acquire();
+    try {
+      Deflater deflater = compressor.deflater;
+      deflater.setInput(data.toByteArray());
+      deflater.finish();
+      ByteString.Output output = ByteString.newOutput(Math.min(data.size(), BUFFER_BYTES));
+      while (!deflater.finished()) {
+        int length = deflater.deflate(compressor.buffer);
+        output.write(compressor.buffer, 0, length);
+      }
+      return output.toByteString();
+    } finally {
+      compressors.release(compressor);
+    }
+  }
+
+  ByteString decode(ByteString data) throws DataFormatException {
+    return decode(data, MAX_DECODED_BYTES);
+  }
+
+  /**
+   * Decodes {@code data}, and throws a {@link DataFormatException} if it is corrupted or decodes
+   * to more than {@code maxDecodedBytes}.
+   */
+  ByteString decode(ByteString data, int maxDecodedBytes) throws DataFormatException {
+    Decompressor decompressor = DECOMPRESSORS.acquire();
+    try {
+      Inflater inflater = decompressor.inflater;
+      byte[] buffer = decompressor.buffer;
+      inflater.setInput(data.toByteArray());
+      ByteString.Output output = ByteString.newOutput(BUFFER_BYTES);
+      while (!inflater.finished()) {
+        int length = inflater.inflate(buffer);
+        if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new DataFormatException("The compressed data is truncated.");
+        }
+        if (output.size() + length > maxDecodedBytes) {
+          throw new DataFormatException(
+              "The data decodes to more than " + maxDecodedBytes + " bytes.");
+        }
+        output.write(buffer, 0, length);
+      }
+      return output.toByteString();
+    } finally {
+      DECOMPRESSORS.release(decompressor);
+    }
+  }
+
+  /** Returns {@code message} with {@code encodedData}, encoded by this codec, as its data. */
+  PubsubMessage withEncodedData(PubsubMessage message, ByteString encodedData) {
+    return message.toBuilder().setData(encodedData).putAttributes(ATTRIBUTE_KEY, codecName).build();
+  }
+
+  /** Returns the codec named {@code codecName}, or null if there is none. */
+  static PayloadCodec forCodecName(String codecName) {
+    for (PayloadCodec codec : values()) {
+      if (codec.codecName.equals(codecName)) {
+        return codec;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns {@code message} with its data decompressed if it is tagged with a known codec, or
+   * {@code message} itself otherwise.
+   */
+  static PubsubMessage decodeMessage(PubsubMessage message) throws DataFormatException {
+    if (!message.containsAttributes(ATTRIBUTE_KEY)) {
+      return message;
+    }
+    PayloadCodec codec = forCodecName(message.getAttributesOrThrow(ATTRIBUTE_KEY));
+    if (codec == null) {
+      return message;
+    }
+    return message.toBuilder()
+        .setData(codec.decode(message.getData()))
+        .removeAttributes(ATTRIBUTE_KEY)
+        .build();
+  }
+
+  /** The number of compressors kept for reuse by this codec. */
+  int getIdleCompressorCount() {
+    return compressors.getIdleCount();
+  }
+
+  /**
+   * Zlib streams kept for reuse, since creating one allocates its native state and buffers, which
+   * costs more than compressing a small payload. At most {@link #MAX_IDLE_STREAMS} are kept, and
+   * the others are ended when they are released.
+   */
+  private abstract static class Pool<T> {
+    private final Queue<T> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    abstract T create();
+
+    /** Readies {@code stream} for its next use. */
+    abstract void recycle(T stream);
+
+    abstract void dispose(T stream);
+
+    T acquire() {
+      T stream = idle.poll();
+      if (stream == null) {
+        return create();
+      }
+      idleCount.decrementAndGet();
+      return stream;
+    }
+
+    void release(T stream) {
+      if (idleCount.incrementAndGet() > MAX_IDLE_STREAMS) {
+        idleCount.decrementAndGet();
+        dispose(stream);
+        return;
+      }
+      recycle(stream);
+      idle.offer(stream);
+    }
+
+    int getIdleCount() {
+      return idleCount.get();
+    }
+  }
+
+  private static final class Compressor {
+    private final Deflater deflater;
+    private final byte[] buffer = new byte[BUFFER_BYTES];
+
+    private Compressor(int level) {
+      deflater = new Deflater(level);
+    }
+  }
+
+  private static final class Decompressor {
+    private final Inflater inflater = new Inflater();
+    private final byte[] buffer = new byte[BUFFER_BYTES];
+  }
+}
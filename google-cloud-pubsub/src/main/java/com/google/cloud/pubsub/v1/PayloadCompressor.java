@@ -0,0 +1,143 @@
+/*
+ * Copyright 2026 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub.v1;
+
+import com.google.protobuf.ByteString;
+import com.google.pubsub.v1.PubsubMessage;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compresses the data of the messages of a {@link Publisher} with the {@link PayloadCodec} that
+ * suits them best.
+ *
+ * <p>Every {@link #SAMPLE_INTERVAL} messages, the data is compressed with every codec to measure
+ * how much each one shrinks it and how much CPU it takes per byte, smoothed over the samples. Data
+ * that does not shrink to {@link #MAX_COMPRESSED_RATIO} of its size with the fastest codec is sent
+ * uncompressed. Otherwise, a slower codec is only used if it saves at least {@link
+ * #MIN_EXTRA_SAVINGS} more of the data for at most {@link #MAX_EXTRA_CPU} times the CPU.
+ */
+final class PayloadCompressor {
+  static final int SAMPLE_INTERVAL = 100;
+  static final double MAX_COMPRESSED_RATIO = 0.9;
+  static final double MIN_EXTRA_SAVINGS = 0.05;
+  static final double MAX_EXTRA_CPU = 3.0;
+
+  // The weight of a new sample in the smoothed measurements.
+  private static final double SAMPLE_WEIGHT = 0.2;
+  // Pub/Sub accepts at most 100 attributes per message, one of which tags the codec.
+  private static final int MAX_ATTRIBUTES = 100;
+
+  private final long bytesThreshold;
+  private final AtomicLong compressibleMessages = new AtomicLong();
+
+  // Guarded by this, indexed by codec ordinal.
+  private final double[] compressedRatios = new double[PayloadCodec.values().length];
+  private final double[] nanosPerByte = new double[PayloadCodec.values().length];
+  private boolean sampled = false;
+
+  // Null while messages are sent uncompressed.
+  private volatile PayloadCodec selectedCodec = null;
+
+  PayloadCompressor(long bytesThreshold) {
+    this.bytesThreshold = bytesThreshold;
+  }
+
+  /**
+   * Returns {@code message} with its data compressed by the selected codec, or {@code message}
+   * itself if its data is smaller than the threshold or does not compress.
+   */
+  PubsubMessage compress(PubsubMessage message) {
+    ByteString data = message.getData();
+    if (data.size() < bytesThreshold
+        || message.getAttributesCount() >= MAX_ATTRIBUTES
+        || message.containsAttributes(PayloadCodec.ATTRIBUTE_KEY)) {
+      return message;
+    }
+    if (compressibleMessages.getAndIncrement() % SAMPLE_INTERVAL == 0) {
+      return sample(message);
+    }
+    PayloadCodec codec = selectedCodec;
+    if (codec == null) {
+      return message;
+    }
+    return withEncodedData(message, codec, codec.encode(data));
+  }
+
+  PayloadCodec getSelectedCodec() {
+    return selectedCodec;
+  }
+
+  private PubsubMessage sample(PubsubMessage message) {
+    ByteString data = message.getData();
+    PayloadCodec[] codecs = PayloadCodec.values();
+    ByteString[] encodedData = new ByteString[codecs.length];
+    double[] ratios = new double[codecs.length];
+    double[] nanos = new double[codecs.length];
+    for (PayloadCodec codec : codecs) {
+      long startNanos = System.nanoTime();
+      encodedData[codec.ordinal()] = codec.encode(data);
+      nanos[codec.ordinal()] = (double) (System.nanoTime() - startNanos) / data.size();
+      ratios[codec.ordinal()] = (double) encodedData[codec.ordinal()].size() / data.size();
+    }
+
+    PayloadCodec codec = recordSample(ratios, nanos);
+    if (codec == null) {
+      return message;
+    }
+    return withEncodedData(message, codec, encodedData[codec.ordinal()]);
+  }
+
+  /** Adds a sample to the measurements, and returns the codec they now select. */
+  private synchronized PayloadCodec recordSample(double[] ratios, double[] nanos) {
+    for (int i = 0; i < ratios.length; i++) {
+      compressedRatios[i] =
+          sampled
+              ? compressedRatios[i] + SAMPLE_WEIGHT * (ratios[i] - compressedRatios[i])
+              : ratios[i];
+      nanosPerByte[i] =
+          sampled ? nanosPerByte[i] + SAMPLE_WEIGHT * (nanos[i] - nanosPerByte[i]) : nanos[i];
+    }
+    sampled = true;
+
+    PayloadCodec codec = PayloadCodec.DEFLATE_FAST;
+    if (compressedRatios[codec.ordinal()] > MAX_COMPRESSED_RATIO) {
+      codec = null;
+    } else {
+      // Codecs are declared from the fastest to the slowest.
+      for (PayloadCodec slowerCodec : PayloadCodec.values()) {
+        if (slowerCodec.ordinal() > codec.ordinal()
+            && compressedRatios[codec.ordinal()] - compressedRatios[slowerCodec.ordinal()]
+                >= MIN_EXTRA_SAVINGS
+            && nanosPerByte[slowerCodec.ordinal()]
+                <= MAX_EXTRA_CPU * nanosPerByte[codec.ordinal()]) {
+          codec = slowerCodec;
+        }
+      }
+    }
+    selectedCodec = codec;
+    return codec;
+  }
+
+  private static PubsubMessage withEncodedData(
+      PubsubMessage message, PayloadCodec codec, ByteString encodedData) {
+    // The codec may still fail to shrink a message that is less compressible than the others.
+    if (encodedData.size() >= message.getData().size()) {
+      return message;
+    }
+    return codec.withEncodedData(message, encodedData);
+  }
+}
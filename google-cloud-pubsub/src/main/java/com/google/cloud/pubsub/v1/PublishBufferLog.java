@@ -0,0 +1,328 @@
+/*
+ * Copyright 2026 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub.v1;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.pubsub.v1.PubsubMessage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A log of the messages accepted by a {@link Publisher} that are not yet published, kept in
+ * memory-mapped segment files in a directory.
+ *
+ * <p>Each record is the length of the serialized message plus one, a CRC32 of it, and the message
+ * itself. The length is offset by one so that a record of an empty message is not taken for the
+ * zeros past the last record. Acknowledging a record negates its length, so that it is skipped
+ * when the log is reopened, and a segment file is deleted once all its records are acknowledged
+ * and a newer segment is being written. Writes reach the page cache, so they survive the process
+ * but not the machine; segments are only forced to disk when they are full or the log is closed. A
+ * record that was being written when the process stopped fails its checksum and ends the recovery
+ * of its segment.
+ *
+ * <p>Records are identified by their position: the index of their segment in the high 32 bits and
+ * their offset in it in the low 32 bits.
+ */
+final class PublishBufferLog {
+  private static final Logger logger = Logger.getLogger(PublishBufferLog.class.getName());
+
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SEGMENT_SUFFIX = ".log";
+  // The length of the message plus one, and the checksum of the message.
+  private static final int HEADER_BYTES = 8;
+
+  private final Path directory;
+  private final int segmentBytes;
+
+  // Guarded by this.
+  private final TreeMap<Long, Segment> segments = new TreeMap<>();
+  private Segment activeSegment = null;
+  private long nextSegmentIndex;
+  private boolean closed = false;
+
+  private final List<Long> recoveredPositions;
+
+  private PublishBufferLog(Path directory, int segmentBytes) throws IOException {
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    this.recoveredPositions = recover();
+  }
+
+  /**
+   * Opens the log in {@code directory}, creating the directory if needed. The records left
+   * unacknowledged by a previous log in the same directory are returned by {@link
+   * #getRecoveredPositions()}.
+   */
+  static PublishBufferLog open(Path directory, int segmentBytes) throws IOException {
+    Files.createDirectories(directory);
+    return new PublishBufferLog(directory, segmentBytes);
+  }
+
+  /** The positions of the unacknowledged records found when the log was opened, in order. */
+  List<Long> getRecoveredPositions() {
+    return recoveredPositions;
+  }
+
+  /** Appends {@code message} and returns its position. */
+  synchronized long append(PubsubMessage message) throws IOException {
+    if (closed) {
+      throw new IOException("The publish buffer is closed.");
+    }
+    int messageBytes = message.getSerializedSize();
+    int recordBytes = HEADER_BYTES + messageBytes;
+    if (recordBytes > segmentBytes) {
+      throw new IOException(
+          String.format(
+              "A message of %d bytes does not fit in a publish buffer segment of %d bytes.",
+              messageBytes, segmentBytes));
+    }
+    if (activeSegment == null || activeSegment.writeOffset + recordBytes > segmentBytes) {
+      rollSegment();
+    }
+
+    Segment segment = activeSegment;
+    int offset = segment.writeOffset;
+    ByteBuffer payload = slice(segment.buffer, offset + HEADER_BYTES, messageBytes);
+    CodedOutputStream output = CodedOutputStream.newInstance(payload);
+    message.writeTo(output);
+    output.flush();
+    CRC32 crc = new CRC32();
+    crc.update(slice(segment.buffer, offset + HEADER_BYTES, messageBytes));
+    segment.buffer.putInt(offset + 4, (int) crc.getValue());
+    // The length is written last, so that a partially written record is never seen as complete.
+    segment.buffer.putInt(offset, messageBytes + 1);
+
+    segment.writeOffset += recordBytes;
+    segment.liveRecords++;
+    return toPosition(segment.index, offset);
+  }
+
+  /** Reads the message at {@code position}. */
+  synchronized PubsubMessage read(long position) throws IOException {
+    Segment segment = getSegment(position);
+    int offset = toOffset(position);
+    int length = segment.buffer.getInt(offset);
+    if (length <= 0) {
+      throw new IOException("The publish buffer record at " + position + " was acknowledged.");
+    }
+    int messageBytes = length - 1;
+    try {
+      return PubsubMessage.parseFrom(slice(segment.buffer, offset + HEADER_BYTES, messageBytes));
+    } catch (InvalidProtocolBufferException e) {
+      throw new IOException("The publish buffer record at " + position + " is corrupted.", e);
+    }
+  }
+
+  /**
+   * Marks the record at {@code position} as published, deleting its segment if it was the last
+   * unacknowledged record of a segment no longer written to.
+   */
+  synchronized void acknowledge(long position) {
+    if (closed) {
+      return;
+    }
+    Segment segment = segments.get(toSegmentIndex(position));
+    int offset = toOffset(position);
+    if (segment == null || segment.buffer.getInt(offset) <= 0) {
+      return;
+    }
+    segment.buffer.putInt(offset, -segment.buffer.getInt(offset));
+    segment.liveRecords--;
+    if (segment.liveRecords == 0 && segment != activeSegment) {
+      deleteSegment(segment);
+    }
+  }
+
+  /** Forces the active segment to disk. The log cannot be used after it is closed. */
+  synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    if (activeSegment != null) {
+      if (activeSegment.liveRecords == 0) {
+        deleteSegment(activeSegment);
+      } else {
+        activeSegment.buffer.force();
+      }
+    }
+  }
+
+  synchronized int getSegmentCount() {
+    return segments.size();
+  }
+
+  private void rollSegment() throws IOException {
+    Segment previous = activeSegment;
+    Path path =
+        directory.resolve(
+            String.format("%s%020d%s", SEGMENT_PREFIX, nextSegmentIndex, SEGMENT_SUFFIX));
+    MappedByteBuffer buffer;
+    try (FileChannel channel =
+        FileChannel.open(
+            path,
+            StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE)) {
+      buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+    }
+    activeSegment = new Segment(nextSegmentIndex, path, buffer);
+    segments.put(nextSegmentIndex, activeSegment);
+    nextSegmentIndex++;
+
+    if (previous != null) {
+      if (previous.liveRecords == 0) {
+        deleteSegment(previous);
+      } else {
+        previous.buffer.force();
+      }
+    }
+  }
+
+  private List<Long> recover() throws IOException {
+    List<Path> paths = new ArrayList<>();
+    try (DirectoryStream<Path> stream =
+        Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+      for (Path path : stream) {
+        paths.add(path);
+      }
+    }
+    TreeMap<Long, Path> sortedPaths = new TreeMap<>();
+    for (Path path : paths) {
+      String name = path.getFileName().toString();
+      try {
+        sortedPaths.put(
+            Long.parseLong(
+                name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())),
+            path);
+      } catch (NumberFormatException e) {
+        logger.log(Level.WARNING, "Ignoring unexpected file in the publish buffer: {0}", path);
+      }
+    }
+
+    List<Long> positions = new ArrayList<>();
+    for (Map.Entry<Long, Path> entry : sortedPaths.entrySet()) {
+      long index = entry.getKey();
+      MappedByteBuffer buffer;
+      try (FileChannel channel =
+          FileChannel.open(entry.getValue(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+      }
+      Segment segment = new Segment(index, entry.getValue(), buffer);
+      segments.put(index, segment);
+      nextSegmentIndex = index + 1;
+
+      int offset = 0;
+      while (offset + HEADER_BYTES <= buffer.capacity()) {
+        int length = buffer.getInt(offset);
+        if (length == 0) {
+          break;
+        }
+        int messageBytes = Math.abs(length) - 1;
+        if (offset + HEADER_BYTES + messageBytes > buffer.capacity()) {
+          break;
+        }
+        if (length > 0) {
+          CRC32 crc = new CRC32();
+          crc.update(slice(buffer, offset + HEADER_BYTES, messageBytes));
+          if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+            logger.log(
+                Level.WARNING,
+                "Ignoring the end of publish buffer segment {0}, which was not completely written.",
+                entry.getValue());
+            break;
+          }
+          positions.add(toPosition(index, offset));
+          segment.liveRecords++;
+        }
+        offset += HEADER_BYTES + messageBytes;
+      }
+      if (segment.liveRecords == 0) {
+        deleteSegment(segment);
+      }
+    }
+    return Collections.unmodifiableList(positions);
+  }
+
+  private Segment getSegment(long position) throws IOException {
+    Segment segment = segments.get(toSegmentIndex(position));
+    if (segment == null) {
+      throw new IOException("The publish buffer has no segment for position " + position + ".");
+    }
+    return segment;
+  }
+
+  private void deleteSegment(Segment segment) {
+    segments.remove(segment.index);
+    if (segment == activeSegment) {
+      activeSegment = null;
+    }
+    try {
+      Files.deleteIfExists(segment.path);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to delete publish buffer segment " + segment.path, e);
+    }
+  }
+
+  private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+    ByteBuffer slice = buffer.duplicate();
+    slice.position(offset);
+    slice.limit(offset + length);
+    return slice.slice();
+  }
+
+  private static long toPosition(long segmentIndex, int offset) {
+    return (segmentIndex << 32) | offset;
+  }
+
+  private static long toSegmentIndex(long position) {
+    return position >>> 32;
+  }
+
+  private static int toOffset(long position) {
+    return (int) position;
+  }
+
+  private static final class Segment {
+    final long index;
+    final Path path;
+    final MappedByteBuffer buffer;
+    int writeOffset = 0;
+    int liveRecords = 0;
+
+    Segment(long index, Path path, MappedByteBuffer buffer) {
+      this.index = index;
+      this.path = path;
+      this.buffer = buffer;
+    }
+  }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2026 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub.v1;
+
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+
+import com.google.api.core.ApiClock;
+import com.google.api.core.ApiFunction;
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.api.core.SettableApiFuture;
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.pubsub.v1.PubsubMessage;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes each message once within a time window: a message with the same key as a message
+ * published less than the window ago gets the future of that message instead of being published.
+ *
+ * <p>Messages are keyed by a user function, such as one reading an event ID from an attribute, or
+ * by a 128-bit hash of their content, computed as it is read, without serializing the message. At
+ * most {@code maxEntries} keys are kept, the oldest being dropped first. A message that fails to
+ * publish is forgotten, so that it can be published again.
+ *
+ * <p>The keys are spread over stripes, each with its own lock and share of {@code maxEntries}, so
+ * that publishing threads rarely wait for each other. The oldest keys are then dropped per stripe
+ * rather than overall. Small limits are kept in a single stripe, where the order is exact.
+ */
+final class PublishDeduplicator {
+  // The most stripes, enough for the publishing threads of a host to rarely share one.
+  private static final int MAX_STRIPES = 16;
+  // The fewest keys per stripe, so that the oldest keys are dropped almost in order.
+  private static final int MIN_ENTRIES_PER_STRIPE = 1024;
+
+  private final ApiFunction<PubsubMessage, String> keyFunction;
+  private final long windowNanos;
+  private final ApiClock clock;
+  private final Stripe[] stripes;
+  private final AtomicLong duplicateCount = new AtomicLong();
+
+  /**
+   * @param keyFunction the key of each message, or null to key messages by their content. A null
+   *     key means that the message is not deduplicated.
+   */
+  PublishDeduplicator(
+      ApiFunction<PubsubMessage, String> keyFunction,
+      Duration window,
+      int maxEntries,
+      ApiClock clock) {
+    Preconditions.checkArgument(!window.isNegative() && !window.isZero());
+    Preconditions.checkArgument(maxEntries > 0);
+    this.keyFunction = keyFunction;
+    this.windowNanos = window.toNanos();
+    this.clock = clock;
+    int stripeCount = Math.max(1, Math.min(MAX_STRIPES, maxEntries / MIN_ENTRIES_PER_STRIPE));
+    this.stripes = new Stripe[stripeCount];
+    for (int i = 0; i < stripeCount; i++) {
+      stripes[i] = new Stripe(maxEntries / stripeCount + (i < maxEntries % stripeCount ? 1 : 0));
+    }
+  }
+
+  /**
+   * Publishes {@code message} with {@code publishFunction}, unless a message with the same key was
+   * published within the window, in which case the future of that message is returned.
+   */
+  ApiFuture<String> publish(
+      PubsubMessage message, ApiFunction<PubsubMessage, ApiFuture<String>> publishFunction) {
+    final Object key = getKey(message);
+    if (key == null) {
+      return publishFunction.apply(message);
+    }
+    final Stripe stripe = getStripe(key);
+    final SettableApiFuture<String> result = SettableApiFuture.create();
+    synchronized (stripe) {
+      long nowNanos = clock.nanoTime();
+      stripe.expire(nowNanos);
+      Entry entry = stripe.entries.get(key);
+      if (entry != null) {
+        duplicateCount.incrementAndGet();
+        return entry.result;
+      }
+      stripe.entries.put(key, new Entry(result, nowNanos));
+      if (stripe.entries.size() > stripe.maxEntries) {
+        Iterator<Entry> iterator = stripe.entries.values().iterator();
+        iterator.next();
+        iterator.remove();
+      }
+    }
+
+    ApiFuture<String> publishFuture;
+    try {
+      publishFuture = publishFunction.apply(message);
+    } catch (RuntimeException e) {
+      stripe.forget(key, result);
+      throw e;
+    }
+    ApiFutures.addCallback(
+        publishFuture,
+        new ApiFutureCallback<String>() {
+          @Override
+          public void onSuccess(String messageId) {
+            result.set(messageId);
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            stripe.forget(key, result);
+            result.setException(t);
+          }
+        },
+        directExecutor());
+    return result;
+  }
+
+  /** The number of messages that were not published because they were duplicates. */
+  long getDuplicateCount() {
+    return duplicateCount.get();
+  }
+
+  int getEntryCount() {
+    int entryCount = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        entryCount += stripe.entries.size();
+      }
+    }
+    return entryCount;
+  }
+
+  int getStripeCount() {
+    return stripes.length;
+  }
+
+  private Object getKey(PubsubMessage message) {
+    if (keyFunction != null) {
+      return keyFunction.apply(message);
+    }
+    return hashContent(message);
+  }
+
+  /**
+   * Hashes the fields that a publisher sets on a message. The attributes are combined in any
+   * order, since messages with the same attributes may list them in different orders.
+   */
+  static HashCode hashContent(PubsubMessage message) {
+    Hasher hasher = Hashing.murmur3_128().newHasher();
+    hasher.putBytes(message.getData().asReadOnlyByteBuffer());
+    hasher.putInt(message.getData().size());
+    hasher.putString(message.getOrderingKey(), StandardCharsets.UTF_8);
+    hasher.putInt(message.getOrderingKey().length());
+    long attributesHash = 0;
+    for (Map.Entry<String, String> attribute : message.getAttributesMap().entrySet()) {
+      attributesHash +=
+          Hashing.murmur3_128()
+              .newHasher()
+              .putString(attribute.getKey(), StandardCharsets.UTF_8)
+              .putInt(attribute.getKey().length())
+              .putString(attribute.getValue(), StandardCharsets.UTF_8)
+              .hash()
+              .asLong();
+    }
+    hasher.putLong(attributesHash);
+    hasher.putInt(message.getAttributesCount());
+    return hasher.hash();
+  }
+
+  private Stripe getStripe(Object key) {
+    int hash = key.hashCode();
+    return stripes[((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % stripes.length];
+  }
+
+  /** The keys of one stripe, in the order they were added, so that the oldest are first. */
+  private final class Stripe {
+    // Guarded by this.
+    private final LinkedHashMap<Object, Entry> entries = new LinkedHashMap<>();
+    private final int maxEntries;
+
+    private Stripe(int maxEntries) {
+      this.maxEntries = maxEntries;
+    }
+
+    private synchronized void forget(Object key, SettableApiFuture<String> result) {
+      Entry entry = entries.get(key);
+      if (entry != null && entry.result == result) {
+        entries.remove(key);
+      }
+    }
+
+    // Must be called while holding the lock of this stripe.
+    private void expire(long nowNanos) {
+      Iterator<Entry> iterator = entries.values().iterator();
+      while (iterator.hasNext()) {
+        if (nowNanos - iterator.next().addedNanos < windowNanos) {
+          break;
+        }
+        iterator.remove();
+      }
+    }
+  }
+
+  private static final class Entry {
+    final SettableApiFuture<String> result;
+    final long addedNanos;
+
+    Entry(SettableApiFuture<String> result, long addedNanos) {
+      this.result = result;
+      this.addedNanos = addedNanos;
+    }
+  }
+}
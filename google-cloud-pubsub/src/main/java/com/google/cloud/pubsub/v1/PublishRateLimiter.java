@@ -0,0 +1,327 @@
+/*
+ * Copyright 2026 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub.v1;
+
+import com.google.api.core.ApiClock;
+import com.google.common.base.Preconditions;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate of the publish requests of a {@link Publisher}, in messages and bytes per second,
+ * across all requests and for each ordering key.
+ *
+ * <p>Each budget is a token bucket refilled at its rate and holding at most one second of it, so
+ * that bursts up to the rate are sent right away. A request larger than a bucket is sent once the
+ * bucket is full, and the bucket goes into debt. Requests over the budget wait in a queue and are
+ * sent on the executor as the buckets refill: in order across the publisher, except that requests
+ * waiting only for the budget of their ordering key do not hold back other keys.
+ */
+final class PublishRateLimiter {
+  // The budgets of idle ordering keys are dropped each time the number of budgets doubles, from at
+  // least this many.
+  private static final int MIN_KEY_BUCKETS_TO_PRUNE = 64;
+  private static final long NO_DRAIN_SCHEDULED = Long.MIN_VALUE;
+
+  private final Budget globalBudget;
+  private final double keyMessagesPerSecond;
+  private final double keyBytesPerSecond;
+  private final ScheduledExecutorService executor;
+  private final ApiClock clock;
+
+  // Guarded by this.
+  private final Map<String, Budget> keyBudgets = new HashMap<>();
+  private int keyBudgetsToPrune = MIN_KEY_BUCKETS_TO_PRUNE;
+  private final Queue<PendingRequest> pendingRequests = new ArrayDeque<>();
+  private long scheduledDrainNanos = NO_DRAIN_SCHEDULED;
+
+  /**
+   * The rates are in messages and bytes per second, where 0 means that the dimension is not
+   * limited. The rates for ordering keys only apply to requests with an ordering key.
+   */
+  PublishRateLimiter(
+      double messagesPerSecond,
+      double bytesPerSecond,
+      double keyMessagesPerSecond,
+      double keyBytesPerSecond,
+      ScheduledExecutorService executor,
+      ApiClock clock) {
+    Preconditions.checkArgument(messagesPerSecond >= 0 && bytesPerSecond >= 0);
+    Preconditions.checkArgument(keyMessagesPerSecond >= 0 && keyBytesPerSecond >= 0);
+    this.clock = clock;
+    this.globalBudget = new Budget(messagesPerSecond, bytesPerSecond, clock.nanoTime());
+    this.keyMessagesPerSecond = keyMessagesPerSecond;
+    this.keyBytesPerSecond = keyBytesPerSecond;
+    this.executor = executor;
+  }
+
+  /**
+   * Runs {@code request}, of {@code messageCount} messages and {@code bytes} bytes, right away if
+   * the budgets allow it, and otherwise on the executor once they do.
+   */
+  void execute(String orderingKey, int messageCount, long bytes, Runnable request) {
+    PendingRequest pendingRequest = new PendingRequest(orderingKey, messageCount, bytes, request);
+    List<Runnable> requests;
+    synchronized (this) {
+      if (pendingRequests.isEmpty() && tryAcquire(pendingRequest, clock.nanoTime())) {
+        requests = Collections.singletonList(request);
+      } else {
+        pendingRequests.add(pendingRequest);
+        requests = pollAvailableRequests();
+      }
+    }
+    runAll(requests);
+  }
+
+  synchronized int getPendingRequestCount() {
+    return pendingRequests.size();
+  }
+
+  synchronized int getKeyBudgetCount() {
+    return keyBudgets.size();
+  }
+
+  private void drain() {
+    List<Runnable> requests;
+    synchronized (this) {
+      scheduledDrainNanos = NO_DRAIN_SCHEDULED;
+      requests = pollAvailableRequests();
+    }
+    runAll(requests);
+  }
+
+  private static void runAll(List<Runnable> requests) {
+    for (Runnable request : requests) {
+      request.run();
+    }
+  }
+
+  /**
+   * Removes the waiting requests that the budgets now allow, and schedules a drain for when the
+   * next of the others may be sent. Must be called while holding the lock.
+   */
+  private List<Runnable> pollAvailableRequests() {
+    long nowNanos = clock.nanoTime();
+    List<Runnable> requests = new ArrayList<>();
+    long waitNanos = Long.MAX_VALUE;
+    // Requests behind one waiting for its ordering key only wait if they have the same key.
+    Set<String> waitingKeys = null;
+    Iterator<PendingRequest> iterator = pendingRequests.iterator();
+    while (iterator.hasNext()) {
+      PendingRequest pendingRequest = iterator.next();
+      if (waitingKeys != null && waitingKeys.contains(pendingRequest.orderingKey)) {
+        continue;
+      }
+      if (!globalBudget.isAvailable(pendingRequest, nowNanos)) {
+        waitNanos = Math.min(waitNanos, globalBudget.getWaitNanos(pendingRequest, nowNanos));
+        break;
+      }
+      if (tryAcquire(pendingRequest, nowNanos)) {
+        iterator.remove();
+        requests.add(pendingRequest.request);
+      } else {
+        if (waitingKeys == null) {
+          waitingKeys = new HashSet<>();
+        }
+        waitingKeys.add(pendingRequest.orderingKey);
+        waitNanos =
+            Math.min(
+                waitNanos,
+                keyBudgets.get(pendingRequest.orderingKey).getWaitNanos(pendingRequest, nowNanos));
+      }
+    }
+    if (!pendingRequests.isEmpty()) {
+      scheduleDrain(nowNanos, waitNanos);
+    }
+    return requests;
+  }
+
+  // Must be called while holding the lock.
+  private boolean tryAcquire(PendingRequest pendingRequest, long nowNanos) {
+    if (!globalBudget.isAvailable(pendingRequest, nowNanos)) {
+      return false;
+    }
+    Budget keyBudget = getKeyBudget(pendingRequest.orderingKey, nowNanos);
+    if (keyBudget != null && !keyBudget.isAvailable(pendingRequest, nowNanos)) {
+      return false;
+    }
+    globalBudget.acquire(pendingRequest);
+    if (keyBudget != null) {
+      keyBudget.acquire(pendingRequest);
+    }
+    return true;
+  }
+
+  // Must be called while holding the lock.
+  private Budget getKeyBudget(String orderingKey, long nowNanos) {
+    if (orderingKey.isEmpty() || (keyMessagesPerSecond == 0 && keyBytesPerSecond == 0)) {
+      return null;
+    }
+    Budget keyBudget = keyBudgets.get(orderingKey);
+    if (keyBudget == null) {
+      if (keyBudgets.size() >= keyBudgetsToPrune) {
+        pruneKeyBudgets(nowNanos);
+      }
+      keyBudget = new Budget(keyMessagesPerSecond, keyBytesPerSecond, nowNanos);
+      keyBudgets.put(orderingKey, keyBudget);
+    }
+    return keyBudget;
+  }
+
+  // A full bucket is the same as a new one, so the buckets of keys that have been idle for a second
+  // are dropped. Must be called while holding the lock.
+  private void pruneKeyBudgets(long nowNanos) {
+    Iterator<Budget> iterator = keyBudgets.values().iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next().isFull(nowNanos)) {
+        iterator.remove();
+      }
+    }
+    keyBudgetsToPrune = Math.max(MIN_KEY_BUCKETS_TO_PRUNE, 2 * keyBudgets.size());
+  }
+
+  // Must be called while holding the lock.
+  private void scheduleDrain(long nowNanos, long waitNanos) {
+    // Wait at least a millisecond, so that a bucket short of a fraction of a token does not spin.
+    waitNanos = Math.max(waitNanos, TimeUnit.MILLISECONDS.toNanos(1));
+    if (scheduledDrainNanos != NO_DRAIN_SCHEDULED && scheduledDrainNanos - nowNanos <= waitNanos) {
+      return;
+    }
+    scheduledDrainNanos = nowNanos + waitNanos;
+    try {
+      // An earlier drain replaces a later one, which then only finds fewer requests waiting.
+      executor.schedule(
+          new Runnable() {
+            @Override
+            public void run() {
+              drain();
+            }
+          },
+          waitNanos,
+          TimeUnit.NANOSECONDS);
+    } catch (RejectedExecutionException e) {
+      // The publisher is shut down; the waiting requests are failed by its shutdown.
+      scheduledDrainNanos = NO_DRAIN_SCHEDULED;
+    }
+  }
+
+  private static final class PendingRequest {
+    final String orderingKey;
+    final int messageCount;
+    final long bytes;
+    final Runnable request;
+
+    PendingRequest(String orderingKey, int messageCount, long bytes, Runnable request) {
+      this.orderingKey = orderingKey;
+      this.messageCount = messageCount;
+      this.bytes = bytes;
+      this.request = request;
+    }
+  }
+
+  /** The message and byte buckets of one budget. */
+  private static final class Budget {
+    private final TokenBucket messages;
+    private final TokenBucket bytes;
+
+    Budget(double messagesPerSecond, double bytesPerSecond, long nowNanos) {
+      this.messages = messagesPerSecond > 0 ? new TokenBucket(messagesPerSecond, nowNanos) : null;
+      this.bytes = bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond, nowNanos) : null;
+    }
+
+    boolean isAvailable(PendingRequest request, long nowNanos) {
+      return (messages == null || messages.isAvailable(request.messageCount, nowNanos))
+          && (bytes == null || bytes.isAvailable(request.bytes, nowNanos));
+    }
+
+    void acquire(PendingRequest request) {
+      if (messages != null) {
+        messages.acquire(request.messageCount);
+      }
+      if (bytes != null) {
+        bytes.acquire(request.bytes);
+      }
+    }
+
+    long getWaitNanos(PendingRequest request, long nowNanos) {
+      long waitNanos = 0;
+      if (messages != null) {
+        waitNanos = messages.getWaitNanos(request.messageCount, nowNanos);
+      }
+      if (bytes != null) {
+        waitNanos = Math.max(waitNanos, bytes.getWaitNanos(request.bytes, nowNanos));
+      }
+      return waitNanos;
+    }
+
+    boolean isFull(long nowNanos) {
+      return (messages == null || messages.isFull(nowNanos))
+          && (bytes == null || bytes.isFull(nowNanos));
+    }
+  }
+
+  /** A bucket holding up to one second of tokens, refilled continuously at its rate. */
+  private static final class TokenBucket {
+    private final double tokensPerNano;
+    private final double capacity;
+    private double tokens;
+    private long refilledNanos;
+
+    TokenBucket(double tokensPerSecond, long nowNanos) {
+      this.tokensPerNano = tokensPerSecond / TimeUnit.SECONDS.toNanos(1);
+      this.capacity = tokensPerSecond;
+      this.tokens = capacity;
+      this.refilledNanos = nowNanos;
+    }
+
+    boolean isAvailable(long cost, long nowNanos) {
+      refill(nowNanos);
+      return tokens >= Math.min(cost, capacity);
+    }
+
+    void acquire(long cost) {
+      tokens -= cost;
+    }
+
+    long getWaitNanos(long cost, long nowNanos) {
+      refill(nowNanos);
+      double missing = Math.min(cost, capacity) - tokens;
+      return missing <= 0 ? 0 : (long) Math.ceil(missing / tokensPerNano);
+    }
+
+    boolean isFull(long nowNanos) {
+      refill(nowNanos);
+      return tokens >= capacity;
+    }
+
+    private void refill(long nowNanos) {
+      tokens = Math.min(capacity, tokens + (nowNanos - refilledNanos) * tokensPerNano);
+      refilledNanos = nowNanos;
+    }
+  }
+}
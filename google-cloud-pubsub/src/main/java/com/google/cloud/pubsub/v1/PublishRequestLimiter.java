@@ -0,0 +1,276 @@
+/*
+ * Copyright 2026 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub.v1;
+
+import com.google.api.core.ApiClock;
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.StatusCode;
+import com.google.api.gax.tracing.ApiTracer;
+import com.google.api.gax.tracing.ApiTracerFactory;
+import com.google.api.gax.tracing.BaseApiTracer;
+import com.google.api.gax.tracing.SpanName;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+/**
+ * Limits the number of publish requests of a {@link Publisher} in flight at the same time.
+ *
+ * <p>Requests over the limit wait in a FIFO queue and are sent on the executor as earlier requests
+ * complete. Priority requests wait in a queue of their own, which is served first. In adaptive
+ * mode, the limit follows an additive-increase/multiplicative-decrease scheme: each successful
+ * attempt raises it by {@code 1 / limit}, so by about one per round trip, and an attempt rejected
+ * with {@code RESOURCE_EXHAUSTED} or {@code DEADLINE_EXCEEDED} halves it, at most once per round
+ * trip. Attempts are observed through the {@link ApiTracer} returned by {@link #newTracer()}, so
+ * retries made by the stub count as well.
+ */
+final class PublishRequestLimiter {
+  private static final double DECREASE_FACTOR = 0.5;
+  // Weight of the most recent attempt in the moving average of the attempt latency.
+  private static final double LATENCY_WEIGHT = 0.2;
+
+  private final int maxLimit;
+  private final boolean adaptive;
+  private final Executor executor;
+  private final Runnable onCapacityAvailable;
+  private final ApiClock clock;
+
+  // Guarded by this.
+  private double limit;
+  private int inflight = 0;
+  private final Queue<Runnable> pendingRequests = new ArrayDeque<>();
+  private final Queue<Runnable> pendingPriorityRequests = new ArrayDeque<>();
+  private long lastDecreaseNanos;
+  private double smoothedLatencyNanos = 0;
+
+  private volatile boolean saturated = false;
+
+  /**
+   * @param maxLimit the maximum number of requests in flight, and the initial limit
+   * @param adaptive whether to adapt the limit, between 1 and {@code maxLimit}, to the responses
+   * @param executor runs the requests that had to wait
+   * @param onCapacityAvailable called when a request completes and no request is waiting
+   */
+  PublishRequestLimiter(
+      int maxLimit,
+      boolean adaptive,
+      Executor executor,
+      Runnable onCapacityAvailable,
+      ApiClock clock) {
+    this.maxLimit = maxLimit;
+    this.adaptive = adaptive;
+    this.executor = executor;
+    this.onCapacityAvailable = onCapacityAvailable;
+    this.clock = clock;
+    this.limit = maxLimit;
+    this.lastDecreaseNanos = clock.nanoTime();
+  }
+
+  /**
+   * Runs {@code request} right away if the limit allows it, and otherwise once the requests before
+   * it have been sent. The caller must call {@link #release()} when the request completes.
+   */
+  void execute(Runnable request) {
+    execute(request, false);
+  }
+
+  /**
+   * Runs {@code request} as {@link #execute(Runnable)}, where a {@code priority} request is sent
+   * before the requests without priority that are waiting.
+   */
+  void execute(Runnable request, boolean priority) {
+    synchronized (this) {
+      if (inflight >= currentLimit()
+          || !pendingPriorityRequests.isEmpty()
+          || (!priority && !pendingRequests.isEmpty())) {
+        (priority ? pendingPriorityRequests : pendingRequests).add(request);
+        saturated = true;
+        return;
+      }
+      inflight++;
+      saturated = inflight >= currentLimit();
+    }
+    request.run();
+  }
+
+  /** Marks a request started by {@link #execute(Runnable)} as complete. */
+  void release() {
+    List<Runnable> requests;
+    boolean capacityAvailable;
+    synchronized (this) {
+      inflight--;
+      requests = pollAvailableRequests();
+      capacityAvailable = !saturated;
+    }
+    runOnExecutor(requests);
+    if (capacityAvailable) {
+      onCapacityAvailable.run();
+    }
+  }
+
+  /** Returns true while new requests would have to wait. */
+  boolean isSaturated() {
+    return saturated;
+  }
+
+  synchronized int getLimit() {
+    return currentLimit();
+  }
+
+  synchronized int getInflightRequests() {
+    return inflight;
+  }
+
+  /** Returns a tracer that reports the attempts of one request to this limiter. */
+  ApiTracer newTracer() {
+    return new AttemptTracer();
+  }
+
+  /**
+   * Returns a tracer factory that lets the tracers of {@link #newTracer()}, passed in the call
+   * context, observe the attempts of a request. Other requests are traced by {@code delegate}.
+   */
+  static ApiTracerFactory newTracerFactory(final ApiTracerFactory delegate) {
+    return new ApiTracerFactory() {
+      @Override
+      public ApiTracer newTracer(
+          ApiTracer parent, SpanName spanName, ApiTracerFactory.OperationType operationType) {
+        if (parent instanceof AttemptTracer) {
+          return parent;
+        }
+        return delegate.newTracer(parent, spanName, operationType);
+      }
+    };
+  }
+
+  void onAttemptSucceeded(long latencyNanos) {
+    if (!adaptive) {
+      return;
+    }
+    List<Runnable> requests;
+    synchronized (this) {
+      recordLatency(latencyNanos);
+      limit = Math.min(maxLimit, limit + 1 / limit);
+      requests = pollAvailableRequests();
+    }
+    runOnExecutor(requests);
+  }
+
+  void onAttemptFailed(Throwable error, long latencyNanos) {
+    if (!adaptive || !isOverloaded(error)) {
+      return;
+    }
+    synchronized (this) {
+      recordLatency(latencyNanos);
+      long now = clock.nanoTime();
+      // Requests sent before the last decrease do not reflect it yet.
+      if (now - lastDecreaseNanos >= smoothedLatencyNanos) {
+        limit = Math.max(1, limit * DECREASE_FACTOR);
+        lastDecreaseNanos = now;
+        saturated = inflight >= currentLimit() || hasPendingRequests();
+      }
+    }
+  }
+
+  private static boolean isOverloaded(Throwable error) {
+    if (!(error instanceof ApiException)) {
+      return false;
+    }
+    StatusCode.Code code = ((ApiException) error).getStatusCode().getCode();
+    return code == StatusCode.Code.RESOURCE_EXHAUSTED || code == StatusCode.Code.DEADLINE_EXCEEDED;
+  }
+
+  private int currentLimit() {
+    return Math.max(1, (int) limit);
+  }
+
+  private void recordLatency(long latencyNanos) {
+    smoothedLatencyNanos =
+        smoothedLatencyNanos == 0
+            ? latencyNanos
+            : LATENCY_WEIGHT * latencyNanos + (1 - LATENCY_WEIGHT) * smoothedLatencyNanos;
+  }
+
+  // Must be called while holding the lock.
+  private List<Runnable> pollAvailableRequests() {
+    List<Runnable> requests = null;
+    while (inflight < currentLimit() && hasPendingRequests()) {
+      if (requests == null) {
+        requests = new ArrayList<>();
+      }
+      Runnable request = pendingPriorityRequests.poll();
+      requests.add(request != null ? request : pendingRequests.poll());
+      inflight++;
+    }
+    saturated = inflight >= currentLimit() || hasPendingRequests();
+    return requests;
+  }
+
+  // Must be called while holding the lock.
+  private boolean hasPendingRequests() {
+    return !pendingRequests.isEmpty() || !pendingPriorityRequests.isEmpty();
+  }
+
+  private void runOnExecutor(final List<Runnable> requests) {
+    if (requests == null) {
+      return;
+    }
+    // The requests are sent by a single runnable, so that they are sent in order.
+    executor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            for (Runnable request : requests) {
+              request.run();
+            }
+          }
+        });
+  }
+
+  /** Reports the attempts of one request, including its retries. */
+  private final class AttemptTracer extends BaseApiTracer {
+    private volatile long attemptStartNanos = clock.nanoTime();
+
+    @Override
+    public void attemptStarted(Object request, int attemptNumber) {
+      attemptStartNanos = clock.nanoTime();
+    }
+
+    @Override
+    public void attemptSucceeded() {
+      onAttemptSucceeded(clock.nanoTime() - attemptStartNanos);
+    }
+
+    @Override
+    public void attemptFailedDuration(Throwable error, Duration delay) {
+      onAttemptFailed(error, clock.nanoTime() - attemptStartNanos);
+    }
+
+    @Override
+    public void attemptFailedRetriesExhausted(Throwable error) {
+      onAttemptFailed(error, clock.nanoTime() - attemptStartNanos);
+    }
+
+    @Override
+    public void attemptPermanentFailure(Throwable error) {
+      onAttemptFailed(error, clock.nanoTime() - attemptStartNanos);
+    }
+  }
+}
@@ -18,11 +18,14 @@ package com.google.cloud.pubsub.v1;
 
 import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
 
+import com.google.api.core.ApiAsyncFunction;
+import com.google.api.core.ApiClock;
 import com.google.api.core.ApiFunction;
 import com.google.api.core.ApiFuture;
 import com.google.api.core.ApiFutureCallback;
 import com.google.api.core.ApiFutures;
 import com.google.api.core.BetaApi;
+import com.google.api.core.NanoClock;
 import com.google.api.core.SettableApiFuture;
 import com.google.api.gax.batching.BatchingSettings;
 import com.google.api.gax.batching.FlowControlSettings;
@@ -36,16 +39,24 @@ import com.google.api.gax.core.ExecutorProvider;
 import com.google.api.gax.core.FixedExecutorProvider;
 import com.google.api.gax.core.InstantiatingExecutorProvider;
 import com.google.api.gax.grpc.GrpcCallContext;
+import com.google.api.gax.grpc.GrpcCallableFactory;
+import com.google.api.gax.grpc.GrpcStatusCode;
 import com.google.api.gax.retrying.RetrySettings;
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.ClientContext;
 import com.google.api.gax.rpc.HeaderProvider;
+import com.google.api.gax.rpc.InvalidArgumentException;
 import com.google.api.gax.rpc.NoHeaderProvider;
 import com.google.api.gax.rpc.StatusCode;
 import com.google.api.gax.rpc.TransportChannelProvider;
+import com.google.api.gax.rpc.UnaryCallSettings;
+import com.google.api.gax.rpc.UnaryCallable;
 import com.google.auth.oauth2.GoogleCredentials;
 import com.google.cloud.pubsub.v1.stub.GrpcPublisherStub;
 import com.google.cloud.pubsub.v1.stub.PublisherStub;
 import com.google.cloud.pubsub.v1.stub.PublisherStubSettings;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Utf8;
 import com.google.protobuf.CodedOutputStream;
 import com.google.pubsub.v1.PublishRequest;
 import com.google.pubsub.v1.PublishResponse;
@@ -53,24 +64,37 @@ import com.google.pubsub.v1.PubsubMessage;
 import com.google.pubsub.v1.TopicName;
 import com.google.pubsub.v1.TopicNames;
 import io.grpc.CallOptions;
+import io.grpc.Status;
 import io.opentelemetry.api.OpenTelemetry;
 import io.opentelemetry.api.trace.Span;
 import io.opentelemetry.api.trace.Tracer;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.time.Duration;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.Callable;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
@@ -106,30 +130,93 @@ public class Publisher implements PublisherInterface {
   private final TopicName topicNameObject;
 
   private final BatchingSettings batchingSettings;
+  private final BatchingPolicy batchingPolicy;
   private final boolean enableMessageOrdering;
+  // Whether the due batches of different ordering keys are packed into the same requests.
+  private final boolean enableCrossKeyBatching;
 
-  private final Lock messagesBatchLock;
-
-  private final Map<String, MessagesBatch> messagesBatches;
+  private final BatchShard[] batchShards;
 
   private final AtomicBoolean activeAlarm;
 
+  private final AtomicInteger inflightPublishRequests;
+  // Null if the number of publish requests in flight is not limited.
+  private final PublishRequestLimiter requestLimiter;
+  // Null if the rate of publish requests is not limited.
+  private final PublishRateLimiter rateLimiter;
+  // Set when a scheduled flush was skipped because the request limit was reached.
+  private final AtomicBoolean flushWhenUnsaturated;
+  // Null if requests are sent on the channel chosen by the channel pool.
+  private final ChannelRouter channelRouter;
+  // Whether the channel router also chooses the channel of batches without an ordering key.
+  private final boolean routeUnorderedBatches;
+  // Null unless several batches of an ordering key may be in flight, in which case they are sent
+  // with these settings, which make a single attempt, and retried by the sequential executor.
+  private final RetrySettings pipelinedRetrySettings;
+
   private final PublisherStub publisherStub;
+  // Set instead of publisherStub when messages are serialized ahead of time.
+  private final UnaryCallable<SerializedPublishRequest, PublishResponse> serializedPublishCallable;
+  private final byte[] encodedTopicName;
 
   private final ScheduledExecutorService executor;
+  private final ApiClock clock;
 
   private final SequentialExecutorService.CallbackExecutor sequentialExecutor;
+  private final SequentialExecutorService.AutoExecutor admissionExecutor;
 
   private final AtomicBoolean shutdown;
   private final BackgroundResource backgroundResources;
   private final Waiter messagesWaiter;
-  private ScheduledFuture<?> currentAlarmFuture;
+  // The batches being published, so that they can be failed when a shutdown deadline passes.
+  private final Set<OutstandingBatch> sentBatches =
+      Collections.newSetFromMap(new ConcurrentHashMap<OutstandingBatch, Boolean>());
+  private volatile ScheduledFuture<?> currentAlarmFuture;
+  // When the batch the alarm is scheduled for is due. Written while holding alarmLock.
+  private volatile long alarmDueNanos;
+  private final Object alarmLock = new Object();
   private final ApiFunction<PubsubMessage, PubsubMessage> messageTransform;
+  // Null if no message has priority.
+  private final ApiFunction<PubsubMessage, Boolean> highPriorityMessageFilter;
+  // Null if the messages have no latency budget.
+  private final ApiFunction<PubsubMessage, Duration> latencyBudgetFunction;
 
   private MessageFlowController flowController = null;
 
+  // Null if accepted messages are only held in memory.
+  private final PublishBufferLog publishBuffer;
+  // Buffered messages waiting for flow control, in order, after the one being admitted.
+  private final ArrayDeque<BufferedPublish> bufferedPublishes = new ArrayDeque<>();
+  // Guarded by bufferedPublishes.
+  private boolean admittingBufferedPublish = false;
+  // How long a buffered message whose retries ran out waits before it is admitted again.
+  private final Duration bufferedPublishRetryDelay;
+
   private final boolean enableCompression;
   private final long compressionBytesThreshold;
+  private final boolean enableMessagePreSerialization;
+  // Null if payload compression is disabled.
+  private final PayloadCompressor payloadCompressor;
+  // Null if deduplication is disabled.
+  private final PublishDeduplicator deduplicator;
+  // Flattens the message ID future of an admission future, for the deduplicator.
+  private static final ApiAsyncFunction<ApiFuture<String>, String> UNWRAP_PUBLISH_RESULT =
+      new ApiAsyncFunction<ApiFuture<String>, String>() {
+        @Override
+        public ApiFuture<String> apply(ApiFuture<String> publishResult) {
+          return publishResult;
+        }
+      };
+
+  private final ApiFunction<PubsubMessage, ApiFuture<String>> publishOnceFunction =
+      new ApiFunction<PubsubMessage, ApiFuture<String>>() {
+        @Override
+        public ApiFuture<String> apply(PubsubMessage message) {
+          return publishOnce(message);
+        }
+      };
+
+  private final PublisherStatsRecorder stats = new PublisherStatsRecorder();
 
   private final GrpcCallContext publishContext;
   private final GrpcCallContext publishContextWithCompression;
@@ -148,6 +235,14 @@ public class Publisher implements PublisherInterface {
     return 10L * 1000L * 1000L; // 10 megabytes (https://en.wikipedia.org/wiki/Megabyte)
   }
 
+  // Limits of a single message, defined by the API.
+  private static final int API_MAX_ATTRIBUTES = 100;
+  private static final int API_MAX_ATTRIBUTE_KEY_BYTES = 256;
+  private static final int API_MAX_ATTRIBUTE_VALUE_BYTES = 1024;
+  private static final int API_MAX_ORDERING_KEY_BYTES = 1024;
+  private static final StatusCode INVALID_ARGUMENT_STATUS_CODE =
+      GrpcStatusCode.of(Status.Code.INVALID_ARGUMENT);
+
   private Publisher(Builder builder) throws IOException {
     topicName = builder.topicName;
     topicNameSize =
@@ -155,6 +250,10 @@ public class Publisher implements PublisherInterface {
     topicNameObject = TopicName.parse(this.topicName);
 
     this.batchingSettings = builder.batchingSettings;
+    BatchingPolicy batchingPolicy =
+        builder.batchingPolicy != null
+            ? builder.batchingPolicy
+            : new BatchingSettingsPolicy(batchingSettings);
     FlowControlSettings flowControl = this.batchingSettings.getFlowControlSettings();
     if (flowControl != null
         && flowControl.getLimitExceededBehavior() != FlowController.LimitExceededBehavior.Ignore) {
@@ -162,13 +261,34 @@ public class Publisher implements PublisherInterface {
           new MessageFlowController(
               flowControl.getMaxOutstandingElementCount(),
               flowControl.getMaxOutstandingRequestBytes(),
-              flowControl.getLimitExceededBehavior());
+              // Messages over the limits wait in the publish buffer instead of being rejected.
+              builder.publishBufferDirectory != null
+                  ? FlowController.LimitExceededBehavior.Block
+                  : flowControl.getLimitExceededBehavior(),
+              builder.highPriorityReservedElementCount,
+              builder.highPriorityReservedBytes);
     }
 
     this.enableMessageOrdering = builder.enableMessageOrdering;
+    this.enableCrossKeyBatching = builder.enableCrossKeyBatching && builder.enableMessageOrdering;
     this.messageTransform = builder.messageTransform;
+    this.highPriorityMessageFilter = builder.highPriorityMessageFilter;
+    this.latencyBudgetFunction = builder.latencyBudgetFunction;
     this.enableCompression = builder.enableCompression;
     this.compressionBytesThreshold = builder.compressionBytesThreshold;
+    this.enableMessagePreSerialization = builder.enableMessagePreSerialization;
+    this.payloadCompressor =
+        builder.enablePayloadCompression
+            ? new PayloadCompressor(builder.payloadCompressionBytesThreshold)
+            : null;
+    this.deduplicator =
+        builder.deduplicationWindow != null
+            ? new PublishDeduplicator(
+                builder.deduplicationKeyFunction,
+                builder.deduplicationWindow,
+                builder.deduplicationMaxEntries,
+                builder.clock)
+            : null;
     this.enableOpenTelemetryTracing = builder.enableOpenTelemetryTracing;
     this.openTelemetry = builder.openTelemetry;
     if (this.openTelemetry != null && this.enableOpenTelemetryTracing) {
@@ -179,16 +299,199 @@ public class Publisher implements PublisherInterface {
       }
     }
 
-    messagesBatches = new HashMap<>();
-    messagesBatchLock = new ReentrantLock();
+    batchShards = new BatchShard[builder.batchingShardCount];
+    for (int i = 0; i < batchShards.length; i++) {
+      // Batches are only due in the order they are opened if every batch waits the same delay.
+      batchShards[i] =
+          new BatchShard(latencyBudgetFunction != null || builder.batchingPolicy != null);
+    }
     activeAlarm = new AtomicBoolean(false);
-    executor = builder.executorProvider.getExecutor();
-    sequentialExecutor = new SequentialExecutorService.CallbackExecutor(executor);
+    clock = builder.clock;
+    inflightPublishRequests = new AtomicInteger(0);
+    ExecutorProvider executorProvider = builder.resolveExecutorProvider();
+    executor = executorProvider.getExecutor();
+    flushWhenUnsaturated = new AtomicBoolean(false);
+    int maxOutstandingPublishRequests = getMaxOutstandingPublishRequests(builder);
+    if (maxOutstandingPublishRequests > 0) {
+      requestLimiter =
+          new PublishRequestLimiter(
+              maxOutstandingPublishRequests,
+              builder.enableAdaptivePublishRequestLimit,
+              executor,
+              new Runnable() {
+                @Override
+                public void run() {
+                  if (flushWhenUnsaturated.getAndSet(false)) {
+                    executor.execute(
+                        new Runnable() {
+                          @Override
+                          public void run() {
+                            publishAllWithoutInflight(Long.MIN_VALUE);
+                          }
+                        });
+                  }
+                }
+              },
+              builder.clock);
+      // While requests are waiting for the limit, batches grow instead of multiplying requests.
+      batchingPolicy = new RequestLimitedBatchingPolicy(batchingPolicy, requestLimiter);
+    } else {
+      requestLimiter = null;
+    }
+    this.batchingPolicy = batchingPolicy;
+    if (builder.maxPublishMessagesPerSecond > 0
+        || builder.maxPublishBytesPerSecond > 0
+        || builder.maxOrderingKeyMessagesPerSecond > 0
+        || builder.maxOrderingKeyBytesPerSecond > 0) {
+      rateLimiter =
+          new PublishRateLimiter(
+              builder.maxPublishMessagesPerSecond,
+              builder.maxPublishBytesPerSecond,
+              builder.maxOrderingKeyMessagesPerSecond,
+              builder.maxOrderingKeyBytesPerSecond,
+              executor,
+              builder.clock);
+    } else {
+      rateLimiter = null;
+    }
+    if (builder.enableMessageOrdering && builder.maxOutstandingBatchesPerOrderingKey > 1) {
+      // A batch retried by the stub could be published after the batches of its key sent while it
+      // was retried, so it is retried by the sequential executor, which only does so when no later
+      // batch of its key was sent.
+      pipelinedRetrySettings = builder.retrySettings.toBuilder().setMaxAttempts(1).build();
+      sequentialExecutor =
+          new SequentialExecutorService.CallbackExecutor(
+              executor,
+              builder.maxOutstandingBatchesPerOrderingKey,
+              builder.pausedOrderingKeyExpiration,
+              builder.clock,
+              new SequentialExecutorService.CallbackExecutor.RetryPolicy() {
+                @Override
+                public Duration getRetryDelay(Throwable error, int attempt) {
+                  return getPipelinedRetryDelay(error, attempt);
+                }
+              });
+    } else {
+      pipelinedRetrySettings = null;
+      sequentialExecutor =
+          new SequentialExecutorService.CallbackExecutor(
+              executor,
+              builder.maxOutstandingBatchesPerOrderingKey,
+              builder.pausedOrderingKeyExpiration,
+              builder.clock);
+    }
+    admissionExecutor = new SequentialExecutorService.AutoExecutor(executor);
+    if (flowController != null && builder.flowControlSaturationListener != null) {
+      final FlowControlSaturationListener saturationListener =
+          builder.flowControlSaturationListener;
+      // Notifications are delivered on the executor, in the order of the transitions.
+      flowController.setSaturationListener(
+          new MessageFlowController.SaturationListener() {
+            @Override
+            public void onSaturationChanged(final boolean saturated) {
+              admissionExecutor.submit(
+                  "",
+                  new Runnable() {
+                    @Override
+                    public void run() {
+                      if (saturated) {
+                        saturationListener.onSaturated();
+                      } else {
+                        saturationListener.onUnsaturated();
+                      }
+                    }
+                  });
+            }
+          });
+    }
     List<BackgroundResource> backgroundResourceList = new ArrayList<>();
-    if (builder.executorProvider.shouldAutoClose()) {
+    if (executorProvider.shouldAutoClose()) {
       backgroundResourceList.add(new ExecutorAsBackgroundResource(executor));
     }
 
+    PublisherStubSettings publisherStubSettings = newPublisherStubSettings(builder, executor);
+    if (builder.publisherStub != null) {
+      // The stub is shared with other publishers, and shut down by its owner.
+      this.publisherStub = builder.publisherStub;
+      this.serializedPublishCallable = null;
+      this.encodedTopicName = null;
+    } else if (enableMessagePreSerialization) {
+      // Publish through a callable of our own, so that requests can be written to the transport
+      // with a marshaller for pre-serialized requests. It is otherwise set up like the stub's.
+      ClientContext clientContext = ClientContext.create(publisherStubSettings);
+      this.publisherStub = null;
+      this.serializedPublishCallable =
+          GrpcCallableFactory.createUnaryCallable(
+              SerializedPublishRequest.newGrpcCallSettings(),
+              UnaryCallSettings
+                  .<SerializedPublishRequest, PublishResponse>newUnaryCallSettingsBuilder()
+                  .setRetryableCodes(publisherStubSettings.publishSettings().getRetryableCodes())
+                  .setRetrySettings(publisherStubSettings.publishSettings().getRetrySettings())
+                  .build(),
+              clientContext);
+      this.encodedTopicName = SerializedPublishRequest.encodeTopic(topicName);
+      backgroundResourceList.add(
+          new BackgroundResourceAggregation(clientContext.getBackgroundResources()));
+    } else {
+      this.publisherStub = GrpcPublisherStub.create(publisherStubSettings);
+      this.serializedPublishCallable = null;
+      this.encodedTopicName = null;
+      backgroundResourceList.add(publisherStub);
+    }
+    backgroundResources = new BackgroundResourceAggregation(backgroundResourceList);
+    shutdown = new AtomicBoolean(false);
+    messagesWaiter = new Waiter();
+    bufferedPublishRetryDelay = builder.retrySettings.getMaxRetryDelayDuration();
+    if (builder.publishBufferDirectory != null) {
+      publishBuffer =
+          PublishBufferLog.open(builder.publishBufferDirectory, builder.publishBufferSegmentBytes);
+      // Messages left in the buffer by a previous publisher are published again. Nobody waits for
+      // their results.
+      List<Long> recoveredPositions = publishBuffer.getRecoveredPositions();
+      if (!recoveredPositions.isEmpty()) {
+        logger.log(
+            Level.INFO,
+            "Publishing {0} messages recovered from the publish buffer.",
+            recoveredPositions.size());
+        messagesWaiter.incrementPendingCount(recoveredPositions.size());
+        synchronized (bufferedPublishes) {
+          for (long position : recoveredPositions) {
+            bufferedPublishes.add(new BufferedPublish(position, null, null));
+          }
+          // The recovered messages are admitted first: messages published before the admission
+          // starts on the executor wait in the buffer behind them.
+          admittingBufferedPublish = true;
+        }
+        executor.execute(
+            new Runnable() {
+              @Override
+              public void run() {
+                admitBufferedPublishes(null);
+              }
+            });
+      }
+    } else {
+      publishBuffer = null;
+    }
+    int channelCount = ChannelRouter.getChannelCount(builder.channelProvider);
+    // The batches of a key in flight at the same time are pinned to one channel, so that they reach
+    // the service in the order they were sent.
+    boolean pinOrderingKeys = pipelinedRetrySettings != null || builder.enableChannelAffinity;
+    this.channelRouter =
+        pinOrderingKeys && channelCount > 1 ? new ChannelRouter(channelCount) : null;
+    this.routeUnorderedBatches = builder.enableChannelAffinity;
+    this.publishContext = GrpcCallContext.createDefault();
+    this.publishContextWithCompression =
+        GrpcCallContext.createDefault()
+            .withCallOptions(CallOptions.DEFAULT.withCompression(GZIP_COMPRESSION));
+  }
+
+  /**
+   * Creates the settings of the stub publishing the messages of a publisher built from {@code
+   * builder}, with callbacks running on {@code executor}.
+   */
+  static PublisherStubSettings newPublisherStubSettings(
+      Builder builder, ScheduledExecutorService executor) throws IOException {
     // Publisher used to take maxAttempt == 0 to mean infinity, but to GAX it means don't retry.
     // We post-process this here to keep backward-compatibility.
     // Also, if "message ordering" is enabled, the publisher should retry sending the failed
@@ -197,7 +500,7 @@ public class Publisher implements PublisherInterface {
     if (retrySettingsBuilder.getMaxAttempts() == 0) {
       retrySettingsBuilder.setMaxAttempts(Integer.MAX_VALUE);
     }
-    if (enableMessageOrdering) {
+    if (builder.enableMessageOrdering) {
       // TODO: is there a way to have the default retry settings for requests without an ordering
       // key?
       retrySettingsBuilder
@@ -225,15 +528,19 @@ public class Publisher implements PublisherInterface {
             StatusCode.Code.UNAVAILABLE)
         .setRetrySettings(retrySettingsBuilder.build())
         .setBatchingSettings(BatchingSettings.newBuilder().setIsEnabled(false).build());
-    this.publisherStub = GrpcPublisherStub.create(stubSettings.build());
-    backgroundResourceList.add(publisherStub);
-    backgroundResources = new BackgroundResourceAggregation(backgroundResourceList);
-    shutdown = new AtomicBoolean(false);
-    messagesWaiter = new Waiter();
-    this.publishContext = GrpcCallContext.createDefault();
-    this.publishContextWithCompression =
-        GrpcCallContext.createDefault()
-            .withCallOptions(CallOptions.DEFAULT.withCompression(GZIP_COMPRESSION));
+    if (builder.enableAdaptivePublishRequestLimit) {
+      // Lets the request limiter observe each attempt, including retries.
+      stubSettings.setTracerFactory(
+          PublishRequestLimiter.newTracerFactory(stubSettings.getTracerFactory()));
+    }
+    return stubSettings.build();
+  }
+
+  private static int getMaxOutstandingPublishRequests(Builder builder) {
+    if (builder.maxOutstandingPublishRequests == 0 && builder.enableAdaptivePublishRequestLimit) {
+      return Builder.DEFAULT_ADAPTIVE_MAX_OUTSTANDING_PUBLISH_REQUESTS;
+    }
+    return builder.maxOutstandingPublishRequests;
   }
 
   /** Topic which the publisher publishes to. */
@@ -276,290 +583,1385 @@ public class Publisher implements PublisherInterface {
    */
   @Override
   public ApiFuture<String> publish(PubsubMessage message) {
-    Preconditions.checkState(!shutdown.get(), "Cannot publish on a shut-down publisher.");
-
-    final String orderingKey = message.getOrderingKey();
-    Preconditions.checkState(
-        orderingKey.isEmpty() || enableMessageOrdering,
-        "Cannot publish a message with an ordering key when message ordering is not enabled in the "
-            + "Publisher client. Please create a Publisher client with "
-            + "setEnableMessageOrdering(true) in the builder.");
-
-    PubsubMessageWrapper messageWrapper =
-        PubsubMessageWrapper.newBuilder(messageTransform.apply(message), topicNameObject).build();
-    tracer.startPublisherSpan(messageWrapper);
+    if (deduplicator != null) {
+      return deduplicator.publish(message, publishOnceFunction);
+    }
+    return publishOnce(message);
+  }
 
-    final OutstandingPublish outstandingPublish = new OutstandingPublish(messageWrapper);
+  private ApiFuture<String> publishOnce(PubsubMessage message) {
+    if (publishBuffer != null) {
+      return publishBuffered(message);
+    }
+    final OutstandingPublish outstandingPublish = newOutstandingPublish(message);
+    final PubsubMessageWrapper messageWrapper = outstandingPublish.messageWrapper;
+    if (rejectIfInvalid(outstandingPublish)) {
+      return outstandingPublish.publishResult;
+    }
 
     if (flowController != null) {
       tracer.startPublishFlowControlSpan(messageWrapper);
       try {
-        flowController.acquire(outstandingPublish.messageSize);
+        flowController.acquire(1, outstandingPublish.messageSize, outstandingPublish.highPriority);
         tracer.endPublishFlowControlSpan(messageWrapper);
       } catch (FlowController.FlowControlException e) {
-        if (!orderingKey.isEmpty()) {
-          sequentialExecutor.stopPublish(orderingKey);
-        }
-        outstandingPublish.publishResult.setException(e);
-        tracer.setPublishFlowControlSpanException(messageWrapper, e);
+        onFlowControlFailure(outstandingPublish, e);
+        return outstandingPublish.publishResult;
+      } catch (IllegalStateException e) {
+        // The flow controller was closed while waiting, as the publisher failed its messages.
+        onFlowControlFailure(outstandingPublish, getFlowControlCloseCause(e));
         return outstandingPublish.publishResult;
       }
     }
 
-    List<OutstandingBatch> batchesToSend;
-    messagesBatchLock.lock();
-    try {
-      tracer.startPublishBatchingSpan(messageWrapper);
-      if (!orderingKey.isEmpty() && sequentialExecutor.keyHasError(orderingKey)) {
-        outstandingPublish.publishResult.setException(
-            SequentialExecutorService.CallbackExecutor.CANCELLATION_EXCEPTION);
-        return outstandingPublish.publishResult;
+    addToBatch(outstandingPublish);
+    return outstandingPublish.publishResult;
+  }
+
+  /**
+   * Schedules the publishing of a group of messages, with a single future for their message IDs.
+   *
+   * <p>Flow control is acquired once for the whole group, which is admitted or rejected as a whole,
+   * and the messages are added to their batches taking each batch lock once. Messages with the same
+   * ordering key are published in the order of the list, as if they were published one by one
+   * through {@link #publish(PubsubMessage)}. The returned future fails if any of the messages fails
+   * to publish, in which case some of the other messages may still have been published.
+   *
+   * <p>If flow control is set to block, this method blocks until the whole group can be admitted. A
+   * group larger than the flow control limits is rejected, whatever the limit exceeded behavior.
+   *
+   * @param messages the messages to publish.
+   * @return the message IDs, in the order of {@code messages}, wrapped in a future.
+   */
+  @Override
+  @BetaApi
+  public ApiFuture<List<String>> publishAll(List<PubsubMessage> messages) {
+    List<ApiFuture<String>> publishResults = new ArrayList<>(messages.size());
+    if (publishBuffer != null || deduplicator != null) {
+      // Buffered messages never wait for flow control, so there is nothing to acquire at once, and
+      // duplicates must be dropped one by one before they are admitted.
+      for (PubsubMessage message : messages) {
+        publishResults.add(publish(message));
       }
-      MessagesBatch messagesBatch = messagesBatches.get(orderingKey);
-      if (messagesBatch == null) {
-        messagesBatch = new MessagesBatch(batchingSettings, topicNameSize, orderingKey);
-        messagesBatches.put(orderingKey, messagesBatch);
+      return ApiFutures.allAsList(publishResults);
+    }
+    for (PubsubMessage message : messages) {
+      checkCanPublish(message);
+    }
+
+    List<OutstandingPublish> outstandingPublishes = new ArrayList<>(messages.size());
+    long messagesBytes = 0;
+    // The group may only use the capacity reserved for high priority messages if all of them are.
+    boolean highPriority = true;
+    for (PubsubMessage message : messages) {
+      OutstandingPublish outstandingPublish =
+          wrapOutstandingPublish(messageTransform.apply(message));
+      publishResults.add(outstandingPublish.publishResult);
+      // Invalid messages fail on their own, without holding back the rest of the group.
+      if (!rejectIfInvalid(outstandingPublish)) {
+        outstandingPublishes.add(outstandingPublish);
+        messagesBytes += outstandingPublish.messageSize;
+        highPriority &= outstandingPublish.highPriority;
       }
+    }
 
-      batchesToSend = messagesBatch.add(outstandingPublish);
-      if (!batchesToSend.isEmpty() && messagesBatch.isEmpty()) {
-        messagesBatches.remove(orderingKey);
+    if (flowController != null && !outstandingPublishes.isEmpty()) {
+      for (OutstandingPublish outstandingPublish : outstandingPublishes) {
+        tracer.startPublishFlowControlSpan(outstandingPublish.messageWrapper);
       }
-      // Setup the next duration based delivery alarm if there are messages batched.
-      setupAlarm();
-      // For messages with an ordering key, we need to publish with messagesBatchLock held in order
-      // to ensure another publish doesn't slip in and send a batch before these batches we already
-      // want to send.
-      if (!batchesToSend.isEmpty() && !orderingKey.isEmpty()) {
-        for (final OutstandingBatch batch : batchesToSend) {
-          logger.log(Level.FINER, "Scheduling a batch for immediate sending.");
-          publishOutstandingBatch(batch);
+      try {
+        flowController.acquire(outstandingPublishes.size(), messagesBytes, highPriority);
+      } catch (FlowController.FlowControlException e) {
+        for (OutstandingPublish outstandingPublish : outstandingPublishes) {
+          onFlowControlFailure(outstandingPublish, e);
         }
+        return ApiFutures.allAsList(publishResults);
+      } catch (IllegalStateException e) {
+        Throwable cause = getFlowControlCloseCause(e);
+        for (OutstandingPublish outstandingPublish : outstandingPublishes) {
+          onFlowControlFailure(outstandingPublish, cause);
+        }
+        return ApiFutures.allAsList(publishResults);
+      }
+      for (OutstandingPublish outstandingPublish : outstandingPublishes) {
+        tracer.endPublishFlowControlSpan(outstandingPublish.messageWrapper);
       }
-    } finally {
-      messagesBatchLock.unlock();
     }
 
-    messagesWaiter.incrementPendingCount(1);
+    addAllToBatches(outstandingPublishes);
+    return ApiFutures.allAsList(publishResults);
+  }
 
-    // For messages without ordering keys, it is okay to send batches without holding
-    // messagesBatchLock.
-    if (!batchesToSend.isEmpty() && orderingKey.isEmpty()) {
-      for (final OutstandingBatch batch : batchesToSend) {
-        logger.log(Level.FINER, "Scheduling a batch for immediate sending.");
-        executor.execute(
-            new Runnable() {
+  /**
+   * Schedules the publishing of a message without blocking the calling thread on flow control.
+   *
+   * <p>The returned future completes once the message has been admitted by flow control and added
+   * to a batch; its value is the future of the message ID, as returned by {@link
+   * #publish(PubsubMessage)}. If the message exceeds the limits of the API or is rejected by flow
+   * control, the admission future completes with a message ID future that has failed. Callers that
+   * must not block, such as event loop threads, can wait for admission before accepting more work.
+   *
+   * <p>Messages with the same ordering key published through this method are added to batches in
+   * the order in which this method was called. Ordering is not guaranteed between messages for the
+   * same key published through this method and through {@link #publish(PubsubMessage)}.
+   *
+   * <p>With {@link Builder#setDeduplicationWindow(Duration, int)}, a duplicate is admitted at once,
+   * with the message ID future of the message it duplicates.
+   *
+   * @param message the message to publish.
+   * @return a future that completes with the message ID future once the message is enqueued.
+   */
+  @BetaApi
+  public ApiFuture<ApiFuture<String>> publishAsync(PubsubMessage message) {
+    if (deduplicator == null) {
+      return publishAsyncOnce(message);
+    }
+    final AtomicReference<ApiFuture<ApiFuture<String>>> admissionFuture = new AtomicReference<>();
+    ApiFuture<String> publishResult =
+        deduplicator.publish(
+            message,
+            new ApiFunction<PubsubMessage, ApiFuture<String>>() {
               @Override
-              public void run() {
-                publishOutstandingBatch(batch);
+              public ApiFuture<String> apply(PubsubMessage message) {
+                admissionFuture.set(publishAsyncOnce(message));
+                // The deduplicator follows the message ID future once the message is admitted.
+                return ApiFutures.transformAsync(
+                    admissionFuture.get(), UNWRAP_PUBLISH_RESULT, directExecutor());
               }
             });
-      }
+    if (admissionFuture.get() == null) {
+      return ApiFutures.immediateFuture(publishResult);
     }
+    return admissionFuture.get();
+  }
 
-    return outstandingPublish.publishResult;
+  private ApiFuture<ApiFuture<String>> publishAsyncOnce(PubsubMessage message) {
+    if (publishBuffer != null) {
+      // The message is accepted once it is in the buffer, which never waits for flow control.
+      return ApiFutures.immediateFuture(publishBuffered(message));
+    }
+    final OutstandingPublish outstandingPublish = newOutstandingPublish(message);
+    if (rejectIfInvalid(outstandingPublish)) {
+      // Rejected before admission, so that it neither waits for nor holds flow control capacity.
+      return ApiFutures.<ApiFuture<String>>immediateFuture(outstandingPublish.publishResult);
+    }
+    final SettableApiFuture<ApiFuture<String>> admissionFuture = SettableApiFuture.create();
+    if (flowController == null) {
+      addToBatch(outstandingPublish);
+      admissionFuture.set(outstandingPublish.publishResult);
+      return admissionFuture;
+    }
+
+    final PubsubMessageWrapper messageWrapper = outstandingPublish.messageWrapper;
+    final String orderingKey =
+        outstandingPublish.messageWrapper.getPubsubMessage().getOrderingKey();
+    tracer.startPublishFlowControlSpan(messageWrapper);
+    // Messages waiting for admission are pending, so that shutdown waits for them.
+    messagesWaiter.incrementPendingCount(1);
+    final Runnable addToBatchTask =
+        new Runnable() {
+          @Override
+          public void run() {
+            try {
+              addToBatch(outstandingPublish);
+              admissionFuture.set(outstandingPublish.publishResult);
+            } finally {
+              messagesWaiter.incrementPendingCount(-1);
+            }
+          }
+        };
+    ApiFutures.addCallback(
+        flowController.acquireAsync(
+            outstandingPublish.messageSize, outstandingPublish.highPriority),
+        new ApiFutureCallback<Void>() {
+          @Override
+          public void onSuccess(Void result) {
+            tracer.endPublishFlowControlSpan(messageWrapper);
+            // Capacity may be granted on a thread releasing it, possibly while batches are
+            // locked, so the message is added to its batch on the executor. Messages with an
+            // ordering key are added in admission order.
+            if (orderingKey.isEmpty()) {
+              executor.execute(addToBatchTask);
+            } else {
+              admissionExecutor.submit(orderingKey, addToBatchTask);
+            }
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            try {
+              onFlowControlFailure(outstandingPublish, t);
+              admissionFuture.set(outstandingPublish.publishResult);
+            } finally {
+              messagesWaiter.incrementPendingCount(-1);
+            }
+          }
+        },
+        directExecutor());
+    return admissionFuture;
   }
 
   /**
-   * There may be non-recoverable problems with a request for an ordering key. In that case, all
-   * subsequent requests will fail until this method is called. If the key is not currently paused,
-   * calling this method will be a no-op.
-   *
-   * @param key The key for which to resume publishing.
+   * The number of messages currently held against the flow control limits, or 0 if flow control is
+   * disabled.
    */
-  public void resumePublish(String key) {
-    Preconditions.checkState(!shutdown.get(), "Cannot publish on a shut-down publisher.");
-    sequentialExecutor.resumePublish(key);
+  @BetaApi
+  public long getOutstandingElementCount() {
+    return flowController == null ? 0 : flowController.getOutstandingElementCount();
   }
 
-  private void setupAlarm() {
-    if (!messagesBatches.isEmpty()) {
-      if (!activeAlarm.getAndSet(true)) {
-        long delayThresholdMs = getBatchingSettings().getDelayThreshold().toMillis();
-        logger.log(Level.FINER, "Setting up alarm for the next {0} ms.", delayThresholdMs);
-        currentAlarmFuture =
-            executor.schedule(
-                new Runnable() {
-                  @Override
-                  public void run() {
-                    logger.log(Level.FINER, "Sending messages based on schedule.");
-                    activeAlarm.getAndSet(false);
-                    publishAllWithoutInflight();
-                  }
-                },
-                delayThresholdMs,
-                TimeUnit.MILLISECONDS);
-      }
-    } else if (currentAlarmFuture != null) {
-      logger.log(Level.FINER, "Cancelling alarm, no more messages");
-      if (activeAlarm.getAndSet(false)) {
-        currentAlarmFuture.cancel(false);
-      }
-    }
+  /**
+   * The number of bytes currently held against the flow control limits, or 0 if flow control is
+   * disabled.
+   */
+  @BetaApi
+  public long getOutstandingRequestBytes() {
+    return flowController == null ? 0 : flowController.getOutstandingRequestBytes();
   }
 
   /**
-   * Publish any outstanding batches if non-empty. This method sends buffered messages, but does not
-   * wait for the send operations to complete. To wait for messages to send, call {@code get} on the
-   * futures returned from {@code publish}.
+   * Whether flow control is saturated: a message could not be admitted immediately, and the
+   * outstanding messages and bytes have not yet dropped to half of their limits. Always false if
+   * flow control is disabled.
    */
-  public void publishAllOutstanding() {
-    OutstandingBatch unorderedOutstandingBatch = null;
-    messagesBatchLock.lock();
-    try {
-      for (MessagesBatch batch : messagesBatches.values()) {
-        if (!batch.isEmpty()) {
-          if (!batch.orderingKey.isEmpty()) {
-            // For messages with an ordering key, we need to publish with messagesBatchLock held in
-            // order to ensure another publish doesn't slip in and send a batch before these batches
-            // we already want to send.
-            publishOutstandingBatch(batch.popOutstandingBatch());
-          } else {
-            unorderedOutstandingBatch = batch.popOutstandingBatch();
+  @BetaApi
+  public boolean isFlowControlSaturated() {
+    return flowController != null && flowController.isSaturated();
+  }
+
+  /**
+   * Returns a snapshot of the statistics of this publisher. Recording them takes no lock, so they
+   * are always enabled; taking a snapshot briefly locks the batches to count their ordering keys.
+   */
+  @BetaApi
+  public PublisherStats getStats() {
+    int orderingKeysWithOpenBatches = 0;
+    for (BatchShard shard : batchShards) {
+      shard.lock.lock();
+      try {
+        for (MessagesBatch batch : shard.messagesBatches.values()) {
+          if (!batch.orderingKey.isEmpty() && !batch.isEmpty()) {
+            orderingKeysWithOpenBatches++;
           }
         }
+      } finally {
+        shard.lock.unlock();
       }
-      messagesBatches.clear();
-    } finally {
-      messagesBatchLock.unlock();
-    }
-    if (unorderedOutstandingBatch != null) {
-      publishOutstandingBatch(unorderedOutstandingBatch);
     }
+    return stats
+        .snapshot(PublisherStats.newBuilder())
+        .setFlowControlBlockedCount(flowController == null ? 0 : flowController.getBlockedCount())
+        .setFlowControlBlockedTime(
+            Duration.ofNanos(flowController == null ? 0 : flowController.getBlockedNanos()))
+        .setOutstandingMessages(getOutstandingElementCount())
+        .setOutstandingBytes(getOutstandingRequestBytes())
+        .setOrderingKeysWithOpenBatches(orderingKeysWithOpenBatches)
+        .setOrderingKeysWithErrors(sequentialExecutor.getKeysWithErrorsCount())
+        .build();
   }
 
-  /**
-   * Publish any outstanding batches if non-empty and there are no other batches in flight. This
-   * method sends buffered messages, but does not wait for the send operations to complete. To wait
-   * for messages to send, call {@code get} on the futures returned from {@code publish}.
-   */
-  private void publishAllWithoutInflight() {
-    OutstandingBatch unorderedOutstandingBatch = null;
-    messagesBatchLock.lock();
-    try {
-      Iterator<Map.Entry<String, MessagesBatch>> it = messagesBatches.entrySet().iterator();
-      while (it.hasNext()) {
-        Map.Entry<String, MessagesBatch> entry = it.next();
-        MessagesBatch batch = entry.getValue();
-        String key = entry.getKey();
-        if (batch.isEmpty()) {
-          it.remove();
-        } else if (key.isEmpty()) {
-          // We will publish the batch with no ordering key outside messagesBatchLock.
-          unorderedOutstandingBatch = batch.popOutstandingBatch();
-          it.remove();
-        } else if (!sequentialExecutor.hasTasksInflight(key)) {
-          publishOutstandingBatch(batch.popOutstandingBatch());
-          it.remove();
-        }
+  private OutstandingPublish newOutstandingPublish(PubsubMessage message) {
+    checkCanPublish(message);
+    return wrapOutstandingPublish(messageTransform.apply(message));
+  }
+
+  private void checkCanPublish(PubsubMessage message) {
+    Preconditions.checkState(!shutdown.get(), "Cannot publish on a shut-down publisher.");
+
+    final String orderingKey = message.getOrderingKey();
+    Preconditions.checkState(
+        orderingKey.isEmpty() || enableMessageOrdering,
+        "Cannot publish a message with an ordering key when message ordering is not enabled in the "
+            + "Publisher client. Please create a Publisher client with "
+            + "setEnableMessageOrdering(true) in the builder.");
+  }
+
+  /** Wraps a message that was already transformed, compressing its data if enabled. */
+  private OutstandingPublish wrapOutstandingPublish(PubsubMessage message) {
+    boolean highPriority =
+        highPriorityMessageFilter != null
+            && Boolean.TRUE.equals(highPriorityMessageFilter.apply(message));
+    long latencyBudgetNanos = OutstandingPublish.NO_LATENCY_BUDGET;
+    if (latencyBudgetFunction != null) {
+      Duration latencyBudget = latencyBudgetFunction.apply(message);
+      if (latencyBudget != null) {
+        latencyBudgetNanos = Math.max(0, latencyBudget.toNanos());
       }
-    } finally {
-      messagesBatchLock.unlock();
     }
-    if (unorderedOutstandingBatch != null) {
-      publishOutstandingBatch(unorderedOutstandingBatch);
+    if (payloadCompressor != null) {
+      message = payloadCompressor.compress(message);
     }
+    PubsubMessageWrapper messageWrapper =
+        PubsubMessageWrapper.newBuilder(message, topicNameObject).build();
+    tracer.startPublisherSpan(messageWrapper);
+
+    return new OutstandingPublish(
+        messageWrapper, enableMessagePreSerialization, highPriority, latencyBudgetNanos);
   }
 
   /**
-   * Publish any outstanding batches if non-empty and there are no other batches in flight for
-   * orderingKey. This method sends buffered messages, but does not wait for the send operations to
-   * complete. To wait for messages to send, call {@code get} on the futures returned from {@code
-   * publish}.
+   * Appends a message to the publish buffer, then admits it to its batch if no buffered message is
+   * waiting for flow control. Otherwise the message is left in the buffer, and read back from it
+   * once the messages before it have been admitted.
    */
-  private void publishAllWithoutInflightForKey(final String orderingKey) {
-    messagesBatchLock.lock();
+  private ApiFuture<String> publishBuffered(PubsubMessage message) {
+    checkCanPublish(message);
+    PubsubMessage transformedMessage = messageTransform.apply(message);
+    InvalidArgumentException invalidMessageException =
+        validateMessage(
+            transformedMessage,
+            CodedOutputStream.computeMessageSize(
+                PublishRequest.MESSAGES_FIELD_NUMBER, transformedMessage));
+    if (invalidMessageException != null) {
+      // Rejected before it is written, so that it is not published again by a later publisher.
+      return ApiFutures.immediateFailedFuture(invalidMessageException);
+    }
+    long position;
     try {
-      MessagesBatch batch = messagesBatches.get(orderingKey);
-      if (batch != null && !sequentialExecutor.hasTasksInflight(orderingKey)) {
-        publishOutstandingBatch(batch.popOutstandingBatch());
-        messagesBatches.remove(orderingKey);
-      }
-    } finally {
-      messagesBatchLock.unlock();
+      position = publishBuffer.append(transformedMessage);
+    } catch (IOException e) {
+      return ApiFutures.immediateFailedFuture(e);
     }
-  }
 
-  private ApiFuture<PublishResponse> publishCall(OutstandingBatch outstandingBatch) {
-    GrpcCallContext context = publishContext;
-    if (enableCompression && outstandingBatch.batchSizeBytes >= compressionBytesThreshold) {
-      context = publishContextWithCompression;
+    SettableApiFuture<String> publishResult = SettableApiFuture.create();
+    // Buffered messages are pending until they are published, so that shutdown waits for them.
+    messagesWaiter.incrementPendingCount(1);
+    synchronized (bufferedPublishes) {
+      if (admittingBufferedPublish) {
+        bufferedPublishes.add(new BufferedPublish(position, publishResult, null));
+        return publishResult;
+      }
+      admittingBufferedPublish = true;
     }
+    admitBufferedPublishes(new BufferedPublish(position, publishResult, transformedMessage));
+    return publishResult;
+  }
 
-    int numMessagesInBatch = outstandingBatch.size();
-    List<PubsubMessage> pubsubMessagesList = new ArrayList<PubsubMessage>(numMessagesInBatch);
-    List<PubsubMessageWrapper> messageWrappers = outstandingBatch.getMessageWrappers();
-    for (PubsubMessageWrapper messageWrapper : messageWrappers) {
-      tracer.endPublishBatchingSpan(messageWrapper);
-      pubsubMessagesList.add(messageWrapper.getPubsubMessage());
+  /**
+   * Admits buffered messages to their batches in order, starting with {@code next} if not null,
+   * until one of them has to wait for flow control. The admission then continues on the executor
+   * once that message is admitted. Only one thread admits buffered messages at a time.
+   */
+  private void admitBufferedPublishes(BufferedPublish next) {
+    if (next == null) {
+      next = pollBufferedPublish();
     }
+    while (next != null) {
+      final OutstandingPublish outstandingPublish = readBufferedPublish(next);
+      if (outstandingPublish != null && flowController != null) {
+        tracer.startPublishFlowControlSpan(outstandingPublish.messageWrapper);
+        ApiFuture<Void> acquireFuture = flowController.acquireAsync(outstandingPublish.messageSize);
+        if (!acquireFuture.isDone()) {
+          ApiFutures.addCallback(
+              acquireFuture,
+              new ApiFutureCallback<Void>() {
+                @Override
+                public void onSuccess(Void result) {
+                  continueAdmission(null);
+                }
 
-    outstandingBatch.publishRpcSpan = tracer.startPublishRpcSpan(topicNameObject, messageWrappers);
+                @Override
+                public void onFailure(Throwable t) {
+                  continueAdmission(t);
+                }
 
-    return publisherStub
-        .publishCallable()
-        .futureCall(
-            PublishRequest.newBuilder()
-                .setTopic(topicName)
-                .addAllMessages(pubsubMessagesList)
-                .build(),
-            context);
+                private void continueAdmission(final Throwable t) {
+                  // Capacity may be granted on a thread releasing it, possibly while batches are
+                  // locked.
+                  executor.execute(
+                      new Runnable() {
+                        @Override
+                        public void run() {
+                          admitBufferedPublish(outstandingPublish, t);
+                          admitBufferedPublishes(null);
+                        }
+                      });
+                }
+              },
+              directExecutor());
+          return;
+        }
+        Throwable acquireError = null;
+        try {
+          acquireFuture.get();
+        } catch (ExecutionException e) {
+          acquireError = e.getCause();
+        } catch (InterruptedException e) {
+          // Not reached, since the future is done.
+          Thread.currentThread().interrupt();
+          acquireError = e;
+        }
+        admitBufferedPublish(outstandingPublish, acquireError);
+      } else if (outstandingPublish != null) {
+        admitBufferedPublish(outstandingPublish, null);
+      } else {
+        messagesWaiter.incrementPendingCount(-1);
+      }
+      next = pollBufferedPublish();
+    }
+    if (shutdown.get()) {
+      // The batches were flushed when the publisher was shut down, before these messages joined.
+      publishAllOutstanding();
+    }
   }
 
-  private void publishOutstandingBatch(final OutstandingBatch outstandingBatch) {
-    if (outstandingBatch.size() == 0) {
-      logger.log(Level.WARNING, "Attempted to publish batch with zero messages.");
-      return;
+  /**
+   * Returns the next buffered message to admit, or null after marking the admission as stopped if
+   * there is none.
+   */
+  private BufferedPublish pollBufferedPublish() {
+    synchronized (bufferedPublishes) {
+      BufferedPublish next = bufferedPublishes.poll();
+      if (next == null) {
+        admittingBufferedPublish = false;
+      }
+      return next;
     }
+  }
 
-    loggingUtil.logPublisher(
-        LoggingUtil.SubSystem.PUBLISH_BATCH,
-        Level.FINE,
-        String.format("Attempting to batch publish %d messages", outstandingBatch.size()),
-        outstandingBatch.getMessageWrappers().get(0));
-
-    final ApiFutureCallback<PublishResponse> futureCallback =
-        new ApiFutureCallback<PublishResponse>() {
+  /**
+   * Returns the message of a buffered publish, whose result acknowledges it in the buffer, or null
+   * if it cannot be read.
+   */
+  private OutstandingPublish readBufferedPublish(final BufferedPublish bufferedPublish) {
+    PubsubMessage message = bufferedPublish.message;
+    if (message == null) {
+      try {
+        message = publishBuffer.read(bufferedPublish.position);
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Failed to read a message from the publish buffer.", e);
+        publishBuffer.acknowledge(bufferedPublish.position);
+        if (bufferedPublish.publishResult != null) {
+          bufferedPublish.publishResult.setException(e);
+        }
+        return null;
+      }
+    }
+    OutstandingPublish outstandingPublish = wrapOutstandingPublish(message);
+    ApiFutures.addCallback(
+        outstandingPublish.publishResult,
+        new ApiFutureCallback<String>() {
           @Override
-          public void onSuccess(PublishResponse result) {
-            try {
-              if (result == null || result.getMessageIdsCount() != outstandingBatch.size()) {
-                outstandingBatch.onFailure(
-                    new IllegalStateException(
-                        String.format(
-                            "The publish result count %s does not match "
-                                + "the expected %s results. Please contact Cloud Pub/Sub support "
-                                + "if this frequently occurs",
-                            result.getMessageIdsCount(), outstandingBatch.size())));
-              } else {
-                outstandingBatch.onSuccess(result.getMessageIdsList());
-                if (!activeAlarm.get()
-                    && outstandingBatch.orderingKey != null
-                    && !outstandingBatch.orderingKey.isEmpty()) {
-                  publishAllWithoutInflightForKey(outstandingBatch.orderingKey);
-                }
-              }
-            } finally {
-              messagesWaiter.incrementPendingCount(-outstandingBatch.size());
+          public void onSuccess(String messageId) {
+            publishBuffer.acknowledge(bufferedPublish.position);
+            if (bufferedPublish.publishResult != null) {
+              bufferedPublish.publishResult.set(messageId);
             }
           }
 
           @Override
           public void onFailure(Throwable t) {
-            try {
-              if (outstandingBatch.orderingKey != null && !outstandingBatch.orderingKey.isEmpty()) {
-                messagesBatchLock.lock();
-                try {
-                  MessagesBatch messagesBatch = messagesBatches.get(outstandingBatch.orderingKey);
-                  if (messagesBatch != null) {
-                    for (OutstandingPublish outstanding : messagesBatch.messages) {
-                      outstanding.publishResult.setException(
-                          SequentialExecutorService.CallbackExecutor.CANCELLATION_EXCEPTION);
+            onBufferedPublishFailure(bufferedPublish, getOrderingKey(outstandingPublish), t);
+          }
+        },
+        directExecutor());
+    return outstandingPublish;
+  }
+
+  /**
+   * Handles the failure of a buffered message. A message that failed permanently is removed from
+   * the buffer. A message that failed because the service could not be reached in time is kept: it
+   * is admitted again after the retry delay if it has no ordering key, so that the buffer rides out
+   * outages longer than the retry settings, and is otherwise left to the next publisher using the
+   * buffer, since the failure paused its ordering key.
+   */
+  private void onBufferedPublishFailure(
+      final BufferedPublish bufferedPublish, String orderingKey, final Throwable t) {
+    if (!isTransientBufferedPublishFailure(t)) {
+      // The failure is reported to the caller, so the message is not published again.
+      publishBuffer.acknowledge(bufferedPublish.position);
+      failBufferedPublish(bufferedPublish, t);
+      return;
+    }
+    if (!orderingKey.isEmpty() || shutdown.get()) {
+      failBufferedPublish(bufferedPublish, t);
+      return;
+    }
+    // The message is pending until it is admitted again, so that shutdown waits for it.
+    messagesWaiter.incrementPendingCount(1);
+    executor.schedule(
+        new Runnable() {
+          @Override
+          public void run() {
+            if (shutdown.get()) {
+              failBufferedPublish(bufferedPublish, t);
+              messagesWaiter.incrementPendingCount(-1);
+              return;
+            }
+            synchronized (bufferedPublishes) {
+              bufferedPublishes.add(
+                  new BufferedPublish(
+                      bufferedPublish.position, bufferedPublish.publishResult, null));
+              if (admittingBufferedPublish) {
+                return;
+              }
+              admittingBufferedPublish = true;
+            }
+            admitBufferedPublishes(null);
+          }
+        },
+        bufferedPublishRetryDelay.toNanos(),
+        TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Whether a buffered message failed without the service rejecting it: its retries ran out, its
+   * ordering key was paused by an earlier failure, or the shutdown deadline passed.
+   */
+  private boolean isTransientBufferedPublishFailure(Throwable t) {
+    return (t instanceof ApiException && ((ApiException) t).isRetryable())
+        || t instanceof CancellationException
+        || (t instanceof TimeoutException && shutdown.get());
+  }
+
+  private static void failBufferedPublish(BufferedPublish bufferedPublish, Throwable t) {
+    if (bufferedPublish.publishResult != null) {
+      bufferedPublish.publishResult.setException(t);
+    } else {
+      logger.log(
+          Level.WARNING, "Failed to publish a message recovered from the publish buffer.", t);
+    }
+  }
+
+  private void admitBufferedPublish(OutstandingPublish outstandingPublish, Throwable acquireError) {
+    try {
+      if (acquireError != null) {
+        onFlowControlFailure(outstandingPublish, acquireError);
+      } else {
+        if (flowController != null) {
+          tracer.endPublishFlowControlSpan(outstandingPublish.messageWrapper);
+        }
+        addToBatch(outstandingPublish);
+      }
+    } finally {
+      messagesWaiter.incrementPendingCount(-1);
+    }
+  }
+
+  /**
+   * Fails a message that the API would reject, before it joins a batch, so that it does not fail
+   * the other messages of its request. Returns true if the message was rejected.
+   */
+  private boolean rejectIfInvalid(OutstandingPublish outstandingPublish) {
+    InvalidArgumentException exception =
+        validateMessage(
+            outstandingPublish.messageWrapper.getPubsubMessage(), outstandingPublish.messageSize);
+    if (exception == null) {
+      return false;
+    }
+    // Later messages of the ordering key fail too, as they would otherwise be published out of
+    // order.
+    String orderingKey = getOrderingKey(outstandingPublish);
+    if (!orderingKey.isEmpty()) {
+      sequentialExecutor.stopPublish(orderingKey);
+    }
+    stats.recordFailed(1, outstandingPublish.messageSize);
+    outstandingPublish.publishResult.setException(exception);
+    tracer.endPublisherSpan(outstandingPublish.messageWrapper);
+    return true;
+  }
+
+  /**
+   * Returns the exception a message fails with because it exceeds the limits of the API, or null if
+   * it is within them.
+   */
+  private InvalidArgumentException validateMessage(PubsubMessage message, int messageSize) {
+    String error = null;
+    if (topicNameSize + messageSize > getApiMaxRequestBytes()) {
+      error =
+          String.format(
+              "The message is %d bytes, which exceeds the maximum size of a publish request of %d "
+                  + "bytes.",
+              messageSize, getApiMaxRequestBytes());
+    } else if (message.getAttributesCount() > API_MAX_ATTRIBUTES) {
+      error =
+          String.format(
+              "The message has %d attributes, more than the maximum of %d.",
+              message.getAttributesCount(), API_MAX_ATTRIBUTES);
+    } else if (exceedsUtf8Size(message.getOrderingKey(), API_MAX_ORDERING_KEY_BYTES)) {
+      error =
+          String.format(
+              "The ordering key of the message exceeds the maximum size of %d bytes.",
+              API_MAX_ORDERING_KEY_BYTES);
+    } else {
+      for (Map.Entry<String, String> attribute : message.getAttributesMap().entrySet()) {
+        if (exceedsUtf8Size(attribute.getKey(), API_MAX_ATTRIBUTE_KEY_BYTES)) {
+          error =
+              String.format(
+                  "The attribute key %s exceeds the maximum size of %d bytes.",
+                  attribute.getKey().substring(0, 32) + "...", API_MAX_ATTRIBUTE_KEY_BYTES);
+          break;
+        }
+        if (exceedsUtf8Size(attribute.getValue(), API_MAX_ATTRIBUTE_VALUE_BYTES)) {
+          error =
+              String.format(
+                  "The value of attribute %s exceeds the maximum size of %d bytes.",
+                  attribute.getKey(), API_MAX_ATTRIBUTE_VALUE_BYTES);
+          break;
+        }
+      }
+    }
+    if (error == null) {
+      return null;
+    }
+    return new InvalidArgumentException(error, null, INVALID_ARGUMENT_STATUS_CODE, false);
+  }
+
+  private static boolean exceedsUtf8Size(String value, int maxBytes) {
+    // A character takes at most 3 bytes, so only long strings need to be encoded.
+    return value.length() * 3L > maxBytes && Utf8.encodedLength(value) > maxBytes;
+  }
+
+  /**
+   * Returns the error a blocked flow control acquire failed with when the flow controller was
+   * closed, so that these messages fail like the ones waiting in {@link #publishAsync}.
+   */
+  private static Throwable getFlowControlCloseCause(IllegalStateException e) {
+    return e.getCause() != null ? e.getCause() : e;
+  }
+
+  private void onFlowControlFailure(OutstandingPublish outstandingPublish, Throwable t) {
+    String orderingKey = outstandingPublish.messageWrapper.getPubsubMessage().getOrderingKey();
+    if (!orderingKey.isEmpty()) {
+      sequentialExecutor.stopPublish(orderingKey);
+    }
+    stats.recordFailed(1, outstandingPublish.messageSize);
+    outstandingPublish.publishResult.setException(t);
+    tracer.setPublishFlowControlSpanException(outstandingPublish.messageWrapper, t);
+  }
+
+  /** Adds a message that was admitted by flow control to its batch. */
+  private void addToBatch(final OutstandingPublish outstandingPublish) {
+    BatchShard shard = getBatchShard(getOrderingKey(outstandingPublish));
+    List<OutstandingBatch> batchesToSend;
+    shard.lock.lock();
+    try {
+      batchesToSend = addToBatchLocked(shard, outstandingPublish);
+    } finally {
+      shard.lock.unlock();
+    }
+
+    if (batchesToSend == null) {
+      // Released outside the shard lock, since waiting publishes may be admitted by the release.
+      if (flowController != null) {
+        flowController.release(1, outstandingPublish.messageSize);
+      }
+      stats.recordFailed(1, outstandingPublish.messageSize);
+      outstandingPublish.publishResult.setException(
+          SequentialExecutorService.CallbackExecutor.CANCELLATION_EXCEPTION);
+      return;
+    }
+
+    messagesWaiter.incrementPendingCount(1);
+    sendUnorderedBatches(batchesToSend);
+  }
+
+  /**
+   * Adds messages that were admitted by flow control to their batches, taking the lock of each
+   * shard once. Messages with the same ordering key are in the same shard, and are added in the
+   * order of the list.
+   */
+  private void addAllToBatches(List<OutstandingPublish> outstandingPublishes) {
+    List<OutstandingBatch> batchesToSend = new ArrayList<>();
+    List<OutstandingPublish> rejectedPublishes = new ArrayList<>();
+    int addedCount = 0;
+    boolean[] added = new boolean[outstandingPublishes.size()];
+    for (int i = 0; i < outstandingPublishes.size(); i++) {
+      if (added[i]) {
+        continue;
+      }
+      BatchShard shard = getBatchShard(getOrderingKey(outstandingPublishes.get(i)));
+      shard.lock.lock();
+      try {
+        for (int j = i; j < outstandingPublishes.size(); j++) {
+          OutstandingPublish outstandingPublish = outstandingPublishes.get(j);
+          if (added[j] || getBatchShard(getOrderingKey(outstandingPublish)) != shard) {
+            continue;
+          }
+          added[j] = true;
+          List<OutstandingBatch> shardBatchesToSend = addToBatchLocked(shard, outstandingPublish);
+          if (shardBatchesToSend == null) {
+            rejectedPublishes.add(outstandingPublish);
+          } else {
+            batchesToSend.addAll(shardBatchesToSend);
+            addedCount++;
+          }
+        }
+      } finally {
+        shard.lock.unlock();
+      }
+    }
+
+    if (!rejectedPublishes.isEmpty()) {
+      long rejectedBytes = 0;
+      for (OutstandingPublish outstandingPublish : rejectedPublishes) {
+        rejectedBytes += outstandingPublish.messageSize;
+      }
+      if (flowController != null) {
+        flowController.release(rejectedPublishes.size(), rejectedBytes);
+      }
+      stats.recordFailed(rejectedPublishes.size(), rejectedBytes);
+      for (OutstandingPublish outstandingPublish : rejectedPublishes) {
+        outstandingPublish.publishResult.setException(
+            SequentialExecutorService.CallbackExecutor.CANCELLATION_EXCEPTION);
+      }
+    }
+
+    messagesWaiter.incrementPendingCount(addedCount);
+    sendUnorderedBatches(batchesToSend);
+  }
+
+  /**
+   * Adds a message to its batch while holding the lock of {@code shard}. Returns the full batches
+   * of messages without an ordering key, which can be sent once the lock is released, or null if
+   * the message was rejected because its ordering key is paused after an error.
+   */
+  private List<OutstandingBatch> addToBatchLocked(
+      BatchShard shard, OutstandingPublish outstandingPublish) {
+    final PubsubMessageWrapper messageWrapper = outstandingPublish.messageWrapper;
+    final String orderingKey = messageWrapper.getPubsubMessage().getOrderingKey();
+
+    tracer.startPublishBatchingSpan(messageWrapper);
+    if (!orderingKey.isEmpty() && sequentialExecutor.keyHasError(orderingKey)) {
+      return null;
+    }
+    if (outstandingPublish.highPriority && orderingKey.isEmpty()) {
+      // High priority messages are sent right away in a batch of their own, leaving the open batch
+      // to grow.
+      stats.recordAccepted(outstandingPublish.messageSize);
+      MessagesBatch priorityBatch = new MessagesBatch(topicNameSize, orderingKey);
+      priorityBatch.add(outstandingPublish);
+      OutstandingBatch batch =
+          priorityBatch.popOutstandingBatch(PublisherStats.FlushReason.PRIORITY);
+      batch.highPriority = true;
+      return Collections.singletonList(batch);
+    }
+    MessagesBatch messagesBatch = shard.messagesBatches.get(orderingKey);
+    if (messagesBatch == null) {
+      messagesBatch = new MessagesBatch(topicNameSize, orderingKey);
+      shard.putBatch(orderingKey, messagesBatch);
+    }
+
+    long previousDueNanos = messagesBatch.dueNanos;
+    List<OutstandingBatch> batchesToSend = messagesBatch.add(outstandingPublish);
+    stats.recordAccepted(outstandingPublish.messageSize);
+    if (messagesBatch.getMessagesCount() == 1 || messagesBatch.dueNanos != previousDueNanos) {
+      // The message opened a new batch, which is flushed once the delay threshold has passed, or
+      // its latency budget made the batch due earlier. The previous deadline of the batch is then
+      // skipped.
+      shard.batchDeadlines.add(new BatchDeadline(messagesBatch));
+    }
+    if (outstandingPublish.highPriority && batchesToSend.isEmpty()) {
+      // The message cannot overtake the earlier messages of its ordering key, so the open batch of
+      // the key is sent with it.
+      batchesToSend =
+          Collections.singletonList(
+              messagesBatch.popOutstandingBatch(PublisherStats.FlushReason.PRIORITY));
+    }
+    if (!batchesToSend.isEmpty() && messagesBatch.isEmpty()) {
+      shard.removeBatch(orderingKey);
+    }
+    // Setup the next duration based delivery alarm if there are messages batched.
+    setupAlarm(shard);
+    // For messages with an ordering key, we need to publish with the shard lock held in order
+    // to ensure another publish doesn't slip in and send a batch before these batches we
+    // already want to send.
+    if (!batchesToSend.isEmpty() && !orderingKey.isEmpty()) {
+      for (final OutstandingBatch batch : batchesToSend) {
+        logger.log(Level.FINER, "Scheduling a batch for immediate sending.");
+        publishOutstandingBatch(batch);
+      }
+      return Collections.emptyList();
+    }
+    return batchesToSend;
+  }
+
+  /**
+   * Sends batches of messages without ordering keys, which is okay to do without holding the shard
+   * lock.
+   */
+  private void sendUnorderedBatches(List<OutstandingBatch> batchesToSend) {
+    for (final OutstandingBatch batch : batchesToSend) {
+      logger.log(Level.FINER, "Scheduling a batch for immediate sending.");
+      executor.execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              publishOutstandingBatch(batch);
+            }
+          });
+    }
+  }
+
+  private static String getOrderingKey(OutstandingPublish outstandingPublish) {
+    return outstandingPublish.messageWrapper.getPubsubMessage().getOrderingKey();
+  }
+
+  /**
+   * There may be non-recoverable problems with a request for an ordering key. In that case, all
+   * subsequent requests will fail until this method is called. If the key is not currently paused,
+   * calling this method will be a no-op.
+   *
+   * @param key The key for which to resume publishing.
+   */
+  public void resumePublish(String key) {
+    Preconditions.checkState(!shutdown.get(), "Cannot publish on a shut-down publisher.");
+    sequentialExecutor.resumePublish(key);
+  }
+
+  /**
+   * Returns the shard holding the open batch for {@code orderingKey}. Messages with an ordering key
+   * always map to the same shard so that their order is preserved. Messages without an ordering key
+   * are spread by publishing thread, since their order does not matter.
+   */
+  private BatchShard getBatchShard(String orderingKey) {
+    if (batchShards.length == 1) {
+      return batchShards[0];
+    }
+    long hash = orderingKey.isEmpty() ? Thread.currentThread().getId() : orderingKey.hashCode();
+    return batchShards[getBatchShardIndex(hash, batchShards.length)];
+  }
+
+  /**
+   * Returns the index of the shard of a message, from the hash code of its ordering key or the id
+   * of the publishing thread.
+   */
+  static int getBatchShardIndex(long hash, int shardCount) {
+    return ((int) hash & Integer.MAX_VALUE) % shardCount;
+  }
+
+  private void setupAlarm(BatchShard shard) {
+    if (!shard.messagesBatches.isEmpty()) {
+      BatchDeadline nextDeadline = shard.batchDeadlines.peek();
+      if (nextDeadline != null) {
+        scheduleAlarm(nextDeadline.dueNanos);
+      }
+    } else if (batchShards.length == 1 && currentAlarmFuture != null) {
+      // Other shards may still hold messages, so the alarm is only cancelled when the (locked)
+      // shard is the only one.
+      logger.log(Level.FINER, "Cancelling alarm, no more messages");
+      shard.batchDeadlines.clear();
+      if (activeAlarm.getAndSet(false)) {
+        currentAlarmFuture.cancel(false);
+      }
+    }
+  }
+
+  /**
+   * Schedules the alarm for when a batch is due at {@code dueNanos}, unless the alarm is already
+   * scheduled for then or earlier. A batch only becomes due before the alarm when a latency budget
+   * is shorter than the delay threshold, or when a batching policy shortens the delay threshold, in
+   * which case the alarm is moved.
+   */
+  private void scheduleAlarm(final long dueNanos) {
+    if (activeAlarm.get() && dueNanos - alarmDueNanos >= 0) {
+      return;
+    }
+    synchronized (alarmLock) {
+      if (activeAlarm.getAndSet(true)) {
+        // If the alarm cannot be cancelled, it is running and schedules itself again.
+        if (dueNanos - alarmDueNanos >= 0 || !currentAlarmFuture.cancel(false)) {
+          return;
+        }
+      }
+      alarmDueNanos = dueNanos;
+      long delayNanos = Math.max(0, dueNanos - clock.nanoTime());
+      // Rounded up, so that the batch is due when the alarm runs.
+      long delayMs =
+          (delayNanos + TimeUnit.MILLISECONDS.toNanos(1) - 1) / TimeUnit.MILLISECONDS.toNanos(1);
+      logger.log(Level.FINER, "Setting up alarm for the next {0} ms.", delayMs);
+      currentAlarmFuture =
+          executor.schedule(
+              new Runnable() {
+                @Override
+                public void run() {
+                  logger.log(Level.FINER, "Sending messages based on schedule.");
+                  activeAlarm.getAndSet(false);
+                  if (requestLimiter != null && requestLimiter.isSaturated()) {
+                    // The batches would only wait for the limit. Let them grow until a request
+                    // completes instead. The flag is set before checking the limit again so that a
+                    // concurrent completion cannot miss it.
+                    flushWhenUnsaturated.set(true);
+                    if (requestLimiter.isSaturated() || !flushWhenUnsaturated.getAndSet(false)) {
+                      return;
+                    }
+                  }
+                  publishAllWithoutInflight(dueNanos);
+                }
+              },
+              delayMs,
+              TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Publish any outstanding batches if non-empty. This method sends buffered messages, but does not
+   * wait for the send operations to complete. To wait for messages to send, call {@code get} on the
+   * futures returned from {@code publish}.
+   */
+  public void publishAllOutstanding() {
+    PublisherStats.FlushReason flushReason =
+        shutdown.get() ? PublisherStats.FlushReason.SHUTDOWN : PublisherStats.FlushReason.EXPLICIT;
+    List<OutstandingBatch> unorderedOutstandingBatches = new ArrayList<>();
+    for (BatchShard shard : batchShards) {
+      shard.lock.lock();
+      try {
+        for (MessagesBatch batch : shard.messagesBatches.values()) {
+          if (!batch.isEmpty()) {
+            if (!batch.orderingKey.isEmpty()) {
+              // For messages with an ordering key, we need to publish with the shard lock held in
+              // order to ensure another publish doesn't slip in and send a batch before these
+              // batches we already want to send.
+              publishOutstandingBatch(batch.popOutstandingBatch(flushReason));
+            } else {
+              unorderedOutstandingBatches.add(batch.popOutstandingBatch(flushReason));
+            }
+          }
+        }
+        shard.messagesBatches.clear();
+        shard.batchDeadlines.clear();
+        shard.compactBatches();
+      } finally {
+        shard.lock.unlock();
+      }
+    }
+    for (OutstandingBatch batch : mergeUnorderedBatches(unorderedOutstandingBatches)) {
+      publishOutstandingBatch(batch);
+    }
+  }
+
+  /**
+   * Publish the batches that are due, if there are no other batches in flight for their ordering
+   * key, and schedules the alarm for the next batch to become due. Only the due batches are
+   * visited, in the order they became due. A due batch that has to wait for a batch in flight is
+   * marked as overdue instead, and sent as soon as that batch completes.
+   *
+   * @param alarmDueNanos when the batch the alarm was scheduled for is due, or {@code
+   *     Long.MIN_VALUE}. That batch and the batches due before it are due, even if the clock does
+   *     not show it yet.
+   */
+  private void publishAllWithoutInflight(long alarmDueNanos) {
+    List<OutstandingBatch> unorderedOutstandingBatches = new ArrayList<>();
+    long dueNanos = clock.nanoTime();
+    if (alarmDueNanos != Long.MIN_VALUE && alarmDueNanos - dueNanos > 0) {
+      dueNanos = alarmDueNanos;
+    }
+    BatchDeadline nextDeadline = null;
+    List<PackedRequest> packedRequests =
+        enableCrossKeyBatching ? new ArrayList<PackedRequest>() : null;
+    for (BatchShard shard : batchShards) {
+      shard.lock.lock();
+      try {
+        BatchDeadline deadline;
+        while ((deadline = shard.batchDeadlines.peek()) != null) {
+          if (deadline.dueNanos - dueNanos > 0) {
+            if (nextDeadline == null || deadline.dueNanos - nextDeadline.dueNanos < 0) {
+              nextDeadline = deadline;
+            }
+            break;
+          }
+          shard.batchDeadlines.poll();
+          MessagesBatch batch = deadline.batch;
+          String key = batch.orderingKey;
+          if (!deadline.isCurrent(shard)) {
+            // The batch was sent since.
+            continue;
+          }
+          if (key.isEmpty()) {
+            // We will publish the batch with no ordering key outside the shard lock.
+            unorderedOutstandingBatches.add(batch.popOutstandingBatch(batch.getDueFlushReason()));
+            shard.removeBatch(key);
+          } else if (sequentialExecutor.canStartTaskWithoutWaiting(key)) {
+            OutstandingBatch outstandingBatch =
+                batch.popOutstandingBatch(batch.getDueFlushReason());
+            if (packedRequests != null) {
+              packOutstandingBatch(packedRequests, outstandingBatch);
+            } else {
+              publishOutstandingBatch(outstandingBatch);
+            }
+            shard.removeBatch(key);
+          } else {
+            batch.overdue = true;
+          }
+        }
+      } finally {
+        shard.lock.unlock();
+      }
+    }
+    if (!unorderedOutstandingBatches.isEmpty() && batchShards.length > 1) {
+      popPartialUnorderedBatches(unorderedOutstandingBatches);
+    }
+    for (OutstandingBatch batch : mergeUnorderedBatches(unorderedOutstandingBatches)) {
+      publishOutstandingBatch(batch);
+    }
+    if (packedRequests != null) {
+      for (PackedRequest packedRequest : packedRequests) {
+        packedRequest.send();
+      }
+    }
+    if (nextDeadline != null) {
+      scheduleAlarm(nextDeadline.dueNanos);
+    }
+  }
+
+  /**
+   * Adds a batch with an ordering key to the last of {@code packedRequests}, or to a new one if it
+   * does not fit, and submits it for its key. Must be called while holding the lock of the shard of
+   * the key, like {@link #publishOutstandingBatch(OutstandingBatch)}.
+   */
+  private void packOutstandingBatch(
+      List<PackedRequest> packedRequests, OutstandingBatch outstandingBatch) {
+    PackedRequest packedRequest =
+        packedRequests.isEmpty() ? null : packedRequests.get(packedRequests.size() - 1);
+    if (packedRequest == null || !packedRequest.canAdd(outstandingBatch)) {
+      packedRequest = new PackedRequest();
+      packedRequests.add(packedRequest);
+    }
+    publishOutstandingBatch(outstandingBatch, packedRequest.add(outstandingBatch));
+  }
+
+  /**
+   * Pops the batches without an ordering key still open in any shard, once one of them is due, so
+   * that they are merged with it instead of each being sent at its own delay threshold. Spread by
+   * publishing thread, the messages of a single batch would otherwise be sent in as many requests
+   * as there are shards, whereas merged they take as many requests as they would in one batch.
+   */
+  private void popPartialUnorderedBatches(List<OutstandingBatch> unorderedOutstandingBatches) {
+    for (BatchShard shard : batchShards) {
+      shard.lock.lock();
+      try {
+        MessagesBatch batch = shard.messagesBatches.get("");
+        if (batch != null && !batch.isEmpty()) {
+          unorderedOutstandingBatches.add(batch.popOutstandingBatch(batch.getDueFlushReason()));
+          // Its deadline is skipped once the batch is removed.
+          shard.removeBatch("");
+        }
+      } finally {
+        shard.lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Combines the batches without an ordering key popped from each shard, so that sharding does not
+   * multiply the number of publish requests sent on a flush. The merged batches still respect the
+   * batching thresholds.
+   */
+  private List<OutstandingBatch> mergeUnorderedBatches(List<OutstandingBatch> batches) {
+    if (batches.size() <= 1) {
+      return batches;
+    }
+    List<OutstandingBatch> mergedBatches = new ArrayList<>();
+    MessagesBatch mergedBatch = new MessagesBatch(topicNameSize, "");
+    // The batches were counted when they were popped from their shards.
+    mergedBatch.recordFlushes = false;
+    for (OutstandingBatch batch : batches) {
+      for (OutstandingPublish outstandingPublish : batch.outstandingPublishes) {
+        mergedBatches.addAll(mergedBatch.add(outstandingPublish));
+      }
+    }
+    if (!mergedBatch.isEmpty()) {
+      mergedBatches.add(mergedBatch.popOutstandingBatch(PublisherStats.FlushReason.DELAY));
+    }
+    return mergedBatches;
+  }
+
+  /**
+   * Publish the batch for orderingKey if its delay threshold passed while an earlier batch for the
+   * key was in flight, and there are no other batches in flight for the key. This method sends
+   * buffered messages, but does not wait for the send operations to complete. To wait for messages
+   * to send, call {@code get} on the futures returned from {@code publish}.
+   */
+  private void publishAllWithoutInflightForKey(final String orderingKey) {
+    BatchShard shard = getBatchShard(orderingKey);
+    shard.lock.lock();
+    try {
+      MessagesBatch batch = shard.messagesBatches.get(orderingKey);
+      // The batch may have just been popped, if the publish completed on the thread sending it.
+      if (batch != null
+          && batch.overdue
+          && sequentialExecutor.canStartTaskWithoutWaiting(orderingKey)) {
+        publishOutstandingBatch(batch.popOutstandingBatch(batch.getDueFlushReason()));
+        shard.removeBatch(orderingKey);
+      }
+    } finally {
+      shard.lock.unlock();
+    }
+  }
+
+  private ApiFuture<PublishResponse> publishCall(final OutstandingBatch outstandingBatch) {
+    if (outstandingBatch.completed.get()) {
+      // Failed by a shutdown deadline while it was waiting for earlier batches of its key.
+      return ApiFutures.immediateFailedFuture(
+          new IllegalStateException("The batch was failed before it was sent."));
+    }
+    if (rateLimiter == null || outstandingBatch.attempt > 1) {
+      // A retried batch was already counted by the rate limiter.
+      return startPublishCall(outstandingBatch);
+    }
+    final SettableApiFuture<PublishResponse> rateLimitedFuture = SettableApiFuture.create();
+    rateLimiter.execute(
+        outstandingBatch.orderingKey,
+        outstandingBatch.size(),
+        outstandingBatch.batchSizeBytes,
+        new Runnable() {
+          @Override
+          public void run() {
+            if (outstandingBatch.completed.get()) {
+              // Failed by a shutdown deadline while it was waiting for the rate limit.
+              rateLimitedFuture.setException(
+                  new IllegalStateException("The batch was failed before it was sent."));
+              return;
+            }
+            ApiFuture<PublishResponse> future;
+            try {
+              future = startPublishCall(outstandingBatch);
+            } catch (RuntimeException e) {
+              rateLimitedFuture.setException(e);
+              return;
+            }
+            ApiFutures.addCallback(
+                future,
+                new ApiFutureCallback<PublishResponse>() {
+                  @Override
+                  public void onSuccess(PublishResponse result) {
+                    rateLimitedFuture.set(result);
+                  }
+
+                  @Override
+                  public void onFailure(Throwable t) {
+                    rateLimitedFuture.setException(t);
+                  }
+                },
+                directExecutor());
+          }
+        });
+    return rateLimitedFuture;
+  }
+
+  private ApiFuture<PublishResponse> startPublishCall(OutstandingBatch outstandingBatch) {
+    GrpcCallContext context = publishContext;
+    if (enableCompression && outstandingBatch.batchSizeBytes >= compressionBytesThreshold) {
+      context = publishContextWithCompression;
+    }
+
+    if (pipelinedRetrySettings != null && !outstandingBatch.orderingKey.isEmpty()) {
+      context = context.withRetrySettings(pipelinedRetrySettings);
+    }
+
+    // A batch retried by the sequential executor is recorded and traced as a single batch.
+    if (outstandingBatch.attempt == 1 && !outstandingBatch.packed) {
+      stats.recordBatchSent(outstandingBatch.size(), outstandingBatch.batchSizeBytes);
+      List<PubsubMessageWrapper> messageWrappers = outstandingBatch.getMessageWrappers();
+      for (PubsubMessageWrapper messageWrapper : messageWrappers) {
+        tracer.endPublishBatchingSpan(messageWrapper);
+      }
+
+      outstandingBatch.publishRpcSpan =
+          tracer.startPublishRpcSpan(topicNameObject, messageWrappers);
+    }
+
+    if (requestLimiter == null) {
+      return sendPublishRequest(outstandingBatch, context);
+    }
+    final OutstandingBatch batch = outstandingBatch;
+    final GrpcCallContext limitedContext = context.withTracer(requestLimiter.newTracer());
+    final SettableApiFuture<PublishResponse> limitedFuture = SettableApiFuture.create();
+    // High priority batches go before the others waiting for the limit, unless they have an
+    // ordering key, since they must not overtake the earlier batches of their key.
+    final boolean priority = batch.highPriority && batch.orderingKey.isEmpty();
+    requestLimiter.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            ApiFuture<PublishResponse> future;
+            try {
+              future = sendPublishRequest(batch, limitedContext);
+            } catch (RuntimeException e) {
+              requestLimiter.release();
+              limitedFuture.setException(e);
+              return;
+            }
+            ApiFutures.addCallback(
+                future,
+                new ApiFutureCallback<PublishResponse>() {
+                  @Override
+                  public void onSuccess(PublishResponse result) {
+                    requestLimiter.release();
+                    limitedFuture.set(result);
+                  }
+
+                  @Override
+                  public void onFailure(Throwable t) {
+                    requestLimiter.release();
+                    limitedFuture.setException(t);
+                  }
+                },
+                directExecutor());
+          }
+        },
+        priority);
+    return limitedFuture;
+  }
+
+  private ApiFuture<PublishResponse> sendPublishRequest(
+      OutstandingBatch outstandingBatch, GrpcCallContext context) {
+    final int messageCount = outstandingBatch.size();
+    final long batchBytes = outstandingBatch.batchSizeBytes;
+    final long startNanos = System.nanoTime();
+    final int channel;
+    if (channelRouter != null
+        && (routeUnorderedBatches || !outstandingBatch.orderingKey.isEmpty())) {
+      channel = channelRouter.acquire(outstandingBatch.orderingKey);
+      context = context.withChannelAffinity(channel);
+    } else {
+      channel = -1;
+    }
+    batchingPolicy.onPublishStarted(
+        messageCount, batchBytes, inflightPublishRequests.incrementAndGet());
+    ApiFuture<PublishResponse> future;
+    if (serializedPublishCallable != null) {
+      List<byte[]> encodedMessages = new ArrayList<>(messageCount);
+      for (OutstandingPublish outstandingPublish : outstandingBatch.outstandingPublishes) {
+        encodedMessages.add(outstandingPublish.encodedMessage);
+      }
+      future =
+          serializedPublishCallable.futureCall(
+              new SerializedPublishRequest(topicName, encodedTopicName, encodedMessages), context);
+    } else {
+      List<PubsubMessage> pubsubMessagesList = new ArrayList<PubsubMessage>(messageCount);
+      for (OutstandingPublish outstandingPublish : outstandingBatch.outstandingPublishes) {
+        pubsubMessagesList.add(outstandingPublish.messageWrapper.getPubsubMessage());
+      }
+      future =
+          publisherStub
+              .publishCallable()
+              .futureCall(
+                  PublishRequest.newBuilder()
+                      .setTopic(topicName)
+                      .addAllMessages(pubsubMessagesList)
+                      .build(),
+                  context);
+    }
+    ApiFutures.addCallback(
+        future,
+        new ApiFutureCallback<PublishResponse>() {
+          @Override
+          public void onSuccess(PublishResponse result) {
+            onPublishCompleted(true);
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            onPublishCompleted(false);
+          }
+
+          private void onPublishCompleted(boolean success) {
+            inflightPublishRequests.decrementAndGet();
+            if (channel >= 0) {
+              channelRouter.release(channel);
+            }
+            Duration latency = Duration.ofNanos(System.nanoTime() - startNanos);
+            stats.recordPublishLatency(latency.toMillis());
+            batchingPolicy.onPublishCompleted(messageCount, batchBytes, latency, success);
+          }
+        },
+        directExecutor());
+    return future;
+  }
+
+  /**
+   * How long to wait before sending again a batch with an ordering key that failed with {@code
+   * error} on its {@code attempt}-th attempt, when several batches of a key may be in flight, or
+   * null if it fails. Like the retries of the stub for ordered batches, they never run out.
+   */
+  private Duration getPipelinedRetryDelay(Throwable error, int attempt) {
+    if (!(error instanceof ApiException) || !((ApiException) error).isRetryable()) {
+      return null;
+    }
+    double delayMillis =
+        pipelinedRetrySettings.getInitialRetryDelayDuration().toMillis()
+            * Math.pow(pipelinedRetrySettings.getRetryDelayMultiplier(), attempt - 1);
+    return Duration.ofMillis(
+        (long)
+            Math.min(delayMillis, pipelinedRetrySettings.getMaxRetryDelayDuration().toMillis()));
+  }
+
+  private void publishOutstandingBatch(OutstandingBatch outstandingBatch) {
+    publishOutstandingBatch(outstandingBatch, null);
+  }
+
+  /**
+   * Publishes a batch, as part of a packed request if {@code packedResponse} is not null, in which
+   * case the batch has an ordering key and {@code packedResponse} is its part of the response.
+   */
+  private void publishOutstandingBatch(
+      final OutstandingBatch outstandingBatch, final ApiFuture<PublishResponse> packedResponse) {
+    if (outstandingBatch.size() == 0) {
+      logger.log(Level.WARNING, "Attempted to publish batch with zero messages.");
+      return;
+    }
+
+    loggingUtil.logPublisher(
+        LoggingUtil.SubSystem.PUBLISH_BATCH,
+        Level.FINE,
+        String.format("Attempting to batch publish %d messages", outstandingBatch.size()),
+        outstandingBatch.outstandingPublishes.get(0).messageWrapper);
+
+    final ApiFutureCallback<PublishResponse> futureCallback =
+        new ApiFutureCallback<PublishResponse>() {
+          @Override
+          public void onSuccess(PublishResponse result) {
+            if (!outstandingBatch.complete()) {
+              return;
+            }
+            try {
+              if (result == null || result.getMessageIdsCount() != outstandingBatch.size()) {
+                outstandingBatch.onFailure(
+                    new IllegalStateException(
+                        String.format(
+                            "The publish result count %s does not match "
+                                + "the expected %s results. Please contact Cloud Pub/Sub support "
+                                + "if this frequently occurs",
+                            result.getMessageIdsCount(), outstandingBatch.size())));
+              } else {
+                outstandingBatch.onSuccess(result.getMessageIdsList());
+                if (outstandingBatch.orderingKey != null
+                    && !outstandingBatch.orderingKey.isEmpty()) {
+                  publishAllWithoutInflightForKey(outstandingBatch.orderingKey);
+                }
+              }
+            } finally {
+              messagesWaiter.incrementPendingCount(-outstandingBatch.size());
+            }
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            if (!outstandingBatch.complete()) {
+              return;
+            }
+            try {
+              if (outstandingBatch.orderingKey != null && !outstandingBatch.orderingKey.isEmpty()) {
+                BatchShard shard = getBatchShard(outstandingBatch.orderingKey);
+                shard.lock.lock();
+                try {
+                  MessagesBatch messagesBatch =
+                      shard.messagesBatches.get(outstandingBatch.orderingKey);
+                  if (messagesBatch != null) {
+                    // Batches of the key in flight fail with the same error when several may be.
+                    Throwable cause =
+                        pipelinedRetrySettings != null
+                            ? t
+                            : SequentialExecutorService.CallbackExecutor.CANCELLATION_EXCEPTION;
+                    for (OutstandingPublish outstanding : messagesBatch.messages) {
+                      stats.recordFailed(1, outstanding.messageSize);
+                      outstanding.publishResult.setException(cause);
                     }
-                    messagesBatches.remove(outstandingBatch.orderingKey);
+                    shard.removeBatch(outstandingBatch.orderingKey);
                   }
                 } finally {
-                  messagesBatchLock.unlock();
+                  shard.lock.unlock();
                 }
               }
               outstandingBatch.onFailure(t);
@@ -569,6 +1971,8 @@ public class Publisher implements PublisherInterface {
           }
         };
 
+    outstandingBatch.callback = futureCallback;
+    sentBatches.add(outstandingBatch);
     ApiFuture<PublishResponse> future;
     Executor callbackExecutor = directExecutor();
     if (outstandingBatch.orderingKey == null || outstandingBatch.orderingKey.isEmpty()) {
@@ -580,7 +1984,15 @@ public class Publisher implements PublisherInterface {
               outstandingBatch.orderingKey,
               new Callable<ApiFuture<PublishResponse>>() {
                 public ApiFuture<PublishResponse> call() {
-                  return publishCall(outstandingBatch);
+                  if (packedResponse != null) {
+                    return packedResponse;
+                  }
+                  try {
+                    return publishCall(outstandingBatch);
+                  } finally {
+                    // The call is made again if the batch is retried.
+                    outstandingBatch.attempt++;
+                  }
                 }
               });
       callbackExecutor = this.executor;
@@ -588,13 +2000,111 @@ public class Publisher implements PublisherInterface {
     ApiFutures.addCallback(future, futureCallback, callbackExecutor);
   }
 
+  /**
+   * Batches of different ordering keys sent in one publish request. Each batch is still submitted
+   * for its key, and the task of its key waits for its part of the response, so that only the keys
+   * in the request wait for it, and a failure pauses each of them as if its batch had been sent on
+   * its own.
+   */
+  private final class PackedRequest {
+    private final List<OutstandingBatch> batches = new ArrayList<>();
+    private final List<SettableApiFuture<PublishResponse>> responses = new ArrayList<>();
+    private int messageCount = 0;
+    private int batchSizeBytes = topicNameSize;
+
+    /** Whether {@code batch} fits in the request, which always holds at least one batch. */
+    private boolean canAdd(OutstandingBatch batch) {
+      return batches.isEmpty()
+          || (messageCount + batch.size() <= getMaxRequestElementCount()
+              && batchSizeBytes + batch.batchSizeBytes - topicNameSize <= getMaxRequestBytes());
+    }
+
+    /** Adds {@code batch}, and returns its part of the response of the request. */
+    private ApiFuture<PublishResponse> add(OutstandingBatch batch) {
+      SettableApiFuture<PublishResponse> response = SettableApiFuture.create();
+      batches.add(batch);
+      responses.add(response);
+      messageCount += batch.size();
+      batchSizeBytes += batch.batchSizeBytes - topicNameSize;
+      return response;
+    }
+
+    private void send() {
+      List<OutstandingPublish> outstandingPublishes = new ArrayList<>(messageCount);
+      for (OutstandingBatch batch : batches) {
+        outstandingPublishes.addAll(batch.outstandingPublishes);
+        // Each batch is recorded and traced as if it had been sent on its own, and its span ends
+        // when its part of the response completes it.
+        stats.recordBatchSent(batch.size(), batch.batchSizeBytes);
+        List<PubsubMessageWrapper> messageWrappers = batch.getMessageWrappers();
+        for (PubsubMessageWrapper messageWrapper : messageWrappers) {
+          tracer.endPublishBatchingSpan(messageWrapper);
+        }
+        batch.publishRpcSpan = tracer.startPublishRpcSpan(topicNameObject, messageWrappers);
+      }
+      // A request for a single key is sent as the batch of that key would be.
+      final OutstandingBatch request =
+          new OutstandingBatch(
+              outstandingPublishes,
+              batchSizeBytes,
+              batches.size() == 1 ? batches.get(0).orderingKey : "");
+      request.packed = true;
+      ApiFuture<PublishResponse> future;
+      try {
+        future = publishCall(request);
+      } catch (RuntimeException e) {
+        future = ApiFutures.immediateFailedFuture(e);
+      }
+      ApiFutures.addCallback(
+          future,
+          new ApiFutureCallback<PublishResponse>() {
+            @Override
+            public void onSuccess(PublishResponse result) {
+              if (result == null || result.getMessageIdsCount() != messageCount) {
+                // Each batch reports that the response does not match it.
+                for (SettableApiFuture<PublishResponse> response : responses) {
+                  response.set(PublishResponse.getDefaultInstance());
+                }
+                return;
+              }
+              int start = 0;
+              for (int i = 0; i < batches.size(); i++) {
+                int end = start + batches.get(i).size();
+                responses
+                    .get(i)
+                    .set(
+                        PublishResponse.newBuilder()
+                            .addAllMessageIds(result.getMessageIdsList().subList(start, end))
+                            .build());
+                start = end;
+              }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+              for (SettableApiFuture<PublishResponse> response : responses) {
+                response.setException(t);
+              }
+            }
+          },
+          directExecutor());
+    }
+  }
+
   private final class OutstandingBatch {
     final List<OutstandingPublish> outstandingPublishes;
     final long creationTime;
     int attempt;
     int batchSizeBytes;
     final String orderingKey;
+    // Whether the batch was sent for a high priority message.
+    boolean highPriority = false;
+    // Whether the batch is the request of a PackedRequest, whose batches are recorded and traced
+    // each on its own.
+    boolean packed = false;
     Span publishRpcSpan;
+    ApiFutureCallback<PublishResponse> callback;
+    private final AtomicBoolean completed = new AtomicBoolean(false);
 
     OutstandingBatch(
         List<OutstandingPublish> outstandingPublishes, int batchSizeBytes, String orderingKey) {
@@ -609,21 +2119,50 @@ public class Publisher implements PublisherInterface {
       return outstandingPublishes.size();
     }
 
+    /**
+     * Marks the publish of this batch as completed, returning false if it already was, as when a
+     * shutdown deadline failed it before its response.
+     */
+    private boolean complete() {
+      sentBatches.remove(this);
+      return completed.compareAndSet(false, true);
+    }
+
+    /**
+     * The wrappers of the messages of this batch, copied once so that the tracer, which may go
+     * through them several times, does not look each of them up again.
+     */
     private List<PubsubMessageWrapper> getMessageWrappers() {
-      List<PubsubMessageWrapper> results = new ArrayList<>(outstandingPublishes.size());
+      List<PubsubMessageWrapper> messageWrappers = new ArrayList<>(outstandingPublishes.size());
       for (OutstandingPublish outstandingPublish : outstandingPublishes) {
-        results.add(outstandingPublish.messageWrapper);
+        messageWrappers.add(outstandingPublish.messageWrapper);
+      }
+      return messageWrappers;
+    }
+
+    /** Returns the flow control capacity held by the messages of this batch, all at once. */
+    private void releaseFlowControl() {
+      if (flowController == null) {
+        return;
       }
-      return results;
+      flowController.release(outstandingPublishes.size(), getMessagesBytes());
+    }
+
+    /** The serialized bytes of the messages of this batch. */
+    private long getMessagesBytes() {
+      long messagesBytes = 0;
+      for (OutstandingPublish outstandingPublish : outstandingPublishes) {
+        messagesBytes += outstandingPublish.messageSize;
+      }
+      return messagesBytes;
     }
 
     private void onFailure(Throwable t) {
       tracer.setPublishRpcSpanException(publishRpcSpan, t);
+      releaseFlowControl();
+      stats.recordFailed(outstandingPublishes.size(), getMessagesBytes());
 
       for (OutstandingPublish outstandingPublish : outstandingPublishes) {
-        if (flowController != null) {
-          flowController.release(outstandingPublish.messageSize);
-        }
         outstandingPublish.publishResult.setException(t);
         tracer.endPublisherSpan(outstandingPublish.messageWrapper);
       }
@@ -631,13 +2170,12 @@ public class Publisher implements PublisherInterface {
 
     private void onSuccess(Iterable<String> results) {
       tracer.endPublishRpcSpan(publishRpcSpan);
+      releaseFlowControl();
+      stats.recordPublished(outstandingPublishes.size(), getMessagesBytes());
 
       Iterator<OutstandingPublish> messagesResultsIt = outstandingPublishes.iterator();
       for (String messageId : results) {
         OutstandingPublish nextPublish = messagesResultsIt.next();
-        if (flowController != null) {
-          flowController.release(nextPublish.messageSize);
-        }
         nextPublish.publishResult.set(messageId);
         tracer.setPublisherMessageIdSpanAttribute(nextPublish.messageWrapper, messageId);
         tracer.endPublisherSpan(nextPublish.messageWrapper);
@@ -645,41 +2183,343 @@ public class Publisher implements PublisherInterface {
     }
   }
 
-  private static final class OutstandingPublish {
-    final SettableApiFuture<String> publishResult;
-    final PubsubMessageWrapper messageWrapper;
-    final int messageSize;
-
-    OutstandingPublish(PubsubMessageWrapper messageWrapper) {
-      this.publishResult = SettableApiFuture.create();
-      this.messageWrapper = messageWrapper;
-      this.messageSize =
-          CodedOutputStream.computeMessageSize(
-              PublishRequest.MESSAGES_FIELD_NUMBER, messageWrapper.getPubsubMessage());
+  private static final class OutstandingPublish {
+    static final long NO_LATENCY_BUDGET = Long.MAX_VALUE;
+
+    final SettableApiFuture<String> publishResult;
+    final PubsubMessageWrapper messageWrapper;
+    final int messageSize;
+    // The message encoded as an element of PublishRequest.messages, or null if it is serialized
+    // when its batch is sent.
+    final byte[] encodedMessage;
+    final boolean highPriority;
+    // The longest the message may wait in its batch, or NO_LATENCY_BUDGET.
+    final long latencyBudgetNanos;
+
+    OutstandingPublish(
+        PubsubMessageWrapper messageWrapper,
+        boolean preSerialize,
+        boolean highPriority,
+        long latencyBudgetNanos) {
+      this.publishResult = SettableApiFuture.create();
+      this.messageWrapper = messageWrapper;
+      this.highPriority = highPriority;
+      this.latencyBudgetNanos = latencyBudgetNanos;
+      if (preSerialize) {
+        this.encodedMessage =
+            SerializedPublishRequest.encodeMessage(messageWrapper.getPubsubMessage());
+        this.messageSize = encodedMessage.length;
+      } else {
+        this.encodedMessage = null;
+        this.messageSize =
+            CodedOutputStream.computeMessageSize(
+                PublishRequest.MESSAGES_FIELD_NUMBER, messageWrapper.getPubsubMessage());
+      }
+    }
+  }
+
+  /**
+   * A message in the publish buffer that has not been admitted to a batch yet. The message itself
+   * is only held in memory while it is being admitted without waiting.
+   */
+  private static final class BufferedPublish {
+    final long position;
+    // Null for messages recovered from a previous publisher.
+    final SettableApiFuture<String> publishResult;
+    final PubsubMessage message;
+
+    BufferedPublish(long position, SettableApiFuture<String> publishResult, PubsubMessage message) {
+      this.position = position;
+      this.publishResult = publishResult;
+      this.message = message;
+    }
+  }
+
+  /**
+   * Sends batches at the thresholds of the {@link BatchingSettings} configured on a {@link
+   * Publisher}, when no {@link BatchingPolicy} is set.
+   */
+  private static final class BatchingSettingsPolicy implements BatchingPolicy {
+    private final long elementCountThreshold;
+    private final long requestByteThreshold;
+    private final Duration delayThreshold;
+
+    BatchingSettingsPolicy(BatchingSettings batchingSettings) {
+      this.elementCountThreshold = batchingSettings.getElementCountThreshold();
+      this.requestByteThreshold = batchingSettings.getRequestByteThreshold();
+      this.delayThreshold = batchingSettings.getDelayThresholdDuration();
+    }
+
+    @Override
+    public long getElementCountThreshold() {
+      return elementCountThreshold;
+    }
+
+    @Override
+    public long getRequestByteThreshold() {
+      return requestByteThreshold;
+    }
+
+    @Override
+    public Duration getDelayThreshold() {
+      return delayThreshold;
+    }
+  }
+
+  /**
+   * Raises the thresholds of the publisher's batching policy to the limits of the API while publish
+   * requests are waiting for the request limit, so that the waiting batches are larger rather than
+   * more numerous.
+   */
+  private static final class RequestLimitedBatchingPolicy implements BatchingPolicy {
+    private final BatchingPolicy delegate;
+    private final PublishRequestLimiter requestLimiter;
+
+    RequestLimitedBatchingPolicy(BatchingPolicy delegate, PublishRequestLimiter requestLimiter) {
+      this.delegate = delegate;
+      this.requestLimiter = requestLimiter;
+    }
+
+    @Override
+    public long getElementCountThreshold() {
+      long threshold = delegate.getElementCountThreshold();
+      return requestLimiter.isSaturated()
+          ? Math.max(threshold, getApiMaxRequestElementCount())
+          : threshold;
+    }
+
+    @Override
+    public long getRequestByteThreshold() {
+      long threshold = delegate.getRequestByteThreshold();
+      return requestLimiter.isSaturated()
+          ? Math.max(threshold, getApiMaxRequestBytes())
+          : threshold;
+    }
+
+    @Override
+    public Duration getDelayThreshold() {
+      return delegate.getDelayThreshold();
+    }
+
+    @Override
+    public void onPublishStarted(int messageCount, long batchBytes, int inflightRequests) {
+      delegate.onPublishStarted(messageCount, batchBytes, inflightRequests);
+    }
+
+    @Override
+    public void onPublishCompleted(
+        int messageCount, long batchBytes, Duration latency, boolean success) {
+      delegate.onPublishCompleted(messageCount, batchBytes, latency, success);
+    }
+  }
+
+  /** The batching settings configured on this {@code Publisher}. */
+  public BatchingSettings getBatchingSettings() {
+    return batchingSettings;
+  }
+
+  /**
+   * Schedules immediate publishing of any outstanding messages and waits until all are processed.
+   *
+   * <p>Sends remaining outstanding messages and prevents future calls to publish. This method
+   * should be invoked prior to deleting the {@link Publisher} object in order to ensure that no
+   * pending messages are lost.
+   */
+  public void shutdown() {
+    Preconditions.checkState(
+        !shutdown.getAndSet(true), "Cannot shut down a publisher already shut-down.");
+    if (currentAlarmFuture != null && activeAlarm.getAndSet(false)) {
+      currentAlarmFuture.cancel(false);
+    }
+    publishAllOutstanding();
+    messagesWaiter.waitComplete();
+    if (publishBuffer != null) {
+      publishBuffer.close();
+    }
+    backgroundResources.shutdown();
+  }
+
+  /**
+   * Schedules immediate publishing of any outstanding messages, and shuts down the publisher once
+   * they are published, without blocking.
+   *
+   * <p>The batches of all ordering keys are sent at once. If messages are still not published when
+   * {@code deadline} passes, including messages waiting for flow control, they fail with a {@link
+   * TimeoutException}, the publisher is shut down anyway, and the returned future fails with a
+   * {@link TimeoutException} too. Messages kept in the publish buffer are not removed from it, so
+   * that the next publisher using its directory publishes them.
+   *
+   * @param deadline how long to wait for outstanding messages to be published
+   * @return a future that completes once the publisher is shut down
+   */
+  @BetaApi
+  public ApiFuture<Void> shutdownAsync(final Duration deadline) {
+    Preconditions.checkState(
+        !shutdown.getAndSet(true), "Cannot shut down a publisher already shut-down.");
+    if (currentAlarmFuture != null && activeAlarm.getAndSet(false)) {
+      currentAlarmFuture.cancel(false);
+    }
+    final SettableApiFuture<Void> shutdownFuture = SettableApiFuture.create();
+    // Set by whichever comes first, the deadline or the publish of all messages.
+    final AtomicBoolean shutdownStarted = new AtomicBoolean(false);
+    final ScheduledFuture<?> deadlineFuture =
+        executor.schedule(
+            new Runnable() {
+              @Override
+              public void run() {
+                if (shutdownStarted.getAndSet(true)) {
+                  return;
+                }
+                TimeoutException exception =
+                    new TimeoutException(
+                        String.format(
+                            "The publisher of %s was shut down before the message was published, "
+                                + "as its shutdown deadline of %s passed.",
+                            topicName, deadline));
+                failOutstandingPublishes(exception);
+                completeShutdown(shutdownFuture, exception);
+              }
+            },
+            deadline.toNanos(),
+            TimeUnit.NANOSECONDS);
+    publishAllOutstanding();
+    ApiFutures.addCallback(
+        messagesWaiter.whenComplete(),
+        new ApiFutureCallback<Void>() {
+          @Override
+          public void onSuccess(Void result) {
+            if (!shutdownStarted.getAndSet(true)) {
+              deadlineFuture.cancel(false);
+              completeShutdown(shutdownFuture, null);
+            }
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            // Not reached, since the future never fails.
+          }
+        },
+        directExecutor());
+    return shutdownFuture;
+  }
+
+  /**
+   * Shuts down {@code publishers} concurrently, as {@link #shutdownAsync(Duration)} does. The
+   * returned future completes once all of them are shut down, and fails if any of them missed the
+   * deadline.
+   */
+  @BetaApi
+  public static ApiFuture<Void> shutdownAllAsync(
+      Iterable<Publisher> publishers, Duration deadline) {
+    List<ApiFuture<Void>> shutdownFutures = new ArrayList<>();
+    for (Publisher publisher : publishers) {
+      shutdownFutures.add(publisher.shutdownAsync(deadline));
+    }
+    final SettableApiFuture<Void> allShutdown = SettableApiFuture.create();
+    final AtomicInteger remaining = new AtomicInteger(shutdownFutures.size());
+    final AtomicReference<Throwable> firstFailure = new AtomicReference<>();
+    if (shutdownFutures.isEmpty()) {
+      allShutdown.set(null);
+    }
+    for (ApiFuture<Void> shutdownFuture : shutdownFutures) {
+      ApiFutures.addCallback(
+          shutdownFuture,
+          new ApiFutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+              onShutdown();
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+              firstFailure.compareAndSet(null, t);
+              onShutdown();
+            }
+
+            private void onShutdown() {
+              if (remaining.decrementAndGet() == 0) {
+                if (firstFailure.get() == null) {
+                  allShutdown.set(null);
+                } else {
+                  allShutdown.setException(firstFailure.get());
+                }
+              }
+            }
+          },
+          directExecutor());
+    }
+    return allShutdown;
+  }
+
+  /**
+   * Fails the messages not yet published, once the shutdown deadline passed. Messages waiting for
+   * flow control fail first, so that the capacity released by the failed batches admits none of
+   * them. Batches not sent yet, as those opened by messages admitted from the publish buffer, are
+   * failed without being sent.
+   */
+  private void failOutstandingPublishes(Throwable t) {
+    if (flowController != null) {
+      flowController.close(t);
+    }
+    List<OutstandingBatch> unsentBatches = new ArrayList<>();
+    for (BatchShard shard : batchShards) {
+      shard.lock.lock();
+      try {
+        for (MessagesBatch batch : shard.messagesBatches.values()) {
+          if (!batch.isEmpty()) {
+            unsentBatches.add(
+                new OutstandingBatch(batch.messages, batch.getBatchedBytes(), batch.orderingKey));
+            batch.reset();
+          }
+        }
+        shard.messagesBatches.clear();
+        shard.batchDeadlines.clear();
+        shard.compactBatches();
+      } finally {
+        shard.lock.unlock();
+      }
+    }
+    for (OutstandingBatch batch : unsentBatches) {
+      try {
+        batch.onFailure(t);
+      } finally {
+        messagesWaiter.incrementPendingCount(-batch.size());
+      }
+    }
+    for (OutstandingBatch batch : new ArrayList<>(sentBatches)) {
+      batch.callback.onFailure(t);
+    }
+    List<BufferedPublish> remainingBufferedPublishes;
+    synchronized (bufferedPublishes) {
+      remainingBufferedPublishes = new ArrayList<>(bufferedPublishes);
+      bufferedPublishes.clear();
+    }
+    for (BufferedPublish bufferedPublish : remainingBufferedPublishes) {
+      if (bufferedPublish.publishResult != null) {
+        bufferedPublish.publishResult.setException(t);
+      }
+      messagesWaiter.incrementPendingCount(-1);
+    }
+  }
+
+  private void completeShutdown(SettableApiFuture<Void> shutdownFuture, Throwable t) {
+    if (publishBuffer != null) {
+      publishBuffer.close();
+    }
+    backgroundResources.shutdown();
+    if (t == null) {
+      shutdownFuture.set(null);
+    } else {
+      shutdownFuture.setException(t);
     }
-  }
-
-  /** The batching settings configured on this {@code Publisher}. */
-  public BatchingSettings getBatchingSettings() {
-    return batchingSettings;
   }
 
   /**
-   * Schedules immediate publishing of any outstanding messages and waits until all are processed.
-   *
-   * <p>Sends remaining outstanding messages and prevents future calls to publish. This method
-   * should be invoked prior to deleting the {@link Publisher} object in order to ensure that no
-   * pending messages are lost.
+   * Returns true if no messages are waiting to be published and no ordering key is paused after a
+   * failure, so that shutting down the publisher neither blocks nor loses state.
    */
-  public void shutdown() {
-    Preconditions.checkState(
-        !shutdown.getAndSet(true), "Cannot shut down a publisher already shut-down.");
-    if (currentAlarmFuture != null && activeAlarm.getAndSet(false)) {
-      currentAlarmFuture.cancel(false);
-    }
-    publishAllOutstanding();
-    messagesWaiter.waitComplete();
-    backgroundResources.shutdown();
+  boolean isIdle() {
+    return messagesWaiter.pendingCount() == 0 && !sequentialExecutor.hasKeysWithErrors();
   }
 
   /**
@@ -736,6 +2576,23 @@ public class Publisher implements PublisherInterface {
     return new Builder(topicName);
   }
 
+  /**
+   * Receives notifications when the flow control of a {@link Publisher} becomes saturated or
+   * unsaturated, so that upstream sources can pause instead of blocking in {@code publish}.
+   * Notifications are delivered on the publisher's executor, in order.
+   */
+  @BetaApi
+  public interface FlowControlSaturationListener {
+    /** Called when a message could not be admitted immediately because a limit was reached. */
+    void onSaturated();
+
+    /**
+     * Called when no publish is waiting for flow control and the outstanding messages and bytes
+     * have dropped to half of their limits or below.
+     */
+    void onUnsaturated();
+  }
+
   /** A builder of {@link Publisher}s. */
   public static final class Builder {
     static final Duration MIN_TOTAL_TIMEOUT = Duration.ofSeconds(10);
@@ -778,7 +2635,17 @@ public class Publisher implements PublisherInterface {
             .setExecutorThreadCount(THREADS_PER_CPU * Runtime.getRuntime().availableProcessors())
             .build();
     static final boolean DEFAULT_ENABLE_COMPRESSION = false;
+    static final boolean DEFAULT_ENABLE_MESSAGE_PRE_SERIALIZATION = false;
     static final long DEFAULT_COMPRESSION_BYTES_THRESHOLD = 240L;
+    static final boolean DEFAULT_ENABLE_PAYLOAD_COMPRESSION = false;
+    static final long DEFAULT_PAYLOAD_COMPRESSION_BYTES_THRESHOLD = 1024L;
+    static final int DEFAULT_BATCHING_SHARD_COUNT = 1;
+    static final int DEFAULT_MAX_OUTSTANDING_PUBLISH_REQUESTS = 0;
+    static final int DEFAULT_ADAPTIVE_MAX_OUTSTANDING_PUBLISH_REQUESTS = 100;
+    static final int DEFAULT_PUBLISH_BUFFER_SEGMENT_BYTES = 64 * 1024 * 1024;
+    static final int DEFAULT_MAX_OUTSTANDING_BATCHES_PER_ORDERING_KEY = 1;
+    static final boolean DEFAULT_ENABLE_VIRTUAL_THREADS = false;
+    private static final String VIRTUAL_THREAD_NAME_PREFIX = "pubsub-publisher";
 
     String topicName;
     private String endpoint = null;
@@ -790,6 +2657,11 @@ public class Publisher implements PublisherInterface {
     RetrySettings retrySettings = DEFAULT_RETRY_SETTINGS;
 
     private boolean enableMessageOrdering = DEFAULT_ENABLE_MESSAGE_ORDERING;
+    private int maxOutstandingBatchesPerOrderingKey =
+        DEFAULT_MAX_OUTSTANDING_BATCHES_PER_ORDERING_KEY;
+    private Duration pausedOrderingKeyExpiration = Duration.ZERO;
+    private boolean enableCrossKeyBatching = false;
+    private ApiClock clock = NanoClock.getDefaultClock();
 
     private TransportChannelProvider channelProvider =
         TopicAdminSettings.defaultGrpcTransportProviderBuilder().setChannelsPerCpu(1).build();
@@ -798,6 +2670,7 @@ public class Publisher implements PublisherInterface {
     private HeaderProvider internalHeaderProvider =
         TopicAdminSettings.defaultApiClientHeaderProviderBuilder().build();
     ExecutorProvider executorProvider = DEFAULT_EXECUTOR_PROVIDER;
+    private boolean enableVirtualThreads = DEFAULT_ENABLE_VIRTUAL_THREADS;
     private CredentialsProvider credentialsProvider =
         TopicAdminSettings.defaultCredentialsProviderBuilder().build();
 
@@ -810,11 +2683,44 @@ public class Publisher implements PublisherInterface {
         };
 
     private boolean enableCompression = DEFAULT_ENABLE_COMPRESSION;
+    private boolean enableMessagePreSerialization = DEFAULT_ENABLE_MESSAGE_PRE_SERIALIZATION;
     private long compressionBytesThreshold = DEFAULT_COMPRESSION_BYTES_THRESHOLD;
+    private boolean enablePayloadCompression = DEFAULT_ENABLE_PAYLOAD_COMPRESSION;
+    private long payloadCompressionBytesThreshold = DEFAULT_PAYLOAD_COMPRESSION_BYTES_THRESHOLD;
+
+    private Duration deduplicationWindow = null;
+    private int deduplicationMaxEntries = 0;
+    private ApiFunction<PubsubMessage, String> deduplicationKeyFunction = null;
 
     private boolean enableOpenTelemetryTracing = false;
     private OpenTelemetry openTelemetry = null;
 
+    private int batchingShardCount = DEFAULT_BATCHING_SHARD_COUNT;
+
+    private FlowControlSaturationListener flowControlSaturationListener = null;
+
+    private int maxOutstandingPublishRequests = DEFAULT_MAX_OUTSTANDING_PUBLISH_REQUESTS;
+    private boolean enableAdaptivePublishRequestLimit = false;
+    private boolean enableChannelAffinity = false;
+
+    private ApiFunction<PubsubMessage, Boolean> highPriorityMessageFilter = null;
+    private long highPriorityReservedElementCount = 0;
+    private long highPriorityReservedBytes = 0;
+    private ApiFunction<PubsubMessage, Duration> latencyBudgetFunction = null;
+
+    private double maxPublishMessagesPerSecond = 0;
+    private long maxPublishBytesPerSecond = 0;
+    private double maxOrderingKeyMessagesPerSecond = 0;
+    private long maxOrderingKeyBytesPerSecond = 0;
+
+    private Path publishBufferDirectory = null;
+    private int publishBufferSegmentBytes = DEFAULT_PUBLISH_BUFFER_SEGMENT_BYTES;
+
+    private BatchingPolicy batchingPolicy = null;
+
+    // A stub shared with other publishers, instead of one owned by the publisher.
+    PublisherStub publisherStub = null;
+
     private Builder(String topic) {
       this.topicName = Preconditions.checkNotNull(topic);
     }
@@ -886,6 +2792,20 @@ public class Publisher implements PublisherInterface {
       return this;
     }
 
+    /**
+     * Sets a {@link BatchingPolicy} that decides the element count, request byte and delay
+     * thresholds at which batches are sent, overriding those of the {@link BatchingSettings}. The
+     * flow control settings of the {@link BatchingSettings} still apply.
+     *
+     * <p>For example, {@link AdaptiveBatchingPolicy} sizes batches from the observed publish
+     * latency and message arrival rate.
+     */
+    @BetaApi
+    public Builder setBatchingPolicy(BatchingPolicy batchingPolicy) {
+      this.batchingPolicy = Preconditions.checkNotNull(batchingPolicy);
+      return this;
+    }
+
     /** Configures the Publisher's retry parameters. */
     public Builder setRetrySettings(RetrySettings retrySettings) {
       Preconditions.checkArgument(
@@ -902,12 +2822,108 @@ public class Publisher implements PublisherInterface {
       return this;
     }
 
+    /**
+     * Sets how many batches of messages with the same ordering key may be in flight at the same
+     * time. By default, a batch is only sent once the previous batch for its key has been
+     * published, which limits the throughput of a key to one batch per round trip.
+     *
+     * <p>With more batches in flight, the batches of a key are sent in order on the same channel of
+     * the pool, whether or not {@link #setEnableChannelAffinity(boolean)} is set, and their futures
+     * complete in order. A failed batch is only retried while no later batch of its key has been
+     * sent, and no batch of the key is sent until the retry completes. If a later batch was
+     * already sent, the failed batch is not retried: it fails, the batches of the key sent or
+     * waiting after it fail with the same error, even if the service accepted them, and publishing
+     * for the key stops until {@link Publisher#resumePublish(String)} is called. A transient error
+     * may thus pause a key that would have been retried with a single batch in flight.
+     */
+    @BetaApi
+    public Builder setMaxOutstandingBatchesPerOrderingKey(int maxOutstandingBatchesPerOrderingKey) {
+      Preconditions.checkArgument(maxOutstandingBatchesPerOrderingKey > 0);
+      this.maxOutstandingBatchesPerOrderingKey = maxOutstandingBatchesPerOrderingKey;
+      return this;
+    }
+
+    /**
+     * Sets how long an ordering key stays paused after a publish failure. Once it has passed,
+     * messages with the key are published again as if {@link Publisher#resumePublish(String)} had
+     * been called. An expiration of {@link Duration#ZERO}, the default, means that a key stays
+     * paused until {@code resumePublish} is called, and that the publisher remembers every paused
+     * key until then, which matters when ordering keys are short lived and rarely resumed.
+     */
+    @BetaApi
+    public Builder setPausedOrderingKeyExpiration(Duration expiration) {
+      Preconditions.checkArgument(!expiration.isNegative());
+      this.pausedOrderingKeyExpiration = expiration;
+      return this;
+    }
+
+    /**
+     * Sets whether the batches of different ordering keys may be sent in the same publish request.
+     * The batches of the keys whose delay threshold passes at the same time are then packed into as
+     * few requests as the batching thresholds allow, rather than sent in a request each, which
+     * helps when many ordering keys publish at a low rate. The messages of each key stay in order,
+     * and only the keys in a request wait for it: if it fails, each of its keys is paused as if its
+     * batch had been sent on its own.
+     *
+     * <p>Only takes effect when message ordering is enabled. It cannot be combined with more than
+     * one batch in flight per ordering key, nor with a publish rate per ordering key, for which
+     * {@link #build()} throws an {@link IllegalArgumentException}. A request holding several keys
+     * is not sent on the channel of any of them when channel affinity is enabled. Disabled by
+     * default.
+     */
+    @BetaApi
+    public Builder setEnableCrossKeyBatching(boolean enableCrossKeyBatching) {
+      this.enableCrossKeyBatching = enableCrossKeyBatching;
+      return this;
+    }
+
     /** Gives the ability to set a custom executor to be used by the library. */
     public Builder setExecutorProvider(ExecutorProvider executorProvider) {
       this.executorProvider = Preconditions.checkNotNull(executorProvider);
       return this;
     }
 
+    /**
+     * Gives the ability to run batch sends and callbacks on virtual threads, keeping a single
+     * platform thread for the batching delay and retry backoff. Publishing then starts no pool of
+     * platform threads, and blocking flow control or callbacks only park a virtual thread.
+     *
+     * <p>Virtual threads require Java 21; on older versions the default executor is used. This
+     * option is ignored if a custom executor is set with {@link
+     * #setExecutorProvider(ExecutorProvider)}.
+     */
+    @BetaApi
+    public Builder setEnableVirtualThreads(boolean enableVirtualThreads) {
+      this.enableVirtualThreads = enableVirtualThreads;
+      return this;
+    }
+
+    /** The executor provider to use, taking virtual threads into account. */
+    ExecutorProvider resolveExecutorProvider() {
+      if (!enableVirtualThreads || executorProvider != DEFAULT_EXECUTOR_PROVIDER) {
+        return executorProvider;
+      }
+      final ScheduledExecutorService virtualThreadExecutor =
+          ThreadPerTaskScheduledExecutor.newVirtualThreadExecutor(VIRTUAL_THREAD_NAME_PREFIX);
+      if (virtualThreadExecutor == null) {
+        logger.log(
+            Level.WARNING,
+            "Virtual threads are not supported by this JVM, using the default executor instead.");
+        return executorProvider;
+      }
+      return new ExecutorProvider() {
+        @Override
+        public boolean shouldAutoClose() {
+          return true;
+        }
+
+        @Override
+        public ScheduledExecutorService getExecutor() {
+          return virtualThreadExecutor;
+        }
+      };
+    }
+
     /**
      * Gives the ability to set an {@link ApiFunction} that will transform the {@link PubsubMessage}
      * before it is sent
@@ -946,6 +2962,231 @@ public class Publisher implements PublisherInterface {
       return this;
     }
 
+    /**
+     * Gives the ability to compress the data of each message, rather than each publish request.
+     * Compressed messages stay compressed in Pub/Sub, which reduces the bytes sent and stored, and
+     * are decompressed by the {@link Subscriber} of this library before they are delivered. Other
+     * subscribers, such as push subscriptions or other client libraries, receive the compressed
+     * data with a {@code googclient_payloadcodec} attribute naming its codec.
+     *
+     * <p>The codec is selected per publisher, and so per topic, from samples of how well the data
+     * compresses and how much CPU each codec takes. Data that does not compress is sent as is. The
+     * codecs are DEFLATE at different levels, so they take about as much CPU as {@link
+     * #setEnableCompression(boolean)}, which compresses with gzip; unlike it, they also reduce the
+     * bytes stored and delivered to subscribers.
+     */
+    @BetaApi
+    public Builder setEnablePayloadCompression(boolean enablePayloadCompression) {
+      this.enablePayloadCompression = enablePayloadCompression;
+      return this;
+    }
+
+    /**
+     * Sets the size (in bytes) of message data from which it is compressed. Only takes effect if
+     * setEnablePayloadCompression(true) is also called.
+     */
+    @BetaApi
+    public Builder setPayloadCompressionBytesThreshold(long payloadCompressionBytesThreshold) {
+      Preconditions.checkArgument(payloadCompressionBytesThreshold > 0);
+      this.payloadCompressionBytesThreshold = payloadCompressionBytesThreshold;
+      return this;
+    }
+
+    /**
+     * Publishes each message at most once within {@code window}: publishing a message with the same
+     * key as one published less than {@code window} ago returns the future of the earlier message,
+     * without publishing it again. A message that fails to publish may be published again.
+     *
+     * <p>The keys of at most {@code maxEntries} messages are remembered, the oldest being forgotten
+     * first, which bounds the memory used to a few hundred bytes per entry. Large limits are split
+     * across several locks, each forgetting its own oldest keys first. Messages are keyed by a hash
+     * of their content, unless {@link #setDeduplicationKeyFunction(ApiFunction)} is set. By
+     * default, messages are not deduplicated.
+     */
+    @BetaApi
+    public Builder setDeduplicationWindow(Duration window, int maxEntries) {
+      Preconditions.checkArgument(!window.isNegative() && !window.isZero());
+      Preconditions.checkArgument(maxEntries > 0);
+      this.deduplicationWindow = window;
+      this.deduplicationMaxEntries = maxEntries;
+      return this;
+    }
+
+    /**
+     * Sets the function giving the deduplication key of a message, such as an event ID read from an
+     * attribute. Messages for which it returns null are never deduplicated. Only takes effect if
+     * {@link #setDeduplicationWindow(Duration, int)} is also called.
+     */
+    @BetaApi
+    public Builder setDeduplicationKeyFunction(
+        ApiFunction<PubsubMessage, String> deduplicationKeyFunction) {
+      this.deduplicationKeyFunction = Preconditions.checkNotNull(deduplicationKeyFunction);
+      return this;
+    }
+
+    /**
+     * Gives the ability to serialize each message when it is published, rather than when its batch
+     * is sent. Publish requests are then written to the transport from the serialized messages
+     * without being rebuilt, which reduces the CPU and memory spent sending large batches at the
+     * cost of serializing on the publishing threads.
+     */
+    @BetaApi
+    public Builder setEnableMessagePreSerialization(boolean enableMessagePreSerialization) {
+      this.enableMessagePreSerialization = enableMessagePreSerialization;
+      return this;
+    }
+
+    /**
+     * Limits the number of publish requests in flight at the same time. Batches that are ready
+     * while the limit is reached wait for earlier requests to complete, and the open batches keep
+     * growing up to the request limits of the API. By default, the number of requests is not
+     * limited.
+     */
+    @BetaApi
+    public Builder setMaxOutstandingPublishRequests(int maxOutstandingPublishRequests) {
+      Preconditions.checkArgument(maxOutstandingPublishRequests > 0);
+      this.maxOutstandingPublishRequests = maxOutstandingPublishRequests;
+      return this;
+    }
+
+    /**
+     * Adapts the limit on publish requests in flight to the responses of the service. The limit
+     * grows by about one request per round trip while requests succeed, and is halved when the
+     * service rejects a request with {@code RESOURCE_EXHAUSTED} or {@code DEADLINE_EXCEEDED}. It
+     * never exceeds the value set with {@link #setMaxOutstandingPublishRequests(int)}, or 100 if
+     * none is set.
+     */
+    @BetaApi
+    public Builder setEnableAdaptivePublishRequestLimit(boolean enableAdaptivePublishRequestLimit) {
+      this.enableAdaptivePublishRequestLimit = enableAdaptivePublishRequestLimit;
+      return this;
+    }
+
+    /**
+     * Sets the function choosing the messages that are published with high priority, such as those
+     * with a given attribute. A high priority message is sent right away instead of waiting for its
+     * batch to fill up or for the delay threshold: in a batch of its own if it has no ordering key,
+     * and otherwise in the batch of its ordering key, as it cannot overtake the earlier messages of
+     * its key. When the number of publish requests in flight is limited, high priority batches
+     * without an ordering key are sent before the other waiting batches, and they may use the flow
+     * control capacity set with {@link #setHighPriorityFlowControlReserve(long, long)}. By default,
+     * no message has a high priority.
+     */
+    @BetaApi
+    public Builder setHighPriorityMessageFilter(
+        ApiFunction<PubsubMessage, Boolean> highPriorityMessageFilter) {
+      this.highPriorityMessageFilter = Preconditions.checkNotNull(highPriorityMessageFilter);
+      return this;
+    }
+
+    /**
+     * Reserves part of the flow control limits for high priority messages: other messages are only
+     * admitted while the outstanding messages and bytes stay below the limits minus the reserve.
+     * The reserve must be below the flow control limits, and is ignored if flow control is
+     * disabled. Defaults to no reserve.
+     */
+    @BetaApi
+    public Builder setHighPriorityFlowControlReserve(long elementCount, long bytes) {
+      Preconditions.checkArgument(elementCount >= 0 && bytes >= 0);
+      this.highPriorityReservedElementCount = elementCount;
+      this.highPriorityReservedBytes = bytes;
+      return this;
+    }
+
+    /**
+     * Sets the function giving the latency budget of each message: the longest it may wait in its
+     * batch before it is sent. A batch is sent when the budget of any of its messages runs out, and
+     * otherwise keeps growing until a batching threshold is reached, so that messages that someone
+     * is waiting for are sent promptly while the others still fill up large batches. The function
+     * may read an attribute of the message, or give a budget per ordering key. A null budget, or
+     * one at least as long as the delay threshold, leaves the message to the delay threshold. By
+     * default, messages have no latency budget.
+     */
+    @BetaApi
+    public Builder setLatencyBudgetFunction(
+        ApiFunction<PubsubMessage, Duration> latencyBudgetFunction) {
+      this.latencyBudgetFunction = Preconditions.checkNotNull(latencyBudgetFunction);
+      return this;
+    }
+
+    /**
+     * Limits the rate at which messages are sent, in messages and bytes per second, where 0 leaves
+     * the dimension unlimited. Batches over the rate wait until it allows them, while their
+     * messages still count against flow control, so that bursts are smoothed rather than rejected
+     * by the quotas of the service. Bursts of up to one second of the rate are sent right away. By
+     * default, the rate is not limited.
+     */
+    @BetaApi
+    public Builder setMaxPublishRate(double messagesPerSecond, long bytesPerSecond) {
+      Preconditions.checkArgument(messagesPerSecond >= 0 && bytesPerSecond >= 0);
+      this.maxPublishMessagesPerSecond = messagesPerSecond;
+      this.maxPublishBytesPerSecond = bytesPerSecond;
+      return this;
+    }
+
+    /**
+     * Limits the rate at which the messages of each ordering key are sent, in messages and bytes
+     * per second, where 0 leaves the dimension unlimited. Batches of a key over its rate wait
+     * without holding back other keys. Messages without an ordering key are not limited by it. By
+     * default, the rate of ordering keys is not limited.
+     */
+    @BetaApi
+    public Builder setMaxOrderingKeyPublishRate(double messagesPerSecond, long bytesPerSecond) {
+      Preconditions.checkArgument(messagesPerSecond >= 0 && bytesPerSecond >= 0);
+      this.maxOrderingKeyMessagesPerSecond = messagesPerSecond;
+      this.maxOrderingKeyBytesPerSecond = bytesPerSecond;
+      return this;
+    }
+
+    /**
+     * Chooses the channel of each publish request when the channel provider is a pool of several
+     * channels. The batches of an ordering key are always sent on the same channel, and batches
+     * without an ordering key on the channel with the fewest requests in flight. By default, the
+     * pool chooses the channel, and the batches of a key may be sent on any of them, unless {@link
+     * #setMaxOutstandingBatchesPerOrderingKey(int)} allows several of them in flight.
+     */
+    @BetaApi
+    public Builder setEnableChannelAffinity(boolean enableChannelAffinity) {
+      this.enableChannelAffinity = enableChannelAffinity;
+      return this;
+    }
+
+    /**
+     * Writes the accepted messages to a log in {@code directory} until they are published, so that
+     * the memory used by the publisher stays within its flow control limits while the service is
+     * unreachable, and the messages survive a restart of the process.
+     *
+     * <p>Messages over the flow control limits wait in the log instead of blocking or failing the
+     * publish, and are read back from it as published messages release capacity. A message is
+     * removed from the log once it is published, or once the service rejects it. A message whose
+     * retries run out is kept: without an ordering key, it is published again after the maximum
+     * retry delay, and its future only completes once it is published or rejected; with an
+     * ordering key, its future fails and the message stays in the log, as do the messages a
+     * shutdown deadline failed. Messages left in the log by a previous publisher, for example after
+     * a crash, are published again when the next publisher using the directory is built, so a
+     * message whose future failed this way may still be published later. As the log is not forced
+     * to disk for each message, messages may be lost if the machine itself fails.
+     *
+     * <p>Only one publisher may use a directory at a time. By default, messages are only held in
+     * memory.
+     */
+    @BetaApi
+    public Builder setPublishBufferDirectory(Path publishBufferDirectory) {
+      this.publishBufferDirectory = Preconditions.checkNotNull(publishBufferDirectory);
+      return this;
+    }
+
+    /**
+     * Sets the size of the segment files of the publish buffer, which must be larger than the
+     * largest message published. Defaults to 64 MiB.
+     */
+    @BetaApi
+    public Builder setPublishBufferSegmentBytes(int publishBufferSegmentBytes) {
+      Preconditions.checkArgument(publishBufferSegmentBytes > 0);
+      this.publishBufferSegmentBytes = publishBufferSegmentBytes;
+      return this;
+    }
+
     /**
      * OpenTelemetry will be enabled if setEnableOpenTelemetry is true and and instance of
      * OpenTelemetry has been provied. Warning: traces are subject to change. The name and
@@ -966,174 +3207,205 @@ public class Publisher implements PublisherInterface {
       return this;
     }
 
+    /**
+     * Sets the number of independently locked shards in which messages are batched. By default all
+     * calls to {@code publish} contend on a single lock. With more shards, concurrent publishing
+     * threads accumulate messages into separate batches; messages with the same ordering key always
+     * use the same shard. Messages without an ordering key are spread by publishing thread: each
+     * shard sends its batch once it reaches the batching thresholds, and the partial batches of all
+     * shards are merged once the first of them reaches the delay threshold, or on {@link
+     * Publisher#publishAllOutstanding()}, so that they take as many requests as a single batch.
+     */
+    @BetaApi
+    public Builder setBatchingShardCount(int batchingShardCount) {
+      Preconditions.checkArgument(batchingShardCount > 0);
+      this.batchingShardCount = batchingShardCount;
+      return this;
+    }
+
+    /**
+     * Sets a listener notified when flow control becomes saturated or unsaturated. Only takes
+     * effect if flow control is enabled in the batching settings.
+     */
+    @BetaApi
+    public Builder setFlowControlSaturationListener(
+        FlowControlSaturationListener flowControlSaturationListener) {
+      this.flowControlSaturationListener =
+          Preconditions.checkNotNull(flowControlSaturationListener);
+      return this;
+    }
+
+    /**
+     * Sets a stub to publish through instead of creating one. The stub is not shut down with the
+     * publisher.
+     */
+    Builder setPublisherStub(PublisherStub publisherStub) {
+      this.publisherStub = publisherStub;
+      return this;
+    }
+
+    /** Gives the ability to set a custom clock. */
+    Builder setClock(ApiClock clock) {
+      this.clock = Preconditions.checkNotNull(clock);
+      return this;
+    }
+
     /** Returns the default BatchingSettings used by the client if settings are not provided. */
     public static BatchingSettings getDefaultBatchingSettings() {
       return DEFAULT_BATCHING_SETTINGS;
     }
 
     public Publisher build() throws IOException {
+      // The batches of a key are only packed into requests while a single one may be in flight and
+      // no rate limit per key may hold them back, so that a request never waits for another key.
+      Preconditions.checkArgument(
+          !enableCrossKeyBatching || maxOutstandingBatchesPerOrderingKey == 1,
+          "Cross-key batching cannot be enabled with more than one outstanding batch per ordering"
+              + " key.");
+      Preconditions.checkArgument(
+          !enableCrossKeyBatching
+              || (maxOrderingKeyMessagesPerSecond == 0 && maxOrderingKeyBytesPerSecond == 0),
+          "Cross-key batching cannot be enabled with a publish rate limit per ordering key.");
       return new Publisher(this);
     }
   }
 
-  private static class MessageFlowController {
-    private final Lock lock;
-    private final Long messageLimit;
-    private final Long byteLimit;
-    private final FlowController.LimitExceededBehavior limitBehavior;
-
-    private Long outstandingMessages;
-    private Long outstandingBytes;
-    private LinkedList<CountDownLatch> awaitingMessageAcquires;
-    private LinkedList<CountDownLatch> awaitingBytesAcquires;
+  /**
+   * A partition of the open batches, keyed by ordering key and guarded by its own lock, so that
+   * concurrent publishes on different shards do not contend.
+   */
+  private static final class BatchShard {
+    // The map of batches is only compacted after it has held at least this many batches.
+    private static final int MIN_BATCHES_TO_COMPACT = 1024;
+    private static final int INITIAL_DEADLINES_CAPACITY = 16;
+    private static final Comparator<BatchDeadline> BY_DUE_TIME =
+        new Comparator<BatchDeadline>() {
+          @Override
+          public int compare(BatchDeadline a, BatchDeadline b) {
+            return Long.signum(a.dueNanos - b.dueNanos);
+          }
+        };
 
-    MessageFlowController(
-        Long messageLimit, Long byteLimit, FlowController.LimitExceededBehavior limitBehavior) {
-      this.messageLimit = messageLimit;
-      this.byteLimit = byteLimit;
-      this.limitBehavior = limitBehavior;
-      this.lock = new ReentrantLock();
+    private final Lock lock = new ReentrantLock();
+    // The following are guarded by lock.
+    private Map<String, MessagesBatch> messagesBatches = new HashMap<>();
+    // The deadlines of the open batches, earliest first, so that the alarm only visits those that
+    // are due. Entries of batches sent or made due earlier since are skipped. Without latency
+    // budgets and with the fixed delay of the batching settings, batches are due in the order they
+    // are opened, and a FIFO queue keeps them sorted. A batching policy may shorten the delay
+    // between two batches, so that the later one is due first.
+    private final Queue<BatchDeadline> batchDeadlines;
+    // The most batches held since messagesBatches was last compacted.
+    private int peakBatchCount = 0;
+
+    private BatchShard(boolean sortDeadlines) {
+      batchDeadlines =
+          sortDeadlines
+              ? new PriorityQueue<BatchDeadline>(INITIAL_DEADLINES_CAPACITY, BY_DUE_TIME)
+              : new ArrayDeque<BatchDeadline>();
+    }
 
-      this.outstandingMessages = 0L;
-      this.outstandingBytes = 0L;
+    private void putBatch(String orderingKey, MessagesBatch batch) {
+      messagesBatches.put(orderingKey, batch);
+      peakBatchCount = Math.max(peakBatchCount, messagesBatches.size());
+    }
 
-      this.awaitingMessageAcquires = new LinkedList<CountDownLatch>();
-      this.awaitingBytesAcquires = new LinkedList<CountDownLatch>();
+    private void removeBatch(String orderingKey) {
+      messagesBatches.remove(orderingKey);
+      compactBatches();
     }
 
-    void acquire(long messageSize) throws FlowController.FlowControlException {
-      if (messageSize > byteLimit) {
-        logger.log(
-            Level.WARNING,
-            "Attempted to publish message with byte size > request byte flow control limit.");
-        throw new FlowController.MaxOutstandingRequestBytesReachedException(byteLimit);
+    /**
+     * Copies the map of batches once most of the ordering keys it held are gone, since a HashMap
+     * never shrinks its table: after a burst of short-lived keys, it would otherwise keep the size
+     * of the burst.
+     */
+    private void compactBatches() {
+      if (peakBatchCount >= MIN_BATCHES_TO_COMPACT && messagesBatches.size() < peakBatchCount / 4) {
+        messagesBatches = new HashMap<>(messagesBatches);
+        peakBatchCount = messagesBatches.size();
       }
-      lock.lock();
-      try {
-        if (outstandingMessages >= messageLimit
-            && limitBehavior == FlowController.LimitExceededBehavior.ThrowException) {
-          throw new FlowController.MaxOutstandingElementCountReachedException(messageLimit);
-        }
-        if (outstandingBytes + messageSize >= byteLimit
-            && limitBehavior == FlowController.LimitExceededBehavior.ThrowException) {
-          throw new FlowController.MaxOutstandingRequestBytesReachedException(byteLimit);
-        }
-
-        // We can acquire or we should wait until we can acquire.
-        // Start by acquiring a slot for a message.
-        CountDownLatch messageWaiter = null;
-        while (outstandingMessages >= messageLimit) {
-          if (messageWaiter == null) {
-            // This message gets added to the back of the line.
-            messageWaiter = new CountDownLatch(1);
-            awaitingMessageAcquires.addLast(messageWaiter);
-          } else {
-            // This message already in line stays at the head of the line.
-            messageWaiter = new CountDownLatch(1);
-            awaitingMessageAcquires.set(0, messageWaiter);
-          }
-          lock.unlock();
-          try {
-            messageWaiter.await();
-          } catch (InterruptedException e) {
-            logger.log(Level.WARNING, "Interrupted while waiting to acquire flow control tokens");
-          }
-          lock.lock();
-        }
-        ++outstandingMessages;
-        if (messageWaiter != null) {
-          awaitingMessageAcquires.removeFirst();
-        }
+    }
+  }
 
-        // There may be some surplus messages left; let the next message waiting for a token have
-        // one.
-        if (!awaitingMessageAcquires.isEmpty() && outstandingMessages < messageLimit) {
-          awaitingMessageAcquires.getFirst().countDown();
-        }
+  // Batches are split at the limits of the API even if the thresholds are higher, as a larger
+  // request would fail all of its messages.
+  private long getMaxRequestBytes() {
+    long threshold = batchingPolicy.getRequestByteThreshold();
+    return threshold > 0 ? Math.min(threshold, getApiMaxRequestBytes()) : getApiMaxRequestBytes();
+  }
 
-        // Now acquire space for bytes.
-        CountDownLatch bytesWaiter = null;
-        Long bytesRemaining = messageSize;
-        while (outstandingBytes + bytesRemaining >= byteLimit) {
-          // Take what is available.
-          Long available = byteLimit - outstandingBytes;
-          bytesRemaining -= available;
-          outstandingBytes = byteLimit;
-          if (bytesWaiter == null) {
-            // This message gets added to the back of the line.
-            bytesWaiter = new CountDownLatch(1);
-            awaitingBytesAcquires.addLast(bytesWaiter);
-          } else {
-            // This message already in line stays at the head of the line.
-            bytesWaiter = new CountDownLatch(1);
-            awaitingBytesAcquires.set(0, bytesWaiter);
-          }
-          lock.unlock();
-          try {
-            bytesWaiter.await();
-          } catch (InterruptedException e) {
-            logger.log(Level.WARNING, "Interrupted while waiting to acquire flow control tokens");
-          }
-          lock.lock();
-        }
+  private long getMaxRequestElementCount() {
+    return Math.min(batchingPolicy.getElementCountThreshold(), getApiMaxRequestElementCount());
+  }
 
-        outstandingBytes += bytesRemaining;
-        if (bytesWaiter != null) {
-          awaitingBytesAcquires.removeFirst();
-        }
-        // There may be some surplus bytes left; let the next message waiting for bytes have some.
-        if (!awaitingBytesAcquires.isEmpty() && outstandingBytes < byteLimit) {
-          awaitingBytesAcquires.getFirst().countDown();
-        }
-      } finally {
-        lock.unlock();
-      }
-    }
+  /** The time a batch is due to be sent. */
+  private static final class BatchDeadline {
+    private final MessagesBatch batch;
+    private final long openedNanos;
+    private final long dueNanos;
 
-    private void notifyNextAcquires() {
-      if (!awaitingMessageAcquires.isEmpty()) {
-        CountDownLatch awaitingAcquire = awaitingMessageAcquires.getFirst();
-        awaitingAcquire.countDown();
-      }
-      if (!awaitingBytesAcquires.isEmpty()) {
-        CountDownLatch awaitingAcquire = awaitingBytesAcquires.getFirst();
-        awaitingAcquire.countDown();
-      }
+    private BatchDeadline(MessagesBatch batch) {
+      this.batch = batch;
+      this.openedNanos = batch.openedNanos;
+      this.dueNanos = batch.dueNanos;
     }
 
-    void release(long messageSize) {
-      lock.lock();
-      --outstandingMessages;
-      outstandingBytes -= messageSize;
-      notifyNextAcquires();
-      lock.unlock();
+    /**
+     * Whether the batch of this deadline is still open in {@code shard}, holds its messages and is
+     * due at this time.
+     */
+    private boolean isCurrent(BatchShard shard) {
+      return !batch.isEmpty()
+          && batch.openedNanos == openedNanos
+          && batch.dueNanos == dueNanos
+          && shard.messagesBatches.get(batch.orderingKey) == batch;
     }
   }
 
   private class MessagesBatch {
-    private List<OutstandingPublish> messages;
+    // The initial capacity of the first batch of a key; later batches start with the size of the
+    // previous one, capped by the element count threshold.
+    private static final int INITIAL_CAPACITY = 16;
+
+    // Empty and immutable while the batch has no message, so that keys without messages hold no
+    // array.
+    private List<OutstandingPublish> messages = Collections.emptyList();
+    private int previousBatchSize = 0;
+    private boolean recordFlushes = true;
     private int initialBatchedBytes;
     private int batchedBytes;
     private String orderingKey;
-    private final BatchingSettings batchingSettings;
-
-    private MessagesBatch(
-        BatchingSettings batchingSettings, int initialBatchedBytes, String orderingKey) {
-      this.batchingSettings = batchingSettings;
+    // When the first message of the batch was added.
+    private long openedNanos;
+    // When the batch is due: after the delay threshold, or earlier to meet the latency budget of
+    // one of its messages.
+    private long dueNanos;
+    private boolean dueToLatencyBudget = false;
+    // Whether the delay threshold passed while an earlier batch for the key was in flight.
+    private boolean overdue = false;
+
+    private MessagesBatch(int initialBatchedBytes, String orderingKey) {
       this.initialBatchedBytes = initialBatchedBytes;
       this.orderingKey = orderingKey;
-      reset();
+      this.batchedBytes = initialBatchedBytes;
     }
 
-    private OutstandingBatch popOutstandingBatch() {
+    private OutstandingBatch popOutstandingBatch(PublisherStats.FlushReason flushReason) {
+      if (recordFlushes) {
+        stats.recordFlush(flushReason);
+      }
       OutstandingBatch batch = new OutstandingBatch(messages, batchedBytes, orderingKey);
+      previousBatchSize = messages.size();
       reset();
       return batch;
     }
 
     private void reset() {
-      messages = new LinkedList<>();
+      messages = Collections.emptyList();
       batchedBytes = initialBatchedBytes;
+      overdue = false;
+      dueToLatencyBudget = false;
     }
 
     private boolean isEmpty() {
@@ -1148,23 +3420,46 @@ public class Publisher implements PublisherInterface {
       return messages.size();
     }
 
-    private boolean hasBatchingBytes() {
-      return getMaxBatchBytes() > 0;
-    }
-
-    private long getMaxBatchBytes() {
-      return batchingSettings.getRequestByteThreshold();
+    /** Why the batch is sent when it is due. */
+    private PublisherStats.FlushReason getDueFlushReason() {
+      return dueToLatencyBudget
+          ? PublisherStats.FlushReason.LATENCY_BUDGET
+          : PublisherStats.FlushReason.DELAY;
     }
 
+    /**
+     * Adds a message and returns the batches to send, which is an immutable empty list for most
+     * messages, so that adding them does not allocate.
+     */
     private List<OutstandingBatch> add(OutstandingPublish outstandingPublish) {
-      List<OutstandingBatch> batchesToSend = new ArrayList<>();
+      OutstandingBatch fullBatch = null;
       // Check if the next message makes the current batch exceed the max batch byte size.
       if (!isEmpty()
-          && hasBatchingBytes()
-          && getBatchedBytes() + outstandingPublish.messageSize >= getMaxBatchBytes()) {
-        batchesToSend.add(popOutstandingBatch());
+          && getBatchedBytes() + outstandingPublish.messageSize >= getMaxRequestBytes()) {
+        fullBatch = popOutstandingBatch(PublisherStats.FlushReason.REQUEST_BYTES);
       }
 
+      long delayThresholdNanos = batchingPolicy.getDelayThreshold().toNanos();
+      boolean opensBatch = isEmpty();
+      if (opensBatch) {
+        messages =
+            new ArrayList<>(
+                (int)
+                    Math.min(
+                        Math.max(previousBatchSize, INITIAL_CAPACITY),
+                        getMaxRequestElementCount()));
+        openedNanos = clock.nanoTime();
+        dueNanos = openedNanos + delayThresholdNanos;
+      }
+      // A budget as long as the delay threshold cannot make the batch due any earlier.
+      if (outstandingPublish.latencyBudgetNanos < delayThresholdNanos) {
+        long messageDueNanos =
+            (opensBatch ? openedNanos : clock.nanoTime()) + outstandingPublish.latencyBudgetNanos;
+        if (messageDueNanos - dueNanos < 0) {
+          dueNanos = messageDueNanos;
+          dueToLatencyBudget = true;
+        }
+      }
       messages.add(outstandingPublish);
       batchedBytes += outstandingPublish.messageSize;
 
@@ -1172,14 +3467,22 @@ public class Publisher implements PublisherInterface {
       // immediately.
       // Alternatively if after adding the message we have reached the batch max messages then we
       // have a batch to send.
-      // Note that exceeding {@link Publisher#getApiMaxRequestBytes()} will result in failed
-      // publishes without compression and may yet fail if a request is not sufficiently compressed.
-      if ((hasBatchingBytes() && getBatchedBytes() >= getMaxBatchBytes())
-          || getMessagesCount() == batchingSettings.getElementCountThreshold()) {
-        batchesToSend.add(popOutstandingBatch());
+      // Messages that cannot fit in a request on their own are rejected before they are added.
+      if (getBatchedBytes() >= getMaxRequestBytes()
+          || getMessagesCount() >= getMaxRequestElementCount()) {
+        OutstandingBatch batch =
+            popOutstandingBatch(
+                getMessagesCount() >= getMaxRequestElementCount()
+                    ? PublisherStats.FlushReason.ELEMENT_COUNT
+                    : PublisherStats.FlushReason.REQUEST_BYTES);
+        return fullBatch == null
+            ? Collections.singletonList(batch)
+            : Arrays.asList(fullBatch, batch);
       }
 
-      return batchesToSend;
+      return fullBatch == null
+          ? Collections.<OutstandingBatch>emptyList()
+          : Collections.singletonList(fullBatch);
     }
   }
 }
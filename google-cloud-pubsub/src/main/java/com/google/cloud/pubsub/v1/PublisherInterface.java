@@ -17,7 +17,11 @@
 package com.google.cloud.pubsub.v1;
 
 import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.api.core.BetaApi;
 import com.google.pubsub.v1.PubsubMessage;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * An interface for a Cloud Pub/Sub <a
@@ -52,4 +56,25 @@ public interface PublisherInterface {
    * @return the message ID wrapped in a future.
    */
   ApiFuture<String> publish(PubsubMessage message);
+
+  /**
+   * Schedules the publishing of a group of messages. The future will be returned with the message
+   * IDs, in the order of {@code messages}, on success or an exception if any of the messages failed
+   * to publish. Messages with the same ordering key are published in the order of the list.
+   *
+   * <p>The default implementation publishes the messages one by one through {@link
+   * #publish(PubsubMessage)}. Implementations may instead admit the group to flow control and to
+   * batches at once.
+   *
+   * @param messages the messages to publish.
+   * @return the message IDs wrapped in a future.
+   */
+  @BetaApi
+  default ApiFuture<List<String>> publishAll(List<PubsubMessage> messages) {
+    List<ApiFuture<String>> publishResults = new ArrayList<>(messages.size());
+    for (PubsubMessage message : messages) {
+      publishResults.add(publish(message));
+    }
+    return ApiFutures.allAsList(publishResults);
+  }
 }
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2026 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub.v1;
+
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.api.core.BetaApi;
+import com.google.api.gax.batching.FlowControlSettings;
+import com.google.common.base.Preconditions;
+import com.google.pubsub.v1.PubsubMessage;
+
+/**
+ * A sink that publishes a stream of messages with a {@link Publisher}, requesting messages from
+ * upstream only as fast as they are published.
+ *
+ * <p>The sink follows the subscriber side of the Reactive Streams protocol, as {@code
+ * java.util.concurrent.Flow.Subscriber} does: upstream calls {@link #onSubscribe(Upstream)} once,
+ * then {@link #onNext(PubsubMessage)} at most as many times as the sink requested, then {@link
+ * #onComplete()} or {@link #onError(Throwable)}. A {@code Flow.Subscriber}, or the subscriber of a
+ * reactive library, adapts to it by forwarding each signal.
+ *
+ * <p>The sink keeps at most as many messages outstanding, requested or being published, as the flow
+ * control settings of the publisher allow, or ten batches if flow control is not configured. As
+ * results come back, it requests more messages from upstream once at least a batch of them fits,
+ * and stops requesting while the outstanding bytes are over the flow control limit. Messages are
+ * never buffered by the sink itself.
+ *
+ * <p>The result of each message is delivered to a {@link ResultListener}, in the order the
+ * publishes complete. A message that fails to publish does not end the stream: with message
+ * ordering, the remaining messages of its ordering key fail until {@link
+ * Publisher#resumePublish(String)} is called, while other ordering keys keep being published. Once
+ * upstream completes or fails and all outstanding results are delivered, the listener is told so.
+ */
+@BetaApi
+public final class PublisherSink {
+  private static final long BATCHES_PER_WINDOW = 10;
+
+  /**
+   * The subscription of the sink to upstream, as {@code java.util.concurrent.Flow.Subscription}.
+   */
+  public interface Upstream {
+    /** Requests {@code n} more messages. */
+    void request(long n);
+
+    /** Stops the messages from upstream. */
+    void cancel();
+  }
+
+  /** Receives the results of the messages published by a {@link PublisherSink}. */
+  public interface ResultListener {
+    /** Called once {@code message} is published with {@code messageId}. */
+    void onPublished(PubsubMessage message, String messageId);
+
+    /** Called when {@code message} fails to publish. */
+    void onFailed(PubsubMessage message, Throwable throwable);
+
+    /**
+     * Called once upstream is done and every message has a result. {@code throwable} is the error
+     * upstream failed with, or null if it completed.
+     */
+    void onComplete(Throwable throwable);
+  }
+
+  private final Publisher publisher;
+  private final ResultListener listener;
+  private final long maxOutstandingMessages;
+  private final long maxOutstandingBytes;
+  private final long requestSize;
+
+  private final Object lock = new Object();
+  // Guarded by lock.
+  private Upstream upstream = null;
+  private long pendingDemand = 0;
+  private long outstandingMessages = 0;
+  private long outstandingBytes = 0;
+  private boolean upstreamDone = false;
+  private boolean cancelled = false;
+  private Throwable upstreamError = null;
+  private boolean completed = false;
+
+  // Listener calls are serialized on this lock, so that they never overlap.
+  private final Object listenerLock = new Object();
+
+  private PublisherSink(Publisher publisher, ResultListener listener) {
+    this.publisher = publisher;
+    this.listener = listener;
+    long elementCountThreshold = 1;
+    Long batchElementCount = publisher.getBatchingSettings().getElementCountThreshold();
+    if (batchElementCount != null && batchElementCount > 0) {
+      elementCountThreshold = batchElementCount;
+    }
+    FlowControlSettings flowControl = publisher.getBatchingSettings().getFlowControlSettings();
+    Long maxElementCount = flowControl != null ? flowControl.getMaxOutstandingElementCount() : null;
+    Long maxRequestBytes = flowControl != null ? flowControl.getMaxOutstandingRequestBytes() : null;
+    this.maxOutstandingMessages =
+        maxElementCount != null ? maxElementCount : BATCHES_PER_WINDOW * elementCountThreshold;
+    this.maxOutstandingBytes = maxRequestBytes != null ? maxRequestBytes : Long.MAX_VALUE;
+    this.requestSize = Math.min(elementCountThreshold, maxOutstandingMessages);
+  }
+
+  /** Creates a sink publishing with {@code publisher} and reporting results to {@code listener}. */
+  public static PublisherSink create(Publisher publisher, ResultListener listener) {
+    return new PublisherSink(
+        Preconditions.checkNotNull(publisher), Preconditions.checkNotNull(listener));
+  }
+
+  /** Starts requesting messages from {@code upstream}. Must be called once. */
+  public void onSubscribe(Upstream upstream) {
+    Preconditions.checkNotNull(upstream);
+    synchronized (lock) {
+      if (this.upstream != null) {
+        // As required by the protocol, a second subscription is cancelled.
+        upstream.cancel();
+        return;
+      }
+      this.upstream = upstream;
+    }
+    requestMore();
+  }
+
+  /**
+   * Publishes {@code message}, which must have been requested. The message is handed to {@link
+   * Publisher#publishAsync(PubsubMessage)}, so that upstream is never blocked by flow control.
+   *
+   * <p>A message that was not requested breaks the protocol, which does not let the sink throw:
+   * upstream is cancelled instead, the message fails with an {@link IllegalStateException}, and the
+   * listener completes with that error once the outstanding messages have their results.
+   */
+  public void onNext(final PubsubMessage message) {
+    Preconditions.checkNotNull(message);
+    final long messageBytes = message.getSerializedSize();
+    IllegalStateException violation = null;
+    Upstream upstreamToCancel = null;
+    synchronized (lock) {
+      if (cancelled) {
+        return;
+      }
+      if (pendingDemand > 0) {
+        pendingDemand--;
+        outstandingMessages++;
+        outstandingBytes += messageBytes;
+      } else {
+        violation =
+            new IllegalStateException("Received a message from upstream that was not requested.");
+        upstreamDone = true;
+        cancelled = true;
+        upstreamError = violation;
+        upstreamToCancel = upstream;
+      }
+    }
+    if (violation != null) {
+      if (upstreamToCancel != null) {
+        upstreamToCancel.cancel();
+      }
+      synchronized (listenerLock) {
+        listener.onFailed(message, violation);
+      }
+      completeIfDone();
+      return;
+    }
+
+    final ApiFutureCallback<String> resultCallback =
+        new ApiFutureCallback<String>() {
+          @Override
+          public void onSuccess(String messageId) {
+            synchronized (listenerLock) {
+              listener.onPublished(message, messageId);
+            }
+            onResult(messageBytes);
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            synchronized (listenerLock) {
+              listener.onFailed(message, t);
+            }
+            onResult(messageBytes);
+          }
+        };
+    ApiFuture<ApiFuture<String>> admissionFuture;
+    try {
+      admissionFuture = publisher.publishAsync(message);
+    } catch (RuntimeException e) {
+      // The publisher is shut down.
+      admissionFuture = ApiFutures.immediateFailedFuture(e);
+    }
+    ApiFutures.addCallback(
+        admissionFuture,
+        new ApiFutureCallback<ApiFuture<String>>() {
+          @Override
+          public void onSuccess(ApiFuture<String> publishFuture) {
+            ApiFutures.addCallback(publishFuture, resultCallback, directExecutor());
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            resultCallback.onFailure(t);
+          }
+        },
+        directExecutor());
+  }
+
+  /** Called when upstream fails. The outstanding messages are still published. */
+  public void onError(Throwable throwable) {
+    Preconditions.checkNotNull(throwable);
+    synchronized (lock) {
+      upstreamDone = true;
+      upstreamError = throwable;
+    }
+    completeIfDone();
+  }
+
+  /** Called when upstream has no more messages. */
+  public void onComplete() {
+    synchronized (lock) {
+      upstreamDone = true;
+    }
+    completeIfDone();
+  }
+
+  /**
+   * Cancels upstream, as if it completed. The outstanding messages are still published and their
+   * results delivered, but messages that upstream sends after it is cancelled are ignored.
+   */
+  public void cancel() {
+    Upstream upstreamToCancel;
+    synchronized (lock) {
+      if (upstreamDone) {
+        return;
+      }
+      upstreamDone = true;
+      cancelled = true;
+      upstreamToCancel = upstream;
+    }
+    if (upstreamToCancel != null) {
+      upstreamToCancel.cancel();
+    }
+    completeIfDone();
+  }
+
+  private void onResult(long messageBytes) {
+    synchronized (lock) {
+      outstandingMessages--;
+      outstandingBytes -= messageBytes;
+    }
+    requestMore();
+    completeIfDone();
+  }
+
+  private void requestMore() {
+    Upstream upstreamToRequest;
+    long n;
+    synchronized (lock) {
+      if (upstream == null || upstreamDone || outstandingBytes >= maxOutstandingBytes) {
+        return;
+      }
+      long freeMessages = maxOutstandingMessages - outstandingMessages - pendingDemand;
+      // Demand is requested a batch at a time, unless nothing is in flight to free more.
+      if (freeMessages <= 0
+          || (freeMessages < requestSize && outstandingMessages + pendingDemand > 0)) {
+        return;
+      }
+      n = freeMessages;
+      pendingDemand += n;
+      upstreamToRequest = upstream;
+    }
+    upstreamToRequest.request(n);
+  }
+
+  private void completeIfDone() {
+    Throwable error;
+    synchronized (lock) {
+      if (completed || !upstreamDone || outstandingMessages > 0) {
+        return;
+      }
+      completed = true;
+      error = upstreamError;
+    }
+    synchronized (listenerLock) {
+      listener.onComplete(error);
+    }
+  }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2026 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub.v1;
+
+import com.google.api.core.BetaApi;
+import com.google.auto.value.AutoValue;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A snapshot of the publisher statistics at the time they were requested from the {@link
+ * Publisher}. Counts are totals since the publisher was created.
+ */
+@BetaApi
+@AutoValue
+public abstract class PublisherStats {
+
+  /** Why a batch was sent. */
+  public enum FlushReason {
+    /** The batch reached the element count threshold. */
+    ELEMENT_COUNT,
+    /** The batch reached the request byte threshold. */
+    REQUEST_BYTES,
+    /** The delay threshold elapsed, or a batch for an ordering key was waiting for the previous. */
+    DELAY,
+    /** {@link Publisher#publishAllOutstanding()} was called. */
+    EXPLICIT,
+    /** The publisher was shut down. */
+    SHUTDOWN,
+    /** A high priority message was added to the batch. */
+    PRIORITY,
+    /** The latency budget of a message in the batch ran out before the delay threshold. */
+    LATENCY_BUDGET
+  }
+
+  /**
+   * A snapshot of a distribution of values, in buckets of powers of two. Bucket 0 counts the values
+   * of 0, and bucket {@code i} the values from {@code 2^(i-1)} to {@code 2^i - 1}.
+   */
+  @AutoValue
+  public abstract static class Histogram {
+    /** Number of recorded values. */
+    public abstract long getCount();
+
+    /** Sum of the recorded values. */
+    public abstract long getSum();
+
+    /** Largest recorded value, or 0 if there is none. */
+    public abstract long getMax();
+
+    /** Number of recorded values in each bucket. */
+    public abstract List<Long> getBucketCounts();
+
+    /** Mean of the recorded values, or 0 if there is none. */
+    public double getMean() {
+      return getCount() == 0 ? 0 : (double) getSum() / getCount();
+    }
+
+    /**
+     * An upper bound of the given percentile of the recorded values: the largest value of the
+     * bucket that holds it, capped at the largest recorded value.
+     *
+     * @param percentile a percentile between 0 and 100.
+     */
+    public long getPercentile(double percentile) {
+      long rank = (long) Math.ceil(getCount() * percentile / 100);
+      long seen = 0;
+      List<Long> bucketCounts = getBucketCounts();
+      for (int i = 0; i < bucketCounts.size(); i++) {
+        seen += bucketCounts.get(i);
+        if (seen >= rank && seen > 0) {
+          return Math.min(getMax(), i == 0 ? 0 : (1L << i) - 1);
+        }
+      }
+      return getMax();
+    }
+
+    static Histogram create(long count, long sum, long max, List<Long> bucketCounts) {
+      return new AutoValue_PublisherStats_Histogram(count, sum, max, bucketCounts);
+    }
+  }
+
+  /** Number of messages admitted by flow control and added to a batch. */
+  public abstract long getAcceptedMessages();
+
+  /** Serialized bytes of the messages admitted by flow control and added to a batch. */
+  public abstract long getAcceptedBytes();
+
+  /** Number of successfully published messages. */
+  public abstract long getPublishedMessages();
+
+  /** Serialized bytes of the successfully published messages. */
+  public abstract long getPublishedBytes();
+
+  /**
+   * Number of messages whose publish failed, including those rejected by flow control or because
+   * their ordering key was paused.
+   */
+  public abstract long getFailedMessages();
+
+  /** Serialized bytes of the messages whose publish failed. */
+  public abstract long getFailedBytes();
+
+  /** Number of messages of each batch sent. */
+  public abstract Histogram getBatchMessageCounts();
+
+  /** Serialized bytes of each batch sent. */
+  public abstract Histogram getBatchBytes();
+
+  /** Latency of the publish calls, including retries, in milliseconds. */
+  public abstract Histogram getPublishLatencyMillis();
+
+  /** Number of batches sent for each reason. */
+  public abstract Map<FlushReason, Long> getFlushCounts();
+
+  /** Number of publishes that had to wait for flow control. */
+  public abstract long getFlowControlBlockedCount();
+
+  /** Total time that publishes waited for flow control. */
+  public abstract Duration getFlowControlBlockedTime();
+
+  /** Number of messages currently held against the flow control limits. */
+  public abstract long getOutstandingMessages();
+
+  /** Number of bytes currently held against the flow control limits. */
+  public abstract long getOutstandingBytes();
+
+  /** Number of ordering keys with messages waiting in a batch. */
+  public abstract int getOrderingKeysWithOpenBatches();
+
+  /** Number of ordering keys paused after a failure, until {@link Publisher#resumePublish}. */
+  public abstract int getOrderingKeysWithErrors();
+
+  static Builder newBuilder() {
+    return new AutoValue_PublisherStats.Builder();
+  }
+
+  @AutoValue.Builder
+  abstract static class Builder {
+    abstract Builder setAcceptedMessages(long value);
+
+    abstract Builder setAcceptedBytes(long value);
+
+    abstract Builder setPublishedMessages(long value);
+
+    abstract Builder setPublishedBytes(long value);
+
+    abstract Builder setFailedMessages(long value);
+
+    abstract Builder setFailedBytes(long value);
+
+    abstract Builder setBatchMessageCounts(Histogram value);
+
+    abstract Builder setBatchBytes(Histogram value);
+
+    abstract Builder setPublishLatencyMillis(Histogram value);
+
+    abstract Builder setFlushCounts(Map<FlushReason, Long> value);
+
+    abstract Builder setFlowControlBlockedCount(long value);
+
+    abstract Builder setFlowControlBlockedTime(Duration value);
+
+    abstract Builder setOutstandingMessages(long value);
+
+    abstract Builder setOutstandingBytes(long value);
+
+    abstract Builder setOrderingKeysWithOpenBatches(int value);
+
+    abstract Builder setOrderingKeysWithErrors(int value);
+
+    abstract PublisherStats build();
+  }
+}
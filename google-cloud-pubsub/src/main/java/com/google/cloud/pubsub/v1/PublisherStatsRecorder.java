@@ -0,0 +1,137 @@
+/*
+ * Copyright 2026 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub.v1;
+
+import com.google.cloud.pubsub.v1.PublisherStats.FlushReason;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records the statistics of a {@link Publisher}. Counters are {@link LongAdder}s and histograms are
+ * fixed arrays of atomic buckets, so that recording neither locks nor allocates and can stay
+ * enabled in production.
+ */
+final class PublisherStatsRecorder {
+  private final LongAdder acceptedMessages = new LongAdder();
+  private final LongAdder acceptedBytes = new LongAdder();
+  private final LongAdder publishedMessages = new LongAdder();
+  private final LongAdder publishedBytes = new LongAdder();
+  private final LongAdder failedMessages = new LongAdder();
+  private final LongAdder failedBytes = new LongAdder();
+  private final HistogramRecorder batchMessageCounts = new HistogramRecorder();
+  private final HistogramRecorder batchBytes = new HistogramRecorder();
+  private final HistogramRecorder publishLatencyMillis = new HistogramRecorder();
+  private final LongAdder[] flushCounts = new LongAdder[FlushReason.values().length];
+
+  PublisherStatsRecorder() {
+    for (int i = 0; i < flushCounts.length; i++) {
+      flushCounts[i] = new LongAdder();
+    }
+  }
+
+  void recordAccepted(long messageBytes) {
+    acceptedMessages.increment();
+    acceptedBytes.add(messageBytes);
+  }
+
+  void recordPublished(long messages, long bytes) {
+    publishedMessages.add(messages);
+    publishedBytes.add(bytes);
+  }
+
+  void recordFailed(long messages, long bytes) {
+    failedMessages.add(messages);
+    failedBytes.add(bytes);
+  }
+
+  void recordBatchSent(long messages, long bytes) {
+    batchMessageCounts.record(messages);
+    batchBytes.record(bytes);
+  }
+
+  void recordPublishLatency(long latencyMillis) {
+    publishLatencyMillis.record(latencyMillis);
+  }
+
+  void recordFlush(FlushReason reason) {
+    flushCounts[reason.ordinal()].increment();
+  }
+
+  /** Fills in the statistics recorded here. */
+  PublisherStats.Builder snapshot(PublisherStats.Builder builder) {
+    Map<FlushReason, Long> flushCountsSnapshot = new EnumMap<>(FlushReason.class);
+    for (FlushReason reason : FlushReason.values()) {
+      flushCountsSnapshot.put(reason, flushCounts[reason.ordinal()].sum());
+    }
+    return builder
+        .setAcceptedMessages(acceptedMessages.sum())
+        .setAcceptedBytes(acceptedBytes.sum())
+        .setPublishedMessages(publishedMessages.sum())
+        .setPublishedBytes(publishedBytes.sum())
+        .setFailedMessages(failedMessages.sum())
+        .setFailedBytes(failedBytes.sum())
+        .setBatchMessageCounts(batchMessageCounts.snapshot())
+        .setBatchBytes(batchBytes.snapshot())
+        .setPublishLatencyMillis(publishLatencyMillis.snapshot())
+        .setFlushCounts(Collections.unmodifiableMap(flushCountsSnapshot));
+  }
+
+  /** Records non-negative values in buckets of powers of two. */
+  static final class HistogramRecorder {
+    // Bucket i counts the values whose highest set bit is bit i - 1.
+    private final AtomicLongArray buckets = new AtomicLongArray(Long.SIZE);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long value) {
+      value = Math.max(0, value);
+      buckets.incrementAndGet(
+          Math.min(Long.SIZE - 1, Long.SIZE - Long.numberOfLeadingZeros(value)));
+      sum.add(value);
+      long currentMax = max.get();
+      while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+        currentMax = max.get();
+      }
+    }
+
+    PublisherStats.Histogram snapshot() {
+      List<Long> bucketCounts = new ArrayList<>(buckets.length());
+      long count = 0;
+      for (int i = 0; i < buckets.length(); i++) {
+        long bucketCount = buckets.get(i);
+        bucketCounts.add(bucketCount);
+        count += bucketCount;
+      }
+      // Buckets past the last non-empty one are not reported.
+      int size = bucketCounts.size();
+      while (size > 0 && bucketCounts.get(size - 1) == 0) {
+        size--;
+      }
+      return PublisherStats.Histogram.create(
+          count,
+          sum.sum(),
+          max.get(),
+          Collections.unmodifiableList(new ArrayList<>(bucketCounts.subList(0, size))));
+    }
+  }
+}
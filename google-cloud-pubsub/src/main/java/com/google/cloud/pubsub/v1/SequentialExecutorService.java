@@ -18,21 +18,27 @@ package com.google.cloud.pubsub.v1;
 
 import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
 
+import com.google.api.core.ApiClock;
 import com.google.api.core.ApiFuture;
 import com.google.api.core.ApiFutureCallback;
 import com.google.api.core.ApiFutures;
 import com.google.api.core.BetaApi;
+import com.google.api.core.NanoClock;
 import com.google.api.core.SettableApiFuture;
-import java.util.Collections;
+import com.google.common.base.Preconditions;
+import java.time.Duration;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.Queue;
-import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 interface CancellableRunnable extends Runnable {
   void cancel(Throwable e);
@@ -53,25 +59,51 @@ final class SequentialExecutorService {
    * tasks with the same key sequentially. Tasks with the same key will be run only when its
    * predecessor has been completed while tasks with different keys can be run in parallel.
    */
-  private abstract static class SequentialExecutor<R extends Runnable> {
-    // Maps keys to tasks.
-    protected final Map<String, Queue<R>> tasksByKey;
+  private abstract static class SequentialExecutor {
     protected final Executor executor;
 
     private SequentialExecutor(Executor executor) {
       this.executor = executor;
-      this.tasksByKey = new HashMap<>();
     }
 
+    abstract boolean hasTasksInflight(String key);
+  }
+
+  @BetaApi
+  static class AutoExecutor extends SequentialExecutor {
+    // Maps keys to tasks.
+    private final Map<String, Queue<Runnable>> tasksByKey = new HashMap<>();
+
+    AutoExecutor(Executor executor) {
+      super(executor);
+    }
+
+    @Override
     boolean hasTasksInflight(String key) {
       synchronized (tasksByKey) {
         return tasksByKey.containsKey(key);
       }
     }
 
-    protected void execute(final String key, R task) {
+    /** Runs synchronous {@code Runnable} tasks sequentially. */
+    void submit(final String key, final Runnable task) {
+      execute(
+          key,
+          new Runnable() {
+            @Override
+            public void run() {
+              try {
+                task.run();
+              } finally {
+                callNextTaskAsync(key);
+              }
+            }
+          });
+    }
+
+    private void execute(final String key, Runnable task) {
       synchronized (tasksByKey) {
-        Queue<R> newTasks = tasksByKey.get(key);
+        Queue<Runnable> newTasks = tasksByKey.get(key);
         // If this key is already being handled, add it to the queue and return.
         if (newTasks != null) {
           newTasks.add(task);
@@ -86,10 +118,10 @@ final class SequentialExecutorService {
       callNextTaskAsync(key);
     }
 
-    protected void callNextTaskAsync(final String key) {
+    private void callNextTaskAsync(final String key) {
       boolean executeTask = true;
       synchronized (tasksByKey) {
-        Queue<R> tasks = tasksByKey.get(key);
+        Queue<Runnable> tasks = tasksByKey.get(key);
         if (tasks != null && tasks.isEmpty()) {
           // Only remove the Queue after all tasks were completed
           tasksByKey.remove(key);
@@ -101,9 +133,9 @@ final class SequentialExecutorService {
             new Runnable() {
               @Override
               public void run() {
-                R task = null;
+                Runnable task = null;
                 synchronized (tasksByKey) {
-                  Queue<R> tasks = tasksByKey.get(key);
+                  Queue<Runnable> tasks = tasksByKey.get(key);
                   if (tasks != null && !tasks.isEmpty()) {
                     task = tasks.poll();
                   }
@@ -117,43 +149,115 @@ final class SequentialExecutorService {
     }
   }
 
-  @BetaApi
-  static class AutoExecutor extends SequentialExecutor<Runnable> {
-    AutoExecutor(Executor executor) {
-      super(executor);
-    }
-
-    /** Runs synchronous {@code Runnable} tasks sequentially. */
-    void submit(final String key, final Runnable task) {
-      super.execute(
-          key,
-          new Runnable() {
-            @Override
-            public void run() {
-              try {
-                task.run();
-              } finally {
-                callNextTaskAsync(key);
-              }
-            }
-          });
-    }
-  }
-
   /**
    * Runs asynchronous {@code Callable} tasks sequentially for the same key. If one of the tasks
    * fails, other tasks with the same key that have not been executed will be cancelled.
+   *
+   * <p>Up to {@code maxStartedTasksPerKey} tasks with the same key may be started without having
+   * completed. They are still started one at a time and in order, and their futures complete in
+   * order: if a task fails, the queued tasks and the tasks started after it fail with the same
+   * error whatever their own result, rather than with {@link #CANCELLATION_EXCEPTION} as when tasks
+   * run one at a time. With a {@link RetryPolicy}, a failed task is only run again while no later
+   * task has been started, so that the tasks never run out of order.
+   *
+   * <p>A key only has state while it has tasks queued or started, in a single map entry, so that
+   * the memory used grows with the number of busy keys rather than of all the keys ever seen. A key
+   * whose task failed stays paused until {@link #resumePublish(String)} is called, or until the
+   * paused key expiration, if any, has passed. Expired keys are dropped whenever a key is submitted
+   * to, checked or paused, oldest first.
    */
   @BetaApi
-  static class CallbackExecutor extends SequentialExecutor<CancellableRunnable> {
+  static class CallbackExecutor extends SequentialExecutor {
     static CancellationException CANCELLATION_EXCEPTION =
         new CancellationException(
             "Execution cancelled because executing previous runnable failed.");
 
-    private final Set<String> keysWithErrors = Collections.synchronizedSet(new HashSet<String>());
+    /** Decides whether a task that failed is run again. */
+    interface RetryPolicy {
+      /**
+       * Returns how long to wait before running again a task that failed with {@code error} on its
+       * {@code attempt}-th run, or null if the task fails.
+       */
+      Duration getRetryDelay(Throwable error, int attempt);
+    }
+
+    // The key states are only compacted after the map has held at least this many keys.
+    private static final int MIN_KEYS_TO_COMPACT = 1024;
+
+    private final int maxStartedTasksPerKey;
+    // 0 if paused keys do not expire.
+    private final long pausedKeyExpirationNanos;
+    private final ApiClock clock;
+    // Null if failed tasks are not run again.
+    private final RetryPolicy retryPolicy;
+    private final ScheduledExecutorService retryExecutor;
+
+    // The paused keys and the time they were paused, oldest first. Guarded by itself.
+    private final LinkedHashMap<String, Long> keysWithErrors = new LinkedHashMap<>();
+
+    private final Object lock = new Object();
+    // The following are guarded by lock.
+    // The state of the keys with tasks queued or started.
+    private Map<String, KeyState> keyStates = new HashMap<>();
+    // The most keys held since keyStates was last compacted.
+    private int peakKeyCount = 0;
 
     CallbackExecutor(Executor executor) {
+      this(executor, 1);
+    }
+
+    CallbackExecutor(Executor executor, int maxStartedTasksPerKey) {
+      this(executor, maxStartedTasksPerKey, Duration.ZERO, NanoClock.getDefaultClock());
+    }
+
+    /**
+     * @param pausedKeyExpiration how long a key stays paused after a task failed, before tasks run
+     *     for it again as if {@link #resumePublish(String)} was called, or zero if keys stay
+     *     paused.
+     */
+    CallbackExecutor(
+        Executor executor,
+        int maxStartedTasksPerKey,
+        Duration pausedKeyExpiration,
+        ApiClock clock) {
+      this(executor, maxStartedTasksPerKey, pausedKeyExpiration, clock, null, null);
+    }
+
+    /**
+     * @param retryPolicy decides whether a failed task is run again on {@code executor}. A task is
+     *     only run again if no later task with the same key was started, and it delays the later
+     *     tasks until it completes.
+     */
+    CallbackExecutor(
+        ScheduledExecutorService executor,
+        int maxStartedTasksPerKey,
+        Duration pausedKeyExpiration,
+        ApiClock clock,
+        RetryPolicy retryPolicy) {
+      this(executor, maxStartedTasksPerKey, pausedKeyExpiration, clock, retryPolicy, executor);
+    }
+
+    private CallbackExecutor(
+        Executor executor,
+        int maxStartedTasksPerKey,
+        Duration pausedKeyExpiration,
+        ApiClock clock,
+        RetryPolicy retryPolicy,
+        ScheduledExecutorService retryExecutor) {
       super(executor);
+      Preconditions.checkArgument(!pausedKeyExpiration.isNegative());
+      this.maxStartedTasksPerKey = maxStartedTasksPerKey;
+      this.pausedKeyExpirationNanos = pausedKeyExpiration.toNanos();
+      this.clock = clock;
+      this.retryPolicy = retryPolicy;
+      this.retryExecutor = retryExecutor;
+    }
+
+    @Override
+    boolean hasTasksInflight(String key) {
+      synchronized (lock) {
+        return keyStates.containsKey(key);
+      }
     }
 
     /**
@@ -171,12 +275,14 @@ final class SequentialExecutorService {
      *       <ol>
      *         <li>On success:
      *             <ol>
-     *               <li>Complete the `ApiFuture` by setting the return value.
      *               <li>Call the next task.
+     *               <li>Complete the `ApiFuture` by setting the return value, once the futures of
+     *                   the previous tasks are complete.
      *             </ol>
      *         <li>On Failure:
      *             <ol>
-     *               <li>Fail the `ApiFuture` by setting the exception.
+     *               <li>Fail the `ApiFuture` by setting the exception, once the futures of the
+     *                   previous tasks are complete.
      *               <li>Cancel all tasks in the queue.
      *             </ol>
      *       </ol>
@@ -191,82 +297,355 @@ final class SequentialExecutorService {
       // Step 1: create a future for the user
       final SettableApiFuture<T> future = SettableApiFuture.create();
 
-      if (keysWithErrors.contains(key)) {
+      if (keyHasError(key)) {
         future.setException(CANCELLATION_EXCEPTION);
         return future;
       }
 
       // Step 2: create the CancellableRunnable
-      // Step 3: add the task to queue via `execute`
-      CancellableRunnable task =
-          new CancellableRunnable() {
-            private boolean cancelled = false;
+      // Step 3: add the task to queue
+      synchronized (lock) {
+        KeyState state = keyStates.get(key);
+        if (state == null) {
+          state = new KeyState();
+          keyStates.put(key, state);
+          peakKeyCount = Math.max(peakKeyCount, keyStates.size());
+        }
+        state.tasks.add(new Task<>(key, callable, future, state.lastFuture));
+        state.lastFuture = future;
+      }
+      startTasksAsync(key);
+      return future;
+    }
 
-            @Override
-            public void run() {
-              // the task was cancelled
-              if (cancelled) {
-                return;
-              }
+    /** A task that is run, and completes, in order with the other tasks of its key. */
+    private final class Task<T> implements CancellableRunnable {
+      private final String key;
+      private final Callable<ApiFuture<T>> callable;
+      private final SettableApiFuture<T> future;
+      private final ApiFuture<?> previousFuture;
+      private boolean cancelled = false;
+      // How many times the callable was called.
+      private int attempts = 0;
+      // The rank of the task among the tasks started for its key, set when it is started.
+      private long startIndex;
 
-              try {
-                // Step 4: call the `Callable`
-                ApiFutureCallback<T> callback =
-                    new ApiFutureCallback<T>() {
-                      // Step 5.1: on success
-                      @Override
-                      public void onSuccess(T msg) {
-                        callNextTaskAsync(key);
-                        future.set(msg);
-                      }
-
-                      // Step 5.2: on failure
-                      @Override
-                      public void onFailure(Throwable e) {
-                        future.setException(e);
-                        cancelQueuedTasks(key, CANCELLATION_EXCEPTION);
-                      }
-                    };
-                ApiFutures.addCallback(callable.call(), callback, directExecutor());
-              } catch (Exception e) {
-                cancel(e);
-              }
-            }
+      private Task(
+          String key,
+          Callable<ApiFuture<T>> callable,
+          SettableApiFuture<T> future,
+          ApiFuture<?> previousFuture) {
+        this.key = key;
+        this.callable = callable;
+        this.future = future;
+        this.previousFuture = previousFuture;
+      }
 
-            @Override
-            public void cancel(Throwable e) {
-              this.cancelled = true;
-              future.setException(e);
+      @Override
+      public void run() {
+        // the task was cancelled
+        if (cancelled) {
+          return;
+        }
+
+        attempts++;
+        try {
+          // Step 4: call the `Callable`
+          ApiFutureCallback<T> callback =
+              new ApiFutureCallback<T>() {
+                // Step 5.1: on success
+                @Override
+                public void onSuccess(T msg) {
+                  onTaskCompleted(key);
+                  completeInOrder(previousFuture, future, msg, null);
+                }
+
+                // Step 5.2: on failure
+                @Override
+                public void onFailure(Throwable e) {
+                  if (retryLater(e)) {
+                    return;
+                  }
+                  completeInOrder(previousFuture, future, null, e);
+                  cancelQueuedTasks(key, getCancellationCause(e));
+                  onTaskCompleted(key);
+                }
+              };
+          ApiFuture<T> result = callable.call();
+          if (attempts > 1) {
+            // The later tasks may start now that they would be sent after this one.
+            synchronized (lock) {
+              keyStates.get(key).retrying = false;
             }
-          };
-      execute(key, task);
-      return future;
+            startTasksAsync(key);
+          }
+          ApiFutures.addCallback(result, callback, directExecutor());
+        } catch (Exception e) {
+          cancel(e);
+          cancelQueuedTasks(key, getCancellationCause(e));
+          onTaskCompleted(key);
+        }
+      }
+
+      /**
+       * Runs the task again later and returns true if the retry policy allows it and no later task
+       * of the key has started, so that running it again cannot put it after them. The key starts
+       * no other task until this one has run again.
+       */
+      private boolean retryLater(Throwable e) {
+        if (retryPolicy == null) {
+          return false;
+        }
+        Duration delay = retryPolicy.getRetryDelay(e, attempts);
+        if (delay == null) {
+          return false;
+        }
+        synchronized (lock) {
+          KeyState state = keyStates.get(key);
+          if (state.startedCount != startIndex) {
+            return false;
+          }
+          state.retrying = true;
+        }
+        try {
+          retryExecutor.schedule(this, delay.toNanos(), TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException rejected) {
+          synchronized (lock) {
+            keyStates.get(key).retrying = false;
+          }
+          return false;
+        }
+        return true;
+      }
+
+      @Override
+      public void cancel(Throwable e) {
+        this.cancelled = true;
+        future.setException(e);
+      }
+    }
+
+    /**
+     * The error that tasks queued or started after a task that failed with {@code error} fail
+     * with. Pipelined tasks may have been started after the failed one, so their callers are told
+     * why the key failed rather than that they were cancelled.
+     */
+    private Throwable getCancellationCause(Throwable error) {
+      return maxStartedTasksPerKey > 1 ? error : CANCELLATION_EXCEPTION;
+    }
+
+    /**
+     * Returns true if a task submitted for {@code key} now would be started without waiting for
+     * another task with the same key to complete.
+     */
+    boolean canStartTaskWithoutWaiting(String key) {
+      synchronized (lock) {
+        KeyState state = keyStates.get(key);
+        return state == null
+            || (!state.retrying && state.startedTasks + state.tasks.size() < maxStartedTasksPerKey);
+      }
+    }
+
+    /** The number of keys with tasks queued or started. */
+    int getKeyCount() {
+      synchronized (lock) {
+        return keyStates.size();
+      }
     }
 
     boolean keyHasError(String key) {
-      return keysWithErrors.contains(key);
+      synchronized (keysWithErrors) {
+        expirePausedKeys();
+        return keysWithErrors.containsKey(key);
+      }
+    }
+
+    boolean hasKeysWithErrors() {
+      return getKeysWithErrorsCount() > 0;
+    }
+
+    int getKeysWithErrorsCount() {
+      synchronized (keysWithErrors) {
+        expirePausedKeys();
+        return keysWithErrors.size();
+      }
     }
 
     void resumePublish(String key) {
-      keysWithErrors.remove(key);
+      synchronized (keysWithErrors) {
+        keysWithErrors.remove(key);
+      }
     }
 
     void stopPublish(String key) {
-      keysWithErrors.add(key);
+      synchronized (keysWithErrors) {
+        // Expired keys are dropped as keys are paused, so that the paused keys held are at most
+        // those paused within the expiration, even if they are never checked again.
+        expirePausedKeys();
+        // Removed first, so that a key paused again moves to the end and expires from now.
+        keysWithErrors.remove(key);
+        keysWithErrors.put(key, clock.nanoTime());
+      }
+    }
+
+    // Must be called while holding the lock of keysWithErrors.
+    private void expirePausedKeys() {
+      if (pausedKeyExpirationNanos == 0 || keysWithErrors.isEmpty()) {
+        return;
+      }
+      long nowNanos = clock.nanoTime();
+      Iterator<Long> iterator = keysWithErrors.values().iterator();
+      while (iterator.hasNext()) {
+        if (nowNanos - iterator.next() < pausedKeyExpirationNanos) {
+          break;
+        }
+        iterator.remove();
+      }
+    }
+
+    /**
+     * Starts the queued tasks for {@code key} on the executor while fewer than {@code
+     * maxStartedTasksPerKey} are started. A single runnable starts them, so that they start in
+     * order.
+     */
+    private void startTasksAsync(final String key) {
+      synchronized (lock) {
+        KeyState state = keyStates.get(key);
+        if (state == null || state.starting || !canStartTask(state)) {
+          return;
+        }
+        state.starting = true;
+      }
+      executor.execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              while (true) {
+                Task<?> task;
+                synchronized (lock) {
+                  // The state is kept while it is starting tasks.
+                  KeyState state = keyStates.get(key);
+                  if (!canStartTask(state)) {
+                    state.starting = false;
+                    removeIfIdle(key, state);
+                    return;
+                  }
+                  task = state.tasks.poll();
+                  state.startedTasks++;
+                  task.startIndex = ++state.startedCount;
+                }
+                task.run();
+              }
+            }
+          });
+    }
+
+    // Must be called while holding the lock.
+    private boolean canStartTask(KeyState state) {
+      return !state.tasks.isEmpty()
+          && !state.retrying
+          && state.startedTasks < maxStartedTasksPerKey;
+    }
+
+    /** Marks a started task for {@code key} as completed, and starts the next tasks. */
+    private void onTaskCompleted(String key) {
+      synchronized (lock) {
+        KeyState state = keyStates.get(key);
+        state.startedTasks--;
+        // Only the last started task may be retrying, and it is the one completing if it failed
+        // before it could run again.
+        state.retrying = false;
+        if (removeIfIdle(key, state)) {
+          return;
+        }
+      }
+      startTasksAsync(key);
+    }
+
+    /**
+     * Removes the state of {@code key} if it has no tasks left, and returns whether it did. Must be
+     * called while holding the lock.
+     */
+    private boolean removeIfIdle(String key, KeyState state) {
+      if (!state.tasks.isEmpty() || state.startedTasks > 0 || state.starting) {
+        return false;
+      }
+      keyStates.remove(key);
+      if (peakKeyCount >= MIN_KEYS_TO_COMPACT && keyStates.size() < peakKeyCount / 4) {
+        // A HashMap never shrinks its table, which would otherwise keep the size it reached in the
+        // busiest moment. Copying it once most keys are gone costs O(1) per removal.
+        keyStates = new HashMap<>(keyStates);
+        peakKeyCount = keyStates.size();
+      }
+      return true;
+    }
+
+    /**
+     * Completes {@code future} with {@code result}, or {@code error} if not null, once {@code
+     * previousFuture} is done. Fails it with the cancellation cause of the previous error if {@code
+     * previousFuture} failed.
+     */
+    private <T> void completeInOrder(
+        ApiFuture<?> previousFuture,
+        final SettableApiFuture<T> future,
+        final T result,
+        final Throwable error) {
+      if (previousFuture == null) {
+        complete(future, result, error);
+        return;
+      }
+      ApiFutures.addCallback(
+          previousFuture,
+          new ApiFutureCallback<Object>() {
+            @Override
+            public void onSuccess(Object previousResult) {
+              complete(future, result, error);
+            }
+
+            @Override
+            public void onFailure(Throwable previousError) {
+              future.setException(getCancellationCause(previousError));
+            }
+          },
+          directExecutor());
+    }
+
+    private static <T> void complete(SettableApiFuture<T> future, T result, Throwable error) {
+      if (error != null) {
+        future.setException(error);
+      } else {
+        future.set(result);
+      }
     }
 
     /** Cancels every task in the queue associated with {@code key}. */
     private void cancelQueuedTasks(final String key, Throwable e) {
-      keysWithErrors.add(key);
-      synchronized (tasksByKey) {
-        final Queue<CancellableRunnable> tasks = tasksByKey.get(key);
-        if (tasks != null) {
-          while (!tasks.isEmpty()) {
-            tasks.poll().cancel(e);
+      stopPublish(key);
+      synchronized (lock) {
+        KeyState state = keyStates.get(key);
+        if (state != null) {
+          while (!state.tasks.isEmpty()) {
+            state.tasks.poll().cancel(e);
           }
-          tasksByKey.remove(key);
+          // Tasks submitted after the key is resumed do not wait for the failed ones.
+          state.lastFuture = null;
         }
       }
     }
+
+    /** The tasks of a key with tasks queued or started. */
+    private static final class KeyState {
+      private final Queue<Task<?>> tasks = new LinkedList<>();
+      // The number of tasks started and not completed.
+      private int startedTasks = 0;
+      // The number of tasks ever started.
+      private long startedCount = 0;
+      // Whether the last started task failed and waits to be run again.
+      private boolean retrying = false;
+      // Whether a runnable is starting tasks.
+      private boolean starting = false;
+      // The future of the last task submitted.
+      private ApiFuture<?> lastFuture = null;
+    }
   }
 }
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2026 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub.v1;
+
+import com.google.api.gax.grpc.GrpcCallSettings;
+import com.google.api.gax.rpc.RequestParamsBuilder;
+import com.google.api.gax.rpc.RequestParamsExtractor;
+import com.google.api.gax.rpc.ResourceNameExtractor;
+import com.google.protobuf.CodedOutputStream;
+import com.google.pubsub.v1.PublishRequest;
+import com.google.pubsub.v1.PublishResponse;
+import com.google.pubsub.v1.PubsubMessage;
+import io.grpc.Drainable;
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor;
+import io.grpc.protobuf.ProtoUtils;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link PublishRequest} whose fields were encoded in the protobuf wire format ahead of time.
+ *
+ * <p>Each message is encoded once, when the {@link Publisher} accepts it. Sending a batch then only
+ * writes the already encoded fields to the transport one after the other, instead of building a new
+ * {@link PublishRequest} and walking all of its messages again to serialize it. The encoded fields
+ * are immutable, so retries send the same bytes again.
+ */
+final class SerializedPublishRequest {
+  private static final MethodDescriptor.Marshaller<SerializedPublishRequest> MARSHALLER =
+      new MethodDescriptor.Marshaller<SerializedPublishRequest>() {
+        @Override
+        public InputStream stream(SerializedPublishRequest request) {
+          return new SerializedInputStream(request);
+        }
+
+        @Override
+        public SerializedPublishRequest parse(InputStream stream) {
+          PublishRequest request =
+              ProtoUtils.marshaller(PublishRequest.getDefaultInstance()).parse(stream);
+          List<byte[]> encodedMessages = new ArrayList<>(request.getMessagesCount());
+          for (PubsubMessage message : request.getMessagesList()) {
+            encodedMessages.add(encodeMessage(message));
+          }
+          return new SerializedPublishRequest(
+              request.getTopic(), encodeTopic(request.getTopic()), encodedMessages);
+        }
+      };
+
+  static final MethodDescriptor<SerializedPublishRequest, PublishResponse>
+      PUBLISH_METHOD_DESCRIPTOR =
+          MethodDescriptor.<SerializedPublishRequest, PublishResponse>newBuilder()
+              .setType(MethodDescriptor.MethodType.UNARY)
+              .setFullMethodName("google.pubsub.v1.Publisher/Publish")
+              .setRequestMarshaller(MARSHALLER)
+              .setResponseMarshaller(ProtoUtils.marshaller(PublishResponse.getDefaultInstance()))
+              .setSampledToLocalTracing(true)
+              .build();
+
+  private final String topic;
+  private final byte[] encodedTopic;
+  private final List<byte[]> encodedMessages;
+  private final int serializedSize;
+
+  /**
+   * Creates a request from fields returned by {@link #encodeTopic(String)} and {@link
+   * #encodeMessage(PubsubMessage)}. The arrays are not copied and must not be modified.
+   */
+  SerializedPublishRequest(String topic, byte[] encodedTopic, List<byte[]> encodedMessages) {
+    this.topic = topic;
+    this.encodedTopic = encodedTopic;
+    this.encodedMessages = encodedMessages;
+    int size = encodedTopic.length;
+    for (byte[] encodedMessage : encodedMessages) {
+      size += encodedMessage.length;
+    }
+    this.serializedSize = size;
+  }
+
+  /** Encodes the topic field of a {@link PublishRequest}. */
+  static byte[] encodeTopic(String topic) {
+    byte[] encoded =
+        new byte[CodedOutputStream.computeStringSize(PublishRequest.TOPIC_FIELD_NUMBER, topic)];
+    CodedOutputStream output = CodedOutputStream.newInstance(encoded);
+    try {
+      output.writeString(PublishRequest.TOPIC_FIELD_NUMBER, topic);
+      output.checkNoSpaceLeft();
+    } catch (IOException e) {
+      // Writing to an array of the computed size cannot fail.
+      throw new IllegalStateException(e);
+    }
+    return encoded;
+  }
+
+  /**
+   * Encodes a message as an element of the messages field of a {@link PublishRequest}, including
+   * its tag and length. The size of the result is the size accounted for the message in a batch.
+   */
+  static byte[] encodeMessage(PubsubMessage message) {
+    int size = CodedOutputStream.computeMessageSize(PublishRequest.MESSAGES_FIELD_NUMBER, message);
+    byte[] encoded = new byte[size];
+    CodedOutputStream output = CodedOutputStream.newInstance(encoded);
+    try {
+      output.writeMessage(PublishRequest.MESSAGES_FIELD_NUMBER, message);
+      output.checkNoSpaceLeft();
+    } catch (IOException e) {
+      // Writing to an array of the computed size cannot fail.
+      throw new IllegalStateException(e);
+    }
+    return encoded;
+  }
+
+  static GrpcCallSettings<SerializedPublishRequest, PublishResponse> newGrpcCallSettings() {
+    return GrpcCallSettings.<SerializedPublishRequest, PublishResponse>newBuilder()
+        .setMethodDescriptor(PUBLISH_METHOD_DESCRIPTOR)
+        .setParamsExtractor(
+            new RequestParamsExtractor<SerializedPublishRequest>() {
+              @Override
+              public Map<String, String> extract(SerializedPublishRequest request) {
+                RequestParamsBuilder builder = RequestParamsBuilder.create();
+                builder.add("topic", request.getTopic());
+                return builder.build();
+              }
+            })
+        .setResourceNameExtractor(
+            new ResourceNameExtractor<SerializedPublishRequest>() {
+              @Override
+              public String extract(SerializedPublishRequest request) {
+                return request.getTopic();
+              }
+            })
+        .build();
+  }
+
+  String getTopic() {
+    return topic;
+  }
+
+  int getMessagesCount() {
+    return encodedMessages.size();
+  }
+
+  int getSerializedSize() {
+    return serializedSize;
+  }
+
+  /** Decodes the request. Only meant for tests and debugging, as it defeats the purpose. */
+  PublishRequest toPublishRequest() throws IOException {
+    return PublishRequest.parseFrom(new SerializedInputStream(this));
+  }
+
+  /**
+   * Streams the encoded fields of a request. Transports that support {@link Drainable} copy each
+   * field straight into their own buffers.
+   */
+  private static final class SerializedInputStream extends InputStream
+      implements Drainable, KnownLength {
+    private final SerializedPublishRequest request;
+    // The field being read; -1 for the topic, then the index of the message.
+    private int field = -1;
+    private int offset = 0;
+    private int remaining;
+
+    SerializedInputStream(SerializedPublishRequest request) {
+      this.request = request;
+      this.remaining = request.serializedSize;
+    }
+
+    @Override
+    public int drainTo(OutputStream target) throws IOException {
+      int drained = 0;
+      while (remaining > 0) {
+        byte[] current = currentField();
+        int length = current.length - offset;
+        target.write(current, offset, length);
+        advance(length);
+        drained += length;
+      }
+      return drained;
+    }
+
+    @Override
+    public int read() {
+      if (remaining == 0) {
+        return -1;
+      }
+      byte[] current = currentField();
+      int value = current[offset] & 0xff;
+      advance(1);
+      return value;
+    }
+
+    @Override
+    public int read(byte[] buffer, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (remaining == 0) {
+        return -1;
+      }
+      int read = 0;
+      while (read < len && remaining > 0) {
+        byte[] current = currentField();
+        int length = Math.min(len - read, current.length - offset);
+        System.arraycopy(current, offset, buffer, off + read, length);
+        advance(length);
+        read += length;
+      }
+      return read;
+    }
+
+    @Override
+    public int available() {
+      return remaining;
+    }
+
+    private byte[] currentField() {
+      // Skip empty fields, so that the current field always has bytes left to read.
+      byte[] current = field < 0 ? request.encodedTopic : request.encodedMessages.get(field);
+      while (offset == current.length) {
+        field++;
+        offset = 0;
+        current = request.encodedMessages.get(field);
+      }
+      return current;
+    }
+
+    private void advance(int length) {
+      offset += length;
+      remaining -= length;
+    }
+  }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2026 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub.v1;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link ScheduledExecutorService} that runs each task on a new thread of a {@link
+ * ThreadFactory}, and keeps a single platform thread to wait for delayed tasks.
+ *
+ * <p>It is meant for virtual threads, which are cheap to start and park: tasks may block, on flow
+ * control or in user callbacks, without holding a platform thread. Delayed and periodic {@link
+ * Runnable} tasks are handed to a new thread when they are due, while delayed {@link Callable}
+ * tasks, which return a result through their future, run on the scheduler thread and must not
+ * block.
+ *
+ * <p>Tasks that are running when the executor is shut down run to completion; {@link
+ * #shutdownNow()} only cancels delayed tasks.
+ */
+final class ThreadPerTaskScheduledExecutor extends AbstractExecutorService
+    implements ScheduledExecutorService {
+  private static final Logger logger =
+      Logger.getLogger(ThreadPerTaskScheduledExecutor.class.getName());
+
+  private final ThreadFactory threadFactory;
+  private final ScheduledThreadPoolExecutor scheduler;
+
+  private final Object lock = new Object();
+  // Guarded by lock.
+  private int runningTasks = 0;
+  private boolean shutdown = false;
+
+  ThreadPerTaskScheduledExecutor(ThreadFactory threadFactory, String schedulerThreadName) {
+    this.threadFactory = threadFactory;
+    this.scheduler =
+        new ScheduledThreadPoolExecutor(
+            1,
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat(schedulerThreadName).build());
+    scheduler.setRemoveOnCancelPolicy(true);
+    scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+  }
+
+  /**
+   * Returns an executor running its tasks on virtual threads named after {@code threadNamePrefix},
+   * or null if the JVM does not support virtual threads.
+   */
+  static ThreadPerTaskScheduledExecutor newVirtualThreadExecutor(String threadNamePrefix) {
+    ThreadFactory threadFactory = newVirtualThreadFactory(threadNamePrefix + "-");
+    if (threadFactory == null) {
+      return null;
+    }
+    return new ThreadPerTaskScheduledExecutor(threadFactory, threadNamePrefix + "-scheduler");
+  }
+
+  /** Whether the JVM supports virtual threads, which are final from Java 21. */
+  static boolean isVirtualThreadSupported() {
+    return newVirtualThreadFactory("") != null;
+  }
+
+  // The library targets Java 8, so virtual threads are created through reflection.
+  private static ThreadFactory newVirtualThreadFactory(String threadNamePrefix) {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Method name = builderClass.getMethod("name", String.class, long.class);
+      builder = name.invoke(builder, threadNamePrefix, 0L);
+      return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      // Before Java 21, the method is either missing or requires preview features.
+      logger.log(Level.FINE, "Virtual threads are not supported", e);
+      return null;
+    }
+  }
+
+  @Override
+  public void execute(final Runnable command) {
+    synchronized (lock) {
+      if (shutdown) {
+        throw new RejectedExecutionException("The executor is shut down.");
+      }
+      runningTasks++;
+    }
+    Thread thread =
+        threadFactory.newThread(
+            new Runnable() {
+              @Override
+              public void run() {
+                try {
+                  command.run();
+                } finally {
+                  taskCompleted();
+                }
+              }
+            });
+    if (thread == null) {
+      taskCompleted();
+      throw new RejectedExecutionException("The thread factory did not create a thread.");
+    }
+    thread.start();
+  }
+
+  private void taskCompleted() {
+    synchronized (lock) {
+      runningTasks--;
+      if (runningTasks == 0) {
+        lock.notifyAll();
+      }
+    }
+  }
+
+  @Override
+  public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+    return scheduler.schedule(handOff(command), delay, unit);
+  }
+
+  @Override
+  public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+    return scheduler.schedule(callable, delay, unit);
+  }
+
+  @Override
+  public ScheduledFuture<?> scheduleAtFixedRate(
+      Runnable command, long initialDelay, long period, TimeUnit unit) {
+    return scheduler.scheduleAtFixedRate(handOff(command), initialDelay, period, unit);
+  }
+
+  @Override
+  public ScheduledFuture<?> scheduleWithFixedDelay(
+      Runnable command, long initialDelay, long delay, TimeUnit unit) {
+    return scheduler.scheduleWithFixedDelay(handOff(command), initialDelay, delay, unit);
+  }
+
+  private Runnable handOff(final Runnable command) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        execute(command);
+      }
+    };
+  }
+
+  @Override
+  public void shutdown() {
+    synchronized (lock) {
+      shutdown = true;
+    }
+    scheduler.shutdown();
+  }
+
+  @Override
+  public List<Runnable> shutdownNow() {
+    synchronized (lock) {
+      shutdown = true;
+    }
+    return scheduler.shutdownNow();
+  }
+
+  @Override
+  public boolean isShutdown() {
+    synchronized (lock) {
+      return shutdown;
+    }
+  }
+
+  @Override
+  public boolean isTerminated() {
+    synchronized (lock) {
+      if (!shutdown || runningTasks > 0) {
+        return false;
+      }
+    }
+    return scheduler.isTerminated();
+  }
+
+  @Override
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    long deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+    if (!scheduler.awaitTermination(timeout, unit)) {
+      return false;
+    }
+    synchronized (lock) {
+      while (!shutdown || runningTasks > 0) {
+        long remainingNanos = deadlineNanos - System.nanoTime();
+        if (remainingNanos <= 0) {
+          return false;
+        }
+        TimeUnit.NANOSECONDS.timedWait(lock, remainingNanos);
+      }
+      return true;
+    }
+  }
+}
@@ -17,30 +17,58 @@
 package com.google.cloud.pubsub.v1;
 
 import com.google.api.core.ApiClock;
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
 import com.google.api.core.InternalApi;
+import com.google.api.core.SettableApiFuture;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A barrier kind of object that helps keep track of pending actions and synchronously wait until
  * all have completed.
+ *
+ * <p>The pending count is updated without taking the monitor; only the transition to zero
+ * synchronizes in order to wake up waiting threads.
  */
 class Waiter {
-  private int pendingCount;
+  private final AtomicInteger pendingCount;
+  // Guarded by this.
+  private List<SettableApiFuture<Void>> completionFutures = new ArrayList<>();
 
   Waiter() {
-    pendingCount = 0;
+    pendingCount = new AtomicInteger(0);
+  }
+
+  public void incrementPendingCount(int delta) {
+    if (pendingCount.addAndGet(delta) == 0) {
+      List<SettableApiFuture<Void>> completedFutures;
+      synchronized (this) {
+        notifyAll();
+        completedFutures = completionFutures;
+        completionFutures = new ArrayList<>();
+      }
+      for (SettableApiFuture<Void> completedFuture : completedFutures) {
+        completedFuture.set(null);
+      }
+    }
   }
 
-  public synchronized void incrementPendingCount(int delta) {
-    this.pendingCount += delta;
-    if (pendingCount == 0) {
-      notifyAll();
+  /** Returns a future that completes the next time no actions are pending. */
+  public synchronized ApiFuture<Void> whenComplete() {
+    if (pendingCount.get() == 0) {
+      return ApiFutures.immediateFuture(null);
     }
+    SettableApiFuture<Void> completionFuture = SettableApiFuture.create();
+    completionFutures.add(completionFuture);
+    return completionFuture;
   }
 
   public synchronized void waitComplete() {
     boolean interrupted = false;
     try {
-      while (pendingCount > 0) {
+      while (pendingCount.get() > 0) {
         try {
           wait();
         } catch (InterruptedException e) {
@@ -61,7 +89,7 @@ class Waiter {
     boolean interrupted = false;
     boolean completedWait = true;
     try {
-      while (pendingCount > 0) {
+      while (pendingCount.get() > 0) {
         if (remainingMilliseconds <= 0) {
           completedWait = false;
           break;
@@ -83,6 +111,6 @@ class Waiter {
 
   @InternalApi
   public int pendingCount() {
-    return pendingCount;
+    return pendingCount.get();
   }
 }
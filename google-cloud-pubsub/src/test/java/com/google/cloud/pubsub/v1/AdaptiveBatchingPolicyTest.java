@@ -0,0 +1,204 @@
+/*
+ * Copyright 2026 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub.v1;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link AdaptiveBatchingPolicy}. */
+@RunWith(JUnit4.class)
+public class AdaptiveBatchingPolicyTest {
+
+  private final FakeClock clock = new FakeClock();
+
+  @Test
+  public void testInitialThresholds() {
+    AdaptiveBatchingPolicy policy = AdaptiveBatchingPolicy.newBuilder().setClock(clock).build();
+    assertEquals(
+        Publisher.Builder.DEFAULT_ELEMENT_COUNT_THRESHOLD, policy.getElementCountThreshold());
+    assertEquals(
+        Publisher.Builder.DEFAULT_REQUEST_BYTES_THRESHOLD, policy.getRequestByteThreshold());
+    assertEquals(Publisher.Builder.DEFAULT_DELAY_THRESHOLD, policy.getDelayThreshold());
+
+    policy =
+        AdaptiveBatchingPolicy.newBuilder()
+            .setElementCountBounds(200, 300)
+            .setDelayBounds(Duration.ofMillis(5), Duration.ofMillis(10))
+            .setClock(clock)
+            .build();
+    assertEquals(200, policy.getElementCountThreshold());
+    assertEquals(Duration.ofMillis(5), policy.getDelayThreshold());
+  }
+
+  @Test
+  public void testGrowsFullBatchesWithLatencyHeadroom() {
+    AdaptiveBatchingPolicy policy =
+        AdaptiveBatchingPolicy.newBuilder()
+            .setTargetLatency(Duration.ofMillis(500))
+            .setClock(clock)
+            .build();
+    publishRound(policy, 100, 1, Duration.ofMillis(10), true);
+    assertEquals(125, policy.getElementCountThreshold());
+    assertEquals(1250, policy.getRequestByteThreshold());
+  }
+
+  @Test
+  public void testGrowthIsBounded() {
+    AdaptiveBatchingPolicy policy =
+        AdaptiveBatchingPolicy.newBuilder()
+            .setElementCountBounds(1, 110)
+            .setTargetLatency(Duration.ofMillis(500))
+            .setClock(clock)
+            .build();
+    publishRound(policy, 100, 1, Duration.ofMillis(10), true);
+    publishRound(policy, 110, 1, Duration.ofMillis(10), true);
+    assertEquals(110, policy.getElementCountThreshold());
+  }
+
+  @Test
+  public void testDoesNotGrowPartialBatches() {
+    AdaptiveBatchingPolicy policy =
+        AdaptiveBatchingPolicy.newBuilder()
+            .setTargetLatency(Duration.ofMillis(500))
+            .setClock(clock)
+            .build();
+    publishRound(policy, 10, 1, Duration.ofMillis(10), true);
+    assertEquals(100, policy.getElementCountThreshold());
+  }
+
+  @Test
+  public void testGrowsPartialBatchesWithConcurrentRequests() {
+    AdaptiveBatchingPolicy policy =
+        AdaptiveBatchingPolicy.newBuilder()
+            .setTargetLatency(Duration.ofMillis(500))
+            .setClock(clock)
+            .build();
+    publishRound(policy, 10, 4, Duration.ofMillis(10), true);
+    assertEquals(125, policy.getElementCountThreshold());
+  }
+
+  @Test
+  public void testShrinksWhenLatencyExceedsTarget() {
+    AdaptiveBatchingPolicy policy =
+        AdaptiveBatchingPolicy.newBuilder()
+            .setTargetLatency(Duration.ofMillis(500))
+            .setClock(clock)
+            .build();
+    publishRound(policy, 100, 1, Duration.ofMillis(600), true);
+    assertEquals(50, policy.getElementCountThreshold());
+    // The byte threshold is already at its lower bound.
+    assertEquals(1000, policy.getRequestByteThreshold());
+  }
+
+  @Test
+  public void testShrinksOnFailure() {
+    AdaptiveBatchingPolicy policy =
+        AdaptiveBatchingPolicy.newBuilder()
+            .setTargetLatency(Duration.ofMillis(500))
+            .setRequestByteBounds(100, 10000)
+            .setClock(clock)
+            .build();
+    publishRound(policy, 100, 1, Duration.ofMillis(10), false);
+    assertEquals(50, policy.getElementCountThreshold());
+    assertEquals(500, policy.getRequestByteThreshold());
+  }
+
+  @Test
+  public void testDelayFollowsArrivalRate() {
+    AdaptiveBatchingPolicy policy =
+        AdaptiveBatchingPolicy.newBuilder()
+            .setTargetLatency(Duration.ofMillis(500))
+            .setDelayBounds(Duration.ofMillis(1), Duration.ofMillis(100))
+            .setClock(clock)
+            .build();
+    // 10 messages per millisecond fill a batch of 100 messages in 10 milliseconds.
+    publishRound(policy, 10, 1, Duration.ofMillis(10), true);
+    assertEquals(Duration.ofMillis(10), policy.getDelayThreshold());
+  }
+
+  @Test
+  public void testDelayIsBoundedByLatencyBudget() {
+    AdaptiveBatchingPolicy policy =
+        AdaptiveBatchingPolicy.newBuilder()
+            .setTargetLatency(Duration.ofMillis(100))
+            .setDelayBounds(Duration.ofMillis(1), Duration.ofSeconds(1))
+            .setClock(clock)
+            .build();
+    // Filling a batch takes 100 milliseconds, but requests already take 80 of the 100 allowed.
+    publishRound(policy, 1, 1, Duration.ofMillis(80), true);
+    assertEquals(Duration.ofMillis(20), policy.getDelayThreshold());
+  }
+
+  @Test
+  public void testBuilderInvalidArguments() {
+    try {
+      AdaptiveBatchingPolicy.newBuilder().setElementCountBounds(0, 10);
+      fail("Should have thrown an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // Expected
+    }
+    try {
+      AdaptiveBatchingPolicy.newBuilder()
+          .setElementCountBounds(1, Publisher.getApiMaxRequestElementCount() + 1);
+      fail("Should have thrown an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // Expected
+    }
+    try {
+      AdaptiveBatchingPolicy.newBuilder().setRequestByteBounds(10, 5);
+      fail("Should have thrown an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // Expected
+    }
+    try {
+      AdaptiveBatchingPolicy.newBuilder().setDelayBounds(Duration.ZERO, Duration.ofMillis(1));
+      fail("Should have thrown an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // Expected
+    }
+    try {
+      AdaptiveBatchingPolicy.newBuilder().setTargetLatency(Duration.ZERO);
+      fail("Should have thrown an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // Expected
+    }
+  }
+
+  /**
+   * Sends and completes enough batches, one millisecond apart, for the policy to re-evaluate its
+   * thresholds once.
+   */
+  private void publishRound(
+      AdaptiveBatchingPolicy policy,
+      int messagesPerBatch,
+      int inflightRequests,
+      Duration latency,
+      boolean success) {
+    for (int i = 0; i < AdaptiveBatchingPolicy.ADJUSTMENT_INTERVAL; i++) {
+      clock.advance(1, TimeUnit.MILLISECONDS);
+      long batchBytes = messagesPerBatch * 10L;
+      policy.onPublishStarted(messagesPerBatch, batchBytes, inflightRequests);
+      policy.onPublishCompleted(messagesPerBatch, batchBytes, latency, success);
+    }
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2026 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub.v1;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertEquals;
+
+import com.google.api.gax.grpc.ChannelPoolSettings;
+import com.google.api.gax.grpc.GrpcTransportChannel;
+import com.google.api.gax.rpc.FixedTransportChannelProvider;
+import io.grpc.ManagedChannel;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ChannelRouter}. */
+@RunWith(JUnit4.class)
+public class ChannelRouterTest {
+
+  @Test
+  public void testOrderingKeysStickToOneChannel() {
+    ChannelRouter router = new ChannelRouter(4);
+    Set<Integer> channels = new HashSet<>();
+    for (int i = 0; i < 100; i++) {
+      String orderingKey = "key-" + i;
+      int channel = router.acquire(orderingKey);
+      for (int j = 0; j < 3; j++) {
+        assertEquals(channel, router.acquire(orderingKey));
+      }
+      channels.add(channel);
+    }
+    assertThat(channels).containsExactly(0, 1, 2, 3);
+  }
+
+  @Test
+  public void testUnorderedRequestsGoToLeastLoadedChannel() {
+    ChannelRouter router = new ChannelRouter(3);
+    // Requests spread over idle channels.
+    Set<Integer> channels = new HashSet<>();
+    for (int i = 0; i < 3; i++) {
+      channels.add(router.acquire(""));
+    }
+    assertThat(channels).containsExactly(0, 1, 2);
+
+    // A channel busy with an ordering key gets fewer unordered requests.
+    int busyChannel = router.acquire("key");
+    router.acquire("key");
+    for (int i = 0; i < 4; i++) {
+      int channel = router.acquire(null);
+      assertThat(channel).isNotEqualTo(busyChannel);
+    }
+    for (int channel = 0; channel < 3; channel++) {
+      assertEquals(3, router.getInflightRequests(channel));
+    }
+
+    router.release(busyChannel);
+    router.release(busyChannel);
+    router.release(busyChannel);
+    assertEquals(busyChannel, router.acquire(""));
+  }
+
+  @Test
+  public void testGetChannelCount() {
+    assertEquals(
+        4,
+        ChannelRouter.getChannelCount(
+            TopicAdminSettings.defaultGrpcTransportProviderBuilder()
+                .setChannelPoolSettings(ChannelPoolSettings.staticallySized(4))
+                .build()));
+
+    ManagedChannel channel = InProcessChannelBuilder.forName("test").build();
+    assertEquals(
+        1,
+        ChannelRouter.getChannelCount(
+            FixedTransportChannelProvider.create(GrpcTransportChannel.create(channel))));
+    channel.shutdownNow();
+  }
+}
@@ -283,6 +283,29 @@ public class MessageDispatcherTest {
         .receiveMessage(eq(TEST_MESSAGE.getMessage()), any(AckReplyConsumerWithResponse.class));
   }
 
+  @Test
+  public void testReceiverGetsDecompressedPayload() throws Exception {
+    final LinkedBlockingQueue<PubsubMessage> receivedMessages = new LinkedBlockingQueue<>();
+    MessageDispatcher messageDispatcher =
+        getMessageDispatcher(
+            new MessageReceiver() {
+              @Override
+              public void receiveMessage(PubsubMessage message, AckReplyConsumer consumer) {
+                receivedMessages.add(message);
+                consumer.ack();
+              }
+            });
+    PubsubMessage compressedMessage =
+        PayloadCodec.DEFLATE_FAST.withEncodedData(
+            TEST_MESSAGE.getMessage(), PayloadCodec.DEFLATE_FAST.encode(MESSAGE_DATA));
+    messageDispatcher.processReceivedMessages(
+        Collections.singletonList(TEST_MESSAGE.toBuilder().setMessage(compressedMessage).build()));
+
+    PubsubMessage receivedMessage = receivedMessages.poll(10, TimeUnit.SECONDS);
+    assertThat(receivedMessage.getData()).isEqualTo(MESSAGE_DATA);
+    assertFalse(receivedMessage.containsAttributes(PayloadCodec.ATTRIBUTE_KEY));
+  }
+
   @Test
   public void testConsumerAckMessageReceiver() {
     MessageDispatcher messageDispatcher = getMessageDispatcher(messageReceiver);
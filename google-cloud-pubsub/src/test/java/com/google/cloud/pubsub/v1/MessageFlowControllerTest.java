@@ -0,0 +1,424 @@
+/*
+ * Copyright 2026 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub.v1;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.gax.batching.FlowController;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link MessageFlowController}. */
+@RunWith(JUnit4.class)
+public class MessageFlowControllerTest {
+
+  @Test
+  public void testAcquireWithinLimits() throws Exception {
+    MessageFlowController flowController =
+        new MessageFlowController(2, 10, FlowController.LimitExceededBehavior.ThrowException);
+    flowController.acquire(5);
+    flowController.acquire(4);
+    flowController.release(2, 9);
+    flowController.acquire(9);
+  }
+
+  @Test
+  public void testThrowException_elementCount() throws Exception {
+    MessageFlowController flowController =
+        new MessageFlowController(1, 10, FlowController.LimitExceededBehavior.ThrowException);
+    flowController.acquire(1);
+    try {
+      flowController.acquire(1);
+      fail("Should have thrown a MaxOutstandingElementCountReachedException");
+    } catch (FlowController.MaxOutstandingElementCountReachedException expected) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testThrowException_requestBytes() throws Exception {
+    MessageFlowController flowController =
+        new MessageFlowController(10, 10, FlowController.LimitExceededBehavior.ThrowException);
+    flowController.acquire(6);
+    try {
+      flowController.acquire(6);
+      fail("Should have thrown a MaxOutstandingRequestBytesReachedException");
+    } catch (FlowController.MaxOutstandingRequestBytesReachedException expected) {
+      // Expected
+    }
+    // A failed acquire does not hold any capacity.
+    flowController.acquire(3);
+  }
+
+  @Test
+  public void testThrowException_requestBytesReachingLimit() throws Exception {
+    MessageFlowController flowController =
+        new MessageFlowController(10, 10, FlowController.LimitExceededBehavior.ThrowException);
+    // A message is rejected once it would bring the outstanding bytes up to the limit, not only
+    // past it.
+    try {
+      flowController.acquire(10);
+      fail("Should have thrown a MaxOutstandingRequestBytesReachedException");
+    } catch (FlowController.MaxOutstandingRequestBytesReachedException expected) {
+      // Expected
+    }
+    flowController.acquire(6);
+    try {
+      flowController.acquire(4);
+      fail("Should have thrown a MaxOutstandingRequestBytesReachedException");
+    } catch (FlowController.MaxOutstandingRequestBytesReachedException expected) {
+      // Expected
+    }
+    flowController.acquire(3);
+    assertEquals(9, flowController.getOutstandingRequestBytes());
+  }
+
+  @Test
+  public void testBlock_requestBytesUpToLimit() throws Exception {
+    MessageFlowController flowController =
+        new MessageFlowController(10, 10, FlowController.LimitExceededBehavior.Block);
+    flowController.acquire(6);
+    flowController.acquire(4);
+    assertEquals(10, flowController.getOutstandingRequestBytes());
+  }
+
+  @Test
+  public void testMessageLargerThanLimitAlwaysThrows() throws Exception {
+    MessageFlowController flowController =
+        new MessageFlowController(10, 10, FlowController.LimitExceededBehavior.Block);
+    try {
+      flowController.acquire(11);
+      fail("Should have thrown a MaxOutstandingRequestBytesReachedException");
+    } catch (FlowController.MaxOutstandingRequestBytesReachedException expected) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testAcquireGroup() throws Exception {
+    MessageFlowController flowController =
+        new MessageFlowController(10, 100, FlowController.LimitExceededBehavior.Block);
+    flowController.acquire(4, 40);
+    assertEquals(4, flowController.getOutstandingElementCount());
+    assertEquals(40, flowController.getOutstandingRequestBytes());
+
+    // A group over the limits can never be admitted, so it is rejected even when blocking.
+    try {
+      flowController.acquire(11, 40);
+      fail("Should have thrown a MaxOutstandingElementCountReachedException");
+    } catch (FlowController.MaxOutstandingElementCountReachedException expected) {
+      // Expected
+    }
+    try {
+      flowController.acquire(2, 101);
+      fail("Should have thrown a MaxOutstandingRequestBytesReachedException");
+    } catch (FlowController.MaxOutstandingRequestBytesReachedException expected) {
+      // Expected
+    }
+
+    // The group is released in parts, as its messages are batched separately.
+    flowController.release(2, 20);
+    flowController.release(2, 20);
+    assertEquals(0, flowController.getOutstandingElementCount());
+    assertEquals(0, flowController.getOutstandingRequestBytes());
+  }
+
+  @Test
+  public void testReservedCapacityIsOnlyUsedByPriorityMessages() throws Exception {
+    MessageFlowController flowController =
+        new MessageFlowController(
+            4, 100, FlowController.LimitExceededBehavior.ThrowException, 1, 10);
+    flowController.acquire(3, 30, false);
+    try {
+      flowController.acquire(1, 10, false);
+      fail("Should have thrown a MaxOutstandingElementCountReachedException");
+    } catch (FlowController.MaxOutstandingElementCountReachedException expected) {
+      // Expected
+    }
+    flowController.acquire(1, 10, true);
+    assertEquals(4, flowController.getOutstandingElementCount());
+
+    // A message over the limits of other messages can only be admitted with priority.
+    flowController.release(4, 40);
+    try {
+      flowController.acquire(1, 95, false);
+      fail("Should have thrown a MaxOutstandingRequestBytesReachedException");
+    } catch (FlowController.MaxOutstandingRequestBytesReachedException expected) {
+      // Expected
+    }
+    flowController.acquire(1, 95, true);
+  }
+
+  @Test
+  public void testPriorityWaitersAreGrantedFirst() throws Exception {
+    MessageFlowController flowController =
+        new MessageFlowController(2, 100, FlowController.LimitExceededBehavior.Block, 1, 0);
+    flowController.acquire(1, 10, false);
+    flowController.acquire(1, 10, true);
+
+    ApiFuture<Void> waiting = flowController.acquireAsync(10, false);
+    ApiFuture<Void> priorityWaiting = flowController.acquireAsync(10, true);
+    assertFalse(waiting.isDone());
+    assertFalse(priorityWaiting.isDone());
+
+    flowController.release(1, 10);
+    assertTrue(priorityWaiting.isDone());
+    assertFalse(waiting.isDone());
+
+    // Other messages may only use the capacity left outside the reserve.
+    flowController.release(1, 10);
+    assertFalse(waiting.isDone());
+    flowController.release(1, 10);
+    assertTrue(waiting.isDone());
+  }
+
+  @Test
+  public void testThrowException_group() throws Exception {
+    MessageFlowController flowController =
+        new MessageFlowController(10, 100, FlowController.LimitExceededBehavior.ThrowException);
+    flowController.acquire(1);
+    try {
+      flowController.acquire(10, 10);
+      fail("Should have thrown a MaxOutstandingElementCountReachedException");
+    } catch (FlowController.MaxOutstandingElementCountReachedException expected) {
+      // Expected
+    }
+    // A rejected group does not hold any capacity.
+    assertEquals(1, flowController.getOutstandingElementCount());
+    flowController.acquire(9, 10);
+  }
+
+  @Test
+  public void testBlock_waitersAreGrantedInOrder() throws Exception {
+    final MessageFlowController flowController =
+        new MessageFlowController(10, 10, FlowController.LimitExceededBehavior.Block);
+    flowController.acquire(8);
+
+    final List<Integer> grantOrder = Collections.synchronizedList(new ArrayList<Integer>());
+    // The first waiter needs more bytes than the second one; the second one must not overtake it.
+    Thread large = startAcquire(flowController, 6, 1, grantOrder);
+    waitUntilParked(large);
+    Thread small = startAcquire(flowController, 1, 2, grantOrder);
+    waitUntilParked(small);
+
+    // Enough bytes for the small message, but not for the large one at the head of the queue.
+    flowController.release(0, 3);
+    assertEquals(Thread.State.WAITING, large.getState());
+    assertEquals(Thread.State.WAITING, small.getState());
+    assertTrue(grantOrder.isEmpty());
+
+    flowController.release(1, 5);
+    large.join(TimeUnit.SECONDS.toMillis(10));
+    small.join(TimeUnit.SECONDS.toMillis(10));
+    assertFalse(large.isAlive());
+    assertFalse(small.isAlive());
+    assertEquals(2, grantOrder.size());
+    assertEquals(2, flowController.getOutstandingElementCount());
+    assertEquals(7, flowController.getOutstandingRequestBytes());
+  }
+
+  @Test
+  public void testBlock_batchedReleaseWakesAllWaiters() throws Exception {
+    final MessageFlowController flowController =
+        new MessageFlowController(3, 100, FlowController.LimitExceededBehavior.Block);
+    flowController.acquire(1);
+    flowController.acquire(1);
+    flowController.acquire(1);
+
+    final List<Integer> grantOrder = Collections.synchronizedList(new ArrayList<Integer>());
+    List<Thread> waiters = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      Thread waiter = startAcquire(flowController, 1, i, grantOrder);
+      waitUntilParked(waiter);
+      waiters.add(waiter);
+    }
+
+    flowController.release(3, 3);
+    for (Thread waiter : waiters) {
+      waiter.join(TimeUnit.SECONDS.toMillis(10));
+      assertFalse(waiter.isAlive());
+    }
+    assertEquals(3, grantOrder.size());
+  }
+
+  @Test
+  public void testBlock_concurrentAcquireAndRelease() throws Exception {
+    final MessageFlowController flowController =
+        new MessageFlowController(4, 40, FlowController.LimitExceededBehavior.Block);
+    final int threadCount = 16;
+    final int iterations = 1000;
+    final CountDownLatch done = new CountDownLatch(threadCount);
+    for (int i = 0; i < threadCount; i++) {
+      new Thread(
+              new Runnable() {
+                @Override
+                public void run() {
+                  try {
+                    for (int j = 0; j < iterations; j++) {
+                      flowController.acquire(10);
+                      flowController.release(1, 10);
+                    }
+                  } catch (FlowController.FlowControlException e) {
+                    throw new IllegalStateException(e);
+                  } finally {
+                    done.countDown();
+                  }
+                }
+              })
+          .start();
+    }
+    assertTrue(done.await(1, TimeUnit.MINUTES));
+    assertEquals(0, flowController.getOutstandingElementCount());
+    assertEquals(0, flowController.getOutstandingRequestBytes());
+  }
+
+  @Test
+  public void testAcquireAsync_grantedInOrderWithBlockingCallers() throws Exception {
+    final MessageFlowController flowController =
+        new MessageFlowController(1, 100, FlowController.LimitExceededBehavior.Block);
+    flowController.acquire(1);
+
+    final List<Integer> grantOrder = Collections.synchronizedList(new ArrayList<Integer>());
+    ApiFuture<Void> asyncAcquire = flowController.acquireAsync(1);
+    assertFalse(asyncAcquire.isDone());
+    Thread blocked = startAcquire(flowController, 1, 2, grantOrder);
+    waitUntilParked(blocked);
+
+    flowController.release(1, 1);
+    assertTrue(asyncAcquire.isDone());
+    assertEquals(Thread.State.WAITING, blocked.getState());
+
+    flowController.release(1, 1);
+    blocked.join(TimeUnit.SECONDS.toMillis(10));
+    assertFalse(blocked.isAlive());
+    assertThat(grantOrder).containsExactly(2);
+  }
+
+  @Test
+  public void testAcquireAsync_throwException() throws Exception {
+    MessageFlowController flowController =
+        new MessageFlowController(1, 100, FlowController.LimitExceededBehavior.ThrowException);
+    flowController.acquireAsync(1).get();
+    try {
+      flowController.acquireAsync(1).get();
+      fail("Should have thrown a MaxOutstandingElementCountReachedException");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause())
+          .isInstanceOf(FlowController.MaxOutstandingElementCountReachedException.class);
+    }
+  }
+
+  @Test
+  public void testCloseFailsWaitingCallers() throws Exception {
+    final MessageFlowController flowController =
+        new MessageFlowController(1, 100, FlowController.LimitExceededBehavior.Block);
+    flowController.acquire(1);
+
+    final List<Integer> grantOrder = Collections.synchronizedList(new ArrayList<Integer>());
+    ApiFuture<Void> asyncAcquire = flowController.acquireAsync(1);
+    Thread blocked = startAcquire(flowController, 1, 2, grantOrder);
+    waitUntilParked(blocked);
+
+    IllegalStateException cause = new IllegalStateException("closed");
+    flowController.close(cause);
+    try {
+      asyncAcquire.get();
+      fail("Should have thrown an ExecutionException");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isSameInstanceAs(cause);
+    }
+    blocked.join(TimeUnit.SECONDS.toMillis(10));
+    assertFalse(blocked.isAlive());
+
+    // Waiters after the close fail too, and the released capacity is granted to none of them.
+    ApiFuture<Void> lateAcquire = flowController.acquireAsync(1);
+    assertTrue(lateAcquire.isDone());
+    flowController.release(1, 1);
+    assertEquals(0, flowController.getOutstandingElementCount());
+    assertThat(grantOrder).isEmpty();
+  }
+
+  @Test
+  public void testSaturationTransitions() throws Exception {
+    final List<Boolean> transitions = Collections.synchronizedList(new ArrayList<Boolean>());
+    MessageFlowController flowController =
+        new MessageFlowController(4, 100, FlowController.LimitExceededBehavior.Block);
+    flowController.setSaturationListener(
+        new MessageFlowController.SaturationListener() {
+          @Override
+          public void onSaturationChanged(boolean saturated) {
+            transitions.add(saturated);
+          }
+        });
+
+    for (int i = 0; i < 4; i++) {
+      flowController.acquire(1);
+    }
+    assertFalse(flowController.isSaturated());
+    ApiFuture<Void> waiting = flowController.acquireAsync(1);
+    assertTrue(flowController.isSaturated());
+
+    // The waiter is admitted, but the outstanding count is still above half of the limit.
+    flowController.release(1, 1);
+    assertTrue(waiting.isDone());
+    assertTrue(flowController.isSaturated());
+
+    flowController.release(2, 2);
+    assertFalse(flowController.isSaturated());
+    assertThat(transitions).containsExactly(true, false).inOrder();
+  }
+
+  private static Thread startAcquire(
+      final MessageFlowController flowController,
+      final long messageSize,
+      final int id,
+      final List<Integer> grantOrder) {
+    Thread thread =
+        new Thread(
+            new Runnable() {
+              @Override
+              public void run() {
+                try {
+                  flowController.acquire(messageSize);
+                  grantOrder.add(id);
+                } catch (FlowController.FlowControlException e) {
+                  throw new IllegalStateException(e);
+                }
+              }
+            });
+    thread.start();
+    return thread;
+  }
+
+  private static void waitUntilParked(Thread thread) {
+    while (thread.getState() != Thread.State.WAITING) {
+      Thread.yield();
+    }
+  }
+}
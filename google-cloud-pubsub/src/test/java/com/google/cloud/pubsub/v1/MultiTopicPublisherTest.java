@@ -0,0 +1,305 @@
+/*
+ * Copyright 2026 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub.v1;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.gax.core.FixedExecutorProvider;
+import com.google.api.gax.core.NoCredentialsProvider;
+import com.google.api.gax.grpc.GrpcTransportChannel;
+import com.google.api.gax.rpc.FixedTransportChannelProvider;
+import com.google.protobuf.ByteString;
+import com.google.pubsub.v1.PublishRequest;
+import com.google.pubsub.v1.PubsubMessage;
+import com.google.pubsub.v1.TopicName;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link MultiTopicPublisher}. */
+@RunWith(JUnit4.class)
+public class MultiTopicPublisherTest {
+  private static final TopicName TOPIC_1 = TopicName.of("test-project", "test-topic-1");
+  private static final TopicName TOPIC_2 = TopicName.of("test-project", "test-topic-2");
+  private static final Duration IDLE_TIMEOUT = Duration.ofMinutes(1);
+
+  private FakeScheduledExecutorService fakeExecutor;
+  private FakePublisherServiceImpl testPublisherServiceImpl;
+  private ManagedChannel testChannel;
+  private Server testServer;
+
+  @Before
+  public void setUp() throws Exception {
+    testPublisherServiceImpl = new FakePublisherServiceImpl();
+    testPublisherServiceImpl.setAutoPublishResponse(true);
+
+    InProcessServerBuilder serverBuilder = InProcessServerBuilder.forName("test-server");
+    serverBuilder.addService(testPublisherServiceImpl);
+    testServer = serverBuilder.build();
+    testChannel = InProcessChannelBuilder.forName("test-server").build();
+    testServer.start();
+
+    fakeExecutor = new FakeScheduledExecutorService();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    testServer.shutdownNow().awaitTermination();
+    testChannel.shutdown();
+  }
+
+  @Test
+  public void testPublishToSeveralTopics() throws Exception {
+    MultiTopicPublisher publisher = getTestPublisherBuilder().build();
+
+    List<ApiFuture<String>> futures = new ArrayList<>();
+    futures.add(sendTestMessage(publisher, TOPIC_1, "A"));
+    futures.add(sendTestMessage(publisher, TOPIC_2, "B"));
+    futures.add(sendTestMessage(publisher, TOPIC_1, "C"));
+    futures.add(sendTestMessage(publisher, TOPIC_2, "D"));
+    assertEquals(2, publisher.getActiveTopicCount());
+
+    // Each topic is batched separately.
+    for (ApiFuture<String> future : futures) {
+      future.get();
+    }
+    List<PublishRequest> requests = testPublisherServiceImpl.getCapturedRequests();
+    assertEquals(2, requests.size());
+    for (PublishRequest request : requests) {
+      assertEquals(2, request.getMessagesCount());
+      if (request.getTopic().equals(TOPIC_1.toString())) {
+        assertEquals("A", request.getMessages(0).getData().toStringUtf8());
+        assertEquals("C", request.getMessages(1).getData().toStringUtf8());
+      } else {
+        assertEquals(TOPIC_2.toString(), request.getTopic());
+        assertEquals("B", request.getMessages(0).getData().toStringUtf8());
+        assertEquals("D", request.getMessages(1).getData().toStringUtf8());
+      }
+    }
+    shutdownTestPublisher(publisher);
+  }
+
+  @Test
+  public void testIdleTopicIsEvicted() throws Exception {
+    MultiTopicPublisher publisher = getTestPublisherBuilder().build();
+
+    ApiFuture<String> future1 = sendTestMessage(publisher, TOPIC_1, "A");
+    ApiFuture<String> future2 = sendTestMessage(publisher, TOPIC_1, "B");
+    future1.get();
+    future2.get();
+    assertEquals(1, publisher.getActiveTopicCount());
+
+    // The publisher becomes idle once the publish callbacks have run.
+    long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+    while (publisher.getActiveTopicCount() > 0 && System.currentTimeMillis() < deadline) {
+      fakeExecutor.advanceTime(IDLE_TIMEOUT);
+      Thread.sleep(10);
+    }
+    assertEquals(0, publisher.getActiveTopicCount());
+
+    // A new publisher is created for the next message.
+    ApiFuture<String> future3 = sendTestMessage(publisher, TOPIC_1, "C");
+    assertEquals(1, publisher.getActiveTopicCount());
+    publisher.publishAllOutstanding();
+    future3.get();
+    assertEquals(2, testPublisherServiceImpl.getCapturedRequests().size());
+    shutdownTestPublisher(publisher);
+  }
+
+  @Test
+  public void testTopicWithOutstandingMessagesIsNotEvicted() throws Exception {
+    MultiTopicPublisher publisher =
+        getTestPublisherBuilder()
+            .setBatchingSettings(
+                Publisher.Builder.DEFAULT_BATCHING_SETTINGS.toBuilder()
+                    .setElementCountThreshold(2L)
+                    .setDelayThresholdDuration(Duration.ofHours(1))
+                    .build())
+            .build();
+
+    ApiFuture<String> future = sendTestMessage(publisher, TOPIC_1, "A");
+    publisher.evictIdlePublishers();
+    fakeExecutor.getClock().advance(IDLE_TIMEOUT.toMillis() * 2, TimeUnit.MILLISECONDS);
+    publisher.evictIdlePublishers();
+    assertEquals(1, publisher.getActiveTopicCount());
+    assertFalse(future.isDone());
+
+    shutdownTestPublisher(publisher);
+    assertTrue(future.isDone());
+    future.get();
+  }
+
+  @Test
+  public void testShutdownPublishesAllTopics() throws Exception {
+    MultiTopicPublisher publisher =
+        getTestPublisherBuilder()
+            .setBatchingSettings(
+                Publisher.Builder.DEFAULT_BATCHING_SETTINGS.toBuilder()
+                    .setElementCountThreshold(10L)
+                    .setDelayThresholdDuration(Duration.ofHours(1))
+                    .build())
+            .build();
+
+    ApiFuture<String> future1 = sendTestMessage(publisher, TOPIC_1, "A");
+    ApiFuture<String> future2 = sendTestMessage(publisher, TOPIC_2, "B");
+    assertFalse(future1.isDone());
+    assertFalse(future2.isDone());
+
+    shutdownTestPublisher(publisher);
+    future1.get();
+    future2.get();
+    assertEquals(2, testPublisherServiceImpl.getCapturedRequests().size());
+
+    try {
+      sendTestMessage(publisher, TOPIC_1, "C");
+      fail("Should have thrown an IllegalStateException");
+    } catch (IllegalStateException expected) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testShutdownWhileEvicting() throws Exception {
+    final MultiTopicPublisher publisher = getTestPublisherBuilder().build();
+
+    List<ApiFuture<String>> futures = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      TopicName topic = TopicName.of("test-project", "test-topic-" + i);
+      futures.add(sendTestMessage(publisher, topic, "A"));
+      futures.add(sendTestMessage(publisher, topic, "B"));
+    }
+    for (ApiFuture<String> future : futures) {
+      future.get();
+    }
+    fakeExecutor.getClock().advance(IDLE_TIMEOUT.toMillis() * 2, TimeUnit.MILLISECONDS);
+
+    // Evictions racing the shutdown must not shut down a publisher a second time.
+    final AtomicBoolean stopped = new AtomicBoolean(false);
+    final AtomicReference<Throwable> evictionFailure = new AtomicReference<>();
+    Thread evictor =
+        new Thread() {
+          @Override
+          public void run() {
+            try {
+              while (!stopped.get()) {
+                publisher.evictIdlePublishers();
+              }
+            } catch (Throwable t) {
+              evictionFailure.set(t);
+            }
+          }
+        };
+    evictor.start();
+    shutdownTestPublisher(publisher);
+    stopped.set(true);
+    evictor.join();
+    assertNull(evictionFailure.get());
+    assertEquals(0, publisher.getActiveTopicCount());
+  }
+
+  @Test
+  public void testPublishWhileShuttingDown() throws Exception {
+    final MultiTopicPublisher publisher = getTestPublisherBuilder().build();
+
+    // Every topic gets a new publisher with a single pending message.
+    final List<ApiFuture<String>> futures = new CopyOnWriteArrayList<>();
+    Thread publishing =
+        new Thread() {
+          @Override
+          public void run() {
+            try {
+              for (int i = 0; ; i++) {
+                futures.add(
+                    sendTestMessage(publisher, TopicName.of("test-project", "topic-" + i), "A"));
+              }
+            } catch (IllegalStateException expected) {
+              // The publisher was shut down.
+            }
+          }
+        };
+    publishing.start();
+    while (futures.size() < 10) {
+      Thread.sleep(1);
+    }
+    shutdownTestPublisher(publisher);
+    publishing.join();
+
+    // A publisher created during the shutdown is flushed with the others.
+    for (ApiFuture<String> future : futures) {
+      future.get(10, TimeUnit.SECONDS);
+    }
+    assertEquals(0, publisher.getActiveTopicCount());
+  }
+
+  @Test
+  public void testBuilderInvalidArguments() {
+    try {
+      MultiTopicPublisher.newBuilder().setTopicIdleTimeout(Duration.ZERO);
+      fail("Should have thrown an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // Expected
+    }
+    assertThat(MultiTopicPublisher.Builder.DEFAULT_TOPIC_IDLE_TIMEOUT)
+        .isEqualTo(Duration.ofMinutes(10));
+  }
+
+  private MultiTopicPublisher.Builder getTestPublisherBuilder() {
+    return MultiTopicPublisher.newBuilder()
+        .setExecutorProvider(FixedExecutorProvider.create(fakeExecutor))
+        .setChannelProvider(
+            FixedTransportChannelProvider.create(GrpcTransportChannel.create(testChannel)))
+        .setCredentialsProvider(NoCredentialsProvider.create())
+        .setBatchingSettings(
+            Publisher.Builder.DEFAULT_BATCHING_SETTINGS.toBuilder()
+                .setElementCountThreshold(2L)
+                .setDelayThresholdDuration(Duration.ofSeconds(100))
+                .build())
+        .setTopicIdleTimeout(IDLE_TIMEOUT)
+        .setClock(fakeExecutor.getClock());
+  }
+
+  private ApiFuture<String> sendTestMessage(
+      MultiTopicPublisher publisher, TopicName topic, String data) {
+    return publisher.publish(
+        topic, PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8(data)).build());
+  }
+
+  private void shutdownTestPublisher(MultiTopicPublisher publisher) throws InterruptedException {
+    publisher.shutdown();
+    fakeExecutor.advanceTime(Duration.ofSeconds(10));
+    assertTrue(publisher.awaitTermination(1, TimeUnit.MINUTES));
+  }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2026 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub.v1;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import com.google.protobuf.ByteString;
+import com.google.pubsub.v1.PubsubMessage;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link PayloadCompressor} and {@link PayloadCodec}. */
+@RunWith(JUnit4.class)
+public class PayloadCompressorTest {
+  private static final int BYTES_THRESHOLD = 100;
+
+  @Test
+  public void testCodecsRoundTrip() throws Exception {
+    ByteString data = compressibleData(1000);
+    for (PayloadCodec codec : PayloadCodec.values()) {
+      ByteString encodedData = codec.encode(data);
+      assertThat(encodedData.size()).isLessThan(data.size());
+      assertEquals(data, codec.decode(encodedData));
+      assertSame(codec, PayloadCodec.forCodecName(codec.getCodecName()));
+    }
+    assertNull(PayloadCodec.forCodecName("unknown"));
+  }
+
+  @Test
+  public void testDecodeCorruptedData() throws Exception {
+    ByteString encodedData = PayloadCodec.DEFLATE.encode(compressibleData(1000));
+    try {
+      PayloadCodec.DEFLATE.decode(encodedData.substring(0, encodedData.size() / 2));
+      fail("Should have thrown a DataFormatException");
+    } catch (DataFormatException expected) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testDecodeIsBounded() throws Exception {
+    ByteString data = compressibleData(1000);
+    ByteString encodedData = PayloadCodec.DEFLATE.encode(data);
+    assertEquals(data, PayloadCodec.DEFLATE.decode(encodedData, data.size()));
+    try {
+      PayloadCodec.DEFLATE.decode(encodedData, data.size() - 1);
+      fail("Should have thrown a DataFormatException");
+    } catch (DataFormatException expected) {
+      // Expected
+    }
+
+    // A small payload that expands past the largest message is rejected.
+    ByteString bomb =
+        PayloadCodec.DEFLATE.encode(
+            ByteString.copyFrom(new byte[PayloadCodec.MAX_DECODED_BYTES + 1]));
+    assertThat(bomb.size()).isLessThan(100 * 1024);
+    try {
+      PayloadCodec.DEFLATE.decode(bomb);
+      fail("Should have thrown a DataFormatException");
+    } catch (DataFormatException expected) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testCodecsReuseTheirStreams() throws Exception {
+    ByteString data = compressibleData(1000);
+    ByteString encodedData = PayloadCodec.DEFLATE_FAST.encode(data);
+    int idleCompressors = PayloadCodec.DEFLATE_FAST.getIdleCompressorCount();
+    assertThat(idleCompressors).isAtLeast(1);
+
+    // Once the stream and buffer are pooled, encoding only allocates the copies of the data.
+    long allocatedBytes = ThreadAllocations.getAllocatedBytes();
+    for (int i = 0; i < 100; i++) {
+      assertEquals(encodedData, PayloadCodec.DEFLATE_FAST.encode(data));
+      assertEquals(data, PayloadCodec.DEFLATE_FAST.decode(encodedData));
+    }
+    long allocatedBytesPerRoundTrip =
+        (ThreadAllocations.getAllocatedBytes() - allocatedBytes) / 100;
+    // A new stream would add two 8 KiB buffers, besides its native state.
+    assertThat(allocatedBytesPerRoundTrip).isLessThan(20 * 1024L);
+    assertEquals(idleCompressors, PayloadCodec.DEFLATE_FAST.getIdleCompressorCount());
+  }
+
+  @Test
+  public void testDecodeMessageWithUnknownCodec() throws Exception {
+    PubsubMessage message =
+        PubsubMessage.newBuilder()
+            .setData(compressibleData(1000))
+            .putAttributes(PayloadCodec.ATTRIBUTE_KEY, "unknown")
+            .build();
+    assertSame(message, PayloadCodec.decodeMessage(message));
+  }
+
+  @Test
+  public void testCompressibleDataIsCompressed() throws Exception {
+    PayloadCompressor compressor = new PayloadCompressor(BYTES_THRESHOLD);
+    PubsubMessage message =
+        PubsubMessage.newBuilder()
+            .setData(compressibleData(1000))
+            .putAttributes("key", "value")
+            .build();
+    for (int i = 0; i < 3; i++) {
+      PubsubMessage compressedMessage = compressor.compress(message);
+      assertThat(compressedMessage.getData().size()).isLessThan(message.getData().size());
+      assertEquals(
+          compressor.getSelectedCodec().getCodecName(),
+          compressedMessage.getAttributesOrThrow(PayloadCodec.ATTRIBUTE_KEY));
+      assertEquals(message, PayloadCodec.decodeMessage(compressedMessage));
+    }
+  }
+
+  @Test
+  public void testIncompressibleDataIsNotCompressed() throws Exception {
+    PayloadCompressor compressor = new PayloadCompressor(BYTES_THRESHOLD);
+    byte[] bytes = new byte[1000];
+    new Random(0).nextBytes(bytes);
+    PubsubMessage message = PubsubMessage.newBuilder().setData(ByteString.copyFrom(bytes)).build();
+    for (int i = 0; i < 3; i++) {
+      assertSame(message, compressor.compress(message));
+    }
+    assertNull(compressor.getSelectedCodec());
+  }
+
+  @Test
+  public void testSmallDataIsNotCompressed() throws Exception {
+    PayloadCompressor compressor = new PayloadCompressor(BYTES_THRESHOLD);
+    PubsubMessage message =
+        PubsubMessage.newBuilder().setData(compressibleData(BYTES_THRESHOLD - 1)).build();
+    assertSame(message, compressor.compress(message));
+    // Small messages do not count as samples.
+    assertNull(compressor.getSelectedCodec());
+  }
+
+  private static ByteString compressibleData(int size) {
+    StringBuilder data = new StringBuilder();
+    for (int i = 0; data.length() < size; i++) {
+      data.append("{\"sensor\":").append(i % 10).append(",\"value\":42},");
+    }
+    return ByteString.copyFromUtf8(data.substring(0, size));
+  }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2026 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub.v1;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import com.google.protobuf.ByteString;
+import com.google.pubsub.v1.PubsubMessage;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link PublishBufferLog}. */
+@RunWith(JUnit4.class)
+public class PublishBufferLogTest {
+  private static final int SEGMENT_BYTES = 64;
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void testAppendAndRead() throws Exception {
+    PublishBufferLog log = PublishBufferLog.open(temporaryFolder.getRoot().toPath(), SEGMENT_BYTES);
+    assertThat(log.getRecoveredPositions()).isEmpty();
+
+    PubsubMessage message1 = newMessage("A");
+    PubsubMessage message2 =
+        message1.toBuilder().putAttributes("key", "value").setOrderingKey("ordering-key").build();
+    long position1 = log.append(message1);
+    long position2 = log.append(message2);
+    assertEquals(message1, log.read(position1));
+    assertEquals(message2, log.read(position2));
+    log.close();
+  }
+
+  @Test
+  public void testSegmentsAreDeletedOnceAcknowledged() throws Exception {
+    Path directory = temporaryFolder.getRoot().toPath();
+    PublishBufferLog log = PublishBufferLog.open(directory, SEGMENT_BYTES);
+
+    // Each record takes 19 bytes, so a segment holds three.
+    List<Long> positions = new ArrayList<>();
+    for (int i = 0; i < 7; i++) {
+      positions.add(log.append(newMessage("message-" + i)));
+    }
+    assertEquals(3, log.getSegmentCount());
+    assertEquals(3, countFiles(directory));
+
+    // The first segment is deleted once all its records are acknowledged, in any order.
+    log.acknowledge(positions.get(2));
+    log.acknowledge(positions.get(0));
+    assertEquals(3, log.getSegmentCount());
+    log.acknowledge(positions.get(1));
+    assertEquals(2, log.getSegmentCount());
+    assertEquals(2, countFiles(directory));
+
+    // Acknowledging a record twice has no effect.
+    log.acknowledge(positions.get(1));
+    log.acknowledge(positions.get(3));
+    log.acknowledge(positions.get(3));
+    assertEquals(2, log.getSegmentCount());
+
+    // The active segment is kept, and deleted when the log is closed if it is empty.
+    log.acknowledge(positions.get(6));
+    assertEquals(2, log.getSegmentCount());
+    log.acknowledge(positions.get(4));
+    log.acknowledge(positions.get(5));
+    assertEquals(1, log.getSegmentCount());
+    log.close();
+    assertEquals(0, countFiles(directory));
+  }
+
+  @Test
+  public void testUnacknowledgedRecordsAreRecovered() throws Exception {
+    Path directory = temporaryFolder.getRoot().toPath();
+    PublishBufferLog log = PublishBufferLog.open(directory, SEGMENT_BYTES);
+    List<Long> positions = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      positions.add(log.append(newMessage("message-" + i)));
+    }
+    log.acknowledge(positions.get(1));
+    log.acknowledge(positions.get(3));
+    log.close();
+
+    PublishBufferLog reopenedLog = PublishBufferLog.open(directory, SEGMENT_BYTES);
+    List<Long> recoveredPositions = reopenedLog.getRecoveredPositions();
+    assertEquals(3, recoveredPositions.size());
+    assertEquals(newMessage("message-0"), reopenedLog.read(recoveredPositions.get(0)));
+    assertEquals(newMessage("message-2"), reopenedLog.read(recoveredPositions.get(1)));
+    assertEquals(newMessage("message-4"), reopenedLog.read(recoveredPositions.get(2)));
+
+    // New records go to a new segment, and recovered segments are deleted once acknowledged.
+    long position = reopenedLog.append(newMessage("message-5"));
+    assertEquals(3, reopenedLog.getSegmentCount());
+    for (long recoveredPosition : recoveredPositions) {
+      reopenedLog.acknowledge(recoveredPosition);
+    }
+    assertEquals(1, reopenedLog.getSegmentCount());
+    reopenedLog.acknowledge(position);
+    reopenedLog.close();
+    assertThat(PublishBufferLog.open(directory, SEGMENT_BYTES).getRecoveredPositions()).isEmpty();
+  }
+
+  @Test
+  public void testEmptyMessageIsRecovered() throws Exception {
+    Path directory = temporaryFolder.getRoot().toPath();
+    PublishBufferLog log = PublishBufferLog.open(directory, SEGMENT_BYTES);
+    // The empty message serializes to no bytes, and is followed by another in the same segment.
+    log.append(newMessage("message-1"));
+    long position = log.append(PubsubMessage.getDefaultInstance());
+    log.append(newMessage("message-2"));
+    assertEquals(PubsubMessage.getDefaultInstance(), log.read(position));
+    log.close();
+
+    PublishBufferLog reopenedLog = PublishBufferLog.open(directory, SEGMENT_BYTES);
+    List<Long> recoveredPositions = reopenedLog.getRecoveredPositions();
+    assertEquals(3, recoveredPositions.size());
+    assertEquals(newMessage("message-1"), reopenedLog.read(recoveredPositions.get(0)));
+    assertEquals(PubsubMessage.getDefaultInstance(), reopenedLog.read(recoveredPositions.get(1)));
+    assertEquals(newMessage("message-2"), reopenedLog.read(recoveredPositions.get(2)));
+
+    // The segment is deleted once all its records, including the empty one, are acknowledged.
+    for (long recoveredPosition : recoveredPositions) {
+      reopenedLog.acknowledge(recoveredPosition);
+    }
+    assertEquals(0, reopenedLog.getSegmentCount());
+    reopenedLog.close();
+  }
+
+  @Test
+  public void testIncompleteRecordIsNotRecovered() throws Exception {
+    Path directory = temporaryFolder.getRoot().toPath();
+    PublishBufferLog log = PublishBufferLog.open(directory, SEGMENT_BYTES);
+    long position1 = log.append(newMessage("message-1"));
+    long position2 = log.append(newMessage("message-2"));
+    log.close();
+
+    // Corrupts the payload of the second record, as if the process stopped while writing it.
+    Path segment = listFiles(directory).get(0);
+    try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+      file.seek((int) position2 + 10);
+      file.write('X');
+    }
+
+    PublishBufferLog reopenedLog = PublishBufferLog.open(directory, SEGMENT_BYTES);
+    assertThat(reopenedLog.getRecoveredPositions()).containsExactly(position1);
+    reopenedLog.close();
+  }
+
+  @Test
+  public void testMessageLargerThanSegment() throws Exception {
+    PublishBufferLog log = PublishBufferLog.open(temporaryFolder.getRoot().toPath(), SEGMENT_BYTES);
+    try {
+      log.append(newMessage(new String(new char[SEGMENT_BYTES])));
+      fail("Should have thrown an IOException");
+    } catch (IOException expected) {
+      // Expected
+    }
+    log.close();
+  }
+
+  private static PubsubMessage newMessage(String data) {
+    return PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8(data)).build();
+  }
+
+  private static int countFiles(Path directory) throws IOException {
+    return listFiles(directory).size();
+  }
+
+  private static List<Path> listFiles(Path directory) throws IOException {
+    List<Path> files = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+      for (Path file : stream) {
+        files.add(file);
+      }
+    }
+    return files;
+  }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2026 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub.v1;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import com.google.api.core.ApiFunction;
+import com.google.api.core.ApiFuture;
+import com.google.api.core.SettableApiFuture;
+import com.google.common.hash.HashCode;
+import com.google.protobuf.ByteString;
+import com.google.pubsub.v1.PubsubMessage;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link PublishDeduplicator}. */
+@RunWith(JUnit4.class)
+public class PublishDeduplicatorTest {
+  private final FakeClock clock = new FakeClock();
+  private final List<SettableApiFuture<String>> publishes = new ArrayList<>();
+  private final ApiFunction<PubsubMessage, ApiFuture<String>> publishFunction =
+      new ApiFunction<PubsubMessage, ApiFuture<String>>() {
+        @Override
+        public ApiFuture<String> apply(PubsubMessage message) {
+          SettableApiFuture<String> future = SettableApiFuture.create();
+          publishes.add(future);
+          return future;
+        }
+      };
+
+  @Test
+  public void testDuplicatesWithinWindowShareFuture() throws Exception {
+    PublishDeduplicator deduplicator =
+        new PublishDeduplicator(null, Duration.ofSeconds(10), 100, clock);
+    ApiFuture<String> future = deduplicator.publish(newMessage("A"), publishFunction);
+    assertSame(future, deduplicator.publish(newMessage("A"), publishFunction));
+    deduplicator.publish(newMessage("B"), publishFunction);
+    assertEquals(2, publishes.size());
+    assertEquals(1, deduplicator.getDuplicateCount());
+
+    // A published message is still a duplicate until the window ends.
+    publishes.get(0).set("1");
+    clock.advance(9, TimeUnit.SECONDS);
+    ApiFuture<String> duplicateFuture = deduplicator.publish(newMessage("A"), publishFunction);
+    assertEquals("1", duplicateFuture.get());
+    clock.advance(1, TimeUnit.SECONDS);
+    assertNotSame(future, deduplicator.publish(newMessage("A"), publishFunction));
+    assertEquals(3, publishes.size());
+  }
+
+  @Test
+  public void testFailedMessageIsForgotten() throws Exception {
+    PublishDeduplicator deduplicator =
+        new PublishDeduplicator(null, Duration.ofSeconds(10), 100, clock);
+    deduplicator.publish(newMessage("A"), publishFunction);
+    publishes.get(0).setException(new IllegalStateException("failed"));
+    deduplicator.publish(newMessage("A"), publishFunction);
+    assertEquals(2, publishes.size());
+    assertEquals(0, deduplicator.getDuplicateCount());
+  }
+
+  @Test
+  public void testOldestEntriesAreDroppedOverLimit() {
+    PublishDeduplicator deduplicator =
+        new PublishDeduplicator(null, Duration.ofSeconds(10), 2, clock);
+    deduplicator.publish(newMessage("A"), publishFunction);
+    deduplicator.publish(newMessage("B"), publishFunction);
+    deduplicator.publish(newMessage("C"), publishFunction);
+    assertEquals(2, deduplicator.getEntryCount());
+    deduplicator.publish(newMessage("A"), publishFunction);
+    deduplicator.publish(newMessage("C"), publishFunction);
+    assertEquals(4, publishes.size());
+  }
+
+  @Test
+  public void testKeyFunction() {
+    PublishDeduplicator deduplicator =
+        new PublishDeduplicator(
+            new ApiFunction<PubsubMessage, String>() {
+              @Override
+              public String apply(PubsubMessage message) {
+                return message.getAttributesMap().get("event-id");
+              }
+            },
+            Duration.ofSeconds(10),
+            100,
+            clock);
+    deduplicator.publish(
+        newMessage("A").toBuilder().putAttributes("event-id", "1").build(), publishFunction);
+    deduplicator.publish(
+        newMessage("B").toBuilder().putAttributes("event-id", "1").build(), publishFunction);
+    // Messages without a key are always published.
+    deduplicator.publish(newMessage("C"), publishFunction);
+    deduplicator.publish(newMessage("C"), publishFunction);
+    assertEquals(3, publishes.size());
+    assertEquals(1, deduplicator.getEntryCount());
+  }
+
+  @Test
+  public void testContentHash() {
+    PubsubMessage message =
+        newMessage("A").toBuilder().putAttributes("a", "1").putAttributes("b", "2").build();
+    assertEquals(
+        PublishDeduplicator.hashContent(message),
+        PublishDeduplicator.hashContent(
+            newMessage("A").toBuilder().putAttributes("b", "2").putAttributes("a", "1").build()));
+    // Attributes with the same String hash code, or that only move bytes between fields, differ.
+    assertNotEquals(hashContent("k", "Aa"), hashContent("k", "BB"));
+    assertNotEquals(hashContent("ab", ""), hashContent("a", "b"));
+    assertNotEquals(
+        PublishDeduplicator.hashContent(newMessage("A")),
+        PublishDeduplicator.hashContent(newMessage("A").toBuilder().setOrderingKey("A").build()));
+  }
+
+  @Test
+  public void testLargeLimitsAreStriped() {
+    PublishDeduplicator deduplicator =
+        new PublishDeduplicator(null, Duration.ofSeconds(10), 100000, clock);
+    assertThat(deduplicator.getStripeCount()).isGreaterThan(1);
+    for (int i = 0; i < 1000; i++) {
+      deduplicator.publish(newMessage("m" + i), publishFunction);
+    }
+    for (int i = 0; i < 1000; i++) {
+      deduplicator.publish(newMessage("m" + i), publishFunction);
+    }
+    assertEquals(1000, publishes.size());
+    assertEquals(1000, deduplicator.getDuplicateCount());
+    assertEquals(1000, deduplicator.getEntryCount());
+    assertEquals(
+        1, new PublishDeduplicator(null, Duration.ofSeconds(10), 100, clock).getStripeCount());
+  }
+
+  private static HashCode hashContent(String attributeKey, String attributeValue) {
+    return PublishDeduplicator.hashContent(
+        newMessage("A").toBuilder().putAttributes(attributeKey, attributeValue).build());
+  }
+
+  private static PubsubMessage newMessage(String data) {
+    return PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8(data)).build();
+  }
+}
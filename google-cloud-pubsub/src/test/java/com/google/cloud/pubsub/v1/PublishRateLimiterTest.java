@@ -0,0 +1,134 @@
+/*
+ * Copyright 2026 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub.v1;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertEquals;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link PublishRateLimiter}. */
+@RunWith(JUnit4.class)
+public class PublishRateLimiterTest {
+  private final FakeScheduledExecutorService executor = new FakeScheduledExecutorService();
+  private final List<String> sent = new ArrayList<>();
+
+  @Test
+  public void testMessageRateDelaysRequestsInOrder() {
+    PublishRateLimiter limiter = newLimiter(10, 0, 0, 0);
+
+    execute(limiter, "", 5, "A");
+    execute(limiter, "", 5, "B");
+    execute(limiter, "", 5, "C");
+    execute(limiter, "", 1, "D");
+    assertThat(sent).containsExactly("A", "B").inOrder();
+    assertEquals(2, limiter.getPendingRequestCount());
+
+    executor.advanceTime(Duration.ofMillis(400));
+    assertThat(sent).containsExactly("A", "B").inOrder();
+
+    executor.advanceTime(Duration.ofMillis(150));
+    assertThat(sent).containsExactly("A", "B", "C").inOrder();
+
+    executor.advanceTime(Duration.ofMillis(150));
+    assertThat(sent).containsExactly("A", "B", "C", "D").inOrder();
+    assertEquals(0, limiter.getPendingRequestCount());
+  }
+
+  @Test
+  public void testOrderingKeyRateDoesNotHoldBackOtherKeys() {
+    PublishRateLimiter limiter = newLimiter(0, 0, 1, 0);
+
+    execute(limiter, "a", 1, "A1");
+    execute(limiter, "a", 1, "A2");
+    execute(limiter, "b", 1, "B1");
+    execute(limiter, "", 1, "U1");
+    execute(limiter, "a", 1, "A3");
+    assertThat(sent).containsExactly("A1", "B1", "U1").inOrder();
+
+    executor.advanceTime(Duration.ofMillis(1100));
+    assertThat(sent).containsExactly("A1", "B1", "U1", "A2").inOrder();
+
+    executor.advanceTime(Duration.ofMillis(1100));
+    assertThat(sent).containsExactly("A1", "B1", "U1", "A2", "A3").inOrder();
+  }
+
+  @Test
+  public void testRequestLargerThanByteRateIsSentWhenBucketIsFull() {
+    PublishRateLimiter limiter = newLimiter(0, 100, 0, 0);
+
+    execute(limiter, "", 250, "A");
+    execute(limiter, "", 10, "B");
+    assertThat(sent).containsExactly("A");
+
+    // The request over the bucket is paid back before the next one is sent.
+    executor.advanceTime(Duration.ofMillis(1500));
+    assertThat(sent).containsExactly("A");
+    executor.advanceTime(Duration.ofMillis(200));
+    assertThat(sent).containsExactly("A", "B").inOrder();
+  }
+
+  @Test
+  public void testBudgetsOfIdleOrderingKeysAreDropped() {
+    PublishRateLimiter limiter = newLimiter(0, 0, 10, 0);
+
+    for (int i = 0; i < 100; i++) {
+      execute(limiter, "key" + i, 1, "A" + i);
+    }
+    assertEquals(100, limiter.getKeyBudgetCount());
+
+    // The budgets are pruned as their number doubles, which drops those of the idle keys.
+    executor.advanceTime(Duration.ofMillis(1100));
+    for (int i = 0; i < 30; i++) {
+      execute(limiter, "other" + i, 1, "B" + i);
+    }
+    assertEquals(30, limiter.getKeyBudgetCount());
+    assertEquals(130, sent.size());
+  }
+
+  private PublishRateLimiter newLimiter(
+      double messagesPerSecond,
+      double bytesPerSecond,
+      double keyMessagesPerSecond,
+      double keyBytesPerSecond) {
+    return new PublishRateLimiter(
+        messagesPerSecond,
+        bytesPerSecond,
+        keyMessagesPerSecond,
+        keyBytesPerSecond,
+        executor,
+        executor.getClock());
+  }
+
+  private void execute(PublishRateLimiter limiter, String orderingKey, int size, final String id) {
+    limiter.execute(
+        orderingKey,
+        size,
+        size,
+        new Runnable() {
+          @Override
+          public void run() {
+            sent.add(id);
+          }
+        });
+  }
+}
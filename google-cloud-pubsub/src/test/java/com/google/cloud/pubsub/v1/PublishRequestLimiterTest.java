@@ -0,0 +1,222 @@
+/*
+ * Copyright 2026 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub.v1;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.gax.grpc.GrpcStatusCode;
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.ApiExceptionFactory;
+import com.google.api.gax.tracing.ApiTracer;
+import com.google.api.gax.tracing.ApiTracerFactory;
+import com.google.api.gax.tracing.BaseApiTracer;
+import com.google.api.gax.tracing.BaseApiTracerFactory;
+import com.google.api.gax.tracing.SpanName;
+import io.grpc.Status;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link PublishRequestLimiter}. */
+@RunWith(JUnit4.class)
+public class PublishRequestLimiterTest {
+  private static final SpanName SPAN_NAME = SpanName.of("Publisher", "Publish");
+
+  private final FakeClock clock = new FakeClock();
+  private final AtomicInteger capacityNotifications = new AtomicInteger();
+
+  @Test
+  public void testRequestsOverLimitWaitInOrder() {
+    PublishRequestLimiter limiter = newLimiter(2, false);
+    List<String> sent = new ArrayList<>();
+
+    limiter.execute(record(sent, "A"));
+    assertFalse(limiter.isSaturated());
+    limiter.execute(record(sent, "B"));
+    assertTrue(limiter.isSaturated());
+    limiter.execute(record(sent, "C"));
+    limiter.execute(record(sent, "D"));
+    assertThat(sent).containsExactly("A", "B").inOrder();
+
+    limiter.release();
+    assertThat(sent).containsExactly("A", "B", "C").inOrder();
+    assertTrue(limiter.isSaturated());
+    assertEquals(0, capacityNotifications.get());
+
+    limiter.release();
+    assertThat(sent).containsExactly("A", "B", "C", "D").inOrder();
+    assertEquals(2, limiter.getInflightRequests());
+
+    limiter.release();
+    assertFalse(limiter.isSaturated());
+    assertEquals(1, capacityNotifications.get());
+    limiter.release();
+    assertEquals(0, limiter.getInflightRequests());
+  }
+
+  @Test
+  public void testPriorityRequestsGoFirst() {
+    PublishRequestLimiter limiter = newLimiter(1, false);
+    List<String> sent = new ArrayList<>();
+
+    limiter.execute(record(sent, "A"));
+    limiter.execute(record(sent, "B"));
+    limiter.execute(record(sent, "P1"), true);
+    limiter.execute(record(sent, "P2"), true);
+    assertThat(sent).containsExactly("A");
+
+    limiter.release();
+    limiter.release();
+    limiter.release();
+    assertThat(sent).containsExactly("A", "P1", "P2", "B").inOrder();
+  }
+
+  @Test
+  public void testFixedLimitIgnoresFailures() {
+    PublishRequestLimiter limiter = newLimiter(4, false);
+    limiter.onAttemptFailed(newException(Status.Code.RESOURCE_EXHAUSTED), 0);
+    assertEquals(4, limiter.getLimit());
+  }
+
+  @Test
+  public void testAdaptiveLimitDecreasesOncePerRoundTrip() {
+    PublishRequestLimiter limiter = newLimiter(16, true);
+
+    clock.advance(1, TimeUnit.SECONDS);
+    limiter.onAttemptFailed(newException(Status.Code.RESOURCE_EXHAUSTED), latencyNanos(100));
+    assertEquals(8, limiter.getLimit());
+
+    // Attempts that were sent before the decrease do not decrease the limit again.
+    clock.advance(50, TimeUnit.MILLISECONDS);
+    limiter.onAttemptFailed(newException(Status.Code.DEADLINE_EXCEEDED), latencyNanos(100));
+    assertEquals(8, limiter.getLimit());
+
+    clock.advance(100, TimeUnit.MILLISECONDS);
+    limiter.onAttemptFailed(newException(Status.Code.DEADLINE_EXCEEDED), latencyNanos(100));
+    assertEquals(4, limiter.getLimit());
+  }
+
+  @Test
+  public void testAdaptiveLimitIgnoresOtherFailures() {
+    PublishRequestLimiter limiter = newLimiter(16, true);
+
+    clock.advance(1, TimeUnit.SECONDS);
+    limiter.onAttemptFailed(newException(Status.Code.UNAVAILABLE), latencyNanos(100));
+    limiter.onAttemptFailed(new IllegalStateException(), latencyNanos(100));
+    assertEquals(16, limiter.getLimit());
+  }
+
+  @Test
+  public void testAdaptiveLimitIncreasesOnSuccess() {
+    PublishRequestLimiter limiter = newLimiter(4, true);
+    clock.advance(1, TimeUnit.SECONDS);
+    limiter.onAttemptFailed(newException(Status.Code.RESOURCE_EXHAUSTED), latencyNanos(100));
+    assertEquals(2, limiter.getLimit());
+
+    List<String> sent = new ArrayList<>();
+    limiter.execute(record(sent, "A"));
+    limiter.execute(record(sent, "B"));
+    limiter.execute(record(sent, "C"));
+    assertThat(sent).containsExactly("A", "B").inOrder();
+
+    // Each success raises the limit by 1 / limit, so a few successes raise it by one, which lets
+    // the waiting request through.
+    limiter.onAttemptSucceeded(latencyNanos(100));
+    limiter.onAttemptSucceeded(latencyNanos(100));
+    assertEquals(2, limiter.getLimit());
+    assertThat(sent).containsExactly("A", "B").inOrder();
+    limiter.onAttemptSucceeded(latencyNanos(100));
+    assertEquals(3, limiter.getLimit());
+    assertThat(sent).containsExactly("A", "B", "C").inOrder();
+
+    // The limit never exceeds its maximum.
+    for (int i = 0; i < 100; i++) {
+      limiter.onAttemptSucceeded(latencyNanos(100));
+    }
+    assertEquals(4, limiter.getLimit());
+  }
+
+  @Test
+  public void testTracerReportsAttempts() {
+    PublishRequestLimiter limiter = newLimiter(8, true);
+    clock.advance(1, TimeUnit.SECONDS);
+    ApiTracer tracer = limiter.newTracer();
+
+    tracer.attemptStarted(null, 0);
+    tracer.attemptFailedDuration(
+        newException(Status.Code.RESOURCE_EXHAUSTED), java.time.Duration.ofMillis(10));
+    assertEquals(4, limiter.getLimit());
+
+    tracer.attemptStarted(null, 1);
+    tracer.attemptSucceeded();
+    assertThat(limiter.getLimit()).isAtLeast(4);
+  }
+
+  @Test
+  public void testTracerFactory() {
+    PublishRequestLimiter limiter = newLimiter(8, true);
+    ApiTracerFactory factory =
+        PublishRequestLimiter.newTracerFactory(BaseApiTracerFactory.getInstance());
+
+    ApiTracer tracer = limiter.newTracer();
+    assertSame(tracer, factory.newTracer(tracer, SPAN_NAME, ApiTracerFactory.OperationType.Unary));
+    assertSame(
+        BaseApiTracer.getInstance(),
+        factory.newTracer(
+            BaseApiTracer.getInstance(), SPAN_NAME, ApiTracerFactory.OperationType.Unary));
+  }
+
+  private PublishRequestLimiter newLimiter(int maxLimit, boolean adaptive) {
+    return new PublishRequestLimiter(
+        maxLimit,
+        adaptive,
+        new FakeScheduledExecutorService(),
+        new Runnable() {
+          @Override
+          public void run() {
+            capacityNotifications.incrementAndGet();
+          }
+        },
+        clock);
+  }
+
+  private static Runnable record(final List<String> sent, final String name) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        sent.add(name);
+      }
+    };
+  }
+
+  private static long latencyNanos(long millis) {
+    return TimeUnit.MILLISECONDS.toNanos(millis);
+  }
+
+  private static ApiException newException(Status.Code code) {
+    return ApiExceptionFactory.createException(
+        new RuntimeException(code.name()), GrpcStatusCode.of(code), true);
+  }
+}
@@ -23,7 +23,9 @@ import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import com.google.api.core.ApiFunction;
 import com.google.api.core.ApiFuture;
+import com.google.api.core.NanoClock;
 import com.google.api.gax.batching.BatchingSettings;
 import com.google.api.gax.batching.FlowControlSettings;
 import com.google.api.gax.batching.FlowController;
@@ -33,10 +35,14 @@ import com.google.api.gax.core.InstantiatingExecutorProvider;
 import com.google.api.gax.core.NoCredentialsProvider;
 import com.google.api.gax.grpc.GrpcTransportChannel;
 import com.google.api.gax.grpc.testing.LocalChannelProvider;
+import com.google.api.gax.rpc.ApiException;
 import com.google.api.gax.rpc.DataLossException;
 import com.google.api.gax.rpc.FixedTransportChannelProvider;
+import com.google.api.gax.rpc.InvalidArgumentException;
+import com.google.api.gax.rpc.StatusCode;
 import com.google.api.gax.rpc.TransportChannelProvider;
 import com.google.cloud.pubsub.v1.Publisher.Builder;
+import com.google.common.base.Strings;
 import com.google.protobuf.ByteString;
 import com.google.pubsub.v1.ProjectTopicName;
 import com.google.pubsub.v1.PublishRequest;
@@ -54,17 +60,27 @@ import io.opentelemetry.sdk.testing.assertj.OpenTelemetryAssertions;
 import io.opentelemetry.sdk.testing.assertj.SpanDataAssert;
 import io.opentelemetry.sdk.testing.junit4.OpenTelemetryRule;
 import io.opentelemetry.sdk.trace.data.SpanData;
+import java.nio.file.Path;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 import org.easymock.EasyMock;
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
@@ -85,6 +101,8 @@ public class PublisherImplTest {
   private static final String PUBLISH_BATCHING_SPAN_NAME = "publisher batching";
   private static final String PUBLISH_RPC_SPAN_NAME = TEST_TOPIC.getTopic() + " publish";
 
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
   private FakeScheduledExecutorService fakeExecutor;
 
   private FakePublisherServiceImpl testPublisherServiceImpl;
@@ -181,139 +199,1489 @@ public class PublisherImplTest {
   }
 
   @Test
-  public void testSinglePublishByNumBytes() throws Exception {
+  public void testPublishWithBatchingPolicy() throws Exception {
+    final List<Integer> startedBatchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+    final List<Boolean> completedBatches = Collections.synchronizedList(new ArrayList<Boolean>());
+    BatchingPolicy batchingPolicy =
+        new BatchingPolicy() {
+          @Override
+          public long getElementCountThreshold() {
+            return 2;
+          }
+
+          @Override
+          public long getRequestByteThreshold() {
+            return 1000;
+          }
+
+          @Override
+          public Duration getDelayThreshold() {
+            return Duration.ofSeconds(100);
+          }
+
+          @Override
+          public void onPublishStarted(int messageCount, long batchBytes, int inflightRequests) {
+            startedBatchSizes.add(messageCount);
+          }
+
+          @Override
+          public void onPublishCompleted(
+              int messageCount, long batchBytes, Duration latency, boolean success) {
+            completedBatches.add(success);
+          }
+        };
+    Publisher publisher = getTestPublisherBuilder().setBatchingPolicy(batchingPolicy).build();
+
+    testPublisherServiceImpl
+        .addPublishResponse(PublishResponse.newBuilder().addMessageIds("1").addMessageIds("2"))
+        .addPublishResponse(PublishResponse.newBuilder().addMessageIds("3"));
+
+    ApiFuture<String> publishFuture1 = sendTestMessage(publisher, "A");
+    ApiFuture<String> publishFuture2 = sendTestMessage(publisher, "B");
+    ApiFuture<String> publishFuture3 = sendTestMessage(publisher, "C");
+
+    // The element count threshold of the policy is reached without advancing time.
+    assertEquals("1", publishFuture1.get());
+    assertEquals("2", publishFuture2.get());
+    assertFalse(publishFuture3.isDone());
+
+    // The delay threshold of the policy, not of the batching settings, sends the last batch.
+    fakeExecutor.advanceTime(Duration.ofSeconds(100));
+    assertEquals("3", publishFuture3.get());
+
+    assertThat(startedBatchSizes).containsExactly(2, 1).inOrder();
+    assertThat(completedBatches).containsExactly(true, true);
+    shutdownTestPublisher(publisher);
+  }
+
+  @Test
+  public void testPublishWithBatchingPolicy_delayShrinksMidStream() throws Exception {
+    final AtomicReference<Duration> delayThreshold =
+        new AtomicReference<>(Duration.ofSeconds(100));
+    BatchingPolicy batchingPolicy =
+        new BatchingPolicy() {
+          @Override
+          public long getElementCountThreshold() {
+            return 10;
+          }
+
+          @Override
+          public long getRequestByteThreshold() {
+            return 1000;
+          }
+
+          @Override
+          public Duration getDelayThreshold() {
+            return delayThreshold.get();
+          }
+        };
+    Publisher publisher =
+        getTestPublisherBuilder()
+            .setBatchingPolicy(batchingPolicy)
+            .setEnableMessageOrdering(true)
+            .build();
+    testPublisherServiceImpl.setAutoPublishResponse(true);
+
+    ApiFuture<String> publishFuture1 = sendTestMessageWithOrderingKey(publisher, "m1", "OrderA");
+    delayThreshold.set(Duration.ofSeconds(1));
+    ApiFuture<String> publishFuture2 = sendTestMessageWithOrderingKey(publisher, "m2", "OrderB");
+
+    // The batch opened later with the shorter delay is due first.
+    fakeExecutor.advanceTime(Duration.ofSeconds(1));
+    publishFuture2.get();
+    assertFalse(publishFuture1.isDone());
+    assertEquals(1, testPublisherServiceImpl.getCapturedRequests().size());
+
+    fakeExecutor.advanceTime(Duration.ofSeconds(99));
+    publishFuture1.get();
+    assertEquals(2, testPublisherServiceImpl.getCapturedRequests().size());
+    shutdownTestPublisher(publisher);
+  }
+
+  @Test
+  public void testBatchesGrowWhileRequestLimitIsReached() throws Exception {
     Publisher publisher =
         getTestPublisherBuilder()
             .setBatchingSettings(
                 Publisher.Builder.DEFAULT_BATCHING_SETTINGS.toBuilder()
-                    .setElementCountThreshold(2L)
+                    .setElementCountThreshold(1L)
                     .setDelayThresholdDuration(Duration.ofSeconds(100))
                     .build())
+            .setMaxOutstandingPublishRequests(1)
             .build();
 
-    testPublisherServiceImpl
-        .addPublishResponse(PublishResponse.newBuilder().addMessageIds("1").addMessageIds("2"))
-        .addPublishResponse(PublishResponse.newBuilder().addMessageIds("3").addMessageIds("4"));
-
     ApiFuture<String> publishFuture1 = sendTestMessage(publisher, "A");
+    // The first request is in flight, so the following messages stay in one batch.
     ApiFuture<String> publishFuture2 = sendTestMessage(publisher, "B");
     ApiFuture<String> publishFuture3 = sendTestMessage(publisher, "C");
+    ApiFuture<String> publishFuture4 = sendTestMessage(publisher, "D");
 
-    // Note we are not advancing time but message should still get published
+    // The delay threshold passes while the limit is reached. The batch is sent once the first
+    // request completes.
+    fakeExecutor.advanceTime(Duration.ofSeconds(100));
+    assertFalse(publishFuture2.isDone());
 
+    testPublisherServiceImpl
+        .addPublishResponse(PublishResponse.newBuilder().addMessageIds("1"))
+        .addPublishResponse(
+            PublishResponse.newBuilder().addMessageIds("2").addMessageIds("3").addMessageIds("4"));
     assertEquals("1", publishFuture1.get());
     assertEquals("2", publishFuture2.get());
-    assertFalse(publishFuture3.isDone());
-
-    ApiFuture<String> publishFuture4 = sendTestMessage(publisher, "D");
     assertEquals("3", publishFuture3.get());
     assertEquals("4", publishFuture4.get());
 
-    assertEquals(2, testPublisherServiceImpl.getCapturedRequests().size());
+    List<PublishRequest> requests = testPublisherServiceImpl.getCapturedRequests();
+    assertEquals(2, requests.size());
+    assertEquals(1, requests.get(0).getMessagesCount());
+    assertEquals(3, requests.get(1).getMessagesCount());
+    shutdownTestPublisher(publisher);
+  }
+
+  @Test
+  public void testPublishRequestLimitInvalidArguments() {
+    try {
+      getTestPublisherBuilder().setMaxOutstandingPublishRequests(0);
+      fail("Should have thrown an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testPublishRateLimit() throws Exception {
+    Publisher publisher =
+        getTestPublisherBuilder()
+            .setExecutorProvider(SINGLE_THREAD_EXECUTOR)
+            .setClock(NanoClock.getDefaultClock())
+            .setBatchingSettings(
+                Publisher.Builder.DEFAULT_BATCHING_SETTINGS.toBuilder()
+                    .setElementCountThreshold(1L)
+                    .setDelayThresholdDuration(Duration.ofSeconds(100))
+                    .build())
+            .setMaxPublishRate(20, 0)
+            .build();
+    testPublisherServiceImpl.setAutoPublishResponse(true);
+
+    // The first second of the rate is sent right away, and the rest at the rate.
+    long startNanos = System.nanoTime();
+    List<ApiFuture<String>> publishFutures = new ArrayList<>();
+    for (int i = 0; i < 30; i++) {
+      publishFutures.add(sendTestMessage(publisher, "A"));
+    }
+    for (ApiFuture<String> publishFuture : publishFutures) {
+      publishFuture.get();
+    }
+    assertThat(System.nanoTime() - startNanos).isAtLeast(TimeUnit.MILLISECONDS.toNanos(450));
+    assertEquals(30, testPublisherServiceImpl.getCapturedRequests().size());
+
+    publisher.shutdown();
+    assertTrue(publisher.awaitTermination(1, TimeUnit.MINUTES));
+  }
+
+  @Test
+  public void testHighPriorityMessagesAreSentWithoutDelay() throws Exception {
+    Publisher publisher =
+        getTestPublisherBuilder()
+            .setBatchingSettings(
+                Publisher.Builder.DEFAULT_BATCHING_SETTINGS.toBuilder()
+                    .setElementCountThreshold(10L)
+                    .setDelayThresholdDuration(Duration.ofSeconds(100))
+                    .build())
+            .setHighPriorityMessageFilter(
+                new ApiFunction<PubsubMessage, Boolean>() {
+                  @Override
+                  public Boolean apply(PubsubMessage message) {
+                    return message.containsAttributes("alert");
+                  }
+                })
+            .build();
+    testPublisherServiceImpl.setAutoPublishResponse(true);
+
+    ApiFuture<String> publishFuture1 = sendTestMessage(publisher, "A");
+    ApiFuture<String> priorityFuture =
+        publisher.publish(
+            PubsubMessage.newBuilder()
+                .setData(ByteString.copyFromUtf8("B"))
+                .putAttributes("alert", "")
+                .build());
+    ApiFuture<String> publishFuture2 = sendTestMessage(publisher, "C");
+
+    // The high priority message is sent alone, while the others keep waiting for their batch.
+    priorityFuture.get();
+    assertFalse(publishFuture1.isDone());
+    assertEquals(1, testPublisherServiceImpl.getCapturedRequests().size());
+    assertEquals(
+        ByteString.copyFromUtf8("B"),
+        testPublisherServiceImpl.getCapturedRequests().get(0).getMessages(0).getData());
 
     fakeExecutor.advanceTime(Duration.ofSeconds(100));
+    publishFuture1.get();
+    publishFuture2.get();
+    assertEquals(2, testPublisherServiceImpl.getCapturedRequests().get(1).getMessagesCount());
+    assertEquals(
+        1L, (long) publisher.getStats().getFlushCounts().get(PublisherStats.FlushReason.PRIORITY));
+
     shutdownTestPublisher(publisher);
   }
 
   @Test
-  public void testPublishByShutdown() throws Exception {
+  public void testLatencyBudgetFlushesBatchBeforeDelayThreshold() throws Exception {
     Publisher publisher =
         getTestPublisherBuilder()
             .setBatchingSettings(
                 Publisher.Builder.DEFAULT_BATCHING_SETTINGS.toBuilder()
-                    .setDelayThresholdDuration(Duration.ofSeconds(100))
                     .setElementCountThreshold(10L)
+                    .setDelayThresholdDuration(Duration.ofSeconds(1))
                     .build())
+            .setLatencyBudgetFunction(
+                new ApiFunction<PubsubMessage, Duration>() {
+                  @Override
+                  public Duration apply(PubsubMessage message) {
+                    return message.containsAttributes("interactive") ? Duration.ofMillis(50) : null;
+                  }
+                })
             .build();
+    testPublisherServiceImpl.setAutoPublishResponse(true);
 
-    testPublisherServiceImpl.addPublishResponse(
-        PublishResponse.newBuilder().addMessageIds("1").addMessageIds("2"));
+    ApiFuture<String> publishFuture1 = sendTestMessage(publisher, "A");
+    fakeExecutor.advanceTime(Duration.ofMillis(100));
+    ApiFuture<String> publishFuture2 =
+        publisher.publish(
+            PubsubMessage.newBuilder()
+                .setData(ByteString.copyFromUtf8("B"))
+                .putAttributes("interactive", "")
+                .build());
+
+    // The batch is sent when the budget of its second message runs out, with both messages.
+    fakeExecutor.advanceTime(Duration.ofMillis(49));
+    assertFalse(publishFuture1.isDone());
+    fakeExecutor.advanceTime(Duration.ofMillis(1));
+    publishFuture1.get();
+    publishFuture2.get();
+    assertEquals(1, testPublisherServiceImpl.getCapturedRequests().size());
+    assertEquals(2, testPublisherServiceImpl.getCapturedRequests().get(0).getMessagesCount());
+    assertEquals(
+        1L,
+        (long)
+            publisher.getStats().getFlushCounts().get(PublisherStats.FlushReason.LATENCY_BUDGET));
+
+    // Messages without a budget wait for the delay threshold.
+    ApiFuture<String> publishFuture3 = sendTestMessage(publisher, "C");
+    fakeExecutor.advanceTime(Duration.ofMillis(999));
+    assertFalse(publishFuture3.isDone());
+    fakeExecutor.advanceTime(Duration.ofMillis(1));
+    publishFuture3.get();
+    assertEquals(
+        1L, (long) publisher.getStats().getFlushCounts().get(PublisherStats.FlushReason.DELAY));
+
+    shutdownTestPublisher(publisher);
+  }
+
+  @Test
+  public void testLatencyBudgetPerOrderingKey() throws Exception {
+    Publisher publisher =
+        getTestPublisherBuilder()
+            .setBatchingSettings(
+                Publisher.Builder.DEFAULT_BATCHING_SETTINGS.toBuilder()
+                    .setElementCountThreshold(10L)
+                    .setDelayThresholdDuration(Duration.ofSeconds(1))
+                    .build())
+            .setEnableMessageOrdering(true)
+            .setLatencyBudgetFunction(
+                new ApiFunction<PubsubMessage, Duration>() {
+                  @Override
+                  public Duration apply(PubsubMessage message) {
+                    return message.getOrderingKey().equals("OrderA")
+                        ? Duration.ofMillis(300)
+                        : Duration.ofMillis(100);
+                  }
+                })
+            .build();
+    testPublisherServiceImpl.setAutoPublishResponse(true);
+
+    ApiFuture<String> publishFuture1 = sendTestMessageWithOrderingKey(publisher, "m1", "OrderA");
+    ApiFuture<String> publishFuture2 = sendTestMessageWithOrderingKey(publisher, "m2", "OrderB");
+
+    // The batch of the key with the shorter budget is sent first, though it was opened last.
+    fakeExecutor.advanceTime(Duration.ofMillis(100));
+    publishFuture2.get();
+    assertFalse(publishFuture1.isDone());
+
+    fakeExecutor.advanceTime(Duration.ofMillis(200));
+    publishFuture1.get();
+    assertEquals(2, testPublisherServiceImpl.getCapturedRequests().size());
+
+    shutdownTestPublisher(publisher);
+  }
+
+  @Test
+  public void testPublishBufferHoldsMessagesOverFlowControlLimits() throws Exception {
+    Path bufferDirectory = temporaryFolder.newFolder().toPath();
+    Publisher publisher =
+        getTestPublisherBuilder()
+            .setBatchingSettings(
+                Publisher.Builder.DEFAULT_BATCHING_SETTINGS.toBuilder()
+                    .setElementCountThreshold(1L)
+                    .setDelayThresholdDuration(Duration.ofSeconds(100))
+                    .setFlowControlSettings(
+                        FlowControlSettings.newBuilder()
+                            .setLimitExceededBehavior(
+                                FlowController.LimitExceededBehavior.ThrowException)
+                            .setMaxOutstandingElementCount(1L)
+                            .setMaxOutstandingRequestBytes(1000L)
+                            .build())
+                    .build())
+            .setPublishBufferDirectory(bufferDirectory)
+            .build();
 
+    // The messages over the limit are neither rejected nor blocking, and wait in the buffer.
     ApiFuture<String> publishFuture1 = sendTestMessage(publisher, "A");
     ApiFuture<String> publishFuture2 = sendTestMessage(publisher, "B");
+    ApiFuture<String> publishFuture3 = sendTestMessage(publisher, "C");
+    assertFalse(publishFuture2.isDone());
+    assertFalse(publishFuture3.isDone());
 
-    // Note we are not advancing time or reaching the count threshold but messages should
-    // still get published by call to shutdown
-    publisher.shutdown();
+    // Only the first message is sent: the others wait for it to release flow control, which it
+    // cannot do before it gets a response.
+    for (int i = 0; i < 500 && testPublisherServiceImpl.getCapturedRequests().isEmpty(); i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, testPublisherServiceImpl.getCapturedRequests().size());
 
-    // Verify the publishes completed
-    assertTrue(publishFuture1.isDone());
-    assertTrue(publishFuture2.isDone());
+    testPublisherServiceImpl
+        .addPublishResponse(PublishResponse.newBuilder().addMessageIds("1"))
+        .addPublishResponse(PublishResponse.newBuilder().addMessageIds("2"))
+        .addPublishResponse(PublishResponse.newBuilder().addMessageIds("3"));
     assertEquals("1", publishFuture1.get());
     assertEquals("2", publishFuture2.get());
+    assertEquals("3", publishFuture3.get());
 
-    fakeExecutor.advanceTime(Duration.ofSeconds(100));
-    publisher.awaitTermination(1, TimeUnit.MINUTES);
+    List<PublishRequest> requests = testPublisherServiceImpl.getCapturedRequests();
+    assertEquals(3, requests.size());
+    assertEquals("A", requests.get(0).getMessages(0).getData().toStringUtf8());
+    assertEquals("B", requests.get(1).getMessages(0).getData().toStringUtf8());
+    assertEquals("C", requests.get(2).getMessages(0).getData().toStringUtf8());
+    shutdownTestPublisher(publisher);
+
+    // The published messages were removed from the buffer.
+    assertThat(
+            PublishBufferLog.open(
+                    bufferDirectory, Publisher.Builder.DEFAULT_PUBLISH_BUFFER_SEGMENT_BYTES)
+                .getRecoveredPositions())
+        .isEmpty();
   }
 
   @Test
-  public void testPublishMixedSizeAndDuration() throws Exception {
+  public void testPublishBufferRecoversMessagesOnBuild() throws Exception {
+    Path bufferDirectory = temporaryFolder.newFolder().toPath();
+    PublishBufferLog log =
+        PublishBufferLog.open(
+            bufferDirectory, Publisher.Builder.DEFAULT_PUBLISH_BUFFER_SEGMENT_BYTES);
+    log.append(PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8("A")).build());
+    log.append(PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8("B")).build());
+    log.close();
+
+    testPublisherServiceImpl.addPublishResponse(
+        PublishResponse.newBuilder().addMessageIds("1").addMessageIds("2"));
     Publisher publisher =
         getTestPublisherBuilder()
-            // To demonstrate that reaching duration will trigger publish
             .setBatchingSettings(
                 Publisher.Builder.DEFAULT_BATCHING_SETTINGS.toBuilder()
                     .setElementCountThreshold(2L)
-                    .setDelayThresholdDuration(Duration.ofSeconds(5))
+                    .setDelayThresholdDuration(Duration.ofSeconds(100))
                     .build())
+            .setPublishBufferDirectory(bufferDirectory)
             .build();
+    shutdownTestPublisher(publisher);
 
-    testPublisherServiceImpl.addPublishResponse(
-        PublishResponse.newBuilder().addMessageIds("1").addMessageIds("2"));
-    testPublisherServiceImpl.addPublishResponse(PublishResponse.newBuilder().addMessageIds("3"));
+    List<PublishRequest> requests = testPublisherServiceImpl.getCapturedRequests();
+    assertEquals(1, requests.size());
+    assertEquals(2, requests.get(0).getMessagesCount());
+    assertEquals("A", requests.get(0).getMessages(0).getData().toStringUtf8());
+    assertEquals("B", requests.get(0).getMessages(1).getData().toStringUtf8());
+    assertThat(
+            PublishBufferLog.open(
+                    bufferDirectory, Publisher.Builder.DEFAULT_PUBLISH_BUFFER_SEGMENT_BYTES)
+                .getRecoveredPositions())
+        .isEmpty();
+  }
 
-    ApiFuture<String> publishFuture1 = sendTestMessage(publisher, "A");
+  @Test
+  public void testPublishBufferKeepsMessagesWhoseRetriesRanOut() throws Exception {
+    Path bufferDirectory = temporaryFolder.newFolder().toPath();
+    Publisher publisher =
+        getTestPublisherBuilder()
+            .setBatchingSettings(
+                Publisher.Builder.DEFAULT_BATCHING_SETTINGS.toBuilder()
+                    .setElementCountThreshold(1L)
+                    .setDelayThresholdDuration(Duration.ofSeconds(100))
+                    .build())
+            .setRetrySettings(
+                Publisher.Builder.DEFAULT_RETRY_SETTINGS.toBuilder()
+                    .setTotalTimeoutDuration(Duration.ofSeconds(10))
+                    .setMaxRetryDelayDuration(Duration.ofSeconds(5))
+                    .setMaxAttempts(1)
+                    .build())
+            .setPublishBufferDirectory(bufferDirectory)
+            .build();
 
-    fakeExecutor.advanceTime(Duration.ofSeconds(2));
-    assertFalse(publishFuture1.isDone());
+    testPublisherServiceImpl
+        .addPublishError(new StatusException(Status.UNAVAILABLE))
+        .addPublishResponse(PublishResponse.newBuilder().addMessageIds("1"));
+    ApiFuture<String> publishFuture = sendTestMessage(publisher, "A");
 
-    ApiFuture<String> publishFuture2 = sendTestMessage(publisher, "B");
+    // The message is published again after the retry delay, instead of failing.
+    for (int i = 0; i < 500 && !publishFuture.isDone(); i++) {
+      fakeExecutor.advanceTime(Duration.ofSeconds(5));
+      Thread.sleep(10);
+    }
+    assertEquals("1", publishFuture.get());
+    assertEquals(2, testPublisherServiceImpl.getCapturedRequests().size());
+    shutdownTestPublisher(publisher);
+    assertThat(
+            PublishBufferLog.open(
+                    bufferDirectory, Publisher.Builder.DEFAULT_PUBLISH_BUFFER_SEGMENT_BYTES)
+                .getRecoveredPositions())
+        .isEmpty();
+  }
 
-    // Publishing triggered by batch size
-    assertEquals("1", publishFuture1.get());
-    assertEquals("2", publishFuture2.get());
+  @Test
+  public void testPublishBufferPublishesRecoveredMessagesFirst() throws Exception {
+    Path bufferDirectory = temporaryFolder.newFolder().toPath();
+    PublishBufferLog log =
+        PublishBufferLog.open(
+            bufferDirectory, Publisher.Builder.DEFAULT_PUBLISH_BUFFER_SEGMENT_BYTES);
+    log.append(PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8("A")).build());
+    log.append(PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8("B")).build());
+    log.close();
+
+    // The executor is busy until the test lets it go, so that the admission of the recovered
+    // messages has not started when the next message is published.
+    ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    final CountDownLatch executorReleased = new CountDownLatch(1);
+    executor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            try {
+              executorReleased.await();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          }
+        });
+    testPublisherServiceImpl.setAutoPublishResponse(true);
+    Publisher publisher =
+        getTestPublisherBuilder()
+            .setExecutorProvider(FixedExecutorProvider.create(executor))
+            .setBatchingSettings(
+                Publisher.Builder.DEFAULT_BATCHING_SETTINGS.toBuilder()
+                    .setElementCountThreshold(3L)
+                    .setDelayThresholdDuration(Duration.ofSeconds(100))
+                    .build())
+            .setPublishBufferDirectory(bufferDirectory)
+            .build();
 
-    ApiFuture<String> publishFuture3 = sendTestMessage(publisher, "C");
+    ApiFuture<String> publishFuture = sendTestMessage(publisher, "C");
+    assertFalse(publishFuture.isDone());
+    executorReleased.countDown();
+    publishFuture.get();
 
-    assertFalse(publishFuture3.isDone());
+    List<PublishRequest> requests = testPublisherServiceImpl.getCapturedRequests();
+    assertEquals(1, requests.size());
+    assertEquals(3, requests.get(0).getMessagesCount());
+    assertEquals("A", requests.get(0).getMessages(0).getData().toStringUtf8());
+    assertEquals("B", requests.get(0).getMessages(1).getData().toStringUtf8());
+    assertEquals("C", requests.get(0).getMessages(2).getData().toStringUtf8());
+    publisher.shutdown();
+    executor.shutdownNow();
+    assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+  }
 
-    // Publishing triggered by time
+  @Test
+  public void testSinglePublishByNumBytes() throws Exception {
+    Publisher publisher =
+        getTestPublisherBuilder()
+            .setBatchingSettings(
+                Publisher.Builder.DEFAULT_BATCHING_SETTINGS.toBuilder()
+                    .setElementCountThreshold(2L)
+                    .setDelayThresholdDuration(Duration.ofSeconds(100))
+                    .build())
+            .build();
+
+    testPublisherServiceImpl
+        .addPublishResponse(PublishResponse.newBuilder().addMessageIds("1").addMessageIds("2"))
+        .addPublishResponse(PublishResponse.newBuilder().addMessageIds("3").addMessageIds("4"));
+
+    ApiFuture<String> publishFuture1 = sendTestMessage(publisher, "A");
+    ApiFuture<String> publishFuture2 = sendTestMessage(publisher, "B");
+    ApiFuture<String> publishFuture3 = sendTestMessage(publisher, "C");
+
+    // Note we are not advancing time but message should still get published
+
+    assertEquals("1", publishFuture1.get());
+    assertEquals("2", publishFuture2.get());
+    assertFalse(publishFuture3.isDone());
+
+    ApiFuture<String> publishFuture4 = sendTestMessage(publisher, "D");
+    assertEquals("3", publishFuture3.get());
+    assertEquals("4", publishFuture4.get());
+
+    assertEquals(2, testPublisherServiceImpl.getCapturedRequests().size());
+
+    fakeExecutor.advanceTime(Duration.ofSeconds(100));
+    shutdownTestPublisher(publisher);
+  }
+
+  @Test
+  public void testBatchesSplitAtApiRequestLimits() throws Exception {
+    Publisher publisher =
+        getTestPublisherBuilder()
+            .setBatchingSettings(
+                Publisher.Builder.DEFAULT_BATCHING_SETTINGS.toBuilder()
+                    .setElementCountThreshold(5000L)
+                    .setRequestByteThreshold(100L * 1000L * 1000L)
+                    .setDelayThresholdDuration(Duration.ofSeconds(100))
+                    .build())
+            .build();
+    testPublisherServiceImpl.setAutoPublishResponse(true);
+
+    // Two 4 MB messages fit in a request, a third does not.
+    ByteString largeData = ByteString.copyFrom(new byte[4 * 1000 * 1000]);
+    List<ApiFuture<String>> largeFutures = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      largeFutures.add(publisher.publish(PubsubMessage.newBuilder().setData(largeData).build()));
+    }
+    largeFutures.get(1).get();
+    assertFalse(largeFutures.get(2).isDone());
+    publisher.publishAllOutstanding();
+    largeFutures.get(2).get();
+
+    List<ApiFuture<String>> smallFutures = new ArrayList<>();
+    for (int i = 0; i < 1001; i++) {
+      smallFutures.add(sendTestMessage(publisher, "A"));
+    }
+    smallFutures.get(999).get();
+    assertFalse(smallFutures.get(1000).isDone());
+    publisher.publishAllOutstanding();
+    smallFutures.get(1000).get();
+
+    List<PublishRequest> requests = testPublisherServiceImpl.getCapturedRequests();
+    assertEquals(4, requests.size());
+    assertEquals(2, requests.get(0).getMessagesCount());
+    assertEquals(1, requests.get(1).getMessagesCount());
+    assertEquals(1000, requests.get(2).getMessagesCount());
+    assertEquals(1, requests.get(3).getMessagesCount());
+
+    shutdownTestPublisher(publisher);
+  }
+
+  @Test
+  public void testInvalidMessagesFailWithoutTheirBatch() throws Exception {
+    Publisher publisher =
+        getTestPublisherBuilder()
+            .setBatchingSettings(
+                Publisher.Builder.DEFAULT_BATCHING_SETTINGS.toBuilder()
+                    .setElementCountThreshold(2L)
+                    .setDelayThresholdDuration(Duration.ofSeconds(100))
+                    .build())
+            .build();
+    testPublisherServiceImpl.setAutoPublishResponse(true);
+
+    char[] longKey = new char[257];
+    Arrays.fill(longKey, 'k');
+    List<PubsubMessage> invalidMessages =
+        Arrays.asList(
+            PubsubMessage.newBuilder()
+                .setData(ByteString.copyFrom(new byte[10 * 1000 * 1000]))
+                .build(),
+            PubsubMessage.newBuilder().putAttributes(new String(longKey), "value").build(),
+            // Each character takes 3 bytes, so that the value is 1026 bytes long.
+            PubsubMessage.newBuilder().putAttributes("key", Strings.repeat("\u20ac", 342)).build());
+    ApiFuture<String> publishFuture1 = sendTestMessage(publisher, "A");
+    for (PubsubMessage invalidMessage : invalidMessages) {
+      ApiFuture<String> invalidFuture = publisher.publish(invalidMessage);
+      try {
+        invalidFuture.get();
+        fail("Should have thrown an InvalidArgumentException");
+      } catch (ExecutionException e) {
+        assertThat(e.getCause()).isInstanceOf(InvalidArgumentException.class);
+      }
+    }
+    ApiFuture<String> publishFuture2 = sendTestMessage(publisher, "B");
+
+    publishFuture1.get();
+    publishFuture2.get();
+    List<PublishRequest> requests = testPublisherServiceImpl.getCapturedRequests();
+    assertEquals(1, requests.size());
+    assertEquals(2, requests.get(0).getMessagesCount());
+
+    shutdownTestPublisher(publisher);
+  }
+
+  @Test
+  public void testPublishByShutdown() throws Exception {
+    Publisher publisher =
+        getTestPublisherBuilder()
+            .setBatchingSettings(
+                Publisher.Builder.DEFAULT_BATCHING_SETTINGS.toBuilder()
+                    .setDelayThresholdDuration(Duration.ofSeconds(100))
+                    .setElementCountThreshold(10L)
+                    .build())
+            .build();
+
+    testPublisherServiceImpl.addPublishResponse(
+        PublishResponse.newBuilder().addMessageIds("1").addMessageIds("2"));
+
+    ApiFuture<String> publishFuture1 = sendTestMessage(publisher, "A");
+    ApiFuture<String> publishFuture2 = sendTestMessage(publisher, "B");
+
+    // Note we are not advancing time or reaching the count threshold but messages should
+    // still get published by call to shutdown
+    publisher.shutdown();
+
+    // Verify the publishes completed
+    assertTrue(publishFuture1.isDone());
+    assertTrue(publishFuture2.isDone());
+    assertEquals("1", publishFuture1.get());
+    assertEquals("2", publishFuture2.get());
+
+    fakeExecutor.advanceTime(Duration.ofSeconds(100));
+    publisher.awaitTermination(1, TimeUnit.MINUTES);
+  }
+
+  @Test
+  public void testPublishMixedSizeAndDuration() throws Exception {
+    Publisher publisher =
+        getTestPublisherBuilder()
+            // To demonstrate that reaching duration will trigger publish
+            .setBatchingSettings(
+                Publisher.Builder.DEFAULT_BATCHING_SETTINGS.toBuilder()
+                    .setElementCountThreshold(2L)
+                    .setDelayThresholdDuration(Duration.ofSeconds(5))
+                    .build())
+            .build();
+
+    testPublisherServiceImpl.addPublishResponse(
+        PublishResponse.newBuilder().addMessageIds("1").addMessageIds("2"));
+    testPublisherServiceImpl.addPublishResponse(PublishResponse.newBuilder().addMessageIds("3"));
+
+    ApiFuture<String> publishFuture1 = sendTestMessage(publisher, "A");
+
+    fakeExecutor.advanceTime(Duration.ofSeconds(2));
+    assertFalse(publishFuture1.isDone());
+
+    ApiFuture<String> publishFuture2 = sendTestMessage(publisher, "B");
+
+    // Publishing triggered by batch size
+    assertEquals("1", publishFuture1.get());
+    assertEquals("2", publishFuture2.get());
+
+    ApiFuture<String> publishFuture3 = sendTestMessage(publisher, "C");
+
+    assertFalse(publishFuture3.isDone());
+
+    // Publishing triggered by time
     fakeExecutor.advanceTime(Duration.ofSeconds(5));
 
-    assertEquals("3", publishFuture3.get());
+    assertEquals("3", publishFuture3.get());
+
+    assertEquals(2, testPublisherServiceImpl.getCapturedRequests().get(0).getMessagesCount());
+    assertEquals(1, testPublisherServiceImpl.getCapturedRequests().get(1).getMessagesCount());
+    shutdownTestPublisher(publisher);
+  }
+
+  @Test
+  public void testPublishWithCompression() throws Exception {
+    Publisher publisher =
+        getTestPublisherBuilder()
+            .setBatchingSettings(
+                Publisher.Builder.DEFAULT_BATCHING_SETTINGS.toBuilder()
+                    .setElementCountThreshold(2L)
+                    .setDelayThresholdDuration(Duration.ofSeconds(100))
+                    .build())
+            .setEnableCompression(true)
+            .setCompressionBytesThreshold(100)
+            .build();
+
+    testPublisherServiceImpl.addPublishResponse(
+        PublishResponse.newBuilder().addMessageIds("1").addMessageIds("2"));
+    ApiFuture<String> publishFuture1 = sendTestMessage(publisher, "A");
+    ApiFuture<String> publishFuture2 = sendTestMessage(publisher, "B");
+    assertEquals("1", publishFuture1.get());
+    assertEquals("2", publishFuture2.get());
+
+    fakeExecutor.advanceTime(Duration.ofSeconds(100));
+    shutdownTestPublisher(publisher);
+  }
+
+  @Test
+  public void testGetStats() throws Exception {
+    Publisher publisher =
+        getTestPublisherBuilder()
+            .setBatchingSettings(
+                Publisher.Builder.DEFAULT_BATCHING_SETTINGS.toBuilder()
+                    .setElementCountThreshold(2L)
+                    .setDelayThresholdDuration(Duration.ofSeconds(100))
+                    .build())
+            .setEnableMessageOrdering(true)
+            .build();
+    testPublisherServiceImpl.setAutoPublishResponse(true);
+
+    ApiFuture<String> publishFuture1 = sendTestMessage(publisher, "A");
+    ApiFuture<String> publishFuture2 = sendTestMessage(publisher, "B");
+    ApiFuture<String> publishFuture3 = sendTestMessageWithOrderingKey(publisher, "C", "OrderA");
+    publishFuture1.get();
+    publishFuture2.get();
+
+    PublisherStats stats = publisher.getStats();
+    assertEquals(3, stats.getAcceptedMessages());
+    assertEquals(2, stats.getPublishedMessages());
+    assertEquals(0, stats.getFailedMessages());
+    assertEquals(1, stats.getBatchMessageCounts().getCount());
+    assertEquals(2, stats.getBatchMessageCounts().getMax());
+    assertEquals(1L, (long) stats.getFlushCounts().get(PublisherStats.FlushReason.ELEMENT_COUNT));
+    assertEquals(1, stats.getOrderingKeysWithOpenBatches());
+    assertEquals(0, stats.getOrderingKeysWithErrors());
+
+    fakeExecutor.advanceTime(Duration.ofSeconds(100));
+    publishFuture3.get();
+    stats = publisher.getStats();
+    assertEquals(3, stats.getPublishedMessages());
+    assertEquals(stats.getAcceptedBytes(), stats.getPublishedBytes());
+    assertEquals(2, stats.getPublishLatencyMillis().getCount());
+    assertEquals(1L, (long) stats.getFlushCounts().get(PublisherStats.FlushReason.DELAY));
+    assertEquals(0, stats.getOrderingKeysWithOpenBatches());
+    shutdownTestPublisher(publisher);
+  }
+
+  @Test
+  public void testPublishWithPayloadCompression() throws Exception {
+    Publisher publisher =
+        getTestPublisherBuilder()
+            .setBatchingSettings(
+                Publisher.Builder.DEFAULT_BATCHING_SETTINGS.toBuilder()
+                    .setElementCountThreshold(2L)
+                    .setDelayThresholdDuration(Duration.ofSeconds(100))
+                    .build())
+            .setEnablePayloadCompression(true)
+            .setPayloadCompressionBytesThreshold(100)
+            .build();
+
+    testPublisherServiceImpl.addPublishResponse(
+        PublishResponse.newBuilder().addMessageIds("1").addMessageIds("2"));
+    String largeData = new String(new char[1000]).replace('\0', 'A');
+    ApiFuture<String> publishFuture1 = sendTestMessage(publisher, largeData);
+    ApiFuture<String> publishFuture2 = sendTestMessage(publisher, "B");
+    assertEquals("1", publishFuture1.get());
+    assertEquals("2", publishFuture2.get());
+
+    // Only the data over the threshold is compressed, and it decompresses to the original.
+    PublishRequest request = testPublisherServiceImpl.getCapturedRequests().get(0);
+    PubsubMessage compressedMessage = request.getMessages(0);
+    assertThat(compressedMessage.getData().size()).isLessThan(largeData.length());
+    assertTrue(compressedMessage.containsAttributes(PayloadCodec.ATTRIBUTE_KEY));
+    assertEquals(largeData, PayloadCodec.decodeMessage(compressedMessage).getData().toStringUtf8());
+    assertEquals(
+        PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8("B")).build(),
+        request.getMessages(1));
+
+    fakeExecutor.advanceTime(Duration.ofSeconds(100));
+    shutdownTestPublisher(publisher);
+  }
+
+  @Test
+  public void testPublishWithDeduplication() throws Exception {
+    Publisher publisher =
+        getTestPublisherBuilder()
+            .setBatchingSettings(
+                Publisher.Builder.DEFAULT_BATCHING_SETTINGS.toBuilder()
+                    .setElementCountThreshold(2L)
+                    .setDelayThresholdDuration(Duration.ofSeconds(100))
+                    .build())
+            .setDeduplicationWindow(Duration.ofMinutes(1), 100)
+            .build();
+
+    testPublisherServiceImpl.addPublishResponse(
+        PublishResponse.newBuilder().addMessageIds("1").addMessageIds("2"));
+    ApiFuture<String> publishFuture1 = sendTestMessage(publisher, "A");
+    ApiFuture<String> duplicateFuture = sendTestMessage(publisher, "A");
+    List<String> messageIds =
+        publisher
+            .publishAll(
+                Arrays.asList(
+                    PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8("A")).build(),
+                    PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8("B")).build()))
+            .get();
+
+    // The duplicates get the message ID of the first message, and are sent once.
+    assertEquals("1", publishFuture1.get());
+    assertEquals("1", duplicateFuture.get());
+    assertEquals(Arrays.asList("1", "2"), messageIds);
+    List<PublishRequest> requests = testPublisherServiceImpl.getCapturedRequests();
+    assertEquals(1, requests.size());
+    assertEquals(2, requests.get(0).getMessagesCount());
+
+    shutdownTestPublisher(publisher);
+  }
+
+  @Test
+  public void testPublishAsyncWithDeduplication() throws Exception {
+    Publisher publisher =
+        getTestPublisherBuilder()
+            .setBatchingSettings(
+                Publisher.Builder.DEFAULT_BATCHING_SETTINGS.toBuilder()
+                    .setElementCountThreshold(1L)
+                    .setDelayThresholdDuration(Duration.ofSeconds(5))
+                    .setFlowControlSettings(
+                        FlowControlSettings.newBuilder()
+                            .setLimitExceededBehavior(FlowController.LimitExceededBehavior.Block)
+                            .setMaxOutstandingElementCount(1L)
+                            .setMaxOutstandingRequestBytes(100L)
+                            .build())
+                    .build())
+            .setDeduplicationWindow(Duration.ofMinutes(1), 100)
+            .build();
+
+    ApiFuture<ApiFuture<String>> admissionFuture1 =
+        publisher.publishAsync(
+            PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8("A")).build());
+    // The duplicate is admitted at once, although the flow control limit is reached.
+    ApiFuture<ApiFuture<String>> duplicateAdmissionFuture =
+        publisher.publishAsync(
+            PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8("A")).build());
+    ApiFuture<ApiFuture<String>> admissionFuture2 =
+        publisher.publishAsync(
+            PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8("B")).build());
+    assertTrue(duplicateAdmissionFuture.isDone());
+    assertFalse(admissionFuture2.isDone());
+
+    testPublisherServiceImpl.addPublishResponse(PublishResponse.newBuilder().addMessageIds("1"));
+    assertEquals("1", admissionFuture1.get().get());
+    assertEquals("1", duplicateAdmissionFuture.get().get());
+    testPublisherServiceImpl.addPublishResponse(PublishResponse.newBuilder().addMessageIds("2"));
+    assertEquals("2", admissionFuture2.get().get());
+
+    // The duplicate was sent once.
+    List<PublishRequest> requests = testPublisherServiceImpl.getCapturedRequests();
+    assertEquals(2, requests.size());
+    assertEquals(1, requests.get(0).getMessagesCount());
+    assertEquals(1, requests.get(1).getMessagesCount());
+
+    shutdownTestPublisher(publisher);
+  }
+
+  @Test
+  public void testPublishWithMessagePreSerialization() throws Exception {
+    Publisher publisher =
+        getTestPublisherBuilder()
+            .setExecutorProvider(SINGLE_THREAD_EXECUTOR)
+            .setEnableMessagePreSerialization(true)
+            .setEnableCompression(true)
+            .setCompressionBytesThreshold(1)
+            .setBatchingSettings(
+                Publisher.Builder.DEFAULT_BATCHING_SETTINGS.toBuilder()
+                    .setElementCountThreshold(2L)
+                    .setDelayThresholdDuration(Duration.ofSeconds(100))
+                    .build())
+            .build();
+
+    testPublisherServiceImpl.addPublishError(new Throwable("Transiently failing"));
+    testPublisherServiceImpl
+        .addPublishResponse(PublishResponse.newBuilder().addMessageIds("1").addMessageIds("2"))
+        .addPublishResponse(PublishResponse.newBuilder().addMessageIds("3"));
+
+    PubsubMessage messageWithAttributes =
+        PubsubMessage.newBuilder()
+            .setData(ByteString.copyFromUtf8("B"))
+            .putAttributes("key", "value")
+            .build();
+    ApiFuture<String> publishFuture1 = sendTestMessage(publisher, "A");
+    ApiFuture<String> publishFuture2 = publisher.publish(messageWithAttributes);
+    assertEquals("1", publishFuture1.get());
+    assertEquals("2", publishFuture2.get());
+
+    ApiFuture<String> publishFuture3 = sendTestMessage(publisher, "C");
+    publisher.publishAllOutstanding();
+    assertEquals("3", publishFuture3.get());
+
+    // The failed request is retried with the same pre-serialized messages.
+    List<PublishRequest> requests = testPublisherServiceImpl.getCapturedRequests();
+    assertEquals(3, requests.size());
+    assertEquals(requests.get(0), requests.get(1));
+    assertEquals(TEST_TOPIC.toString(), requests.get(1).getTopic());
+    assertEquals("A", requests.get(1).getMessages(0).getData().toStringUtf8());
+    assertEquals(messageWithAttributes, requests.get(1).getMessages(1));
+    assertEquals(1, requests.get(2).getMessagesCount());
+    assertEquals("C", requests.get(2).getMessages(0).getData().toStringUtf8());
+    shutdownTestPublisher(publisher);
+  }
+
+  @Test
+  public void testPublishWithBatchingShards_mergesShardBatchesOnFlush() throws Exception {
+    final Publisher publisher =
+        getTestPublisherBuilder()
+            .setBatchingSettings(
+                Publisher.Builder.DEFAULT_BATCHING_SETTINGS.toBuilder()
+                    .setElementCountThreshold(10L)
+                    .setDelayThresholdDuration(Duration.ofSeconds(5))
+                    .build())
+            .setBatchingShardCount(4)
+            .build();
+
+    testPublisherServiceImpl.addPublishResponse(
+        PublishResponse.newBuilder()
+            .addMessageIds("1")
+            .addMessageIds("2")
+            .addMessageIds("3")
+            .addMessageIds("4"));
+
+    // Publish from a thread of each shard so that the messages are spread over the shards.
+    final List<ApiFuture<String>> publishFutures =
+        Collections.synchronizedList(new ArrayList<ApiFuture<String>>());
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      final String data = "m" + i;
+      Thread thread =
+          newThreadOfBatchShard(
+              new Runnable() {
+                @Override
+                public void run() {
+                  publishFutures.add(sendTestMessage(publisher, data));
+                }
+              },
+              i,
+              4);
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    for (ApiFuture<String> publishFuture : publishFutures) {
+      assertFalse(publishFuture.isDone());
+    }
+
+    fakeExecutor.advanceTime(Duration.ofSeconds(5));
+
+    List<String> messageIds = new ArrayList<>();
+    for (ApiFuture<String> publishFuture : publishFutures) {
+      messageIds.add(publishFuture.get());
+    }
+    assertThat(messageIds).containsExactly("1", "2", "3", "4");
+    assertEquals(1, testPublisherServiceImpl.getCapturedRequests().size());
+    assertEquals(4, testPublisherServiceImpl.getCapturedRequests().get(0).getMessagesCount());
+    shutdownTestPublisher(publisher);
+  }
+
+  @Test
+  public void testPublishWithBatchingShards_mergesPartialBatchesWhenOneIsDue() throws Exception {
+    final Publisher publisher =
+        getTestPublisherBuilder()
+            .setBatchingSettings(
+                Publisher.Builder.DEFAULT_BATCHING_SETTINGS.toBuilder()
+                    .setElementCountThreshold(10L)
+                    .setDelayThresholdDuration(Duration.ofSeconds(5))
+                    .build())
+            .setBatchingShardCount(4)
+            .build();
+    testPublisherServiceImpl.setAutoPublishResponse(true);
+
+    // The messages are published from threads of different shards, at different times, so that
+    // their shard batches would be due at different times.
+    final List<ApiFuture<String>> publishFutures =
+        Collections.synchronizedList(new ArrayList<ApiFuture<String>>());
+    for (int i = 0; i < 3; i++) {
+      final String data = "m" + i;
+      Thread thread =
+          newThreadOfBatchShard(
+              new Runnable() {
+                @Override
+                public void run() {
+                  publishFutures.add(sendTestMessage(publisher, data));
+                }
+              },
+              i,
+              4);
+      thread.start();
+      thread.join();
+      fakeExecutor.advanceTime(Duration.ofSeconds(1));
+    }
+
+    // The first batch is due, and the partial batches of the other shards are sent with it.
+    fakeExecutor.advanceTime(Duration.ofSeconds(2));
+    for (ApiFuture<String> publishFuture : publishFutures) {
+      publishFuture.get();
+    }
+    assertEquals(1, testPublisherServiceImpl.getCapturedRequests().size());
+    assertEquals(3, testPublisherServiceImpl.getCapturedRequests().get(0).getMessagesCount());
+    shutdownTestPublisher(publisher);
+  }
+
+  /**
+   * Returns a new thread running {@code runnable} whose messages without an ordering key are
+   * batched in shard {@code shardIndex} of {@code shardCount}.
+   */
+  private static Thread newThreadOfBatchShard(Runnable runnable, int shardIndex, int shardCount) {
+    while (true) {
+      Thread thread = new Thread(runnable);
+      if (Publisher.getBatchShardIndex(thread.getId(), shardCount) == shardIndex) {
+        return thread;
+      }
+    }
+  }
+
+  @Test
+  public void testPublishWithBatchingShards_preservesOrderingKeyOrder() throws Exception {
+    Publisher publisher =
+        getTestPublisherBuilder()
+            .setBatchingSettings(
+                Publisher.Builder.DEFAULT_BATCHING_SETTINGS.toBuilder()
+                    .setElementCountThreshold(2L)
+                    .setDelayThresholdDuration(Duration.ofSeconds(100))
+                    .build())
+            .setEnableMessageOrdering(true)
+            .setBatchingShardCount(8)
+            .build();
+    testPublisherServiceImpl.setAutoPublishResponse(true);
+
+    ApiFuture<String> publishFuture1 = sendTestMessageWithOrderingKey(publisher, "m1", "OrderA");
+    ApiFuture<String> publishFuture2 = sendTestMessageWithOrderingKey(publisher, "m2", "OrderB");
+    ApiFuture<String> publishFuture3 = sendTestMessageWithOrderingKey(publisher, "m3", "OrderA");
+    ApiFuture<String> publishFuture4 = sendTestMessageWithOrderingKey(publisher, "m4", "OrderB");
+    ApiFuture<String> publishFuture5 = sendTestMessageWithOrderingKey(publisher, "m5", "OrderA");
+
+    assertTrue(Integer.parseInt(publishFuture1.get()) < Integer.parseInt(publishFuture3.get()));
+    assertTrue(Integer.parseInt(publishFuture2.get()) < Integer.parseInt(publishFuture4.get()));
+    assertFalse(publishFuture5.isDone());
+
+    fakeExecutor.advanceTime(Duration.ofSeconds(100));
+    assertTrue(Integer.parseInt(publishFuture3.get()) < Integer.parseInt(publishFuture5.get()));
+    shutdownTestPublisher(publisher);
+  }
+
+  @Test
+  public void testPublishWithPipelinedOrderingKeyBatches() throws Exception {
+    Publisher publisher =
+        getTestPublisherBuilder()
+            .setBatchingSettings(
+                Publisher.Builder.DEFAULT_BATCHING_SETTINGS.toBuilder()
+                    .setElementCountThreshold(1L)
+                    .setDelayThresholdDuration(Duration.ofSeconds(100))
+                    .build())
+            .setEnableMessageOrdering(true)
+            .setMaxOutstandingBatchesPerOrderingKey(2)
+            .build();
+
+    ApiFuture<String> publishFuture1 = sendTestMessageWithOrderingKey(publisher, "m1", "OrderA");
+    ApiFuture<String> publishFuture2 = sendTestMessageWithOrderingKey(publisher, "m2", "OrderA");
+    ApiFuture<String> publishFuture3 = sendTestMessageWithOrderingKey(publisher, "m3", "OrderA");
+
+    // Two batches of the key are in flight, and the third waits for one of them to complete.
+    for (int i = 0; i < 500 && testPublisherServiceImpl.getCapturedRequests().size() < 2; i++) {
+      Thread.sleep(10);
+    }
+    Thread.sleep(100);
+    assertEquals(2, testPublisherServiceImpl.getCapturedRequests().size());
+
+    testPublisherServiceImpl
+        .addPublishResponse(PublishResponse.newBuilder().addMessageIds("1"))
+        .addPublishResponse(PublishResponse.newBuilder().addMessageIds("2"))
+        .addPublishResponse(PublishResponse.newBuilder().addMessageIds("3"));
+    publishFuture1.get();
+    publishFuture2.get();
+    assertEquals("3", publishFuture3.get());
+    assertEquals(3, testPublisherServiceImpl.getCapturedRequests().size());
+    shutdownTestPublisher(publisher);
+  }
+
+  @Test
+  public void testPublishWithPipelinedOrderingKeyBatches_failsLaterBatchesWithTheCause()
+      throws Exception {
+    Publisher publisher =
+        getTestPublisherBuilder()
+            .setBatchingSettings(
+                Publisher.Builder.DEFAULT_BATCHING_SETTINGS.toBuilder()
+                    .setElementCountThreshold(1L)
+                    .setDelayThresholdDuration(Duration.ofSeconds(100))
+                    .build())
+            .setEnableMessageOrdering(true)
+            .setMaxOutstandingBatchesPerOrderingKey(2)
+            .build();
+    testPublisherServiceImpl
+        .setExecutor(fakeExecutor)
+        .setPublishResponseDelay(Duration.ofSeconds(1));
+    testPublisherServiceImpl
+        .addPublishError(new StatusException(Status.UNAVAILABLE))
+        .addPublishResponse(PublishResponse.newBuilder().addMessageIds("2"));
+
+    ApiFuture<String> publishFuture1 = sendTestMessageWithOrderingKey(publisher, "m1", "OrderA");
+    for (int i = 0; i < 500 && testPublisherServiceImpl.getCapturedRequests().size() < 1; i++) {
+      Thread.sleep(10);
+    }
+    ApiFuture<String> publishFuture2 = sendTestMessageWithOrderingKey(publisher, "m2", "OrderA");
+    for (int i = 0; i < 500 && testPublisherServiceImpl.getCapturedRequests().size() < 2; i++) {
+      Thread.sleep(10);
+    }
+
+    // The first batch fails while the second one is in flight, so it is not retried after it, and
+    // the second one fails with the same error although the service accepted it.
+    fakeExecutor.advanceTime(Duration.ofSeconds(1));
+    for (ApiFuture<String> publishFuture : Arrays.asList(publishFuture1, publishFuture2)) {
+      try {
+        publishFuture.get();
+        fail("Should have thrown an ExecutionException");
+      } catch (ExecutionException e) {
+        assertThat(e.getCause()).isInstanceOf(ApiException.class);
+        assertEquals(
+            StatusCode.Code.UNAVAILABLE, ((ApiException) e.getCause()).getStatusCode().getCode());
+      }
+    }
+    fakeExecutor.advanceTime(Duration.ofMinutes(1));
+    assertEquals(2, testPublisherServiceImpl.getCapturedRequests().size());
+
+    // The key is paused.
+    try {
+      sendTestMessageWithOrderingKey(publisher, "m3", "OrderA").get();
+      fail("Should have thrown an ExecutionException");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isInstanceOf(CancellationException.class);
+    }
+    shutdownTestPublisher(publisher);
+  }
+
+  @Test
+  public void testPublishWithPipelinedOrderingKeyBatches_retriesBatchWithoutLaterBatches()
+      throws Exception {
+    Publisher publisher =
+        getTestPublisherBuilder()
+            .setBatchingSettings(
+                Publisher.Builder.DEFAULT_BATCHING_SETTINGS.toBuilder()
+                    .setElementCountThreshold(1L)
+                    .setDelayThresholdDuration(Duration.ofSeconds(100))
+                    .build())
+            .setEnableMessageOrdering(true)
+            .setMaxOutstandingBatchesPerOrderingKey(2)
+            .build();
+    testPublisherServiceImpl
+        .addPublishError(new StatusException(Status.UNAVAILABLE))
+        .addPublishResponse(PublishResponse.newBuilder().addMessageIds("1"))
+        .addPublishResponse(PublishResponse.newBuilder().addMessageIds("2"));
+
+    ApiFuture<String> publishFuture1 = sendTestMessageWithOrderingKey(publisher, "m1", "OrderA");
+    for (int i = 0; i < 500 && testPublisherServiceImpl.getCapturedRequests().size() < 1; i++) {
+      Thread.sleep(10);
+    }
+    Thread.sleep(100);
+
+    // The key sends no other batch while the failed one waits to be retried.
+    ApiFuture<String> publishFuture2 = sendTestMessageWithOrderingKey(publisher, "m2", "OrderA");
+    Thread.sleep(100);
+    assertEquals(1, testPublisherServiceImpl.getCapturedRequests().size());
+
+    for (int i = 0; i < 500 && !publishFuture2.isDone(); i++) {
+      fakeExecutor.advanceTime(Duration.ofSeconds(1));
+      Thread.sleep(10);
+    }
+    publishFuture1.get();
+    publishFuture2.get();
+    assertEquals(3, testPublisherServiceImpl.getCapturedRequests().size());
+    shutdownTestPublisher(publisher);
+  }
+
+  @Test
+  public void testPublishAllocatesLittlePerMessage() throws Exception {
+    Publisher publisher =
+        getTestPublisherBuilder()
+            .setBatchingSettings(
+                Publisher.Builder.DEFAULT_BATCHING_SETTINGS.toBuilder()
+                    .setElementCountThreshold(1000L)
+                    .setRequestByteThreshold(1000000L)
+                    .setDelayThresholdDuration(Duration.ofSeconds(100))
+                    .build())
+            .build();
+    List<PubsubMessage> messages = new ArrayList<>();
+    for (int i = 0; i < 600; i++) {
+      messages.add(
+          PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8("message" + i)).build());
+    }
+    // The first messages open the batch, which allocates its list once.
+    for (int i = 0; i < 100; i++) {
+      publisher.publish(messages.get(i));
+    }
+
+    long allocatedBytes = ThreadAllocations.getAllocatedBytes();
+    for (int i = 100; i < 600; i++) {
+      publisher.publish(messages.get(i));
+    }
+    long allocatedBytesPerMessage = (ThreadAllocations.getAllocatedBytes() - allocatedBytes) / 500;
+    // The future, wrapper and state of a message take a few hundred bytes; adding it to a batch
+    // should not allocate anything more.
+    assertThat(allocatedBytesPerMessage).isLessThan(1024L);
+    assertEquals(0, testPublisherServiceImpl.getCapturedRequests().size());
+
+    testPublisherServiceImpl.setAutoPublishResponse(true);
+    shutdownTestPublisher(publisher);
+  }
+
+  @Test
+  public void testMaxOutstandingBatchesPerOrderingKeyInvalidArguments() {
+    try {
+      getTestPublisherBuilder().setMaxOutstandingBatchesPerOrderingKey(0);
+      fail("Should have thrown an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // Expected
+    }
+  }
+
+  private ApiFuture<String> sendTestMessage(Publisher publisher, String data) {
+    return publisher.publish(
+        PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8(data)).build());
+  }
+
+  @Test
+  public void testPublishAll() throws Exception {
+    Publisher publisher =
+        getTestPublisherBuilder()
+            .setBatchingSettings(
+                Publisher.Builder.DEFAULT_BATCHING_SETTINGS.toBuilder()
+                    .setElementCountThreshold(3L)
+                    .setDelayThresholdDuration(Duration.ofSeconds(100))
+                    .build())
+            .setEnableMessageOrdering(true)
+            .build();
+    testPublisherServiceImpl.setAutoPublishResponse(true);
+
+    List<PubsubMessage> messages = new ArrayList<>();
+    for (int i = 1; i <= 5; i++) {
+      messages.add(
+          PubsubMessage.newBuilder()
+              .setOrderingKey(i % 2 == 1 ? "OrderA" : "OrderB")
+              .setData(ByteString.copyFromUtf8("m" + i))
+              .build());
+    }
+    ApiFuture<List<String>> publishFuture = publisher.publishAll(messages);
+
+    // The batch for "OrderA" is full and sent, while "OrderB" waits for the delay threshold.
+    assertFalse(publishFuture.isDone());
+    fakeExecutor.advanceTime(Duration.ofSeconds(100));
+    List<String> messageIds = publishFuture.get();
+
+    List<PublishRequest> requests = testPublisherServiceImpl.getCapturedRequests();
+    assertEquals(2, requests.size());
+    assertEquals(3, requests.get(0).getMessagesCount());
+    assertEquals("m1", requests.get(0).getMessages(0).getData().toStringUtf8());
+    assertEquals("m3", requests.get(0).getMessages(1).getData().toStringUtf8());
+    assertEquals("m5", requests.get(0).getMessages(2).getData().toStringUtf8());
+    assertEquals(5, messageIds.size());
+    assertTrue(Integer.parseInt(messageIds.get(0)) < Integer.parseInt(messageIds.get(2)));
+    assertTrue(Integer.parseInt(messageIds.get(2)) < Integer.parseInt(messageIds.get(4)));
+    assertTrue(Integer.parseInt(messageIds.get(1)) < Integer.parseInt(messageIds.get(3)));
+
+    assertThat(publisher.publishAll(new ArrayList<PubsubMessage>()).get()).isEmpty();
+    shutdownTestPublisher(publisher);
+  }
+
+  @Test
+  public void testBatchesAreFlushedAtTheirOwnDelayThreshold() throws Exception {
+    Publisher publisher =
+        getTestPublisherBuilder()
+            .setBatchingSettings(
+                Publisher.Builder.DEFAULT_BATCHING_SETTINGS.toBuilder()
+                    .setElementCountThreshold(10L)
+                    .setDelayThresholdDuration(Duration.ofMillis(100))
+                    .build())
+            .setEnableMessageOrdering(true)
+            .build();
+    testPublisherServiceImpl.setAutoPublishResponse(true);
+
+    ApiFuture<String> publishFuture1 = sendTestMessageWithOrderingKey(publisher, "m1", "OrderA");
+    fakeExecutor.advanceTime(Duration.ofMillis(60));
+    ApiFuture<String> publishFuture2 = sendTestMessageWithOrderingKey(publisher, "m2", "OrderB");
+
+    // Only the batch of "OrderA" is due when its delay threshold passes.
+    fakeExecutor.advanceTime(Duration.ofMillis(40));
+    publishFuture1.get();
+    assertFalse(publishFuture2.isDone());
+
+    fakeExecutor.advanceTime(Duration.ofMillis(60));
+    publishFuture2.get();
+    assertEquals(2, testPublisherServiceImpl.getCapturedRequests().size());
+    assertEquals(
+        2L, (long) publisher.getStats().getFlushCounts().get(PublisherStats.FlushReason.DELAY));
+    shutdownTestPublisher(publisher);
+  }
+
+  @Test
+  public void testCrossKeyBatchingPacksDueBatchesOfDifferentKeys() throws Exception {
+    Publisher publisher =
+        getTestPublisherBuilder()
+            .setBatchingSettings(
+                Publisher.Builder.DEFAULT_BATCHING_SETTINGS.toBuilder()
+                    .setElementCountThreshold(10L)
+                    .setDelayThresholdDuration(Duration.ofMillis(100))
+                    .build())
+            .setEnableMessageOrdering(true)
+            .setEnableCrossKeyBatching(true)
+            .build();
+    testPublisherServiceImpl.addPublishResponse(
+        PublishResponse.newBuilder().addMessageIds("1").addMessageIds("2").addMessageIds("3"));
+
+    ApiFuture<String> publishFuture1 = sendTestMessageWithOrderingKey(publisher, "m1", "OrderA");
+    ApiFuture<String> publishFuture2 = sendTestMessageWithOrderingKey(publisher, "m2", "OrderB");
+    ApiFuture<String> publishFuture3 = sendTestMessageWithOrderingKey(publisher, "m3", "OrderC");
+
+    // The batches of the three keys are due together, and are sent in one request.
+    fakeExecutor.advanceTime(Duration.ofMillis(100));
+    assertEquals("1", publishFuture1.get());
+    assertEquals("2", publishFuture2.get());
+    assertEquals("3", publishFuture3.get());
+    assertEquals(1, testPublisherServiceImpl.getCapturedRequests().size());
+    assertEquals(3, testPublisherServiceImpl.getCapturedRequests().get(0).getMessagesCount());
+    // Each packed batch is recorded as a batch of its own.
+    assertEquals(3, publisher.getStats().getBatchMessageCounts().getCount());
+    assertEquals(1, publisher.getStats().getBatchMessageCounts().getMax());
+    shutdownTestPublisher(publisher);
+  }
+
+  @Test
+  public void testCrossKeyBatchingTracesEachBatch() throws Exception {
+    OpenTelemetryRule openTelemetryTesting = OpenTelemetryRule.create();
+    Publisher publisher =
+        getTestPublisherBuilder()
+            .setBatchingSettings(
+                Publisher.Builder.DEFAULT_BATCHING_SETTINGS.toBuilder()
+                    .setElementCountThreshold(10L)
+                    .setDelayThresholdDuration(Duration.ofMillis(100))
+                    .build())
+            .setEnableMessageOrdering(true)
+            .setEnableCrossKeyBatching(true)
+            .setOpenTelemetry(openTelemetryTesting.getOpenTelemetry())
+            .setEnableOpenTelemetryTracing(true)
+            .build();
+    testPublisherServiceImpl.addPublishResponse(
+        PublishResponse.newBuilder().addMessageIds("1").addMessageIds("2"));
+
+    ApiFuture<String> publishFuture1 = sendTestMessageWithOrderingKey(publisher, "m1", "OrderA");
+    ApiFuture<String> publishFuture2 = sendTestMessageWithOrderingKey(publisher, "m2", "OrderB");
+    fakeExecutor.advanceTime(Duration.ofMillis(100));
+    assertEquals("1", publishFuture1.get());
+    assertEquals("2", publishFuture2.get());
+    assertEquals(1, testPublisherServiceImpl.getCapturedRequests().size());
+    shutdownTestPublisher(publisher);
+
+    // Each key has a publish RPC span, linked to its own message.
+    int publishRpcSpanCount = 0;
+    for (SpanData spanData : openTelemetryTesting.getSpans()) {
+      if (spanData.getName().equals(PUBLISH_RPC_SPAN_NAME)) {
+        publishRpcSpanCount++;
+        assertEquals(1, spanData.getLinks().size());
+      }
+    }
+    assertEquals(2, publishRpcSpanCount);
+  }
+
+  @Test
+  public void testCrossKeyBatchingRejectsPerKeyOptions() throws Exception {
+    try {
+      getTestPublisherBuilder()
+          .setEnableMessageOrdering(true)
+          .setEnableCrossKeyBatching(true)
+          .setMaxOutstandingBatchesPerOrderingKey(2)
+          .build();
+      fail("Should have thrown an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // Expected
+    }
+    try {
+      getTestPublisherBuilder()
+          .setEnableMessageOrdering(true)
+          .setEnableCrossKeyBatching(true)
+          .setMaxOrderingKeyPublishRate(10, 0)
+          .build();
+      fail("Should have thrown an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testCrossKeyBatchingFailurePausesEveryKey() throws Exception {
+    Publisher publisher =
+        getTestPublisherBuilder()
+            .setBatchingSettings(
+                Publisher.Builder.DEFAULT_BATCHING_SETTINGS.toBuilder()
+                    .setElementCountThreshold(10L)
+                    .setDelayThresholdDuration(Duration.ofMillis(100))
+                    .build())
+            .setEnableMessageOrdering(true)
+            .setEnableCrossKeyBatching(true)
+            .build();
+    testPublisherServiceImpl.addPublishError(new StatusException(Status.INVALID_ARGUMENT));
+
+    ApiFuture<String> publishFuture1 = sendTestMessageWithOrderingKey(publisher, "m1", "OrderA");
+    ApiFuture<String> publishFuture2 = sendTestMessageWithOrderingKey(publisher, "m2", "OrderB");
+    fakeExecutor.advanceTime(Duration.ofMillis(100));
+
+    for (ApiFuture<String> publishFuture : Arrays.asList(publishFuture1, publishFuture2)) {
+      try {
+        publishFuture.get();
+        fail("Should have thrown an ExecutionException");
+      } catch (ExecutionException e) {
+        // Expected
+      }
+    }
 
-    assertEquals(2, testPublisherServiceImpl.getCapturedRequests().get(0).getMessagesCount());
-    assertEquals(1, testPublisherServiceImpl.getCapturedRequests().get(1).getMessagesCount());
+    // Both keys are paused until they are resumed.
+    ApiFuture<String> publishFuture3 = sendTestMessageWithOrderingKey(publisher, "m3", "OrderB");
+    try {
+      publishFuture3.get();
+      fail("Should have thrown an ExecutionException");
+    } catch (ExecutionException e) {
+      assertEquals(SequentialExecutorService.CallbackExecutor.CANCELLATION_EXCEPTION, e.getCause());
+    }
+    assertEquals(1, testPublisherServiceImpl.getCapturedRequests().size());
     shutdownTestPublisher(publisher);
   }
 
   @Test
-  public void testPublishWithCompression() throws Exception {
+  public void testPublishAll_flowControlAdmitsGroupAsWhole() throws Exception {
     Publisher publisher =
         getTestPublisherBuilder()
             .setBatchingSettings(
                 Publisher.Builder.DEFAULT_BATCHING_SETTINGS.toBuilder()
                     .setElementCountThreshold(2L)
                     .setDelayThresholdDuration(Duration.ofSeconds(100))
+                    .setFlowControlSettings(
+                        FlowControlSettings.newBuilder()
+                            .setLimitExceededBehavior(FlowController.LimitExceededBehavior.Block)
+                            .setMaxOutstandingElementCount(2L)
+                            .setMaxOutstandingRequestBytes(1000L)
+                            .build())
                     .build())
-            .setEnableCompression(true)
-            .setCompressionBytesThreshold(100)
             .build();
+    testPublisherServiceImpl.setAutoPublishResponse(true);
 
-    testPublisherServiceImpl.addPublishResponse(
-        PublishResponse.newBuilder().addMessageIds("1").addMessageIds("2"));
-    ApiFuture<String> publishFuture1 = sendTestMessage(publisher, "A");
-    ApiFuture<String> publishFuture2 = sendTestMessage(publisher, "B");
-    assertEquals("1", publishFuture1.get());
-    assertEquals("2", publishFuture2.get());
+    List<PubsubMessage> messages = new ArrayList<>();
+    for (int i = 1; i <= 3; i++) {
+      messages.add(PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8("m" + i)).build());
+    }
 
-    fakeExecutor.advanceTime(Duration.ofSeconds(100));
-    shutdownTestPublisher(publisher);
-  }
+    // A group over the limits is rejected as a whole instead of blocking forever.
+    try {
+      publisher.publishAll(messages).get();
+      fail("Should have thrown a FlowController.MaxOutstandingElementCountReachedException");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause())
+          .isInstanceOf(FlowController.MaxOutstandingElementCountReachedException.class);
+    }
+    assertEquals(0, publisher.getOutstandingElementCount());
+    assertThat(testPublisherServiceImpl.getCapturedRequests()).isEmpty();
 
-  private ApiFuture<String> sendTestMessage(Publisher publisher, String data) {
-    return publisher.publish(
-        PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8(data)).build());
+    assertEquals(2, publisher.publishAll(messages.subList(0, 2)).get().size());
+    assertEquals(1, testPublisherServiceImpl.getCapturedRequests().size());
+    assertEquals(0, publisher.getOutstandingElementCount());
+    shutdownTestPublisher(publisher);
   }
 
   @Test
@@ -857,6 +2225,14 @@ public class PublisherImplTest {
     } catch (NullPointerException expected) {
       // Expected
     }
+    // Zero means that paused ordering keys never expire.
+    builder.setPausedOrderingKeyExpiration(Duration.ZERO);
+    try {
+      builder.setPausedOrderingKeyExpiration(Duration.ofSeconds(-1));
+      fail("Should have thrown an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // Expected
+    }
     try {
       builder.setBatchingSettings(
           Publisher.Builder.DEFAULT_BATCHING_SETTINGS.toBuilder()
@@ -964,6 +2340,13 @@ public class PublisherImplTest {
     } catch (IllegalArgumentException expected) {
       // Expected
     }
+
+    try {
+      builder.setBatchingShardCount(0);
+      fail("Should have thrown an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // Expected
+    }
   }
 
   @Test
@@ -1009,6 +2392,187 @@ public class PublisherImplTest {
     assertTrue(publisher.awaitTermination(1, TimeUnit.MINUTES));
   }
 
+  @Test
+  public void testShutdownAsync() throws Exception {
+    Publisher publisher1 =
+        getTestPublisherBuilder()
+            .setBatchingSettings(
+                Publisher.Builder.DEFAULT_BATCHING_SETTINGS.toBuilder()
+                    .setElementCountThreshold(10L)
+                    .setDelayThresholdDuration(Duration.ofSeconds(100))
+                    .build())
+            .setEnableMessageOrdering(true)
+            .build();
+    Publisher publisher2 = getTestPublisherBuilder().build();
+    testPublisherServiceImpl.setAutoPublishResponse(true);
+    ApiFuture<String> publishFuture1 = sendTestMessageWithOrderingKey(publisher1, "m1", "OrderA");
+    ApiFuture<String> publishFuture2 = sendTestMessageWithOrderingKey(publisher1, "m2", "OrderB");
+    ApiFuture<String> publishFuture3 = sendTestMessage(publisher2, "m3");
+
+    // The open batches are flushed without waiting for the delay threshold.
+    Publisher.shutdownAllAsync(Arrays.asList(publisher1, publisher2), Duration.ofMinutes(1))
+        .get(10, TimeUnit.SECONDS);
+    assertTrue(publishFuture1.isDone());
+    assertTrue(publishFuture2.isDone());
+    assertTrue(publishFuture3.isDone());
+    assertEquals(3, testPublisherServiceImpl.getCapturedRequests().size());
+    assertTrue(publisher1.awaitTermination(1, TimeUnit.MINUTES));
+    assertTrue(publisher2.awaitTermination(1, TimeUnit.MINUTES));
+  }
+
+  @Test
+  public void testShutdownAsyncFailsMessagesAfterDeadline() throws Exception {
+    Publisher publisher =
+        getTestPublisherBuilder()
+            .setBatchingSettings(
+                Publisher.Builder.DEFAULT_BATCHING_SETTINGS.toBuilder()
+                    .setElementCountThreshold(10L)
+                    .setDelayThresholdDuration(Duration.ofSeconds(100))
+                    .build())
+            .build();
+    testPublisherServiceImpl.setAutoPublishResponse(true);
+    testPublisherServiceImpl.setExecutor(fakeExecutor);
+    testPublisherServiceImpl.setPublishResponseDelay(Duration.ofSeconds(300));
+    ApiFuture<String> publishFuture = sendTestMessage(publisher, "A");
+
+    ApiFuture<Void> shutdownFuture = publisher.shutdownAsync(Duration.ofSeconds(5));
+    assertFalse(shutdownFuture.isDone());
+    fakeExecutor.advanceTime(Duration.ofSeconds(5));
+    try {
+      publishFuture.get();
+      fail("Should have thrown an ExecutionException");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isInstanceOf(TimeoutException.class);
+    }
+    try {
+      shutdownFuture.get();
+      fail("Should have thrown an ExecutionException");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isInstanceOf(TimeoutException.class);
+    }
+    assertTrue(publisher.awaitTermination(1, TimeUnit.MINUTES));
+
+    // The late response is ignored.
+    fakeExecutor.advanceTime(Duration.ofSeconds(300));
+    testPublisherServiceImpl.setPublishResponseDelay(Duration.ZERO);
+  }
+
+  @Test
+  public void testShutdownAsyncFailsMessagesWaitingForFlowControl() throws Exception {
+    Publisher publisher =
+        getTestPublisherBuilder()
+            .setBatchingSettings(
+                Publisher.Builder.DEFAULT_BATCHING_SETTINGS.toBuilder()
+                    .setElementCountThreshold(1L)
+                    .setDelayThresholdDuration(Duration.ofSeconds(5))
+                    .setFlowControlSettings(
+                        FlowControlSettings.newBuilder()
+                            .setLimitExceededBehavior(FlowController.LimitExceededBehavior.Block)
+                            .setMaxOutstandingElementCount(1L)
+                            .setMaxOutstandingRequestBytes(100L)
+                            .build())
+                    .build())
+            .build();
+    testPublisherServiceImpl.setAutoPublishResponse(true);
+    testPublisherServiceImpl.setExecutor(fakeExecutor);
+    testPublisherServiceImpl.setPublishResponseDelay(Duration.ofSeconds(300));
+    ApiFuture<ApiFuture<String>> admissionFuture1 =
+        publisher.publishAsync(
+            PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8("A")).build());
+    ApiFuture<ApiFuture<String>> admissionFuture2 =
+        publisher.publishAsync(
+            PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8("B")).build());
+    assertFalse(admissionFuture2.isDone());
+    while (testPublisherServiceImpl.getCapturedRequests().isEmpty()) {
+      Thread.sleep(10);
+    }
+
+    ApiFuture<Void> shutdownFuture = publisher.shutdownAsync(Duration.ofSeconds(5));
+    fakeExecutor.advanceTime(Duration.ofSeconds(5));
+    // The waiting message is not admitted by the capacity of the failed one, and is never sent.
+    for (ApiFuture<ApiFuture<String>> admissionFuture :
+        Arrays.asList(admissionFuture1, admissionFuture2)) {
+      assertTrue(admissionFuture.isDone());
+      try {
+        admissionFuture.get().get();
+        fail("Should have thrown an ExecutionException");
+      } catch (ExecutionException e) {
+        assertThat(e.getCause()).isInstanceOf(TimeoutException.class);
+      }
+    }
+    assertEquals(1, testPublisherServiceImpl.getCapturedRequests().size());
+    assertEquals(0, publisher.getOutstandingElementCount());
+    try {
+      shutdownFuture.get();
+      fail("Should have thrown an ExecutionException");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isInstanceOf(TimeoutException.class);
+    }
+    assertTrue(publisher.awaitTermination(1, TimeUnit.MINUTES));
+
+    fakeExecutor.advanceTime(Duration.ofSeconds(300));
+    testPublisherServiceImpl.setPublishResponseDelay(Duration.ZERO);
+  }
+
+  @Test
+  public void testShutdownAsyncFailsBlockedPublish() throws Exception {
+    final Publisher publisher =
+        getTestPublisherBuilder()
+            .setBatchingSettings(
+                Publisher.Builder.DEFAULT_BATCHING_SETTINGS.toBuilder()
+                    .setElementCountThreshold(1L)
+                    .setDelayThresholdDuration(Duration.ofSeconds(5))
+                    .setFlowControlSettings(
+                        FlowControlSettings.newBuilder()
+                            .setLimitExceededBehavior(FlowController.LimitExceededBehavior.Block)
+                            .setMaxOutstandingElementCount(1L)
+                            .setMaxOutstandingRequestBytes(100L)
+                            .build())
+                    .build())
+            .build();
+    testPublisherServiceImpl.setAutoPublishResponse(true);
+    testPublisherServiceImpl.setExecutor(fakeExecutor);
+    testPublisherServiceImpl.setPublishResponseDelay(Duration.ofSeconds(300));
+    ApiFuture<String> publishFuture1 = sendTestMessage(publisher, "A");
+    final AtomicReference<ApiFuture<String>> publishFuture2 = new AtomicReference<>();
+    Thread publishing =
+        new Thread() {
+          @Override
+          public void run() {
+            publishFuture2.set(sendTestMessage(publisher, "B"));
+          }
+        };
+    publishing.start();
+    while (publishing.getState() != Thread.State.WAITING) {
+      Thread.sleep(10);
+    }
+
+    ApiFuture<Void> shutdownFuture = publisher.shutdownAsync(Duration.ofSeconds(5));
+    fakeExecutor.advanceTime(Duration.ofSeconds(5));
+    // The blocked call returns a future failed like the waiting asynchronous publishes.
+    publishing.join();
+    for (ApiFuture<String> publishFuture : Arrays.asList(publishFuture1, publishFuture2.get())) {
+      try {
+        publishFuture.get();
+        fail("Should have thrown an ExecutionException");
+      } catch (ExecutionException e) {
+        assertThat(e.getCause()).isInstanceOf(TimeoutException.class);
+      }
+    }
+    assertEquals(1, testPublisherServiceImpl.getCapturedRequests().size());
+    assertEquals(0, publisher.getOutstandingElementCount());
+    try {
+      shutdownFuture.get();
+      fail("Should have thrown an ExecutionException");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isInstanceOf(TimeoutException.class);
+    }
+    assertTrue(publisher.awaitTermination(1, TimeUnit.MINUTES));
+
+    fakeExecutor.advanceTime(Duration.ofSeconds(300));
+    testPublisherServiceImpl.setPublishResponseDelay(Duration.ZERO);
+  }
+
   @Test
   public void testShutDown() throws Exception {
     ApiFuture apiFuture = EasyMock.mock(ApiFuture.class);
@@ -1278,6 +2842,158 @@ public class PublisherImplTest {
     publish4Completed.await();
   }
 
+  @Test
+  public void testPublishAsync_withoutFlowControl() throws Exception {
+    Publisher publisher =
+        getTestPublisherBuilder()
+            .setBatchingSettings(
+                Publisher.Builder.DEFAULT_BATCHING_SETTINGS.toBuilder()
+                    .setElementCountThreshold(1L)
+                    .setDelayThresholdDuration(Duration.ofSeconds(5))
+                    .build())
+            .build();
+    testPublisherServiceImpl.addPublishResponse(PublishResponse.newBuilder().addMessageIds("1"));
+
+    ApiFuture<ApiFuture<String>> admissionFuture =
+        publisher.publishAsync(
+            PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8("A")).build());
+
+    assertTrue(admissionFuture.isDone());
+    assertEquals("1", admissionFuture.get().get());
+    assertEquals(0, publisher.getOutstandingElementCount());
+    assertFalse(publisher.isFlowControlSaturated());
+    shutdownTestPublisher(publisher);
+  }
+
+  @Test
+  public void testPublishAsync_waitsForFlowControlAdmission() throws Exception {
+    final List<String> saturationEvents = Collections.synchronizedList(new ArrayList<String>());
+    Publisher publisher =
+        getTestPublisherBuilder()
+            .setBatchingSettings(
+                Publisher.Builder.DEFAULT_BATCHING_SETTINGS.toBuilder()
+                    .setElementCountThreshold(1L)
+                    .setDelayThresholdDuration(Duration.ofSeconds(5))
+                    .setFlowControlSettings(
+                        FlowControlSettings.newBuilder()
+                            .setLimitExceededBehavior(FlowController.LimitExceededBehavior.Block)
+                            .setMaxOutstandingElementCount(1L)
+                            .setMaxOutstandingRequestBytes(100L)
+                            .build())
+                    .build())
+            .setFlowControlSaturationListener(
+                new Publisher.FlowControlSaturationListener() {
+                  @Override
+                  public void onSaturated() {
+                    saturationEvents.add("saturated");
+                  }
+
+                  @Override
+                  public void onUnsaturated() {
+                    saturationEvents.add("unsaturated");
+                  }
+                })
+            .build();
+
+    ApiFuture<ApiFuture<String>> admissionFuture1 =
+        publisher.publishAsync(
+            PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8("A")).build());
+    ApiFuture<ApiFuture<String>> admissionFuture2 =
+        publisher.publishAsync(
+            PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8("B")).build());
+
+    // The first message is admitted and sent; the second one waits without blocking the caller.
+    assertTrue(admissionFuture1.isDone());
+    assertFalse(admissionFuture2.isDone());
+    assertEquals(1, publisher.getOutstandingElementCount());
+    assertTrue(publisher.getOutstandingRequestBytes() > 0);
+    assertTrue(publisher.isFlowControlSaturated());
+    assertThat(saturationEvents).containsExactly("saturated");
+
+    testPublisherServiceImpl.addPublishResponse(PublishResponse.newBuilder().addMessageIds("1"));
+    assertEquals("1", admissionFuture1.get().get());
+
+    // Completing the first publish admits the second message.
+    testPublisherServiceImpl.addPublishResponse(PublishResponse.newBuilder().addMessageIds("2"));
+    assertEquals("2", admissionFuture2.get().get());
+
+    shutdownTestPublisher(publisher);
+    assertEquals(0, publisher.getOutstandingElementCount());
+    assertFalse(publisher.isFlowControlSaturated());
+    assertThat(saturationEvents).containsExactly("saturated", "unsaturated").inOrder();
+  }
+
+  @Test
+  public void testPublishAsync_flowControlRejection() throws Exception {
+    Publisher publisher =
+        getTestPublisherBuilder()
+            .setBatchingSettings(
+                Publisher.Builder.DEFAULT_BATCHING_SETTINGS.toBuilder()
+                    .setFlowControlSettings(
+                        FlowControlSettings.newBuilder()
+                            .setLimitExceededBehavior(FlowController.LimitExceededBehavior.Block)
+                            .setMaxOutstandingElementCount(1L)
+                            .setMaxOutstandingRequestBytes(1L)
+                            .build())
+                    .build())
+            .build();
+
+    ApiFuture<ApiFuture<String>> admissionFuture =
+        publisher.publishAsync(
+            PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8("AAAAAAAA")).build());
+    assertTrue(admissionFuture.isDone());
+    try {
+      admissionFuture.get().get();
+      fail("Should have thrown a FlowController.MaxOutstandingRequestBytesReachedException");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause())
+          .isInstanceOf(FlowController.MaxOutstandingRequestBytesReachedException.class);
+    }
+    shutdownTestPublisher(publisher);
+  }
+
+  @Test
+  public void testPublishAsync_rejectsInvalidMessageBeforeAdmission() throws Exception {
+    Publisher publisher =
+        getTestPublisherBuilder()
+            .setBatchingSettings(
+                Publisher.Builder.DEFAULT_BATCHING_SETTINGS.toBuilder()
+                    .setElementCountThreshold(1L)
+                    .setDelayThresholdDuration(Duration.ofSeconds(5))
+                    .setFlowControlSettings(
+                        FlowControlSettings.newBuilder()
+                            .setLimitExceededBehavior(FlowController.LimitExceededBehavior.Block)
+                            .setMaxOutstandingElementCount(1L)
+                            .setMaxOutstandingRequestBytes(20L * 1000 * 1000)
+                            .build())
+                    .build())
+            .build();
+
+    ApiFuture<ApiFuture<String>> admissionFuture1 =
+        publisher.publishAsync(
+            PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8("A")).build());
+    // The oversized message fails at once, instead of waiting for the capacity held by the first.
+    ApiFuture<ApiFuture<String>> admissionFuture2 =
+        publisher.publishAsync(
+            PubsubMessage.newBuilder()
+                .setData(ByteString.copyFrom(new byte[10 * 1000 * 1000]))
+                .build());
+    assertTrue(admissionFuture2.isDone());
+    try {
+      admissionFuture2.get().get();
+      fail("Should have thrown an InvalidArgumentException");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isInstanceOf(InvalidArgumentException.class);
+    }
+    assertEquals(1, publisher.getOutstandingElementCount());
+
+    testPublisherServiceImpl.addPublishResponse(PublishResponse.newBuilder().addMessageIds("1"));
+    assertEquals("1", admissionFuture1.get().get());
+    assertEquals(1, testPublisherServiceImpl.getCapturedRequests().size());
+
+    shutdownTestPublisher(publisher);
+  }
+
   @Test
   public void testPublishOpenTelemetryTracing() throws Exception {
     OpenTelemetryRule openTelemetryTesting = OpenTelemetryRule.create();
@@ -1342,9 +3058,33 @@ public class PublisherImplTest {
         .hasEnded();
   }
 
+  @Test
+  public void testVirtualThreadsExecutorProvider() throws Exception {
+    ExecutorProvider customExecutorProvider = FixedExecutorProvider.create(fakeExecutor);
+    assertSame(
+        customExecutorProvider,
+        Publisher.newBuilder(TEST_TOPIC)
+            .setExecutorProvider(customExecutorProvider)
+            .setEnableVirtualThreads(true)
+            .resolveExecutorProvider());
+
+    ExecutorProvider executorProvider =
+        Publisher.newBuilder(TEST_TOPIC).setEnableVirtualThreads(true).resolveExecutorProvider();
+    if (ThreadPerTaskScheduledExecutor.isVirtualThreadSupported()) {
+      assertTrue(executorProvider.shouldAutoClose());
+      ScheduledExecutorService executor = executorProvider.getExecutor();
+      assertThat(executor).isInstanceOf(ThreadPerTaskScheduledExecutor.class);
+      executor.shutdown();
+    } else {
+      // Older JVMs fall back to the default executor.
+      assertSame(Publisher.Builder.DEFAULT_EXECUTOR_PROVIDER, executorProvider);
+    }
+  }
+
   private Builder getTestPublisherBuilder() {
     return Publisher.newBuilder(TEST_TOPIC)
         .setExecutorProvider(FixedExecutorProvider.create(fakeExecutor))
+        .setClock(fakeExecutor.getClock())
         .setChannelProvider(
             FixedTransportChannelProvider.create(GrpcTransportChannel.create(testChannel)))
         .setCredentialsProvider(NoCredentialsProvider.create());
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2026 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub.v1;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.SettableApiFuture;
+import com.google.api.gax.batching.FlowControlSettings;
+import com.google.api.gax.batching.FlowController;
+import com.google.api.gax.core.FixedExecutorProvider;
+import com.google.api.gax.core.NoCredentialsProvider;
+import com.google.api.gax.grpc.GrpcTransportChannel;
+import com.google.api.gax.rpc.FixedTransportChannelProvider;
+import com.google.protobuf.ByteString;
+import com.google.pubsub.v1.ProjectTopicName;
+import com.google.pubsub.v1.PublishResponse;
+import com.google.pubsub.v1.PubsubMessage;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class PublisherSinkTest {
+
+  private static final ProjectTopicName TEST_TOPIC =
+      ProjectTopicName.of("test-project", "test-topic");
+
+  private FakeScheduledExecutorService fakeExecutor;
+
+  private FakePublisherServiceImpl testPublisherServiceImpl;
+
+  private ManagedChannel testChannel;
+
+  private Server testServer;
+
+  @Before
+  public void setUp() throws Exception {
+    testPublisherServiceImpl = new FakePublisherServiceImpl();
+
+    InProcessServerBuilder serverBuilder = InProcessServerBuilder.forName("test-sink-server");
+    serverBuilder.addService(testPublisherServiceImpl);
+    testServer = serverBuilder.build();
+    testChannel = InProcessChannelBuilder.forName("test-sink-server").build();
+    testServer.start();
+
+    fakeExecutor = new FakeScheduledExecutorService();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    testServer.shutdownNow().awaitTermination();
+    testChannel.shutdown();
+  }
+
+  @Test
+  public void testRequestsWithinFlowControlLimits() throws Exception {
+    Publisher publisher = getTestPublisher(2L, 4L);
+    testPublisherServiceImpl.setAutoPublishResponse(true);
+
+    RecordingListener listener = new RecordingListener(4);
+    RecordingUpstream upstream = new RecordingUpstream();
+    PublisherSink sink = PublisherSink.create(publisher, listener);
+    sink.onSubscribe(upstream);
+
+    // Upstream is asked for as many messages as flow control admits.
+    assertThat(upstream.requests).containsExactly(4L);
+    for (int i = 0; i < 4; i++) {
+      sink.onNext(newMessage("m" + i));
+    }
+
+    // Each published batch frees room for a batch more.
+    assertTrue(listener.published.await(10, TimeUnit.SECONDS));
+    assertThat(upstream.requests).containsExactly(4L, 2L, 2L);
+    assertFalse(listener.completion.isDone());
+    sink.onComplete();
+    assertNull(listener.completion.get(10, TimeUnit.SECONDS));
+    shutdownTestPublisher(publisher);
+  }
+
+  @Test
+  public void testOnNextDoesNotBlockOnFlowControl() throws Exception {
+    Publisher publisher = getTestPublisher(1L, 1L);
+    // A message published outside of the sink holds all the flow control capacity.
+    ApiFuture<String> otherPublish = publisher.publish(newMessage("other"));
+
+    RecordingListener listener = new RecordingListener(1);
+    final PublisherSink sink = PublisherSink.create(publisher, listener);
+    sink.onSubscribe(new RecordingUpstream());
+    ExecutorService upstreamThread = Executors.newSingleThreadExecutor();
+    try {
+      Future<?> onNext =
+          upstreamThread.submit(
+              new Runnable() {
+                @Override
+                public void run() {
+                  sink.onNext(newMessage("m"));
+                }
+              });
+      // Returns while the message waits for flow control.
+      onNext.get(10, TimeUnit.SECONDS);
+    } finally {
+      upstreamThread.shutdown();
+    }
+    assertEquals(1L, listener.published.getCount());
+
+    testPublisherServiceImpl
+        .addPublishResponse(PublishResponse.newBuilder().addMessageIds("1"))
+        .addPublishResponse(PublishResponse.newBuilder().addMessageIds("2"));
+    assertEquals("1", otherPublish.get());
+    assertTrue(listener.published.await(10, TimeUnit.SECONDS));
+    sink.onComplete();
+    assertNull(listener.completion.get(10, TimeUnit.SECONDS));
+    shutdownTestPublisher(publisher);
+  }
+
+  @Test
+  public void testMessageNotRequestedCancelsUpstream() throws Exception {
+    Publisher publisher = getTestPublisher(1L, 1L);
+
+    RecordingListener listener = new RecordingListener(1);
+    RecordingUpstream upstream = new RecordingUpstream();
+    PublisherSink sink = PublisherSink.create(publisher, listener);
+    sink.onSubscribe(upstream);
+    assertThat(upstream.requests).containsExactly(1L);
+
+    // The second message breaks the protocol, which fails it instead of throwing.
+    sink.onNext(newMessage("m1"));
+    PubsubMessage excessMessage = newMessage("m2");
+    sink.onNext(excessMessage);
+    assertTrue(upstream.cancelled.get());
+    assertThat(listener.failedMessages).containsExactly(excessMessage);
+
+    // The requested message is still published before the sink completes with the error.
+    assertFalse(listener.completion.isDone());
+    testPublisherServiceImpl.addPublishResponse(PublishResponse.newBuilder().addMessageIds("1"));
+    assertTrue(listener.published.await(10, TimeUnit.SECONDS));
+    assertThat(listener.completion.get(10, TimeUnit.SECONDS))
+        .isInstanceOf(IllegalStateException.class);
+
+    // Later messages are ignored.
+    sink.onNext(newMessage("m3"));
+    assertThat(listener.failedMessages).containsExactly(excessMessage);
+    shutdownTestPublisher(publisher);
+  }
+
+  private static PubsubMessage newMessage(String data) {
+    return PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8(data)).build();
+  }
+
+  private Publisher getTestPublisher(long elementCountThreshold, long maxOutstandingElementCount)
+      throws Exception {
+    return Publisher.newBuilder(TEST_TOPIC)
+        .setExecutorProvider(FixedExecutorProvider.create(fakeExecutor))
+        .setClock(fakeExecutor.getClock())
+        .setChannelProvider(
+            FixedTransportChannelProvider.create(GrpcTransportChannel.create(testChannel)))
+        .setCredentialsProvider(NoCredentialsProvider.create())
+        .setBatchingSettings(
+            Publisher.Builder.DEFAULT_BATCHING_SETTINGS.toBuilder()
+                .setElementCountThreshold(elementCountThreshold)
+                .setDelayThresholdDuration(Duration.ofSeconds(100))
+                .setFlowControlSettings(
+                    FlowControlSettings.newBuilder()
+                        .setLimitExceededBehavior(FlowController.LimitExceededBehavior.Block)
+                        .setMaxOutstandingElementCount(maxOutstandingElementCount)
+                        .setMaxOutstandingRequestBytes(1000L)
+                        .build())
+                .build())
+        .build();
+  }
+
+  private void shutdownTestPublisher(Publisher publisher) throws InterruptedException {
+    publisher.shutdown();
+    fakeExecutor.advanceTime(Duration.ofSeconds(10));
+    assertTrue(publisher.awaitTermination(1, TimeUnit.MINUTES));
+  }
+
+  private static final class RecordingUpstream implements PublisherSink.Upstream {
+    private final List<Long> requests = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean cancelled = new AtomicBoolean();
+
+    @Override
+    public void request(long n) {
+      requests.add(n);
+    }
+
+    @Override
+    public void cancel() {
+      cancelled.set(true);
+    }
+  }
+
+  private static final class RecordingListener implements PublisherSink.ResultListener {
+    private final CountDownLatch published;
+    private final List<PubsubMessage> failedMessages = new CopyOnWriteArrayList<>();
+    private final SettableApiFuture<Throwable> completion = SettableApiFuture.create();
+
+    private RecordingListener(int expectedPublished) {
+      published = new CountDownLatch(expectedPublished);
+    }
+
+    @Override
+    public void onPublished(PubsubMessage message, String messageId) {
+      published.countDown();
+    }
+
+    @Override
+    public void onFailed(PubsubMessage message, Throwable throwable) {
+      failedMessages.add(message);
+    }
+
+    @Override
+    public void onComplete(Throwable throwable) {
+      completion.set(throwable);
+    }
+  }
+}
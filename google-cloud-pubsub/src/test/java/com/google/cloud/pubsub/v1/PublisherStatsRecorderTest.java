@@ -0,0 +1,95 @@
+/*
+ * Copyright 2026 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub.v1;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertEquals;
+
+import com.google.cloud.pubsub.v1.PublisherStats.FlushReason;
+import java.time.Duration;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link PublisherStatsRecorder}. */
+@RunWith(JUnit4.class)
+public class PublisherStatsRecorderTest {
+
+  @Test
+  public void testHistogram() {
+    PublisherStatsRecorder.HistogramRecorder recorder =
+        new PublisherStatsRecorder.HistogramRecorder();
+    PublisherStats.Histogram empty = recorder.snapshot();
+    assertEquals(0, empty.getCount());
+    assertEquals(0, empty.getPercentile(50));
+    assertThat(empty.getBucketCounts()).isEmpty();
+
+    for (long value : new long[] {0, 1, 2, 3, 5, 100, 100, 100, 100, 1000}) {
+      recorder.record(value);
+    }
+    PublisherStats.Histogram histogram = recorder.snapshot();
+    assertEquals(10, histogram.getCount());
+    assertEquals(1411, histogram.getSum());
+    assertEquals(1000, histogram.getMax());
+    assertEquals(141.1, histogram.getMean(), 0.001);
+    // 0 | 1 | 2-3 | 4-7 | 8-15 | 16-31 | 32-63 | 64-127 | 128-255 | 256-511 | 512-1023
+    assertThat(histogram.getBucketCounts())
+        .containsExactly(1L, 1L, 2L, 1L, 0L, 0L, 0L, 4L, 0L, 0L, 1L)
+        .inOrder();
+    assertEquals(0, histogram.getPercentile(10));
+    assertEquals(3, histogram.getPercentile(40));
+    assertEquals(127, histogram.getPercentile(90));
+    assertEquals(1000, histogram.getPercentile(100));
+  }
+
+  @Test
+  public void testSnapshot() {
+    PublisherStatsRecorder recorder = new PublisherStatsRecorder();
+    recorder.recordAccepted(10);
+    recorder.recordAccepted(20);
+    recorder.recordPublished(1, 10);
+    recorder.recordFailed(1, 20);
+    recorder.recordBatchSent(2, 40);
+    recorder.recordPublishLatency(7);
+    recorder.recordFlush(FlushReason.ELEMENT_COUNT);
+    recorder.recordFlush(FlushReason.ELEMENT_COUNT);
+    recorder.recordFlush(FlushReason.SHUTDOWN);
+
+    PublisherStats stats =
+        recorder
+            .snapshot(PublisherStats.newBuilder())
+            .setFlowControlBlockedCount(0)
+            .setFlowControlBlockedTime(Duration.ZERO)
+            .setOutstandingMessages(0)
+            .setOutstandingBytes(0)
+            .setOrderingKeysWithOpenBatches(0)
+            .setOrderingKeysWithErrors(0)
+            .build();
+    assertEquals(2, stats.getAcceptedMessages());
+    assertEquals(30, stats.getAcceptedBytes());
+    assertEquals(1, stats.getPublishedMessages());
+    assertEquals(10, stats.getPublishedBytes());
+    assertEquals(1, stats.getFailedMessages());
+    assertEquals(20, stats.getFailedBytes());
+    assertEquals(1, stats.getBatchMessageCounts().getCount());
+    assertEquals(40, stats.getBatchBytes().getSum());
+    assertEquals(7, stats.getPublishLatencyMillis().getMax());
+    assertEquals(2L, (long) stats.getFlushCounts().get(FlushReason.ELEMENT_COUNT));
+    assertEquals(0L, (long) stats.getFlushCounts().get(FlushReason.DELAY));
+    assertEquals(1L, (long) stats.getFlushCounts().get(FlushReason.SHUTDOWN));
+  }
+}
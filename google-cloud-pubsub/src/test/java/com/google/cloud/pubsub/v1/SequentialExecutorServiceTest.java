@@ -17,6 +17,7 @@
 package com.google.cloud.pubsub.v1;
 
 import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -27,14 +28,18 @@ import com.google.api.core.SettableApiFuture;
 import com.google.api.gax.core.ExecutorProvider;
 import com.google.api.gax.core.InstantiatingExecutorProvider;
 import com.google.common.collect.ImmutableList;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -47,7 +52,7 @@ public final class SequentialExecutorServiceTest {
           .build();
 
   static class AsyncTaskCallable implements Callable<ApiFuture<String>> {
-    boolean isCalled = false;
+    volatile boolean isCalled = false;
     SettableApiFuture<String> result = SettableApiFuture.create();
 
     @Override
@@ -156,6 +161,239 @@ public final class SequentialExecutorServiceTest {
     }
   }
 
+  @Test
+  public void testKeyStateIsDroppedWhenTasksComplete() throws Exception {
+    SequentialExecutorService.CallbackExecutor sequentialExecutorService =
+        new SequentialExecutorService.CallbackExecutor(directExecutor());
+    List<AsyncTaskCallable> callables = new ArrayList<>();
+    List<ApiFuture<String>> results = new ArrayList<>();
+    for (int i = 0; i < 5000; i++) {
+      AsyncTaskCallable callable = new AsyncTaskCallable();
+      callables.add(callable);
+      results.add(sequentialExecutorService.submit("key" + i, callable));
+    }
+    assertEquals(5000, sequentialExecutorService.getKeyCount());
+
+    for (AsyncTaskCallable callable : callables) {
+      callable.finish();
+    }
+    for (ApiFuture<String> result : results) {
+      assertEquals("ok", result.get());
+    }
+    assertEquals(0, sequentialExecutorService.getKeyCount());
+    assertFalse(sequentialExecutorService.hasTasksInflight("key0"));
+  }
+
+  @Test
+  public void testPausedKeysExpire() throws Exception {
+    FakeClock clock = new FakeClock();
+    SequentialExecutorService.CallbackExecutor sequentialExecutorService =
+        new SequentialExecutorService.CallbackExecutor(
+            directExecutor(), 1, Duration.ofMinutes(1), clock);
+    AsyncTaskCallable callable = new AsyncTaskCallable();
+    ApiFuture<String> result = sequentialExecutorService.submit("key", callable);
+    callable.finishWithError(new Exception("failure"));
+    try {
+      result.get();
+      fail("Should have thrown an ExecutionException");
+    } catch (ExecutionException e) {
+      // Expected
+    }
+    assertTrue(sequentialExecutorService.keyHasError("key"));
+
+    clock.advance(30, TimeUnit.SECONDS);
+    sequentialExecutorService.stopPublish("other");
+    try {
+      sequentialExecutorService.submit("key", new AsyncTaskCallable()).get();
+      fail("Should have thrown an ExecutionException");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isInstanceOf(CancellationException.class);
+    }
+
+    // The key is resumed a minute after it was paused, while the key paused later stays paused.
+    clock.advance(31, TimeUnit.SECONDS);
+    assertFalse(sequentialExecutorService.keyHasError("key"));
+    assertTrue(sequentialExecutorService.keyHasError("other"));
+    assertEquals(1, sequentialExecutorService.getKeysWithErrorsCount());
+    callable = new AsyncTaskCallable();
+    result = sequentialExecutorService.submit("key", callable);
+    callable.finish();
+    assertEquals("ok", result.get());
+  }
+
+  @Test
+  public void testExpiredKeysAreDroppedWhenKeysArePaused() {
+    FakeClock clock = new FakeClock();
+    SequentialExecutorService.CallbackExecutor sequentialExecutorService =
+        new SequentialExecutorService.CallbackExecutor(
+            directExecutor(), 1, Duration.ofMinutes(1), clock);
+    for (int i = 0; i < 1000; i++) {
+      sequentialExecutorService.stopPublish("key" + i);
+    }
+    clock.advance(1, TimeUnit.MINUTES);
+
+    // Pausing a key drops the expired ones, without any of them being checked.
+    sequentialExecutorService.stopPublish("other");
+    assertEquals(1, sequentialExecutorService.getKeysWithErrorsCount());
+  }
+
+  @Test
+  public void testPausedKeyFootprint() {
+    SequentialExecutorService.CallbackExecutor sequentialExecutorService =
+        new SequentialExecutorService.CallbackExecutor(
+            directExecutor(), 1, Duration.ofMinutes(1), new FakeClock());
+    List<String> keys = new ArrayList<>();
+    for (int i = 0; i < 10000; i++) {
+      keys.add("key" + i);
+    }
+
+    // A paused key holds a map entry and its pause time besides the key itself, which the caller
+    // already holds. The bound leaves room for the growth of the table and uncompressed pointers.
+    long allocatedBytes = ThreadAllocations.getAllocatedBytes();
+    for (String key : keys) {
+      sequentialExecutorService.stopPublish(key);
+    }
+    long allocatedBytesPerKey = (ThreadAllocations.getAllocatedBytes() - allocatedBytes) / 10000;
+    assertThat(allocatedBytesPerKey).isLessThan(160L);
+    assertEquals(10000, sequentialExecutorService.getKeysWithErrorsCount());
+  }
+
+  @Test
+  public void testPipelinedExecutorCompletesTasksInOrder() throws Exception {
+    SequentialExecutorService.CallbackExecutor sequentialExecutorService =
+        new SequentialExecutorService.CallbackExecutor(executorProvider.getExecutor(), 2);
+    AsyncTaskCallable callable1 = new AsyncTaskCallable();
+    AsyncTaskCallable callable2 = new AsyncTaskCallable();
+    AsyncTaskCallable callable3 = new AsyncTaskCallable();
+
+    assertTrue(sequentialExecutorService.canStartTaskWithoutWaiting("key"));
+    ApiFuture<String> result1 = sequentialExecutorService.submit("key", callable1);
+    assertTrue(sequentialExecutorService.canStartTaskWithoutWaiting("key"));
+    ApiFuture<String> result2 = sequentialExecutorService.submit("key", callable2);
+    assertFalse(sequentialExecutorService.canStartTaskWithoutWaiting("key"));
+    ApiFuture<String> result3 = sequentialExecutorService.submit("key", callable3);
+
+    // Two tasks run at the same time.
+    waitUntilCalled(callable2);
+    assertTrue(callable1.isCalled());
+    Thread.sleep(100);
+    assertFalse(callable3.isCalled());
+
+    // The second task completes first, which lets the third one run, but its result waits for the
+    // first task.
+    callable2.finish();
+    waitUntilCalled(callable3);
+    assertFalse(result2.isDone());
+    callable1.finish();
+    assertEquals("ok", result1.get());
+    assertEquals("ok", result2.get());
+
+    callable3.finish();
+    assertEquals("ok", result3.get());
+    assertFalse(sequentialExecutorService.hasTasksInflight("key"));
+  }
+
+  @Test
+  public void testPipelinedExecutorFailsStartedTasksWhenOneFailed() throws Exception {
+    SequentialExecutorService.CallbackExecutor sequentialExecutorService =
+        new SequentialExecutorService.CallbackExecutor(executorProvider.getExecutor(), 2);
+    AsyncTaskCallable callable1 = new AsyncTaskCallable();
+    AsyncTaskCallable callable2 = new AsyncTaskCallable();
+    AsyncTaskCallable callable3 = new AsyncTaskCallable();
+
+    ApiFuture<String> result1 = sequentialExecutorService.submit("key", callable1);
+    ApiFuture<String> result2 = sequentialExecutorService.submit("key", callable2);
+    ApiFuture<String> result3 = sequentialExecutorService.submit("key", callable3);
+    waitUntilCalled(callable2);
+
+    Throwable failure = new Exception("failure");
+    callable1.finishWithError(failure);
+    try {
+      result1.get();
+      fail("Should have thrown an ExecutionException");
+    } catch (ExecutionException e) {
+      assertEquals(failure, e.getCause());
+    }
+
+    // The task started after the failed one fails with the same error even though it succeeds,
+    // and the queued task is never run.
+    callable2.finish();
+    for (ApiFuture<String> result : ImmutableList.of(result2, result3)) {
+      try {
+        result.get();
+        fail("Should have thrown an ExecutionException");
+      } catch (ExecutionException e) {
+        assertEquals(failure, e.getCause());
+      }
+    }
+    assertFalse(callable3.isCalled());
+    assertTrue(sequentialExecutorService.keyHasError("key"));
+  }
+
+  @Test
+  public void testPipelinedExecutorRetriesTasksInOrder() throws Exception {
+    FakeScheduledExecutorService fakeExecutor = new FakeScheduledExecutorService();
+    final Throwable retryableFailure = new Exception("retryable");
+    SequentialExecutorService.CallbackExecutor sequentialExecutorService =
+        new SequentialExecutorService.CallbackExecutor(
+            fakeExecutor,
+            2,
+            Duration.ZERO,
+            new FakeClock(),
+            new SequentialExecutorService.CallbackExecutor.RetryPolicy() {
+              @Override
+              public Duration getRetryDelay(Throwable error, int attempt) {
+                return error == retryableFailure ? Duration.ofSeconds(attempt) : null;
+              }
+            });
+    final List<SettableApiFuture<String>> attempts = new ArrayList<>();
+    Callable<ApiFuture<String>> callable1 =
+        new Callable<ApiFuture<String>>() {
+          @Override
+          public ApiFuture<String> call() {
+            SettableApiFuture<String> attempt = SettableApiFuture.create();
+            attempts.add(attempt);
+            return attempt;
+          }
+        };
+    AsyncTaskCallable callable2 = new AsyncTaskCallable();
+    AsyncTaskCallable callable3 = new AsyncTaskCallable();
+
+    // The only task started for the key is run again after the delay, and the next task waits for
+    // it.
+    ApiFuture<String> result1 = sequentialExecutorService.submit("key", callable1);
+    attempts.get(0).setException(retryableFailure);
+    assertFalse(sequentialExecutorService.canStartTaskWithoutWaiting("key"));
+    ApiFuture<String> result2 = sequentialExecutorService.submit("key", callable2);
+    assertFalse(callable2.isCalled());
+    fakeExecutor.advanceTime(Duration.ofSeconds(1));
+    assertEquals(2, attempts.size());
+    assertTrue(callable2.isCalled());
+
+    // Once a later task started, a failed task is no longer run again.
+    ApiFuture<String> result3 = sequentialExecutorService.submit("key", callable3);
+    attempts.get(1).setException(retryableFailure);
+    fakeExecutor.advanceTime(Duration.ofSeconds(10));
+    assertEquals(2, attempts.size());
+    callable2.finish();
+    for (ApiFuture<String> result : ImmutableList.of(result1, result2, result3)) {
+      try {
+        result.get();
+        fail("Should have thrown an ExecutionException");
+      } catch (ExecutionException e) {
+        assertEquals(retryableFailure, e.getCause());
+      }
+    }
+    assertFalse(callable3.isCalled());
+  }
+
+  private static void waitUntilCalled(AsyncTaskCallable callable) throws InterruptedException {
+    for (int i = 0; i < 500 && !callable.isCalled(); i++) {
+      Thread.sleep(10);
+    }
+    assertTrue(callable.isCalled());
+  }
+
   /**
    * A task that sleeps {@code taskDurationMillis} milliseconds. Appends its {@code taskId} to
    * {@code startedTasksSequence} before sleeping and appends it to {@code completedTasksSequence}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2026 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub.v1;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.google.protobuf.ByteString;
+import com.google.pubsub.v1.PublishRequest;
+import com.google.pubsub.v1.PubsubMessage;
+import io.grpc.Drainable;
+import io.grpc.KnownLength;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link SerializedPublishRequest}. */
+@RunWith(JUnit4.class)
+public class SerializedPublishRequestTest {
+  private static final String TOPIC = "projects/test-project/topics/test-topic";
+
+  private static final PubsubMessage MESSAGE_1 =
+      PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8("message-1")).build();
+  private static final PubsubMessage MESSAGE_2 =
+      PubsubMessage.newBuilder()
+          .setData(ByteString.copyFromUtf8("message-2"))
+          .putAttributes("key", "value")
+          .setOrderingKey("ordering-key")
+          .build();
+  private static final PubsubMessage EMPTY_MESSAGE = PubsubMessage.getDefaultInstance();
+
+  private static final PublishRequest EXPECTED_REQUEST =
+      PublishRequest.newBuilder()
+          .setTopic(TOPIC)
+          .addMessages(MESSAGE_1)
+          .addMessages(EMPTY_MESSAGE)
+          .addMessages(MESSAGE_2)
+          .build();
+
+  @Test
+  public void testEncodedRequestMatchesPublishRequest() throws Exception {
+    SerializedPublishRequest request = newRequest();
+    assertEquals(TOPIC, request.getTopic());
+    assertEquals(3, request.getMessagesCount());
+    assertEquals(EXPECTED_REQUEST.getSerializedSize(), request.getSerializedSize());
+    assertEquals(EXPECTED_REQUEST, request.toPublishRequest());
+  }
+
+  @Test
+  public void testMarshallerStream_drain() throws Exception {
+    InputStream stream =
+        SerializedPublishRequest.PUBLISH_METHOD_DESCRIPTOR.streamRequest(newRequest());
+    assertEquals(EXPECTED_REQUEST.getSerializedSize(), ((KnownLength) stream).available());
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    assertEquals(EXPECTED_REQUEST.getSerializedSize(), ((Drainable) stream).drainTo(output));
+    assertArrayEquals(EXPECTED_REQUEST.toByteArray(), output.toByteArray());
+    assertEquals(0, stream.available());
+    assertEquals(-1, stream.read());
+  }
+
+  @Test
+  public void testMarshallerStream_read() throws Exception {
+    InputStream stream =
+        SerializedPublishRequest.PUBLISH_METHOD_DESCRIPTOR.streamRequest(newRequest());
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    // Reads a single byte, then chunks that straddle the boundaries of the encoded fields.
+    output.write(stream.read());
+    byte[] buffer = new byte[7];
+    int read;
+    while ((read = stream.read(buffer, 0, buffer.length)) != -1) {
+      output.write(buffer, 0, read);
+    }
+    assertArrayEquals(EXPECTED_REQUEST.toByteArray(), output.toByteArray());
+  }
+
+  @Test
+  public void testMarshallerParse() throws Exception {
+    SerializedPublishRequest parsed =
+        SerializedPublishRequest.PUBLISH_METHOD_DESCRIPTOR.parseRequest(
+            SerializedPublishRequest.PUBLISH_METHOD_DESCRIPTOR.streamRequest(newRequest()));
+    assertEquals(EXPECTED_REQUEST, parsed.toPublishRequest());
+  }
+
+  private static SerializedPublishRequest newRequest() {
+    List<byte[]> encodedMessages = new ArrayList<>();
+    encodedMessages.add(SerializedPublishRequest.encodeMessage(MESSAGE_1));
+    encodedMessages.add(SerializedPublishRequest.encodeMessage(EMPTY_MESSAGE));
+    encodedMessages.add(SerializedPublishRequest.encodeMessage(MESSAGE_2));
+    return new SerializedPublishRequest(
+        TOPIC, SerializedPublishRequest.encodeTopic(TOPIC), encodedMessages);
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2026 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub.v1;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ThreadPerTaskScheduledExecutor}. */
+@RunWith(JUnit4.class)
+public class ThreadPerTaskScheduledExecutorTest {
+
+  @Test
+  public void testTasksRunOnNewThreads() throws Exception {
+    ThreadPerTaskScheduledExecutor executor =
+        new ThreadPerTaskScheduledExecutor(Executors.defaultThreadFactory(), "test-scheduler");
+    final CountDownLatch blocked = new CountDownLatch(1);
+    final AtomicReference<Thread> firstThread = new AtomicReference<>();
+    executor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            firstThread.set(Thread.currentThread());
+            try {
+              blocked.await();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          }
+        });
+
+    // A blocked task does not hold up the next one.
+    final AtomicReference<Thread> secondThread = new AtomicReference<>();
+    executor
+        .submit(
+            new Runnable() {
+              @Override
+              public void run() {
+                secondThread.set(Thread.currentThread());
+              }
+            })
+        .get(10, TimeUnit.SECONDS);
+    assertNotSame(firstThread.get(), secondThread.get());
+
+    executor.shutdown();
+    assertFalse(executor.awaitTermination(10, TimeUnit.MILLISECONDS));
+    assertFalse(executor.isTerminated());
+    blocked.countDown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    assertTrue(executor.isTerminated());
+  }
+
+  @Test
+  public void testDelayedTasksAreHandedOff() throws Exception {
+    ThreadPerTaskScheduledExecutor executor =
+        new ThreadPerTaskScheduledExecutor(Executors.defaultThreadFactory(), "test-scheduler");
+    final AtomicReference<String> threadName = new AtomicReference<>();
+    executor
+        .schedule(
+            new Runnable() {
+              @Override
+              public void run() {
+                threadName.set(Thread.currentThread().getName());
+              }
+            },
+            10,
+            TimeUnit.MILLISECONDS)
+        .get(10, TimeUnit.SECONDS);
+    // The future of the scheduler completes once the task is handed off.
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    assertFalse(threadName.get().equals("test-scheduler"));
+
+    final CountDownLatch ran = new CountDownLatch(3);
+    executor =
+        new ThreadPerTaskScheduledExecutor(Executors.defaultThreadFactory(), "test-scheduler");
+    executor.scheduleWithFixedDelay(
+        new Runnable() {
+          @Override
+          public void run() {
+            ran.countDown();
+          }
+        },
+        1,
+        1,
+        TimeUnit.MILLISECONDS);
+    assertTrue(ran.await(10, TimeUnit.SECONDS));
+    executor.shutdownNow();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testRejectsTasksAfterShutdown() throws Exception {
+    ThreadPerTaskScheduledExecutor executor =
+        new ThreadPerTaskScheduledExecutor(Executors.defaultThreadFactory(), "test-scheduler");
+    executor.shutdown();
+    assertTrue(executor.isShutdown());
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    try {
+      executor.execute(
+          new Runnable() {
+            @Override
+            public void run() {}
+          });
+      fail("Should have thrown a RejectedExecutionException");
+    } catch (RejectedExecutionException expected) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testVirtualThreads() throws Exception {
+    Assume.assumeTrue(ThreadPerTaskScheduledExecutor.isVirtualThreadSupported());
+    ThreadPerTaskScheduledExecutor executor =
+        ThreadPerTaskScheduledExecutor.newVirtualThreadExecutor("test");
+    final AtomicReference<String> threadName = new AtomicReference<>();
+    executor
+        .submit(
+            new Runnable() {
+              @Override
+              public void run() {
+                threadName.set(Thread.currentThread().getName());
+              }
+            })
+        .get(10, TimeUnit.SECONDS);
+    assertTrue(threadName.get().startsWith("test-"));
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+  }
+}
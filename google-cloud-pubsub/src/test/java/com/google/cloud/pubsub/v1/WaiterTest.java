@@ -20,6 +20,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import com.google.api.core.ApiFuture;
 import java.util.concurrent.TimeUnit;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -118,4 +119,17 @@ public class WaiterTest {
     final FakeClock clock = new FakeClock();
     assertTrue(waiter.tryWait(100, clock));
   }
+
+  @Test
+  public void testWhenComplete() throws Exception {
+    final Waiter waiter = new Waiter();
+    assertTrue(waiter.whenComplete().isDone());
+
+    waiter.incrementPendingCount(2);
+    ApiFuture<Void> completion = waiter.whenComplete();
+    waiter.incrementPendingCount(-1);
+    assertFalse(completion.isDone());
+    waiter.incrementPendingCount(-1);
+    assertTrue(completion.isDone());
+  }
 }